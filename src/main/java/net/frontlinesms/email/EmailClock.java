@@ -0,0 +1,20 @@
+/**
+ * 
+ */
+package net.frontlinesms.email;
+
+/**
+ * Source of the current time for classes which expire, schedule or time out things, so that tests can
+ * control the time they see.
+ */
+public interface EmailClock {
+	/** Clock which reads {@link System#currentTimeMillis()} */
+	public static final EmailClock SYSTEM = new EmailClock() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/** @return the current time in milliseconds since the epoch */
+	public long currentTimeMillis();
+}
@@ -0,0 +1,323 @@
+/**
+ *
+ */
+package net.frontlinesms.email;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.receive.EmailReceiveException;
+import net.frontlinesms.email.receive.EmailReceiver;
+import net.frontlinesms.email.receive.cluster.EmailLeaseCoordinator;
+import net.frontlinesms.email.smtp.SmtpEmailSender;
+
+/**
+ * Runs receive loops and SMTP deliveries for many accounts, each on its own thread, while limiting
+ * how many network operations run at once against any one mail server.
+ * <p>
+ * JavaMail blocks its thread for the whole of each network operation, so an account needs a thread
+ * for as long as it is talking to its server.  With {@link #virtualThreads(int)}, each task gets a
+ * virtual thread, which costs a few hundred bytes of heap while blocked rather than a platform
+ * thread's stack, so one node can serve many thousands of accounts.
+ * <p>
+ * JavaMail 1.4.3 does its socket I/O while holding the protocol object's monitor, and on Java 21 to 23
+ * a virtual thread which blocks while holding a monitor pins its carrier thread, so only as many
+ * accounts as there are carrier threads could be blocked on the network at once.  Virtual threads are
+ * therefore only used on Java 24 or later, which no longer pins on monitors; on older JVMs
+ * {@link #virtualThreads(int)} uses a cached pool of platform threads instead, so the same code runs
+ * anywhere.
+ * <p>
+ * Each operation holds a permit from its server's semaphore while it runs, so that thousands of
+ * accounts on one provider do not open thousands of simultaneous connections to it.  Tasks waiting
+ * for a permit park their thread, which for a virtual thread costs almost nothing.
+ */
+public class EmailExecutor {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailExecutor.class);
+	/** Default value for {@link #permitsPerHost} */
+	public static final int DEFAULT_PERMITS_PER_HOST = 50;
+
+//> INSTANCE PROPERTIES
+	/** Executor running the tasks */
+	private final ExecutorService executor;
+	/** <code>true</code> if {@link #executor} runs each task on a virtual thread */
+	private final boolean virtual;
+	/** Maximum number of operations which may run at once against each server */
+	private final int permitsPerHost;
+	/** Semaphore for each server, keyed on lower case host name */
+	private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+//> CONSTRUCTORS
+	/**
+	 * @param executor executor running the tasks
+	 * @param virtual <code>true</code> if the executor runs each task on a virtual thread
+	 * @param permitsPerHost maximum number of operations which may run at once against each server
+	 */
+	private EmailExecutor(ExecutorService executor, boolean virtual, int permitsPerHost) {
+		this.executor = executor;
+		this.virtual = virtual;
+		this.permitsPerHost = permitsPerHost;
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * Creates an executor which runs each task on a new virtual thread, or, if the JVM is older than
+	 * Java 24, on a cached pool of platform threads.
+	 * @param permitsPerHost maximum number of operations which may run at once against each server
+	 * @return a new executor
+	 */
+	public static EmailExecutor virtualThreads(int permitsPerHost) {
+		return virtualThreads(permitsPerHost, getJavaVersion());
+	}
+
+	/**
+	 * Creates an executor which runs each task on a new virtual thread if a JVM version allows it.
+	 * @param permitsPerHost maximum number of operations which may run at once against each server
+	 * @param javaVersion feature version of the JVM, such as 21
+	 * @return a new executor
+	 */
+	static EmailExecutor virtualThreads(int permitsPerHost, int javaVersion) {
+		if(javaVersion < 24) {
+			LOG.info("Virtual threads pin their carrier threads in JavaMail on Java " + System.getProperty("java.version") + "; using platform threads.");
+			return platformThreads(permitsPerHost);
+		}
+		try {
+			// Looked up by reflection, so that this compiles and runs on JVMs without virtual threads
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new EmailExecutor((ExecutorService) factory.invoke(null), true, permitsPerHost);
+		} catch(Exception ex) {
+			LOG.info("Virtual threads are not available on Java " + System.getProperty("java.version") + "; using platform threads.");
+			return platformThreads(permitsPerHost);
+		}
+	}
+
+	/**
+	 * Creates an executor which runs tasks on a cached pool of daemon platform threads.
+	 * @param permitsPerHost maximum number of operations which may run at once against each server
+	 * @return a new executor
+	 */
+	public static EmailExecutor platformThreads(int permitsPerHost) {
+		return new EmailExecutor(Executors.newCachedThreadPool(new DaemonThreadFactory()), false, permitsPerHost);
+	}
+
+//> ACCESSORS
+	/** @return <code>true</code> if each task runs on its own virtual thread */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/** @return maximum number of operations which may run at once against each server */
+	public int getPermitsPerHost() {
+		return permitsPerHost;
+	}
+
+	/**
+	 * @param host host name of a server
+	 * @return number of operations running against the server
+	 */
+	public int getActiveOperations(String host) {
+		Semaphore permits = hostPermits.get(getKey(host));
+		return permits == null ? 0 : permitsPerHost - permits.availablePermits();
+	}
+
+	/**
+	 * @param host host name of a server
+	 * @return number of tasks waiting for a permit to run against the server
+	 */
+	public int getWaitingOperations(String host) {
+		Semaphore permits = hostPermits.get(getKey(host));
+		return permits == null ? 0 : permits.getQueueLength();
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Runs a task which uses a server, once the server has a free permit.
+	 * @param host host name of the server the task uses
+	 * @param task the task
+	 * @return the result of the task
+	 */
+	public <T> Future<T> submit(final String host, final Callable<T> task) {
+		return executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				return callWithPermit(host, task);
+			}
+		});
+	}
+
+	/**
+	 * Reads an account's messages once.
+	 * @param receiver the account
+	 * @return a future which fails with an {@link EmailReceiveException} if the account could not be read
+	 */
+	public Future<Void> receive(final EmailReceiver receiver) {
+		return submit(receiver.getHostAddress(), new Callable<Void>() {
+			public Void call() throws EmailReceiveException {
+				receiver.receive();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Starts reading an account's messages repeatedly, until the returned future is cancelled or this
+	 * executor is shut down.  A failed poll is logged, and the account is polled again after the
+	 * usual interval.
+	 * @param receiver the account
+	 * @param pollInterval time in milliseconds between the end of one poll and the start of the next
+	 * @return a future which can be cancelled to stop the loop
+	 */
+	public Future<?> startReceiving(final EmailReceiver receiver, long pollInterval) {
+		return startPolling(receiver, pollInterval, new Callable<Void>() {
+			public Void call() throws EmailReceiveException {
+				receiver.receive();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Starts reading an account's messages repeatedly while this node holds the account's lease, until
+	 * the returned future is cancelled or this executor is shut down.  The account is checked after the
+	 * usual interval even while another node holds it, so that this node takes it over when the cluster
+	 * changes.
+	 * @param receiver the account
+	 * @param pollInterval time in milliseconds between the end of one poll and the start of the next
+	 * @param coordinator coordinator sharing the cluster's accounts between its nodes
+	 * @return a future which can be cancelled to stop the loop
+	 */
+	public Future<?> startReceiving(final EmailReceiver receiver, long pollInterval, final EmailLeaseCoordinator coordinator) {
+		return startPolling(receiver, pollInterval, new Callable<Boolean>() {
+			public Boolean call() throws EmailReceiveException, IOException {
+				return coordinator.receive(receiver);
+			}
+		});
+	}
+
+	/**
+	 * Sends a message through an SMTP server.
+	 * @param sender sender for the SMTP server
+	 * @param message the message
+	 * @return a future which fails with an {@link EmailException} if the message could not be sent
+	 */
+	public Future<Void> send(final SmtpEmailSender sender, final Message message) {
+		return submit(sender.getSmtpServer(), new Callable<Void>() {
+			public Void call() throws EmailException {
+				sender.send(message);
+				return null;
+			}
+		});
+	}
+
+	/** Stops accepting new tasks.  Tasks already running, including receive loops, carry on. */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/** Stops accepting new tasks, and interrupts running tasks, which stops receive loops after their current poll. */
+	public void shutdownNow() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Waits for all tasks to finish after a shutdown.
+	 * @param timeout maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return <code>true</code> if all tasks finished, or <code>false</code> if the timeout passed first
+	 * @throws InterruptedException if the current thread was interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Starts calling a poll repeatedly for an account, until the returned future is cancelled. */
+	private Future<?> startPolling(final EmailReceiver receiver, final long pollInterval, final Callable<?> poll) {
+		return executor.submit(new Runnable() {
+			public void run() {
+				while(!Thread.currentThread().isInterrupted()) {
+					try {
+						callWithPermit(receiver.getHostAddress(), poll);
+					} catch(InterruptedException ex) {
+						return;
+					} catch(Exception ex) {
+						LOG.warn("Unable to receive from " + receiver.getHostUsername() + "@" + receiver.getHostAddress(), ex);
+					}
+					try {
+						Thread.sleep(pollInterval);
+					} catch(InterruptedException ex) {
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/** Calls a task while holding a permit for its server. */
+	private <T> T callWithPermit(String host, Callable<T> task) throws Exception {
+		Semaphore permits = getPermits(host);
+		permits.acquire();
+		try {
+			return task.call();
+		} finally {
+			permits.release();
+		}
+	}
+
+	/** @return the semaphore for a server, creating it if necessary */
+	private Semaphore getPermits(String host) {
+		String key = getKey(host);
+		Semaphore permits = hostPermits.get(key);
+		if(permits == null) {
+			permits = new Semaphore(permitsPerHost, true);
+			Semaphore existing = hostPermits.putIfAbsent(key, permits);
+			if(existing != null) permits = existing;
+		}
+		return permits;
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the key of a server in {@link #hostPermits}; a <code>null</code> host is keyed as "" */
+	private static String getKey(String host) {
+		return host == null ? "" : host.toLowerCase(Locale.ENGLISH);
+	}
+
+	/** @return the feature version of the JVM, such as 17 or 24, or 0 if it could not be found */
+	private static int getJavaVersion() {
+		try {
+			// Runtime.version() needs Java 9 and Version.feature() Java 10, so both are looked up by reflection
+			Object version = Runtime.class.getMethod("version").invoke(null);
+			return ((Integer) version.getClass().getMethod("feature").invoke(version)).intValue();
+		} catch(Exception ex) {
+			return 0;
+		}
+	}
+
+//> INNER CLASSES
+	/** Creates daemon threads, so that an executor which is not shut down does not keep the JVM running. */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		/** Number of threads created, for their names */
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "EmailExecutor-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * 
+ */
+package net.frontlinesms.email;
+
+import javax.mail.Message;
+
+/**
+ * Class that triages received emails using only their headers, before their bodies are downloaded.
+ * @see EmailFilter
+ */
+public interface EmailHeaderFilter {
+	/** What should be done with a message after its headers have been triaged. */
+	public enum Decision {
+		/** Download the message body and process the message. */
+		ACCEPT,
+		/**
+		 * Do not process the message, but treat it as read.  On POP3, where every read message is
+		 * deleted, this is the same as {@link #DELETE}.  On IMAP the message is marked as seen.
+		 */
+		REJECT,
+		/** Do not process the message, and delete it from the server. */
+		DELETE;
+	}
+
+	/**
+	 * Decide what to do with a received email.  Only the headers of the message have been fetched
+	 * when this is called, so implementations should only use header accessors such as
+	 * {@link Message#getFrom()}, {@link Message#getSubject()} and {@link Message#getHeader(String)}.
+	 * Calling {@link Message#getContent()} or similar will download the whole message.  Filters
+	 * which read several headers can share the parsed headers through
+	 * {@link net.frontlinesms.email.receive.EmailEnvelope#get(Message)}.
+	 * @param message the message to triage
+	 * @return what should be done with the message
+	 */
+	public Decision filter(Message message);
+}
@@ -0,0 +1,153 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.mime;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes base64 content as it is read, with buffers borrowed from an {@link EmailBufferPool}.
+ * Characters outside the base64 alphabet, such as line breaks, are ignored, and missing padding is
+ * allowed.  The buffers are returned to the pool when the stream is closed.
+ */
+public class Base64DecodingInputStream extends FilterInputStream {
+//> STATIC CONSTANTS
+	/** Size of the buffers borrowed */
+	private static final int BUFFER_SIZE = 8192;
+	/** Values of base64 characters, or -1 for bytes which are not base64 */
+	private static final byte[] VALUES = new byte[256];
+
+	static {
+		for(int i=0; i<VALUES.length; ++i) VALUES[i] = -1;
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for(int i=0; i<alphabet.length(); ++i) VALUES[alphabet.charAt(i)] = (byte) i;
+	}
+
+//> INSTANCE PROPERTIES
+	/** Pool the buffers are borrowed from */
+	private final EmailBufferPool pool;
+	/** Encoded bytes read from the underlying stream, or <code>null</code> once closed */
+	private byte[] input;
+	/** Decoded bytes waiting to be read, or <code>null</code> once closed */
+	private byte[] output;
+	/** Index of the next byte in {@link #output} to be read */
+	private int outputPosition;
+	/** Number of bytes in {@link #output} */
+	private int outputLength;
+	/** Bits of the base64 characters read since the last complete group of four */
+	private int bits;
+	/** Number of base64 characters read since the last complete group of four */
+	private int count;
+	/** <code>true</code> once the underlying stream has ended */
+	private boolean ended;
+
+//> CONSTRUCTORS
+	/**
+	 * @param in base64 content
+	 * @param pool pool to borrow buffers from
+	 */
+	public Base64DecodingInputStream(InputStream in, EmailBufferPool pool) {
+		super(in);
+		this.pool = pool;
+		this.input = pool.acquire(BUFFER_SIZE);
+		this.output = pool.acquire(BUFFER_SIZE);
+	}
+
+//> INSTANCE METHODS
+	@Override
+	public int read() throws IOException {
+		if(outputPosition == outputLength && !fill()) return -1;
+		return output[outputPosition++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		if(outputPosition == outputLength && !fill()) return -1;
+		int count = Math.min(len, outputLength - outputPosition);
+		System.arraycopy(output, outputPosition, b, off, count);
+		outputPosition += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while(skipped < n && (outputPosition < outputLength || fill())) {
+			int count = (int) Math.min(n - skipped, outputLength - outputPosition);
+			outputPosition += count;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return outputLength - outputPosition;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(input != null) {
+			pool.release(input);
+			pool.release(output);
+			input = null;
+			output = null;
+		}
+		super.close();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return <code>false</code> if there is nothing more to read */
+	private boolean fill() throws IOException {
+		if(input == null) throw new IOException("Stream closed");
+		outputPosition = 0;
+		outputLength = 0;
+		while(outputLength == 0 && !ended) {
+			// Four characters decode to three bytes, so the output buffer always has room
+			int read = in.read(input, 0, input.length);
+			if(read == -1) {
+				ended = true;
+				endGroup();
+				break;
+			}
+			for(int i=0; i<read; ++i) {
+				int b = input[i] & 0xFF;
+				if(b == '=') {
+					endGroup();
+					continue;
+				}
+				int value = VALUES[b];
+				if(value == -1) continue;
+				bits = (bits << 6) | value;
+				if(++count == 4) {
+					output[outputLength++] = (byte) (bits >> 16);
+					output[outputLength++] = (byte) (bits >> 8);
+					output[outputLength++] = (byte) bits;
+					bits = 0;
+					count = 0;
+				}
+			}
+		}
+		return outputLength > 0;
+	}
+
+	/** Decodes the bytes of an incomplete group of characters, at padding or the end of the content. */
+	private void endGroup() {
+		if(count == 2) {
+			output[outputLength++] = (byte) (bits >> 4);
+		} else if(count == 3) {
+			output[outputLength++] = (byte) (bits >> 10);
+			output[outputLength++] = (byte) (bits >> 2);
+		}
+		bits = 0;
+		count = 0;
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.mime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Encodes content as base64 as it is written, in lines of 76 characters separated by CRLF, as
+ * JavaMail's own encoder does.  As with JavaMail's, closing the stream ends the last line with CRLF,
+ * while finishing it, as a MIME part is written, does not.
+ */
+public class Base64EncodingOutputStream extends PooledEncoderStream {
+//> STATIC CONSTANTS
+	/** Maximum number of characters on a line */
+	private static final int LINE_LENGTH = 76;
+	/** The base64 alphabet */
+	private static final byte[] ALPHABET;
+
+	static {
+		try {
+			ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes("US-ASCII");
+		} catch(UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex.getMessage());
+		}
+	}
+
+//> INSTANCE PROPERTIES
+	/** Bytes written since the last complete group of three */
+	private int bits;
+	/** Number of bytes written since the last complete group of three */
+	private int count;
+	/** Number of characters on the current line */
+	private int lineLength;
+
+//> CONSTRUCTORS
+	/**
+	 * @param out stream the encoded content is written to
+	 * @param pool pool to borrow the buffer from
+	 */
+	public Base64EncodingOutputStream(OutputStream out, EmailBufferPool pool) {
+		super(out, pool);
+	}
+
+//> PooledEncoderStream METHODS
+	@Override
+	protected void encode(int b) throws IOException {
+		bits = (bits << 8) | b;
+		if(++count == 3) {
+			putGroup(bits, 4);
+			bits = 0;
+			count = 0;
+		}
+	}
+
+	@Override
+	protected void encode(byte[] b, int off, int len) throws IOException {
+		int i = off;
+		int end = off + len;
+		// Complete any group started by an earlier write, then encode whole groups directly
+		while(count != 0 && i < end) encode(b[i++] & 0xFF);
+		for(; end - i >= 3; i += 3) {
+			putGroup(((b[i] & 0xFF) << 16) | ((b[i + 1] & 0xFF) << 8) | (b[i + 2] & 0xFF), 4);
+		}
+		while(i < end) encode(b[i++] & 0xFF);
+	}
+
+	@Override
+	protected void end(boolean closing) throws IOException {
+		if(count > 0) {
+			putGroup(bits << 8 * (3 - count), count + 1);
+			bits = 0;
+			count = 0;
+		}
+		if(closing && lineLength > 0) {
+			put('\r');
+			put('\n');
+			lineLength = 0;
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Writes the characters for a group of three bytes, padded to four.  A line break is written before
+	 * the group if the line is full, so the content does not end with one.
+	 * @param group the bytes of the group
+	 * @param characters number of characters before the padding
+	 */
+	private void putGroup(int group, int characters) throws IOException {
+		if(lineLength + 4 > LINE_LENGTH) {
+			put('\r');
+			put('\n');
+			lineLength = 0;
+		}
+		put(ALPHABET[(group >> 18) & 0x3F]);
+		put(ALPHABET[(group >> 12) & 0x3F]);
+		put(characters > 2 ? ALPHABET[(group >> 6) & 0x3F] : '=');
+		put(characters > 3 ? ALPHABET[group & 0x3F] : '=');
+		lineLength += 4;
+	}
+}
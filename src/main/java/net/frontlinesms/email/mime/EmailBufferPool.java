@@ -0,0 +1,219 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.mime;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays for the buffers used to read, decode and encode messages, so that receiving and
+ * sending a message reuses the same few buffers rather than allocating new ones for every part.
+ * <p>
+ * Buffers come in size classes, each a power of two from {@link #MIN_BUFFER_SIZE} to
+ * {@link #MAX_BUFFER_SIZE}; a request is given a buffer from the smallest class big enough for it.
+ * Each platform thread keeps a few buffers of each class for itself, so that a thread which releases a
+ * buffer and acquires another of the same size touches no shared state.  Buffers beyond those go to a
+ * bounded queue shared by all threads.  Virtual threads, of which there may be many thousands, only use
+ * the shared queues.  Requests larger than {@link #MAX_BUFFER_SIZE} are allocated, and not pooled.
+ * <p>
+ * A buffer must not be used after it has been released, nor released twice.
+ * <p>
+ * This class is thread-safe.
+ */
+public class EmailBufferPool {
+//> STATIC CONSTANTS
+	/** Size of the smallest buffers */
+	public static final int MIN_BUFFER_SIZE = 512;
+	/** Size of the largest buffers which are pooled */
+	public static final int MAX_BUFFER_SIZE = 64 * 1024;
+	/** Default value for {@link #sharedDepth} */
+	public static final int DEFAULT_SHARED_DEPTH = 64;
+	/** log2 of {@link #MIN_BUFFER_SIZE} */
+	private static final int MIN_SHIFT = 9;
+	/** Number of size classes */
+	private static final int CLASSES = 8;
+	/** Number of buffers of each class each platform thread keeps */
+	private static final int THREAD_DEPTH = 2;
+	/** <code>Thread.isVirtual()</code>, or <code>null</code> on JVMs without virtual threads */
+	private static final Method IS_VIRTUAL = getIsVirtual();
+	/** Pool shared by the receive and send paths */
+	private static final EmailBufferPool SHARED = new EmailBufferPool(DEFAULT_SHARED_DEPTH);
+
+//> INSTANCE PROPERTIES
+	/** Maximum number of buffers of each class kept in the shared queues */
+	private final int sharedDepth;
+	/** Buffers shared by all threads, for each size class */
+	private final ConcurrentLinkedQueue<?>[] shared = new ConcurrentLinkedQueue<?>[CLASSES];
+	/** Number of buffers in each of {@link #shared}, which is expensive to count */
+	private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+	/** Buffers kept by each thread */
+	private final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<ThreadCache>() {
+		@Override
+		protected ThreadCache initialValue() {
+			return new ThreadCache(isVirtual(Thread.currentThread()) ? 0 : THREAD_DEPTH);
+		}
+	};
+	/** Number of buffers acquired */
+	private final AtomicLong acquisitions = new AtomicLong();
+	/** Number of buffers allocated, because none was free or the request was too big to pool */
+	private final AtomicLong allocations = new AtomicLong();
+	/** Number of bytes allocated */
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+//> CONSTRUCTORS
+	/**
+	 * @param sharedDepth maximum number of buffers of each size kept in the queues shared by all threads
+	 */
+	public EmailBufferPool(int sharedDepth) {
+		this.sharedDepth = sharedDepth;
+		for(int i=0; i<CLASSES; ++i) {
+			shared[i] = new ConcurrentLinkedQueue<byte[]>();
+			sharedCounts[i] = new AtomicInteger();
+		}
+	}
+
+//> STATIC FACTORIES
+	/** @return the pool shared by the receive and send paths */
+	public static EmailBufferPool getShared() {
+		return SHARED;
+	}
+
+//> ACCESSORS
+	/** @return the number of buffers acquired */
+	public long getAcquisitions() {
+		return acquisitions.get();
+	}
+
+	/** @return the number of buffers allocated because none was free, or the request was too big to pool */
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	/** @return the number of bytes of buffers allocated */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * @param size minimum size of the buffer
+	 * @return a buffer of at least the size, which should be passed to {@link #release(byte[])} once it is no longer used
+	 */
+	public byte[] acquire(int size) {
+		acquisitions.incrementAndGet();
+		int sizeClass = getSizeClass(size);
+		if(sizeClass == -1) return allocate(size);
+		byte[] buffer = threadCaches.get().poll(sizeClass);
+		if(buffer == null) {
+			buffer = getShared(sizeClass).poll();
+			if(buffer != null) sharedCounts[sizeClass].decrementAndGet();
+		}
+		return buffer != null ? buffer : allocate(MIN_BUFFER_SIZE << sizeClass);
+	}
+
+	/**
+	 * Returns a buffer to the pool.  Buffers which were not acquired from a pool are dropped.
+	 * @param buffer a buffer from {@link #acquire(int)}
+	 */
+	public void release(byte[] buffer) {
+		int sizeClass = getSizeClass(buffer.length);
+		if(sizeClass == -1 || buffer.length != MIN_BUFFER_SIZE << sizeClass) return;
+		if(threadCaches.get().offer(sizeClass, buffer)) return;
+		if(sharedCounts[sizeClass].incrementAndGet() <= sharedDepth) {
+			getShared(sizeClass).offer(buffer);
+		} else {
+			sharedCounts[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Replaces a buffer with a bigger one, keeping its contents, and releases the old buffer.
+	 * @param buffer a buffer from {@link #acquire(int)}
+	 * @param used number of bytes at the start of the buffer to keep
+	 * @param size minimum size of the new buffer
+	 * @return the new buffer
+	 */
+	public byte[] grow(byte[] buffer, int used, int size) {
+		byte[] larger = acquire(size);
+		System.arraycopy(buffer, 0, larger, 0, used);
+		release(buffer);
+		return larger;
+	}
+
+	@Override
+	public String toString() {
+		return "acquisitions=" + getAcquisitions() + " allocations=" + getAllocations() + " allocatedBytes=" + getAllocatedBytes();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return a new buffer, counted in the statistics */
+	private byte[] allocate(int size) {
+		allocations.incrementAndGet();
+		allocatedBytes.addAndGet(size);
+		return new byte[size];
+	}
+
+	/** @return the shared queue for a size class */
+	@SuppressWarnings("unchecked")
+	private ConcurrentLinkedQueue<byte[]> getShared(int sizeClass) {
+		return (ConcurrentLinkedQueue<byte[]>) shared[sizeClass];
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the smallest size class holding a number of bytes, or -1 if it is too big to pool */
+	private static int getSizeClass(int size) {
+		if(size > MAX_BUFFER_SIZE) return -1;
+		if(size <= MIN_BUFFER_SIZE) return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/** @return <code>true</code> if a thread is a virtual thread */
+	private static boolean isVirtual(Thread thread) {
+		if(IS_VIRTUAL == null) return false;
+		try {
+			return Boolean.TRUE.equals(IS_VIRTUAL.invoke(thread));
+		} catch(Exception ex) {
+			return false;
+		}
+	}
+
+	/** @return <code>Thread.isVirtual()</code>, looked up by reflection so that this runs on JVMs without it */
+	private static Method getIsVirtual() {
+		try {
+			return Thread.class.getMethod("isVirtual");
+		} catch(NoSuchMethodException ex) {
+			return null;
+		}
+	}
+
+//> INNER CLASSES
+	/** Buffers kept by one thread. */
+	private static class ThreadCache {
+		/** Buffers of each size class */
+		private final byte[][][] buffers;
+		/** Number of buffers of each size class */
+		private final int[] counts = new int[CLASSES];
+
+		ThreadCache(int depth) {
+			buffers = new byte[CLASSES][depth][];
+		}
+
+		/** @return a buffer of a size class, or <code>null</code> if the thread has none */
+		byte[] poll(int sizeClass) {
+			if(counts[sizeClass] == 0) return null;
+			byte[] buffer = buffers[sizeClass][--counts[sizeClass]];
+			buffers[sizeClass][counts[sizeClass]] = null;
+			return buffer;
+		}
+
+		/** @return <code>true</code> if the thread kept the buffer, or <code>false</code> if it already has enough */
+		boolean offer(int sizeClass, byte[] buffer) {
+			if(counts[sizeClass] == buffers[sizeClass].length) return false;
+			buffers[sizeClass][counts[sizeClass]++] = buffer;
+			return true;
+		}
+	}
+}
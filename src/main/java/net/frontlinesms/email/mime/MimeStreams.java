@@ -0,0 +1,95 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Decoding and encoding of MIME content transfer encodings, with buffers from the shared
+ * {@link EmailBufferPool}.  Base64 and quoted-printable are handled here; content which is not
+ * encoded is passed through, and other encodings are left to {@link MimeUtility}.
+ */
+public class MimeStreams {
+//> STATIC CONSTANTS
+	/** Size of the buffer used by {@link #copy(InputStream, OutputStream)} */
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+//> STATIC METHODS
+	/**
+	 * @param in encoded content
+	 * @param encoding content transfer encoding of the content, or <code>null</code> if it is not encoded
+	 * @return stream of the decoded content, which should be closed once it has been read
+	 * @throws MessagingException if the encoding is not supported
+	 */
+	public static InputStream decode(InputStream in, String encoding) throws MessagingException {
+		String name = normalise(encoding);
+		if(name == null) return in;
+		if(name.equals("base64")) return new Base64DecodingInputStream(in, EmailBufferPool.getShared());
+		if(name.equals("quoted-printable")) return new QuotedPrintableDecodingInputStream(in, EmailBufferPool.getShared());
+		return MimeUtility.decode(in, encoding);
+	}
+
+	/**
+	 * @param out stream the encoded content is written to
+	 * @param encoding content transfer encoding to use, or <code>null</code> to write the content as it is
+	 * @return stream encoding content written to it, which should be passed to {@link #finish(OutputStream)} once it has been written
+	 * @throws MessagingException if the encoding is not supported
+	 */
+	public static OutputStream encode(OutputStream out, String encoding) throws MessagingException {
+		String name = normalise(encoding);
+		if(name == null) return out;
+		if(name.equals("base64")) return new Base64EncodingOutputStream(out, EmailBufferPool.getShared());
+		if(name.equals("quoted-printable")) return new QuotedPrintableEncodingOutputStream(out, EmailBufferPool.getShared());
+		return MimeUtility.encode(out, encoding);
+	}
+
+	/**
+	 * Writes the end of the encoding of a stream from {@link #encode(OutputStream, String)}, without
+	 * closing the stream it writes to.
+	 * @param encoder the encoding stream
+	 * @throws IOException if the encoded content could not be written
+	 */
+	public static void finish(OutputStream encoder) throws IOException {
+		if(encoder instanceof PooledEncoderStream) ((PooledEncoderStream) encoder).finish();
+		else encoder.flush();
+	}
+
+	/**
+	 * Copies the rest of a stream to another, with a buffer from the shared pool.  Neither stream is closed.
+	 * @param in stream to read from
+	 * @param out stream to write to
+	 * @return the number of bytes copied
+	 * @throws IOException if either stream failed
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		EmailBufferPool pool = EmailBufferPool.getShared();
+		byte[] buffer = pool.acquire(COPY_BUFFER_SIZE);
+		try {
+			long total = 0;
+			int read;
+			while((read = in.read(buffer, 0, COPY_BUFFER_SIZE)) != -1) {
+				out.write(buffer, 0, read);
+				total += read;
+			}
+			return total;
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the encoding in lower case, or <code>null</code> if content in it is not encoded */
+	private static String normalise(String encoding) {
+		if(encoding == null) return null;
+		String name = encoding.trim().toLowerCase(Locale.ENGLISH);
+		if(name.length() == 0 || name.equals("7bit") || name.equals("8bit") || name.equals("binary")) return null;
+		return name;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.mime;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base for streams which encode content as it is written, collecting the encoded bytes in a buffer
+ * borrowed from an {@link EmailBufferPool}.  {@link #finish()} writes the end of the encoding and
+ * returns the buffer to the pool without closing the underlying stream, so that more can be written
+ * after it, such as the next MIME boundary.
+ */
+public abstract class PooledEncoderStream extends FilterOutputStream {
+//> STATIC CONSTANTS
+	/** Size of the buffer borrowed */
+	private static final int BUFFER_SIZE = 8192;
+
+//> INSTANCE PROPERTIES
+	/** Pool the buffer is borrowed from */
+	private final EmailBufferPool pool;
+	/** Encoded bytes not yet written to the underlying stream, or <code>null</code> once finished */
+	private byte[] buffer;
+	/** Number of bytes in {@link #buffer} */
+	private int length;
+
+//> CONSTRUCTORS
+	/**
+	 * @param out stream the encoded content is written to
+	 * @param pool pool to borrow the buffer from
+	 */
+	protected PooledEncoderStream(OutputStream out, EmailBufferPool pool) {
+		super(out);
+		this.pool = pool;
+		this.buffer = pool.acquire(BUFFER_SIZE);
+	}
+
+//> INSTANCE METHODS
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		encode(b & 0xFF);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		encode(b, off, len);
+	}
+
+	/** Writes the encoded bytes so far to the underlying stream, and flushes it. */
+	@Override
+	public void flush() throws IOException {
+		if(buffer != null) writeBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Writes the end of the encoding to the underlying stream, and returns the buffer to the pool.  The
+	 * underlying stream is flushed but not closed.  Nothing more can be written to this stream.
+	 * @throws IOException if the underlying stream could not be written
+	 */
+	public void finish() throws IOException {
+		finish(false);
+	}
+
+	/** Finishes the encoding, and closes the underlying stream. */
+	@Override
+	public void close() throws IOException {
+		try {
+			finish(true);
+		} finally {
+			out.close();
+		}
+	}
+
+//> ABSTRACT METHODS
+	/**
+	 * Encodes one byte of content.
+	 * @param b the byte, from 0 to 255
+	 * @throws IOException if the underlying stream could not be written
+	 */
+	protected abstract void encode(int b) throws IOException;
+
+	/**
+	 * Encodes bytes of content.  Encoders which can encode several bytes at once more quickly than one
+	 * at a time override this.
+	 * @param b array holding the bytes
+	 * @param off index of the first byte
+	 * @param len number of bytes
+	 * @throws IOException if the underlying stream could not be written
+	 */
+	protected void encode(byte[] b, int off, int len) throws IOException {
+		for(int i=off, end=off+len; i<end; ++i) encode(b[i] & 0xFF);
+	}
+
+	/**
+	 * Encodes anything held back at the end of the content.
+	 * @param closing <code>true</code> if the stream is being closed, rather than finished
+	 * @throws IOException if the underlying stream could not be written
+	 */
+	protected abstract void end(boolean closing) throws IOException;
+
+//> INSTANCE HELPER METHODS
+	/** Writes the end of the encoding, and returns the buffer to the pool. */
+	private void finish(boolean closing) throws IOException {
+		if(buffer == null) return;
+		try {
+			end(closing);
+			writeBuffer();
+		} finally {
+			pool.release(buffer);
+			buffer = null;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Adds an encoded byte to the buffer, writing the buffer to the underlying stream when it is full.
+	 * @param b the encoded byte
+	 * @throws IOException if the underlying stream could not be written
+	 */
+	protected final void put(int b) throws IOException {
+		if(length == buffer.length) writeBuffer();
+		buffer[length++] = (byte) b;
+	}
+
+	/** Writes the buffered bytes to the underlying stream. */
+	private void writeBuffer() throws IOException {
+		if(length > 0) {
+			out.write(buffer, 0, length);
+			length = 0;
+		}
+	}
+
+	/** @throws IOException if the stream has been finished */
+	private void checkOpen() throws IOException {
+		if(buffer == null) throw new IOException("Stream finished");
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.mime;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes quoted-printable content as it is read, with buffers borrowed from an {@link EmailBufferPool}.
+ * Soft line breaks and whitespace at the ends of lines, or of the content, are removed.  An <code>=</code> which does not
+ * start a valid escape is kept as it is.  The buffers are returned to the pool when the stream is closed.
+ */
+public class QuotedPrintableDecodingInputStream extends FilterInputStream {
+//> STATIC CONSTANTS
+	/** Size of the buffers borrowed */
+	private static final int BUFFER_SIZE = 8192;
+
+//> INSTANCE PROPERTIES
+	/** Pool the buffers are borrowed from */
+	private final EmailBufferPool pool;
+	/** Encoded bytes read from the underlying stream, or <code>null</code> once closed */
+	private byte[] input;
+	/** Index of the first encoded byte in {@link #input} not yet decoded */
+	private int inputPosition;
+	/** Number of bytes in {@link #input} */
+	private int inputLength;
+	/** Decoded bytes waiting to be read, or <code>null</code> once closed */
+	private byte[] output;
+	/** Index of the next byte in {@link #output} to be read */
+	private int outputPosition;
+	/** Number of bytes in {@link #output} */
+	private int outputLength;
+	/** <code>true</code> once the underlying stream has ended */
+	private boolean ended;
+
+//> CONSTRUCTORS
+	/**
+	 * @param in quoted-printable content
+	 * @param pool pool to borrow buffers from
+	 */
+	public QuotedPrintableDecodingInputStream(InputStream in, EmailBufferPool pool) {
+		super(in);
+		this.pool = pool;
+		this.input = pool.acquire(BUFFER_SIZE);
+		this.output = pool.acquire(BUFFER_SIZE);
+	}
+
+//> INSTANCE METHODS
+	@Override
+	public int read() throws IOException {
+		if(outputPosition == outputLength && !fill()) return -1;
+		return output[outputPosition++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		if(outputPosition == outputLength && !fill()) return -1;
+		int count = Math.min(len, outputLength - outputPosition);
+		System.arraycopy(output, outputPosition, b, off, count);
+		outputPosition += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while(skipped < n && (outputPosition < outputLength || fill())) {
+			int count = (int) Math.min(n - skipped, outputLength - outputPosition);
+			outputPosition += count;
+			skipped += count;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return outputLength - outputPosition;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(input != null) {
+			pool.release(input);
+			pool.release(output);
+			input = null;
+			output = null;
+		}
+		super.close();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return <code>false</code> if there is nothing more to read */
+	private boolean fill() throws IOException {
+		if(input == null) throw new IOException("Stream closed");
+		outputPosition = 0;
+		outputLength = 0;
+		while(outputLength == 0) {
+			if(!ended) {
+				// Keep the undecoded end of the buffer, which may be the start of an escape or of trailing whitespace
+				System.arraycopy(input, inputPosition, input, 0, inputLength - inputPosition);
+				inputLength -= inputPosition;
+				inputPosition = 0;
+				int read = in.read(input, inputLength, input.length - inputLength);
+				if(read == -1) ended = true;
+				else inputLength += read;
+			} else if(inputPosition == inputLength) {
+				return false;
+			}
+			decode();
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes as much of {@link #input} as can be decoded without knowing what follows it.  Each encoded
+	 * byte decodes to at most one byte, so the output buffer always has room.
+	 */
+	private void decode() {
+		int i = inputPosition;
+		while(i < inputLength) {
+			byte b = input[i];
+			if(b == '=') {
+				int j = i + 1;
+				while(j < inputLength && (input[j] == ' ' || input[j] == '\t')) ++j;
+				if(j == inputLength && !ended) break;
+				if(j < inputLength && (input[j] == '\r' || input[j] == '\n')) {
+					// Soft line break
+					if(input[j] == '\r') {
+						if(j + 1 == inputLength && !ended) break;
+						if(j + 1 < inputLength && input[j + 1] == '\n') ++j;
+					}
+					i = j + 1;
+					continue;
+				}
+				if(i + 2 >= inputLength && !ended) break;
+				int high = i + 2 < inputLength ? hex(input[i + 1]) : -1;
+				int low = i + 2 < inputLength ? hex(input[i + 2]) : -1;
+				if(high != -1 && low != -1) {
+					output[outputLength++] = (byte) ((high << 4) | low);
+					i += 3;
+				} else {
+					output[outputLength++] = b;
+					++i;
+				}
+			} else if(b == ' ' || b == '\t') {
+				int j = i + 1;
+				while(j < inputLength && (input[j] == ' ' || input[j] == '\t')) ++j;
+				// Whitespace is held back until it is known whether it ends its line, unless it fills half the buffer
+				if(j == inputLength && !ended && j - i < input.length / 2) break;
+				if(j == inputLength || input[j] == '\r' || input[j] == '\n') {
+					// Whitespace at the end of a line, or of the content
+					i = j;
+				} else {
+					while(i < j) output[outputLength++] = input[i++];
+				}
+			} else {
+				output[outputLength++] = b;
+				++i;
+			}
+		}
+		inputPosition = i;
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the value of a hexadecimal digit, or -1 if it is not one */
+	private static int hex(byte b) {
+		if(b >= '0' && b <= '9') return b - '0';
+		if(b >= 'A' && b <= 'F') return b - 'A' + 10;
+		if(b >= 'a' && b <= 'f') return b - 'a' + 10;
+		return -1;
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.mime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes content as quoted-printable as it is written, as JavaMail's own encoder does.  CR, LF and
+ * CRLF are written as line breaks, lines are kept within 76 characters with soft line breaks, and
+ * whitespace at the end of a line is encoded.  A space at the very end of the content is written as
+ * <code>=20</code> when the encoder finishes, by {@link #finish()} or {@link #close()}.  JavaMail's
+ * encoder only writes it when closed, so {@link javax.mail.internet.MimeBodyPart}, which flushes the
+ * encoder without closing it, drops the space.
+ */
+public class QuotedPrintableEncodingOutputStream extends PooledEncoderStream {
+//> STATIC CONSTANTS
+	/** Maximum number of characters on a line, leaving room for a soft line break */
+	private static final int LINE_LENGTH = 75;
+	/** Hexadecimal digits */
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+//> INSTANCE PROPERTIES
+	/** Number of characters on the current line */
+	private int lineLength;
+	/** <code>true</code> if the last byte written was CR */
+	private boolean gotCR;
+	/** <code>true</code> if the last byte written was a space, which has not been encoded yet */
+	private boolean gotSpace;
+
+//> CONSTRUCTORS
+	/**
+	 * @param out stream the encoded content is written to
+	 * @param pool pool to borrow the buffer from
+	 */
+	public QuotedPrintableEncodingOutputStream(OutputStream out, EmailBufferPool pool) {
+		super(out, pool);
+	}
+
+//> PooledEncoderStream METHODS
+	@Override
+	protected void encode(int b) throws IOException {
+		if(gotSpace) {
+			// A space is only encoded if it ends its line
+			putCharacter(' ', b == '\r' || b == '\n');
+			gotSpace = false;
+		}
+		if(b == '\r') {
+			gotCR = true;
+			putLineBreak();
+		} else {
+			if(b == '\n') {
+				if(!gotCR) putLineBreak();
+			} else if(b == ' ') {
+				gotSpace = true;
+			} else {
+				putCharacter(b, b < ' ' || b >= 0x7F || b == '=');
+			}
+			gotCR = false;
+		}
+	}
+
+	@Override
+	protected void end(boolean closing) throws IOException {
+		if(gotSpace) {
+			putCharacter(' ', true);
+			gotSpace = false;
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Writes a character, encoded or not, with a soft line break first if it does not fit on the line. */
+	private void putCharacter(int b, boolean encode) throws IOException {
+		int width = encode ? 3 : 1;
+		if(lineLength + width > LINE_LENGTH) {
+			put('=');
+			put('\r');
+			put('\n');
+			lineLength = 0;
+		}
+		if(encode) {
+			put('=');
+			put(HEX[b >> 4]);
+			put(HEX[b & 0xF]);
+		} else {
+			put(b);
+		}
+		lineLength += width;
+	}
+
+	/** Writes a hard line break. */
+	private void putLineBreak() throws IOException {
+		put('\r');
+		put('\n');
+		lineLength = 0;
+	}
+}
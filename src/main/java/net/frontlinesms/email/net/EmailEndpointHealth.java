@@ -0,0 +1,371 @@
+/**
+ *
+ */
+package net.frontlinesms.email.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.FolderClosedException;
+import javax.mail.StoreClosedException;
+
+import net.frontlinesms.email.EmailClock;
+
+/**
+ * Health of a mail server, with a circuit breaker which stops connections being attempted while the
+ * server is down.
+ * <p>
+ * The breaker starts {@link State#CLOSED}, and every connection is allowed.  After
+ * {@link #getFailureThreshold()} connection failures in a row it {@link State#OPEN}s, and connections fail
+ * immediately with an {@link EmailEndpointUnavailableException} rather than each waiting for its own
+ * timeout.  Once the retry interval has passed, the breaker is {@link State#HALF_OPEN} and lets a single
+ * connection through as a probe: if that succeeds the breaker closes, and if it fails the breaker opens
+ * again with double the interval, up to {@link #getMaxRetryInterval()}.
+ * <p>
+ * Only failures to reach or talk to the server count; a server which answers, even to reject a login or
+ * a recipient, is healthy.
+ * <p>
+ * Receivers and senders share the health of each server through {@link #forEndpoint(String, int)}, and
+ * {@link #getEndpoints()} lists every server for monitoring.
+ */
+public class EmailEndpointHealth {
+//> STATIC CONSTANTS
+	/** Default value for {@link #failureThreshold} */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	/** Default value for {@link #retryInterval}: 30 seconds */
+	public static final long DEFAULT_RETRY_INTERVAL = 30 * 1000;
+	/** Default value for {@link #maxRetryInterval}: 10 minutes */
+	public static final long DEFAULT_MAX_RETRY_INTERVAL = 10 * 60 * 1000;
+	/** Shared health of each server, keyed on host and port */
+	private static final Map<String, EmailEndpointHealth> ENDPOINTS = new ConcurrentHashMap<String, EmailEndpointHealth>();
+
+//> INSTANCE PROPERTIES
+	/** Host name of the server */
+	private final String host;
+	/** Port of the server */
+	private final int port;
+	/** Number of failures in a row which open the breaker */
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	/** Time in milliseconds that the breaker stays open after it first opens */
+	private long retryInterval = DEFAULT_RETRY_INTERVAL;
+	/** Longest time in milliseconds that the breaker stays open */
+	private long maxRetryInterval = DEFAULT_MAX_RETRY_INTERVAL;
+	/** State of the breaker */
+	private State state = State.CLOSED;
+	/** Time in milliseconds the breaker will stay open for next time it opens */
+	private long currentRetryInterval = DEFAULT_RETRY_INTERVAL;
+	/** Time at which an open breaker lets a probe through */
+	private long nextProbeTime;
+	/** <code>true</code> if a probe has been let through a half-open breaker, and its result is not known yet */
+	private boolean probing;
+	/** Number of failures since the last success */
+	private int consecutiveFailures;
+	/** Number of successful connections */
+	private long successes;
+	/** Number of failed connections */
+	private long failures;
+	/** Number of connections refused because the breaker was open */
+	private long rejections;
+	/** Time of the last success, or zero if there has been none */
+	private long lastSuccessTime;
+	/** Time of the last failure, or zero if there has been none */
+	private long lastFailureTime;
+	/** Description of the last failure, or <code>null</code> if there has been none */
+	private String lastFailure;
+	/** Clock used for the retry interval */
+	private EmailClock clock = EmailClock.SYSTEM;
+
+//> CONSTRUCTORS
+	/**
+	 * Creates health tracking for a server which is not shared with other receivers and senders.
+	 * @param host host name of the server
+	 * @param port port of the server
+	 */
+	public EmailEndpointHealth(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * Gets the shared health of a server, creating it if necessary.
+	 * @param host host name of the server
+	 * @param port port of the server
+	 * @return the shared health of the server
+	 */
+	public static EmailEndpointHealth forEndpoint(String host, int port) {
+		String key = host.toLowerCase(Locale.ENGLISH) + ":" + port;
+		EmailEndpointHealth health = ENDPOINTS.get(key);
+		if(health == null) {
+			synchronized(ENDPOINTS) {
+				health = ENDPOINTS.get(key);
+				if(health == null) {
+					health = new EmailEndpointHealth(host, port);
+					ENDPOINTS.put(key, health);
+				}
+			}
+		}
+		return health;
+	}
+
+	/** @return the shared health of every server that has been used, for monitoring */
+	public static List<EmailEndpointHealth> getEndpoints() {
+		return new ArrayList<EmailEndpointHealth>(ENDPOINTS.values());
+	}
+
+//> ACCESSORS
+	/** @return host name of the server */
+	public String getHost() {
+		return host;
+	}
+
+	/** @return port of the server */
+	public int getPort() {
+		return port;
+	}
+
+	/** @return the state of the breaker; an open breaker whose retry interval has passed is reported as half-open */
+	public synchronized State getState() {
+		if(state == State.OPEN && clock.currentTimeMillis() >= nextProbeTime) return State.HALF_OPEN;
+		return state;
+	}
+
+	/** @return <code>true</code> if connections to the server are being allowed */
+	public boolean isAvailable() {
+		return getState() != State.OPEN;
+	}
+
+	/** @return number of failures in a row which open the breaker */
+	public synchronized int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/** @param failureThreshold number of failures in a row which open the breaker */
+	public synchronized void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/** @return time in milliseconds that the breaker stays open after it first opens */
+	public synchronized long getRetryInterval() {
+		return retryInterval;
+	}
+
+	/** @param retryInterval time in milliseconds that the breaker stays open after it first opens */
+	public synchronized void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+		if(state == State.CLOSED) this.currentRetryInterval = retryInterval;
+	}
+
+	/** @return longest time in milliseconds that the breaker stays open */
+	public synchronized long getMaxRetryInterval() {
+		return maxRetryInterval;
+	}
+
+	/** @param maxRetryInterval longest time in milliseconds that the breaker stays open */
+	public synchronized void setMaxRetryInterval(long maxRetryInterval) {
+		this.maxRetryInterval = maxRetryInterval;
+	}
+
+	/** @return number of failures since the last success */
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/** @return number of successful connections */
+	public synchronized long getSuccesses() {
+		return successes;
+	}
+
+	/** @return number of failed connections */
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	/** @return number of connections refused without being attempted because the breaker was open */
+	public synchronized long getRejections() {
+		return rejections;
+	}
+
+	/** @return time of the last success, or <code>null</code> if there has been none */
+	public synchronized Date getLastSuccessTime() {
+		return lastSuccessTime == 0 ? null : new Date(lastSuccessTime);
+	}
+
+	/** @return time of the last failure, or <code>null</code> if there has been none */
+	public synchronized Date getLastFailureTime() {
+		return lastFailureTime == 0 ? null : new Date(lastFailureTime);
+	}
+
+	/** @return description of the last failure, or <code>null</code> if there has been none */
+	public synchronized String getLastFailure() {
+		return lastFailure;
+	}
+
+	/** @return time at which an open breaker will let a probe through, or <code>null</code> if the breaker is not open */
+	public synchronized Date getNextProbeTime() {
+		return state == State.OPEN ? new Date(nextProbeTime) : null;
+	}
+
+	/**
+	 * Sets the clock used for the retry interval.
+	 * @param clock the clock, normally {@link EmailClock#SYSTEM}
+	 */
+	public void setClock(EmailClock clock) {
+		this.clock = clock;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Checks that a connection to the server may be attempted.  The result of every attempt which this
+	 * allows must be passed to {@link #recordResult(Throwable)}.
+	 * @throws EmailEndpointUnavailableException if the breaker is open, or a probe of the server is in progress
+	 */
+	public synchronized void acquire() throws EmailEndpointUnavailableException {
+		if(state == State.CLOSED) return;
+		long now = clock.currentTimeMillis();
+		if(state == State.OPEN && now >= nextProbeTime) {
+			state = State.HALF_OPEN;
+		}
+		if(state == State.HALF_OPEN && !probing) {
+			probing = true;
+			return;
+		}
+		++rejections;
+		throw new EmailEndpointUnavailableException(this);
+	}
+
+	/**
+	 * Records the result of a connection allowed by {@link #acquire()}.
+	 * @param failure the exception the connection failed with, or <code>null</code> if it succeeded; an
+	 * exception which does not show a problem reaching the server counts as success
+	 */
+	public void recordResult(Throwable failure) {
+		if(isConnectionFailure(failure)) {
+			recordFailure(failure);
+		} else {
+			recordSuccess();
+		}
+	}
+
+	/** Records that the server was reached, closing the breaker. */
+	public synchronized void recordSuccess() {
+		++successes;
+		lastSuccessTime = clock.currentTimeMillis();
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+		probing = false;
+		currentRetryInterval = retryInterval;
+	}
+
+	/**
+	 * Records that the server could not be reached, opening the breaker if there have been too many
+	 * failures in a row or a probe failed.
+	 * @param failure the exception the connection failed with
+	 */
+	public synchronized void recordFailure(Throwable failure) {
+		++failures;
+		++consecutiveFailures;
+		lastFailureTime = clock.currentTimeMillis();
+		lastFailure = describe(failure);
+		if(state == State.HALF_OPEN) {
+			currentRetryInterval = Math.min(currentRetryInterval * 2, maxRetryInterval);
+			open();
+		} else if(state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+			open();
+		}
+	}
+
+	/**
+	 * Probes the server by opening a TCP connection to it, if the breaker allows it.  This can be called
+	 * periodically by a monitor, so that the breaker closes as soon as the server is back rather than
+	 * when the next receive or send happens to be attempted.
+	 * @param timeout connection timeout, in milliseconds
+	 * @return <code>true</code> if the server accepted the connection; <code>false</code> if it did not,
+	 * or the breaker did not allow a probe yet
+	 */
+	public boolean probe(int timeout) {
+		try {
+			acquire();
+		} catch(EmailEndpointUnavailableException ex) {
+			return false;
+		}
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			recordSuccess();
+			return true;
+		} catch(IOException ex) {
+			recordFailure(ex);
+			return false;
+		} finally {
+			try { socket.close(); } catch(IOException ex) {}
+		}
+	}
+
+	/** Closes the breaker and clears the failure count, as though the server had just been reached. */
+	public synchronized void reset() {
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+		probing = false;
+		currentRetryInterval = retryInterval;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return host + ":" + port + " " + getState() + " (" + consecutiveFailures + " consecutive failures, "
+				+ successes + " successes, " + failures + " failures, " + rejections + " rejected)";
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Opens the breaker for {@link #currentRetryInterval}. */
+	private void open() {
+		state = State.OPEN;
+		probing = false;
+		nextProbeTime = clock.currentTimeMillis() + currentRetryInterval;
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * Checks whether an exception shows that a server could not be reached, or the connection to it was
+	 * lost, as opposed to the server refusing a request.
+	 * @param failure the exception, or <code>null</code>
+	 * @return <code>true</code> if the exception or any of its causes is an {@link IOException}, or a lost store or folder connection
+	 */
+	public static boolean isConnectionFailure(Throwable failure) {
+		for(Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if(cause instanceof IOException
+					|| cause instanceof StoreClosedException
+					|| cause instanceof FolderClosedException) {
+				return true;
+			}
+			if(cause.getCause() == cause) break;
+		}
+		return false;
+	}
+
+	/** @return the innermost cause of an exception, as a string, or <code>null</code> if there is no exception */
+	private static String describe(Throwable failure) {
+		if(failure == null) return null;
+		Throwable cause = failure;
+		while(cause.getCause() != null && cause.getCause() != cause) cause = cause.getCause();
+		return cause.toString();
+	}
+
+//> INNER CLASSES
+	/** State of a circuit breaker. */
+	public enum State {
+		/** Connections are allowed. */
+		CLOSED,
+		/** Connections fail immediately. */
+		OPEN,
+		/** A single connection is allowed, to probe whether the server is back. */
+		HALF_OPEN;
+	}
+}
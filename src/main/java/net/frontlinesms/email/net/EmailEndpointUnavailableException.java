@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package net.frontlinesms.email.net;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown instead of connecting to a mail server whose circuit breaker is open, because
+ * recent connections to it have failed.
+ * @see EmailEndpointHealth
+ */
+@SuppressWarnings("serial")
+public class EmailEndpointUnavailableException extends IOException {
+	/** Health of the server which was not connected to */
+	private final transient EmailEndpointHealth health;
+
+	public EmailEndpointUnavailableException(EmailEndpointHealth health) {
+		super("Mail server " + health.getHost() + ":" + health.getPort() + " is unavailable after "
+				+ health.getConsecutiveFailures() + " failures; last failure: " + health.getLastFailure());
+		this.health = health;
+	}
+
+	/** @return health of the server which was not connected to */
+	public EmailEndpointHealth getHealth() {
+		return health;
+	}
+}
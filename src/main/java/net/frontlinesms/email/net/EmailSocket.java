@@ -0,0 +1,425 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.net;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Socket created by an {@link EmailSocketFactory}.  This wraps the socket created by the factory's
+ * delegate, counting the bytes which pass through it and allowing DEFLATE compression to be started
+ * part way through the connection, as IMAP COMPRESS=DEFLATE requires.
+ */
+public class EmailSocket extends Socket {
+//> INSTANCE PROPERTIES
+	/** The socket this wraps */
+	private final Socket socket;
+	/** Settings to complete the TLS handshake with once connected, or <code>null</code> if this is not a TLS socket */
+	private final EmailTlsContext tlsContext;
+	/** Counters to update */
+	private final WireStatistics statistics;
+	/** Stream returned by {@link #getInputStream()} */
+	private SwitchableInputStream input;
+	/** Stream returned by {@link #getOutputStream()} */
+	private SwitchableOutputStream output;
+	/** <code>true</code> once {@link #startCompression()} has been called */
+	private boolean compressing;
+	/** Time in milliseconds a write may block for before the socket is closed, or zero to wait forever */
+	private volatile int writeTimeout;
+
+//> CONSTRUCTORS
+	EmailSocket(Socket socket, EmailTlsContext tlsContext, WireStatistics statistics) {
+		this.socket = socket;
+		this.tlsContext = tlsContext;
+		this.statistics = statistics;
+		if(socket.isConnected()) statistics.connected();
+	}
+
+//> ACCESSORS
+	/** @return the socket this wraps */
+	public Socket getSocket() {
+		return socket;
+	}
+
+	/** @return time in milliseconds a write may block for before the socket is closed, or zero if writes never time out */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Sets how long a write may block for, such as when the server has stopped reading.  When a write
+	 * times out, the socket is closed and the write fails with a {@link SocketTimeoutException}.
+	 * @param writeTimeout time in milliseconds, or zero to wait forever
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/** @return <code>true</code> if data on this socket is being compressed */
+	public synchronized boolean isCompressing() {
+		return compressing;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Compresses all further data in both directions.  The caller must make sure that no data is in
+	 * flight: the command which negotiated compression must have been sent and its response read.
+	 * @throws IOException if the socket's streams could not be opened
+	 */
+	public synchronized void startCompression() throws IOException {
+		if(compressing) return;
+		getInputStream();
+		getOutputStream();
+		output.flush();
+		input.data = new InflatingInputStream(input.wire);
+		output.data = new StoredDeflateOutputStream(output.wire);
+		compressing = true;
+	}
+
+	/**
+	 * Completes the TLS handshake of a connected socket, if this is a TLS socket.
+	 * @param host host name the socket was connected to
+	 * @throws IOException if the handshake failed or the server was not accepted
+	 */
+	void handshake(String host) throws IOException {
+		if(tlsContext == null) return;
+		try {
+			tlsContext.handshake((SSLSocket) socket, host);
+		} catch(IOException ex) {
+			socket.close();
+			throw ex;
+		}
+	}
+
+//> SOCKET METHODS
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if(input == null) input = new SwitchableInputStream(socket.getInputStream());
+		return input;
+	}
+
+	@Override
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if(output == null) output = new SwitchableOutputStream(socket.getOutputStream());
+		return output;
+	}
+
+	@Override
+	public void connect(SocketAddress endpoint) throws IOException {
+		connect(endpoint, 0);
+	}
+
+	@Override
+	public void connect(SocketAddress endpoint, int timeout) throws IOException {
+		socket.connect(endpoint, timeout);
+		statistics.connected();
+		if(tlsContext == null) return;
+		
+		// Don't let a server which accepts connections but never answers hold the handshake forever
+		int soTimeout = socket.getSoTimeout();
+		if(soTimeout == 0 && timeout > 0) socket.setSoTimeout(timeout);
+		try {
+			handshake(((InetSocketAddress) endpoint).getHostName());
+		} finally {
+			if(!socket.isClosed()) socket.setSoTimeout(soTimeout);
+		}
+	}
+
+	@Override
+	public void bind(SocketAddress bindpoint) throws IOException {
+		socket.bind(bindpoint);
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		socket.shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		socket.shutdownOutput();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return socket.getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return socket.getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return socket.getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return socket.getLocalSocketAddress();
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		socket.setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return socket.getTcpNoDelay();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		socket.setSoLinger(on, linger);
+	}
+
+	@Override
+	public int getSoLinger() throws SocketException {
+		return socket.getSoLinger();
+	}
+
+	@Override
+	public synchronized void setSoTimeout(int timeout) throws SocketException {
+		socket.setSoTimeout(timeout);
+	}
+
+	@Override
+	public synchronized int getSoTimeout() throws SocketException {
+		return socket.getSoTimeout();
+	}
+
+	@Override
+	public synchronized void setSendBufferSize(int size) throws SocketException {
+		socket.setSendBufferSize(size);
+	}
+
+	@Override
+	public synchronized int getSendBufferSize() throws SocketException {
+		return socket.getSendBufferSize();
+	}
+
+	@Override
+	public synchronized void setReceiveBufferSize(int size) throws SocketException {
+		socket.setReceiveBufferSize(size);
+	}
+
+	@Override
+	public synchronized int getReceiveBufferSize() throws SocketException {
+		return socket.getReceiveBufferSize();
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws SocketException {
+		socket.setKeepAlive(on);
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException {
+		return socket.getKeepAlive();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return socket.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return socket.isBound();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return socket.isInputShutdown();
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return socket.isOutputShutdown();
+	}
+
+	@Override
+	public String toString() {
+		return socket.toString();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return the write timeout, after starting to watch a write if there is one */
+	private int beginWrite() {
+		int timeout = writeTimeout;
+		if(timeout > 0) WriteWatchdog.getInstance().beginWrite(socket, timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops watching a write started by {@link #beginWrite()}.
+	 * @param timeout the timeout returned by {@link #beginWrite()}
+	 * @throws SocketTimeoutException if the socket was closed because the write took too long
+	 */
+	private void endWrite(int timeout) throws SocketTimeoutException {
+		if(timeout > 0 && WriteWatchdog.getInstance().endWrite(socket)) {
+			throw new SocketTimeoutException("Write timed out after " + timeout + "ms");
+		}
+	}
+
+//> INNER CLASSES
+	/** Input stream which counts wire and data bytes, and can switch to decompressing its input. */
+	private class SwitchableInputStream extends InputStream {
+		/** Stream of data as received from the network, counting each byte */
+		private final InputStream wire;
+		/** Stream the mail protocol reads from; either {@link #wire} or a decompressor reading from it */
+		private volatile InputStream data;
+
+		SwitchableInputStream(final InputStream in) {
+			this.wire = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					int b = in.read();
+					if(b != -1) statistics.wireRead(1);
+					return b;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int read = in.read(b, off, len);
+					if(read > 0) statistics.wireRead(read);
+					return read;
+				}
+				@Override
+				public int available() throws IOException {
+					return in.available();
+				}
+				@Override
+				public void close() throws IOException {
+					in.close();
+				}
+			};
+			this.data = wire;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = data.read();
+			if(b != -1) statistics.dataRead(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = data.read(b, off, len);
+			if(read > 0) statistics.dataRead(read);
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return data.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			data.close();
+		}
+	}
+
+	/** Output stream which counts wire and data bytes, and can switch to compressing its output. */
+	private class SwitchableOutputStream extends OutputStream {
+		/** Stream of data as sent to the network, counting each byte */
+		private final OutputStream wire;
+		/** Stream the mail protocol writes to; either {@link #wire} or a compressor writing to it */
+		private volatile OutputStream data;
+
+		SwitchableOutputStream(final OutputStream out) {
+			this.wire = new BufferedOutputStream(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					int timeout = beginWrite();
+					try {
+						out.write(b);
+					} finally {
+						endWrite(timeout);
+					}
+					statistics.wireWritten(1);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					int timeout = beginWrite();
+					try {
+						out.write(b, off, len);
+					} finally {
+						endWrite(timeout);
+					}
+					statistics.wireWritten(len);
+				}
+				@Override
+				public void flush() throws IOException {
+					int timeout = beginWrite();
+					try {
+						out.flush();
+					} finally {
+						endWrite(timeout);
+					}
+				}
+				@Override
+				public void close() throws IOException {
+					out.close();
+				}
+			});
+			this.data = wire;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			data.write(b);
+			statistics.dataWritten(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			data.write(b, off, len);
+			statistics.dataWritten(len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			data.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			data.close();
+		}
+	}
+}
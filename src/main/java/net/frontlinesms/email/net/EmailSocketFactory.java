@@ -0,0 +1,219 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Socket factory for mail connections.  Sockets are created by a delegate factory and wrapped in an
+ * {@link EmailSocket}, which counts the bytes sent and received and supports compression.
+ * <p>
+ * Set an instance as the <code>mail.<i>protocol</i>.socketFactory</code> or
+ * <code>mail.<i>protocol</i>.ssl.socketFactory</code> session property to use it for JavaMail connections.
+ * <p>
+ * A factory created with an {@link EmailTlsContext} makes TLS connections from that context, completing
+ * and checking each handshake as soon as the connection is made.  As this is an {@link SSLSocketFactory},
+ * JavaMail also uses it to start TLS on plain connections with STARTTLS.
+ * <p>
+ * JavaMail does not expose the socket of a connection, so the factory remembers the open sockets each
+ * thread has created; see {@link #getThreadSocket(int)}.
+ */
+public class EmailSocketFactory extends SSLSocketFactory {
+//> INSTANCE PROPERTIES
+	/** Factory which creates the underlying sockets, or <code>null</code> to use {@link #tlsContext}'s factory */
+	private final SocketFactory delegate;
+	/** Settings for TLS connections, or <code>null</code> if this does not make TLS connections */
+	private final EmailTlsContext tlsContext;
+	/** Counters for the sockets this creates */
+	private final WireStatistics statistics = new WireStatistics();
+	/** Write timeout of the sockets this creates, in milliseconds, or zero if writes never time out */
+	private volatile int writeTimeout;
+	/** Sockets created by each thread which may still be open, and which are not wrapped by a TLS socket */
+	private final ThreadLocal<List<EmailSocket>> threadSockets = new ThreadLocal<List<EmailSocket>>() {
+		@Override
+		protected List<EmailSocket> initialValue() {
+			return new ArrayList<EmailSocket>();
+		}
+	};
+
+//> CONSTRUCTORS
+	/**
+	 * Creates a factory wrapping the sockets of another factory.
+	 * @param delegate factory which creates the underlying sockets
+	 */
+	public EmailSocketFactory(SocketFactory delegate) {
+		this.delegate = delegate;
+		this.tlsContext = null;
+	}
+
+	/**
+	 * Creates a factory for TLS connections.
+	 * @param tlsContext settings for the connections; this should be kept for as long as the server is
+	 * used, so that reconnects can resume earlier TLS sessions
+	 */
+	public EmailSocketFactory(EmailTlsContext tlsContext) {
+		this.delegate = null;
+		this.tlsContext = tlsContext;
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * Creates a factory for plain or SSL connections.  SSL connections use a new {@link EmailTlsContext}
+	 * with default settings.
+	 * @param useSSL <code>true</code> if the sockets should use SSL
+	 * @return a new factory
+	 */
+	public static EmailSocketFactory create(boolean useSSL) {
+		if(!useSSL) return new EmailSocketFactory(SocketFactory.getDefault());
+		return new EmailSocketFactory(new EmailTlsContext());
+	}
+
+//> ACCESSORS
+	/**
+	 * @return the factory which creates the underlying sockets; for TLS connections, this is the
+	 * factory of the {@link EmailTlsContext} with its current settings
+	 * @throws IOException if the TLS context could not be created
+	 */
+	public SocketFactory getDelegate() throws IOException {
+		return delegate != null ? delegate : tlsContext.getSocketFactory();
+	}
+
+	/** @return settings for TLS connections, or <code>null</code> if this factory does not make TLS connections */
+	public EmailTlsContext getTlsContext() {
+		return tlsContext;
+	}
+
+	/** @return write timeout of the sockets this creates, in milliseconds, or zero if writes never time out */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Sets the write timeout of sockets created from now on.  JavaMail has no setting for this, so it
+	 * must be set on the factory.
+	 * @param writeTimeout write timeout in milliseconds, or zero if writes should never time out
+	 * @see EmailSocket#setWriteTimeout(int)
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/** @return counters for the sockets this factory has created */
+	public WireStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Gets the socket of a connection made on the current thread.  A store connects on the thread which
+	 * uses it, so while a thread has one connection to a server open, this is that connection's socket.
+	 * Sockets which have had TLS started over them with STARTTLS are not returned, as their content is
+	 * encrypted by another socket.
+	 * @param port port of the server, or <code>-1</code> for any port
+	 * @return the only open socket to the port created by this factory on the current thread, or
+	 * <code>null</code> if there is none or more than one
+	 */
+	public EmailSocket getThreadSocket(int port) {
+		EmailSocket found = null;
+		for(Iterator<EmailSocket> sockets = threadSockets.get().iterator(); sockets.hasNext(); ) {
+			EmailSocket socket = sockets.next();
+			if(socket.isClosed()) {
+				sockets.remove();
+			} else if(port == -1 || socket.getPort() == port) {
+				if(found != null) return null;
+				found = socket;
+			}
+		}
+		return found;
+	}
+
+//> SOCKETFACTORY METHODS
+	@Override
+	public Socket createSocket() throws IOException {
+		EmailSocket socket = new EmailSocket(getDelegate().createSocket(), tlsContext, statistics);
+		socket.setWriteTimeout(writeTimeout);
+		track(socket);
+		return socket;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+		return connected(getDelegate().createSocket(host, port), host);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return connected(getDelegate().createSocket(host, port), host.getHostName());
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException {
+		return connected(getDelegate().createSocket(host, port, localHost, localPort), host);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return connected(getDelegate().createSocket(address, port, localAddress, localPort), address.getHostName());
+	}
+
+	/**
+	 * Starts TLS over an existing connection.  The returned socket is not wrapped, as the bytes it sends
+	 * are already counted by the connection if that was made by this factory.
+	 */
+	@Override
+	public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+		if(tlsContext == null) throw new IOException("Socket factory is not configured for TLS.");
+		threadSockets.get().remove(socket);
+		return tlsContext.createSocket(socket, host, port, autoClose);
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		SSLSocketFactory factory = getSslDelegate();
+		return factory != null ? factory.getDefaultCipherSuites() : new String[0];
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		SSLSocketFactory factory = getSslDelegate();
+		return factory != null ? factory.getSupportedCipherSuites() : new String[0];
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return the delegate if it creates SSL sockets, or <code>null</code> if it does not or could not be created */
+	private SSLSocketFactory getSslDelegate() {
+		try {
+			SocketFactory factory = getDelegate();
+			return factory instanceof SSLSocketFactory ? (SSLSocketFactory) factory : null;
+		} catch(IOException ex) {
+			return null;
+		}
+	}
+
+	/** @return an {@link EmailSocket} wrapping a socket which is already connected, after completing its TLS handshake */
+	private EmailSocket connected(Socket socket, String host) throws IOException {
+		EmailSocket emailSocket = new EmailSocket(socket, tlsContext, statistics);
+		emailSocket.setWriteTimeout(writeTimeout);
+		emailSocket.handshake(host);
+		track(emailSocket);
+		return emailSocket;
+	}
+
+	/** Remembers a socket created on the current thread, forgetting any which have been closed. */
+	private void track(EmailSocket socket) {
+		List<EmailSocket> sockets = threadSockets.get();
+		for(Iterator<EmailSocket> i = sockets.iterator(); i.hasNext(); ) {
+			if(i.next().isClosed()) i.remove();
+		}
+		sockets.add(socket);
+	}
+}
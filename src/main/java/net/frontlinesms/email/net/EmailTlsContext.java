@@ -0,0 +1,384 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS settings for connections to mail servers, and the {@link SSLContext} built from them.
+ * <p>
+ * The context is created once and reused for every connection, so its client session cache lets
+ * reconnects to the same server resume the previous TLS session with an abbreviated handshake,
+ * rather than repeating the full key exchange and certificate validation.
+ * <p>
+ * By default, server certificates are checked against the JVM's trust store and the server's host
+ * name.  A different trust store can be set, and certificates can be pinned by the SHA-256 hash of
+ * their public key, so that only the expected server is accepted even if a trusted certificate
+ * authority issues a certificate for it.
+ */
+public class EmailTlsContext {
+//> STATIC CONSTANTS
+	/** Default value for {@link #sessionTimeout}: one day, in seconds */
+	private static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+	/** Shared contexts with default settings, keyed on host and port */
+	private static final Map<String, EmailTlsContext> ENDPOINT_CONTEXTS = new ConcurrentHashMap<String, EmailTlsContext>();
+	/** Subject alternative name type for DNS names */
+	private static final int SAN_DNS = 2;
+	/** Subject alternative name type for IP addresses */
+	private static final int SAN_IP = 7;
+
+//> INSTANCE PROPERTIES
+	/** Trust store to check server certificates against, or <code>null</code> to use the JVM's trust store */
+	private KeyStore trustStore;
+	/** <code>true</code> if any server certificate should be accepted, unless pinned keys are set */
+	private boolean trustAll;
+	/** <code>true</code> if the server's certificate must match its host name */
+	private boolean checkServerIdentity = true;
+	/** SHA-256 hashes of the public keys which are accepted, as lower case hex; empty to accept any key */
+	private final Set<String> pinnedKeys = new HashSet<String>();
+	/** Protocol requested from {@link SSLContext#getInstance(String)} */
+	private String protocol = "TLS";
+	/** Time in seconds that TLS sessions can be resumed for */
+	private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+	/** Context built from the current settings, or <code>null</code> if it has not been built since they changed */
+	private SSLContext context;
+	/** Number of handshakes which negotiated a new session */
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	/** Number of handshakes which resumed an earlier session */
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+
+//> CONSTRUCTORS
+	/** Creates a context which checks server certificates against the JVM's trust store. */
+	public EmailTlsContext() {}
+
+//> STATIC FACTORIES
+	/**
+	 * Gets the shared context for a server, creating one with default settings if necessary.  Changes
+	 * made to the returned context apply to every connection to the server which uses it.
+	 * @param host host name of the server
+	 * @param port port of the server
+	 * @return the shared context for the server
+	 */
+	public static EmailTlsContext forEndpoint(String host, int port) {
+		String key = host.toLowerCase(Locale.ENGLISH) + ":" + port;
+		EmailTlsContext context = ENDPOINT_CONTEXTS.get(key);
+		if(context == null) {
+			synchronized(ENDPOINT_CONTEXTS) {
+				context = ENDPOINT_CONTEXTS.get(key);
+				if(context == null) {
+					context = new EmailTlsContext();
+					ENDPOINT_CONTEXTS.put(key, context);
+				}
+			}
+		}
+		return context;
+	}
+
+	/**
+	 * Creates a context which accepts any server certificate, as connections made by
+	 * {@link net.frontlinesms.email.receive.EmailReceiveUtils#getStore(String, String, int, String, boolean, net.frontlinesms.email.receive.EmailReceiveProtocol)}
+	 * do.  This offers no protection against an attacker who can intercept the connection, unless
+	 * keys are pinned with {@link #addPinnedKey(String)}.
+	 * @return a new context
+	 */
+	public static EmailTlsContext trustAll() {
+		EmailTlsContext context = new EmailTlsContext();
+		context.trustAll = true;
+		context.checkServerIdentity = false;
+		return context;
+	}
+
+//> ACCESSORS
+	/**
+	 * Sets the trust store that server certificates are checked against.
+	 * @param file the trust store file
+	 * @param password password for the trust store, or <code>null</code> if it has none
+	 * @param type type of the trust store, such as <code>JKS</code> or <code>PKCS12</code>, or <code>null</code> for the JVM's default type
+	 * @throws IOException if the trust store could not be read
+	 * @throws GeneralSecurityException if the trust store is not valid
+	 */
+	public synchronized void setTrustStore(File file, String password, String type) throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance(type != null ? type : KeyStore.getDefaultType());
+		FileInputStream in = new FileInputStream(file);
+		try {
+			keyStore.load(in, password != null ? password.toCharArray() : null);
+		} finally {
+			in.close();
+		}
+		setTrustStore(keyStore);
+	}
+
+	/**
+	 * @param trustStore trust store that server certificates are checked against, or <code>null</code> to use the JVM's trust store
+	 */
+	public synchronized void setTrustStore(KeyStore trustStore) {
+		this.trustStore = trustStore;
+		this.trustAll = false;
+		this.context = null;
+	}
+
+	/**
+	 * Pins a server key.  Once any keys are pinned, a server is only accepted if a certificate in its
+	 * chain has one of the pinned public keys.  The hash for a certificate can be found with:
+	 * <pre>openssl x509 -in cert.pem -pubkey -noout | openssl pkey -pubin -outform der | openssl dgst -sha256</pre>
+	 * @param sha256 SHA-256 hash of the key's DER-encoded SubjectPublicKeyInfo, in hex; colons and spaces are ignored
+	 */
+	public synchronized void addPinnedKey(String sha256) {
+		String hex = sha256.replaceAll("[:\\s]", "").toLowerCase(Locale.ENGLISH);
+		if(!hex.matches("[0-9a-f]{64}")) throw new IllegalArgumentException("Not a SHA-256 hash: " + sha256);
+		pinnedKeys.add(hex);
+		context = null;
+	}
+
+	/** Removes all pinned keys, so that any key with a trusted certificate is accepted. */
+	public synchronized void clearPinnedKeys() {
+		pinnedKeys.clear();
+		context = null;
+	}
+
+	/** @return <code>true</code> if the server's certificate must match its host name */
+	public synchronized boolean isCheckServerIdentity() {
+		return checkServerIdentity;
+	}
+
+	/** @param checkServerIdentity <code>true</code> if the server's certificate must match its host name */
+	public synchronized void setCheckServerIdentity(boolean checkServerIdentity) {
+		this.checkServerIdentity = checkServerIdentity;
+	}
+
+	/** @param protocol protocol requested from {@link SSLContext#getInstance(String)}, such as <code>TLSv1.2</code> */
+	public synchronized void setProtocol(String protocol) {
+		this.protocol = protocol;
+		this.context = null;
+	}
+
+	/** @param sessionTimeout time in seconds that TLS sessions can be resumed for */
+	public synchronized void setSessionTimeout(int sessionTimeout) {
+		this.sessionTimeout = sessionTimeout;
+		if(context != null) context.getClientSessionContext().setSessionTimeout(sessionTimeout);
+	}
+
+	/** @return number of handshakes which negotiated a new session */
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/** @return number of handshakes which resumed an earlier session */
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Gets the socket factory of this context, building the context if the settings have changed.
+	 * Sockets from the same factory share a session cache, so the factory should be kept rather than
+	 * fetched again for each connection.
+	 * @return the socket factory
+	 * @throws IOException if the context could not be built
+	 */
+	public synchronized SSLSocketFactory getSocketFactory() throws IOException {
+		if(context == null) {
+			try {
+				context = createContext();
+			} catch(GeneralSecurityException ex) {
+				IOException ioex = new IOException("Unable to create TLS context: " + ex.getMessage());
+				ioex.initCause(ex);
+				throw ioex;
+			}
+		}
+		return context.getSocketFactory();
+	}
+
+	/**
+	 * Creates a TLS socket over an existing connection, as for STARTTLS, and completes the handshake.
+	 * @param socket the connection
+	 * @param host host name of the server
+	 * @param port port of the server
+	 * @param autoClose <code>true</code> if closing the TLS socket should close the connection
+	 * @return the TLS socket
+	 * @throws IOException if the handshake failed or the server was not accepted
+	 */
+	public SSLSocket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+		SSLSocket sslSocket = (SSLSocket) getSocketFactory().createSocket(socket, host, port, autoClose);
+		handshake(sslSocket, host);
+		return sslSocket;
+	}
+
+	/**
+	 * Completes the handshake of a connected TLS socket and checks the server's identity.  Any pinned
+	 * keys have already been checked by the time this returns.
+	 * @param socket the connected socket
+	 * @param host host name the socket was connected to
+	 * @throws IOException if the handshake failed or the server was not accepted
+	 */
+	public void handshake(SSLSocket socket, String host) throws IOException {
+		long start = System.currentTimeMillis();
+		socket.startHandshake();
+		SSLSession session = socket.getSession();
+		// A resumed session keeps the creation time of the handshake which negotiated it
+		if(session.getCreationTime() < start) resumedHandshakes.incrementAndGet();
+		else fullHandshakes.incrementAndGet();
+		
+		if(isCheckServerIdentity() && !matchesHost((X509Certificate) session.getPeerCertificates()[0], host)) {
+			socket.close();
+			throw new SSLPeerUnverifiedException("Server certificate does not match host name: " + host);
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return a new context with the current settings */
+	private SSLContext createContext() throws GeneralSecurityException {
+		TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init(trustStore);
+		X509TrustManager trusted = null;
+		for(TrustManager manager : factory.getTrustManagers()) {
+			if(manager instanceof X509TrustManager) {
+				trusted = (X509TrustManager) manager;
+				break;
+			}
+		}
+		if(trusted == null) throw new GeneralSecurityException("No X509 trust manager available.");
+		
+		SSLContext context = SSLContext.getInstance(protocol);
+		context.init(null, new TrustManager[] { new PinningTrustManager(trusted, trustAll, new HashSet<String>(pinnedKeys)) }, null);
+		context.getClientSessionContext().setSessionTimeout(sessionTimeout);
+		return context;
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * Checks a server certificate against the host name used to connect to the server, as described
+	 * in RFC 2818: subject alternative names are used if there are any, and the common name otherwise.
+	 * @return <code>true</code> if the certificate was issued for the host
+	 */
+	static boolean matchesHost(X509Certificate certificate, String host) {
+		host = host.toLowerCase(Locale.ENGLISH);
+		boolean hasDnsNames = false;
+		try {
+			Collection<List<?>> names = certificate.getSubjectAlternativeNames();
+			if(names != null) {
+				for(List<?> name : names) {
+					int type = ((Integer) name.get(0)).intValue();
+					if(type == SAN_DNS) {
+						hasDnsNames = true;
+						if(matchesName((String) name.get(1), host)) return true;
+					} else if(type == SAN_IP && isSameAddress((String) name.get(1), host)) {
+						return true;
+					}
+				}
+			}
+		} catch(CertificateParsingException ex) {
+			return false;
+		}
+		if(hasDnsNames) return false;
+		
+		String commonName = getCommonName(certificate);
+		return commonName != null && matchesName(commonName, host);
+	}
+
+	/** @return <code>true</code> if a certificate name, which may start with a wildcard label, matches a host name */
+	static boolean matchesName(String name, String host) {
+		name = name.toLowerCase(Locale.ENGLISH);
+		if(!name.startsWith("*.")) return name.equals(host);
+		// A wildcard only matches a single label
+		int dot = host.indexOf('.');
+		return dot > 0 && host.substring(dot).equals(name.substring(1));
+	}
+
+	/** @return <code>true</code> if an IP address from a certificate is the address of a host given as an IP address */
+	private static boolean isSameAddress(String address, String host) {
+		if(!host.matches("[0-9.]+|.*:.*")) return false;
+		try {
+			return InetAddress.getByName(address).equals(InetAddress.getByName(host));
+		} catch(IOException ex) {
+			return false;
+		}
+	}
+
+	/** @return the last common name in a certificate's subject, or <code>null</code> if it has none */
+	private static String getCommonName(X509Certificate certificate) {
+		String commonName = null;
+		for(String attribute : certificate.getSubjectX500Principal().getName().split(",")) {
+			if(attribute.trim().toUpperCase(Locale.ENGLISH).startsWith("CN=")) {
+				commonName = attribute.trim().substring(3);
+			}
+		}
+		return commonName;
+	}
+
+	/** @return the SHA-256 hash of a certificate's public key, in lower case hex */
+	static String getKeyHash(X509Certificate certificate) throws GeneralSecurityException {
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getPublicKey().getEncoded());
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for(byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+//> INNER CLASSES
+	/** Trust manager which checks server certificates against a trust store and any pinned keys. */
+	static class PinningTrustManager implements X509TrustManager {
+		/** Trust manager for the trust store */
+		private final X509TrustManager trusted;
+		/** <code>true</code> if the trust store should not be checked */
+		private final boolean trustAll;
+		/** Hashes of the pinned keys */
+		private final Set<String> pinnedKeys;
+
+		PinningTrustManager(X509TrustManager trusted, boolean trustAll, Set<String> pinnedKeys) {
+			this.trusted = trusted;
+			this.trustAll = trustAll;
+			this.pinnedKeys = pinnedKeys;
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			if(!trustAll) trusted.checkServerTrusted(chain, authType);
+			if(pinnedKeys.isEmpty()) return;
+			for(X509Certificate certificate : chain) {
+				try {
+					if(pinnedKeys.contains(getKeyHash(certificate))) return;
+				} catch(GeneralSecurityException ex) {
+					throw new CertificateException("Unable to hash server key: " + ex.getMessage());
+				}
+			}
+			throw new CertificateException("Server certificate chain does not contain a pinned key.");
+		}
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			trusted.checkClientTrusted(chain, authType);
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+			return trusted.getAcceptedIssuers();
+		}
+	}
+}
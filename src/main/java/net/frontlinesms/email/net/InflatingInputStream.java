@@ -0,0 +1,100 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a raw DEFLATE stream, as used by IMAP COMPRESS=DEFLATE (RFC 4978).
+ * <p>
+ * Unlike {@link java.util.zip.InflaterInputStream}, {@link #available()} only reports data which
+ * can be returned without blocking.  The mail protocol's {@link java.io.BufferedInputStream} relies on
+ * this to stop reading at the end of each server response.
+ */
+class InflatingInputStream extends InputStream {
+//> STATIC CONSTANTS
+	/** Size of the buffers for compressed and decompressed data */
+	private static final int BUFFER_SIZE = 8192;
+
+//> INSTANCE PROPERTIES
+	/** Stream of compressed data */
+	private final InputStream in;
+	/** Decompressor for the stream */
+	private final Inflater inflater = new Inflater(true);
+	/** Compressed data read from {@link #in} */
+	private final byte[] compressed = new byte[BUFFER_SIZE];
+	/** Decompressed data not yet returned */
+	private final byte[] decompressed = new byte[BUFFER_SIZE];
+	/** Position of the next byte to return from {@link #decompressed} */
+	private int position;
+	/** Number of valid bytes in {@link #decompressed} */
+	private int limit;
+
+//> CONSTRUCTORS
+	InflatingInputStream(InputStream in) {
+		this.in = in;
+	}
+
+//> INPUTSTREAM METHODS
+	@Override
+	public int read() throws IOException {
+		if(!fill()) return -1;
+		return decompressed[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) return 0;
+		if(!fill()) return -1;
+		int count = Math.min(len, limit - position);
+		System.arraycopy(decompressed, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if(position == limit && !inflater.needsInput()) inflate();
+		return limit - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Makes sure there is decompressed data waiting to be returned, reading compressed data if necessary.
+	 * @return <code>true</code> if there is data to return, or <code>false</code> if the end of the stream was reached
+	 */
+	private boolean fill() throws IOException {
+		while(position == limit) {
+			if(inflater.finished()) return false;
+			if(inflater.needsInput()) {
+				int read = in.read(compressed);
+				if(read == -1) return false;
+				inflater.setInput(compressed, 0, read);
+			}
+			inflate();
+		}
+		return true;
+	}
+
+	/** Decompresses as much buffered input as will fit in {@link #decompressed}. */
+	private void inflate() throws IOException {
+		try {
+			position = 0;
+			limit = inflater.inflate(decompressed);
+		} catch(DataFormatException ex) {
+			IOException ioex = new IOException("Invalid compressed data: " + ex.getMessage());
+			ioex.initCause(ex);
+			throw ioex;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a raw DEFLATE stream, as used by IMAP COMPRESS=DEFLATE (RFC 4978), in which every
+ * {@link #flush()} ends a block so the server can act on each command as soon as it is sent.
+ * <p>
+ * The blocks are stored rather than compressed: {@link java.util.zip.Deflater} cannot flush a block
+ * before Java 7, and client commands are short enough that this costs only five bytes per flush.
+ * Responses from the server, where almost all of the data is, are still fully compressed.
+ */
+class StoredDeflateOutputStream extends OutputStream {
+//> STATIC CONSTANTS
+	/** Largest amount of data a stored block can hold */
+	private static final int MAX_BLOCK_SIZE = 0xFFFF;
+
+//> INSTANCE PROPERTIES
+	/** Stream the DEFLATE data is written to */
+	private final OutputStream out;
+	/** Data waiting to be written as a stored block */
+	private final byte[] block = new byte[MAX_BLOCK_SIZE];
+	/** Number of bytes in {@link #block} */
+	private int count;
+
+//> CONSTRUCTORS
+	StoredDeflateOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+//> OUTPUTSTREAM METHODS
+	@Override
+	public void write(int b) throws IOException {
+		if(count == MAX_BLOCK_SIZE) writeBlock();
+		block[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(count == MAX_BLOCK_SIZE) writeBlock();
+			int length = Math.min(len, MAX_BLOCK_SIZE - count);
+			System.arraycopy(b, off, block, count, length);
+			count += length;
+			off += length;
+			len -= length;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(count > 0) writeBlock();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Writes the buffered data as a single, non-final stored block. */
+	private void writeBlock() throws IOException {
+		// BFINAL=0 and BTYPE=00 in the first byte, then LEN and NLEN, least significant byte first
+		out.write(0);
+		out.write(count & 0xFF);
+		out.write(count >>> 8);
+		out.write(~count & 0xFF);
+		out.write((~count >>> 8) & 0xFF);
+		out.write(block, 0, count);
+		count = 0;
+	}
+}
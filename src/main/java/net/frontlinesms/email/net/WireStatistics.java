@@ -0,0 +1,89 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes sent and received by the connections an {@link EmailSocketFactory} creates.  Wire
+ * bytes are those which crossed the network; data bytes are those the mail protocol read or wrote, and
+ * only differ from wire bytes when a connection is compressed.
+ */
+public class WireStatistics {
+//> INSTANCE PROPERTIES
+	/** Number of connections opened */
+	private final AtomicLong connections = new AtomicLong();
+	/** Number of bytes received from the network */
+	private final AtomicLong wireBytesRead = new AtomicLong();
+	/** Number of bytes sent to the network */
+	private final AtomicLong wireBytesWritten = new AtomicLong();
+	/** Number of bytes read by the mail protocol */
+	private final AtomicLong dataBytesRead = new AtomicLong();
+	/** Number of bytes written by the mail protocol */
+	private final AtomicLong dataBytesWritten = new AtomicLong();
+
+//> ACCESSORS
+	/** @return the number of connections opened */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/** @return the number of bytes received from the network */
+	public long getWireBytesRead() {
+		return wireBytesRead.get();
+	}
+
+	/** @return the number of bytes sent to the network */
+	public long getWireBytesWritten() {
+		return wireBytesWritten.get();
+	}
+
+	/** @return the number of bytes read by the mail protocol, after decompression */
+	public long getDataBytesRead() {
+		return dataBytesRead.get();
+	}
+
+	/** @return the number of bytes written by the mail protocol, before compression */
+	public long getDataBytesWritten() {
+		return dataBytesWritten.get();
+	}
+
+//> INSTANCE METHODS
+	/** Sets all counters back to zero. */
+	public void reset() {
+		connections.set(0);
+		wireBytesRead.set(0);
+		wireBytesWritten.set(0);
+		dataBytesRead.set(0);
+		dataBytesWritten.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "connections=" + getConnections()
+				+ " read=" + getWireBytesRead() + "/" + getDataBytesRead()
+				+ " written=" + getWireBytesWritten() + "/" + getDataBytesWritten();
+	}
+
+//> PACKAGE METHODS
+	void connected() {
+		connections.incrementAndGet();
+	}
+
+	void wireRead(int count) {
+		wireBytesRead.addAndGet(count);
+	}
+
+	void wireWritten(int count) {
+		wireBytesWritten.addAndGet(count);
+	}
+
+	void dataRead(int count) {
+		dataBytesRead.addAndGet(count);
+	}
+
+	void dataWritten(int count) {
+		dataBytesWritten.addAndGet(count);
+	}
+}
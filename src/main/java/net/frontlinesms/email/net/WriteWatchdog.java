@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package net.frontlinesms.email.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Closes sockets whose writes have blocked for longer than their write timeout.  Java sockets have no
+ * write timeout of their own, so a server which stops reading would otherwise block the writing thread
+ * until the operating system gives up on the connection, which can take many minutes.
+ * <p>
+ * A single daemon thread checks the deadlines of all writes in progress, so a write costs two map
+ * updates rather than a scheduled task.
+ */
+class WriteWatchdog implements Runnable {
+//> STATIC CONSTANTS
+	/** Time in milliseconds between checks of the writes in progress */
+	private static final long CHECK_INTERVAL = 250;
+	/** The watchdog for all sockets */
+	private static final WriteWatchdog INSTANCE = new WriteWatchdog();
+
+//> INSTANCE PROPERTIES
+	/** Deadlines of the writes in progress, keyed on the socket being written to */
+	private final ConcurrentMap<Socket, Long> deadlines = new ConcurrentHashMap<Socket, Long>();
+	/** The thread checking deadlines, or <code>null</code> if it has not been started */
+	private volatile Thread thread;
+
+//> CONSTRUCTORS
+	private WriteWatchdog() {}
+
+//> STATIC FACTORIES
+	/** @return the watchdog for all sockets */
+	static WriteWatchdog getInstance() {
+		return INSTANCE;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Starts watching a write.  {@link #endWrite(Socket)} must be called once the write has finished.
+	 * @param socket socket being written to
+	 * @param timeout time in milliseconds after which the socket should be closed
+	 */
+	void beginWrite(Socket socket, int timeout) {
+		if(thread == null) start();
+		deadlines.put(socket, Long.valueOf(System.currentTimeMillis() + timeout));
+	}
+
+	/**
+	 * Stops watching a write.
+	 * @param socket socket which was written to
+	 * @return <code>true</code> if the socket was closed because the write took too long
+	 */
+	boolean endWrite(Socket socket) {
+		// If the deadline has already gone, the watchdog took it and has closed, or is closing, the socket
+		return deadlines.remove(socket) == null;
+	}
+
+	public void run() {
+		while(true) {
+			try {
+				Thread.sleep(CHECK_INTERVAL);
+			} catch(InterruptedException ex) {
+				// Keep watching; the thread is a daemon, so does not need stopping
+			}
+			long now = System.currentTimeMillis();
+			for(Map.Entry<Socket, Long> write : deadlines.entrySet()) {
+				if(write.getValue().longValue() <= now && deadlines.remove(write.getKey(), write.getValue())) {
+					try { write.getKey().close(); } catch(IOException ex) {}
+				}
+			}
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Starts the watchdog thread if it is not already running. */
+	private synchronized void start() {
+		if(thread != null) return;
+		thread = new Thread(this, "Email write watchdog");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,19 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+/**
+ * {@link EmailReceiveProcessor} which controls how fast an {@link EmailReceiver} reads messages.
+ * Before each message is downloaded, the receiver asks the processor whether it wants another; if it
+ * does not, the poll ends, and the remaining messages are left on the server for a later poll.
+ */
+public interface EmailDemandProcessor extends EmailReceiveProcessor {
+	/**
+	 * Called before each message is downloaded.  This may block for a while to wait for demand, but
+	 * the connection to the server is held open while it does.
+	 * @return <code>true</code> if the next message should be downloaded and processed, or
+	 * <code>false</code> to end the poll
+	 */
+	public boolean awaitDemand();
+}
@@ -0,0 +1,360 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.mail.Header;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Headers of a received email, parsed once and shared by everything which reads them: the
+ * {@link EmailReceiveUtils#getSender(Message)} helper, filters and processors.
+ * <p>
+ * JavaMail parses a header again every time one of its accessors, such as {@link Message#getFrom()}, is
+ * called, creating new address objects each time.  An envelope copies the header block of its message
+ * once, when it is created, and parses each field the first time it is asked for, keeping the result.
+ * Address lists are parsed by a lenient RFC 5322 parser which unfolds the header, skips comments, and
+ * handles quoted strings, angle addresses and groups; display names and the subject are decoded from
+ * RFC 2047 encoded-words by {@link EmailTextDecoder}.
+ * <p>
+ * Use {@link #get(Message)} to share an envelope: it is kept for as long as its message is in use.
+ * Shared envelopes are held in segments, each with its own lock, so that receivers on many threads
+ * rarely wait for each other.  An envelope does not see changes made to the message's headers after
+ * it was created.
+ */
+public class EmailEnvelope {
+//> STATIC CONSTANTS
+	/** Number of segments {@link #ENVELOPES} is split into; a power of two */
+	private static final int SEGMENTS = 32;
+	/** Envelopes of messages which are in use, in segments chosen by the identity hash code of the message */
+	private static final Map<Message, EmailEnvelope>[] ENVELOPES = createSegments();
+	/** Characters which must be quoted in a display name, as in {@link javax.mail.internet.InternetAddress} */
+	private static final String PHRASE_SPECIALS = "()<>@,;:\\\".[]";
+	/** Characters which mean an address must be shown in angle brackets, as in {@link javax.mail.internet.InternetAddress} */
+	private static final String ADDRESS_SPECIALS = "()<>,;:\\\"[]";
+	/** Returned for missing address headers */
+	private static final Mailbox[] NO_MAILBOXES = new Mailbox[0];
+
+//> INSTANCE PROPERTIES
+	/** Lower case names of the headers, in the order they appear */
+	private final String[] names;
+	/** Raw values of the headers, in the same order as {@link #names} */
+	private final String[] values;
+	/** Parsed fields, by lower case header name */
+	private final Map<String, Object> parsed = new HashMap<String, Object>();
+
+//> CONSTRUCTORS
+	/**
+	 * Copies the headers of a message.  Use {@link #get(Message)} to share the envelope of a message.
+	 * @param message the message
+	 * @throws MessagingException if the headers could not be read
+	 */
+	public EmailEnvelope(Message message) throws MessagingException {
+		List<String> names = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		Enumeration<?> headers = message.getAllHeaders();
+		if(headers != null) {
+			while(headers.hasMoreElements()) {
+				Header header = (Header) headers.nextElement();
+				names.add(header.getName().toLowerCase());
+				values.add(header.getValue());
+			}
+		}
+		this.names = names.toArray(new String[names.size()]);
+		this.values = values.toArray(new String[values.size()]);
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * @param message a received message
+	 * @return the envelope of the message, which is created the first time it is asked for
+	 * @throws MessagingException if the headers could not be read
+	 */
+	public static EmailEnvelope get(Message message) throws MessagingException {
+		int hash = System.identityHashCode(message);
+		Map<Message, EmailEnvelope> segment = ENVELOPES[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+		synchronized(segment) {
+			EmailEnvelope envelope = segment.get(message);
+			if(envelope != null) return envelope;
+		}
+		EmailEnvelope envelope = new EmailEnvelope(message);
+		synchronized(segment) {
+			EmailEnvelope existing = segment.get(message);
+			if(existing != null) return existing;
+			segment.put(message, envelope);
+			return envelope;
+		}
+	}
+
+//> ACCESSORS
+	/**
+	 * @param name name of a header, in any case
+	 * @return the unfolded raw value of the first header with the name, or <code>null</code> if there is none
+	 */
+	public String getHeader(String name) {
+		name = name.toLowerCase();
+		for(int i=0; i<names.length; ++i) {
+			if(names[i].equals(name)) return unfold(values[i]);
+		}
+		return null;
+	}
+
+	/** @return the decoded subject, or <code>null</code> if there is none */
+	public synchronized String getSubject() {
+		if(parsed.containsKey("subject")) return (String) parsed.get("subject");
+		String subject = getHeader("subject");
+		if(subject != null) subject = decode(subject);
+		parsed.put("subject", subject);
+		return subject;
+	}
+
+	/** @return the addresses in the From headers, or an empty array if there are none */
+	public Mailbox[] getFrom() {
+		return getMailboxes("from");
+	}
+
+	/** @return the addresses in the Reply-To headers, or an empty array if there are none */
+	public Mailbox[] getReplyTo() {
+		return getMailboxes("reply-to");
+	}
+
+	/** @return the addresses in the To headers, or an empty array if there are none */
+	public Mailbox[] getTo() {
+		return getMailboxes("to");
+	}
+
+	/** @return the addresses in the Cc headers, or an empty array if there are none */
+	public Mailbox[] getCc() {
+		return getMailboxes("cc");
+	}
+
+	/**
+	 * @param name name of an address header, in any case
+	 * @return the addresses in all the headers with the name, or an empty array if there are none
+	 */
+	public synchronized Mailbox[] getMailboxes(String name) {
+		name = name.toLowerCase();
+		Mailbox[] mailboxes = (Mailbox[]) parsed.get(name);
+		if(mailboxes == null) {
+			List<Mailbox> list = null;
+			for(int i=0; i<names.length; ++i) {
+				if(!names[i].equals(name)) continue;
+				if(list == null) list = new ArrayList<Mailbox>(1);
+				parseAddressList(unfold(values[i]), list);
+			}
+			mailboxes = list == null || list.isEmpty() ? NO_MAILBOXES : list.toArray(new Mailbox[list.size()]);
+			parsed.put(name, mailboxes);
+		}
+		return mailboxes;
+	}
+
+	/**
+	 * @return the first From address, or if there is none the first Sender address, or failing that the
+	 * first Reply-To address, in the form {@link javax.mail.internet.InternetAddress#toString()} gives; or
+	 * an empty string if there is none.  This is the address {@link javax.mail.internet.MimeMessage}'s
+	 * accessors would give.
+	 * @see EmailReceiveUtils#getSender(Message)
+	 */
+	public String getSender() {
+		Mailbox[] from = getFrom();
+		if(from.length == 0) from = getMailboxes("sender");
+		if(from.length == 0) from = getReplyTo();
+		return from.length == 0 ? "" : from[0].toString();
+	}
+
+//> STATIC HELPER METHODS
+	/** @return empty segments for {@link #ENVELOPES} */
+	@SuppressWarnings("unchecked")
+	private static Map<Message, EmailEnvelope>[] createSegments() {
+		Map<Message, EmailEnvelope>[] segments = new Map[SEGMENTS];
+		for(int i=0; i<SEGMENTS; ++i) segments[i] = new WeakHashMap<Message, EmailEnvelope>();
+		return segments;
+	}
+
+	/** @return a header value with its line breaks removed, or the value itself if it has none */
+	static String unfold(String value) {
+		if(value.indexOf('\n') == -1 && value.indexOf('\r') == -1) return value;
+		StringBuilder unfolded = new StringBuilder(value.length());
+		for(int i=0; i<value.length(); ++i) {
+			char c = value.charAt(i);
+			if(c != '\r' && c != '\n') unfolded.append(c);
+		}
+		return unfolded.toString();
+	}
+
+	/** @return text with any RFC 2047 encoded-words decoded */
+	static String decode(String text) {
+		return EmailTextDecoder.decodeHeader(text);
+	}
+
+	/** Parses an address list, adding each mailbox found to a list; group names are dropped, and their members kept. */
+	static void parseAddressList(String value, List<Mailbox> mailboxes) {
+		int length = value.length();
+		int i = 0;
+		while(i < length) {
+			// Parse one mailbox, up to the next comma or end of group
+			int start = i;
+			String angleAddress = null;
+			int angleStart = -1;
+			String comment = null;
+			StringBuilder bare = null;
+			boolean group = false;
+			for(; i<length; ++i) {
+				char c = value.charAt(i);
+				if(c == '"') {
+					int end = skipQuoted(value, i);
+					if(angleAddress == null) bare = append(bare, value, i, end);
+					i = end - 1;
+				} else if(c == '(') {
+					int end = skipComment(value, i);
+					if(comment == null) comment = value.substring(i + 1, Math.max(i + 1, end - 1)).trim();
+					i = end - 1;
+				} else if(c == '<' && angleAddress == null) {
+					int end = value.indexOf('>', i);
+					if(end == -1) end = length;
+					angleStart = i;
+					angleAddress = value.substring(i + 1, end).trim();
+					i = end;
+				} else if(c == ':' && angleAddress == null) {
+					// The text so far was the name of a group
+					group = true;
+					break;
+				} else if(c == ',' || c == ';') {
+					break;
+				} else if(angleAddress == null && c != ' ' && c != '\t') {
+					bare = append(bare, value, i, i + 1);
+				} else if(angleAddress == null && bare != null) {
+					bare.append(c);
+				}
+			}
+			++i;
+			if(group) continue;
+			if(angleAddress != null) {
+				if(angleAddress.length() > 0) {
+					String phrase = value.substring(start, angleStart).trim();
+					mailboxes.add(new Mailbox(angleAddress, phrase.length() == 0 ? null : unquote(phrase)));
+				}
+			} else if(bare != null) {
+				String address = bare.toString().trim();
+				if(address.length() > 0) mailboxes.add(new Mailbox(address, comment == null || comment.length() == 0 ? null : comment));
+			}
+		}
+	}
+
+	/** @return the index after the end of the quoted string starting at an index */
+	private static int skipQuoted(String value, int start) {
+		for(int i=start+1; i<value.length(); ++i) {
+			char c = value.charAt(i);
+			if(c == '\\') ++i;
+			else if(c == '"') return i + 1;
+		}
+		return value.length();
+	}
+
+	/** @return the index after the end of the comment starting at an index, allowing for nested comments */
+	private static int skipComment(String value, int start) {
+		int depth = 0;
+		for(int i=start; i<value.length(); ++i) {
+			char c = value.charAt(i);
+			if(c == '\\') ++i;
+			else if(c == '(') ++depth;
+			else if(c == ')' && --depth == 0) return i + 1;
+		}
+		return value.length();
+	}
+
+	/** Appends part of a string to a builder, creating it if necessary. */
+	private static StringBuilder append(StringBuilder builder, String value, int start, int end) {
+		if(builder == null) builder = new StringBuilder(end - start + 16);
+		return builder.append(value, start, end);
+	}
+
+	/** @return a phrase without surrounding quotes and escapes, if it is a quoted string */
+	private static String unquote(String phrase) {
+		if(phrase.length() < 2 || phrase.charAt(0) != '"' || phrase.charAt(phrase.length() - 1) != '"') return phrase;
+		phrase = phrase.substring(1, phrase.length() - 1);
+		if(phrase.indexOf('\\') == -1) return phrase;
+		StringBuilder unquoted = new StringBuilder(phrase.length());
+		for(int i=0; i<phrase.length(); ++i) {
+			char c = phrase.charAt(i);
+			if(c == '\\' && i < phrase.length() - 1) c = phrase.charAt(++i);
+			unquoted.append(c);
+		}
+		return unquoted.toString();
+	}
+
+	/** @return a display name, quoted if it needs to be, as {@link javax.mail.internet.InternetAddress#toString()} does */
+	private static String quotePhrase(String phrase) {
+		boolean needsQuotes = false;
+		for(int i=0; i<phrase.length(); ++i) {
+			char c = phrase.charAt(i);
+			if(c == '"' || c == '\\') {
+				StringBuilder quoted = new StringBuilder(phrase.length() + 4).append('"');
+				for(int j=0; j<phrase.length(); ++j) {
+					char d = phrase.charAt(j);
+					if(d == '"' || d == '\\') quoted.append('\\');
+					quoted.append(d);
+				}
+				return quoted.append('"').toString();
+			}
+			if((c < ' ' && c != '\r' && c != '\n' && c != '\t') || c >= 0x7F || PHRASE_SPECIALS.indexOf(c) != -1) needsQuotes = true;
+		}
+		return needsQuotes ? '"' + phrase + '"' : phrase;
+	}
+
+//> INNER CLASSES
+	/** Address in an address header, with its display name. */
+	public static class Mailbox {
+		/** The address */
+		private final String address;
+		/** The display name as it appears in the header, without quotes, or <code>null</code> if there is none */
+		private final String rawPersonal;
+		/** The decoded display name, once it has been decoded */
+		private String personal;
+		/** The text form of the mailbox, once it has been formatted */
+		private String text;
+
+		Mailbox(String address, String rawPersonal) {
+			this.address = address;
+			this.rawPersonal = rawPersonal;
+		}
+
+		/** @return the address */
+		public String getAddress() {
+			return address;
+		}
+
+		/** @return the decoded display name, or <code>null</code> if there is none */
+		public synchronized String getPersonal() {
+			if(personal == null && rawPersonal != null) personal = decode(rawPersonal);
+			return personal;
+		}
+
+		/** @return the mailbox in the form {@link javax.mail.internet.InternetAddress#toString()} gives */
+		@Override
+		public synchronized String toString() {
+			if(text == null) {
+				if(rawPersonal != null) {
+					text = quotePhrase(rawPersonal) + " <" + address + ">";
+				} else {
+					text = address;
+					for(int i=0; i<address.length(); ++i) {
+						if(ADDRESS_SPECIALS.indexOf(address.charAt(i)) != -1) {
+							text = "<" + address + ">";
+							break;
+						}
+					}
+				}
+			}
+			return text;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailClock;
+import net.frontlinesms.email.mime.MimeStreams;
+
+/**
+ * Limits the bytes of message content which {@link EmailReceiver}s hold in memory at once.  One budget
+ * is shared by all the receivers in a process, with {@link EmailReceiver#setMemoryBudget(EmailMemoryBudget)}.
+ * <p>
+ * Before a receiver fetches a message's content it reserves the message's size, as reported by the
+ * server, and it releases the reservation once the processor has returned.  If the budget is used up, the
+ * receiver waits up to {@link #getMaxWait()} for other messages to finish; if there is still no room,
+ * the message is spilled: it is streamed from the server into a temporary file, and the processor gets a
+ * copy of it which reads its parts from that file.  Messages larger than {@link #getSpillThreshold()}
+ * are always spilled, so a single large attachment never has to fit in memory, as are messages whose
+ * size the server did not report.
+ * <p>
+ * The content of a spilled message can only be read while it is being processed; its file is deleted
+ * once the processor returns.
+ */
+public class EmailMemoryBudget {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailMemoryBudget.class);
+	/** Default value for {@link #maxWait} */
+	public static final long DEFAULT_MAX_WAIT = 10000;
+	/** Size of the buffer used to copy a message to its spill file */
+	private static final int COPY_BUFFER_SIZE = 8192;
+	/** Line break written after each header line */
+	private static final byte[] CRLF = { '\r', '\n' };
+	/** Session for the copies of spilled messages */
+	private static final Session LOCAL_SESSION = Session.getInstance(new Properties(), null);
+
+//> INSTANCE PROPERTIES
+	/** Maximum number of bytes which may be reserved at once */
+	private final long capacity;
+	/** Messages larger than this many bytes are always spilled */
+	private final long spillThreshold;
+	/** Directory spill files are created in, or <code>null</code> for the system's temporary directory */
+	private final File spillDirectory;
+	/** Maximum time in milliseconds to wait for a reservation before spilling */
+	private long maxWait = DEFAULT_MAX_WAIT;
+	/** Number of bytes reserved */
+	private long reserved;
+	/** Highest number of bytes reserved at once */
+	private long peakReserved;
+	/** Number of threads waiting for a reservation */
+	private int waiting;
+	/** Number of reservations which had to wait */
+	private long waits;
+	/** Number of messages spilled to disk */
+	private long spills;
+	/** Number of bytes written to spill files */
+	private long spilledBytes;
+	/** Clock used for reservation deadlines */
+	private EmailClock clock = EmailClock.SYSTEM;
+
+//> CONSTRUCTORS
+	/**
+	 * @param capacity maximum number of bytes of message content to hold in memory at once
+	 * @param spillThreshold size in bytes above which messages are always spilled to disk
+	 * @param spillDirectory directory to create spill files in, or <code>null</code> for the system's temporary directory
+	 */
+	public EmailMemoryBudget(long capacity, long spillThreshold, File spillDirectory) {
+		this.capacity = capacity;
+		this.spillThreshold = spillThreshold;
+		this.spillDirectory = spillDirectory;
+	}
+
+//> ACCESSORS
+	/** @return maximum number of bytes of message content held in memory at once */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/** @return size in bytes above which messages are always spilled to disk */
+	public long getSpillThreshold() {
+		return spillThreshold;
+	}
+
+	/** @return maximum time in milliseconds to wait for room in the budget before spilling a message */
+	public synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	/** @param maxWait maximum time in milliseconds to wait for room in the budget before spilling a message, or zero to spill without waiting */
+	public synchronized void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/** @return number of bytes reserved by messages being processed */
+	public synchronized long getReserved() {
+		return reserved;
+	}
+
+	/** @return number of bytes which can be reserved without waiting */
+	public synchronized long getAvailable() {
+		return capacity - reserved;
+	}
+
+	/** @return highest number of bytes reserved at once */
+	public synchronized long getPeakReserved() {
+		return peakReserved;
+	}
+
+	/** @return number of threads waiting for room in the budget */
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	/** @return number of reservations which had to wait for room in the budget */
+	public synchronized long getWaits() {
+		return waits;
+	}
+
+	/** @return number of messages spilled to disk */
+	public synchronized long getSpills() {
+		return spills;
+	}
+
+	/** @return number of bytes written to spill files */
+	public synchronized long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/**
+	 * Sets the clock used for reservation deadlines.
+	 * @param clock the clock, normally {@link EmailClock#SYSTEM}
+	 */
+	public void setClock(EmailClock clock) {
+		this.clock = clock;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Reserves room for a message, waiting up to {@link #getMaxWait()} for it.
+	 * @param bytes size of the message
+	 * @return <code>true</code> if the bytes were reserved, and must be passed to {@link #release(long)}
+	 * once the message has been processed; <code>false</code> if there was no room, or the message is
+	 * larger than the whole budget, and it should be spilled instead
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public synchronized boolean reserve(long bytes) throws InterruptedException {
+		if(bytes > capacity) return false;
+		if(reserved + bytes > capacity) {
+			long deadline = clock.currentTimeMillis() + maxWait;
+			++waits;
+			++waiting;
+			try {
+				long remaining;
+				while(reserved + bytes > capacity && (remaining = deadline - clock.currentTimeMillis()) > 0) {
+					wait(remaining);
+				}
+			} finally {
+				--waiting;
+			}
+			if(reserved + bytes > capacity) return false;
+		}
+		reserved += bytes;
+		peakReserved = Math.max(peakReserved, reserved);
+		return true;
+	}
+
+	/**
+	 * Releases a reservation made by {@link #reserve(long)}.
+	 * @param bytes number of bytes which were reserved
+	 */
+	public synchronized void release(long bytes) {
+		reserved -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Copies a message to a temporary file, streaming its body from the server.
+	 * @param message the message on the server
+	 * @return a copy of the message which reads its content from the file; {@link SpilledMessage#dispose()}
+	 * must be called once it has been processed
+	 * @throws MessagingException if the message could not be read
+	 * @throws IOException if the file could not be written
+	 */
+	public SpilledMessage spill(Message message) throws MessagingException, IOException {
+		File file = File.createTempFile("email", ".eml", spillDirectory);
+		boolean spilled = false;
+		try {
+			try {
+				write(message, file, true);
+			} catch(MessagingException ex) {
+				// Messages created locally have no raw content, and some servers cannot fetch the body in pieces
+				LOG.debug("Unable to stream email body; writing the whole email instead.", ex);
+				write(message, file, false);
+			} catch(IOException ex) {
+				LOG.debug("Unable to stream email body; writing the whole email instead.", ex);
+				write(message, file, false);
+			}
+			SpilledMessage copy = new SpilledMessage(file, new SharedFileInputStream(file));
+			synchronized(this) {
+				++spills;
+				spilledBytes += file.length();
+			}
+			LOG.debug("Spilled email of " + file.length() + " bytes to " + file);
+			spilled = true;
+			return copy;
+		} finally {
+			if(!spilled && !file.delete()) file.deleteOnExit();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "reserved=" + reserved + "/" + capacity + " peak=" + peakReserved
+				+ " waiting=" + waiting + " waits=" + waits
+				+ " spills=" + spills + " spilledBytes=" + spilledBytes;
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * Writes a message to a file, replacing anything already in it.  When streaming, the body of a MIME
+	 * message is read with {@link MimeMessage#getRawInputStream()}, which IMAP fetches in pieces rather
+	 * than whole; otherwise the message is written with {@link Message#writeTo(OutputStream)}.
+	 */
+	private static void write(Message message, File file, boolean stream) throws MessagingException, IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), COPY_BUFFER_SIZE);
+		try {
+			if(!stream || !(message instanceof MimeMessage)) {
+				message.writeTo(out);
+				return;
+			}
+			MimeMessage mimeMessage = (MimeMessage) message;
+			// On IMAP this loads the body structure, which tells the stream where the body ends
+			mimeMessage.getContentType();
+			Enumeration<?> headerLines = mimeMessage.getAllHeaderLines();
+			while(headerLines.hasMoreElements()) {
+				out.write(((String) headerLines.nextElement()).getBytes("ISO-8859-1"));
+				out.write(CRLF);
+			}
+			out.write(CRLF);
+			InputStream body = mimeMessage.getRawInputStream();
+			try {
+				MimeStreams.copy(body, out);
+			} finally {
+				body.close();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+//> INNER CLASSES
+	/** Copy of a message whose content is read from a temporary file. */
+	public static class SpilledMessage extends MimeMessage {
+		/** The temporary file */
+		private final File file;
+		/** Stream the message was parsed from */
+		private final SharedFileInputStream in;
+
+		SpilledMessage(File file, SharedFileInputStream in) throws MessagingException {
+			super(LOCAL_SESSION, in);
+			this.file = file;
+			this.in = in;
+		}
+
+		/** @return the temporary file the message's content is read from */
+		public File getFile() {
+			return file;
+		}
+
+		/** Closes and deletes the temporary file.  The message's content cannot be read after this. */
+		public void dispose() {
+			try {
+				if(contentStream != null) contentStream.close();
+				in.close();
+			} catch(IOException ex) {
+				LOG.warn("Error closing spilled email " + file, ex);
+			}
+			// Parts still open elsewhere keep the file open, which stops it being deleted on some platforms
+			if(!file.delete()) file.deleteOnExit();
+		}
+	}
+}
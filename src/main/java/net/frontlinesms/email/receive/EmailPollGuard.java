@@ -0,0 +1,17 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+/**
+ * Checked by an {@link EmailReceiver} before each message is downloaded, so that something other than
+ * the processor can end a poll part way through.  As with {@link EmailDemandProcessor}, the remaining
+ * messages are left on the server for a later poll.
+ */
+public interface EmailPollGuard {
+	/**
+	 * Called before each message is downloaded, on the thread doing the poll.
+	 * @return <code>true</code> if the poll may go on to the next message, or <code>false</code> to end it
+	 */
+	public boolean isPollAllowed();
+}
@@ -0,0 +1,96 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+import com.sun.mail.imap.protocol.Status;
+
+import net.frontlinesms.email.EmailFilter;
+import net.frontlinesms.email.EmailHeaderFilter;
+
+/**
+ * A folder watched by an {@link EmailReceiver}, with its own processor and filters.  Where the
+ * processor or a filter is not set, the {@link EmailReceiver}'s is used.
+ */
+public class EmailReceiveFolder {
+//> INSTANCE PROPERTIES
+	/** Full name of the folder */
+	private final String name;
+	/** Object that will process messages from this folder, or <code>null</code> to use the receiver's */
+	private EmailReceiveProcessor processor;
+	/** Object that filters messages from this folder, or <code>null</code> to use the receiver's */
+	private EmailFilter emailFilter;
+	/** Object that triages messages from this folder on their headers, or <code>null</code> to use the receiver's */
+	private EmailHeaderFilter headerFilter;
+	/** IMAP STATUS of the folder after it was last received from, or <code>null</code> if it has not been */
+	private Status lastStatus;
+
+//> CONSTRUCTORS
+	/**
+	 * @param name full name of the folder
+	 * @param processor object that will process messages from this folder, or <code>null</code> to use the receiver's
+	 */
+	EmailReceiveFolder(String name, EmailReceiveProcessor processor) {
+		this.name = name;
+		this.processor = processor;
+	}
+
+//> ACCESSORS
+	/** @return full name of the folder */
+	public String getName() {
+		return name;
+	}
+
+	/** @return object that will process messages from this folder, or <code>null</code> if the receiver's is used */
+	public EmailReceiveProcessor getProcessor() {
+		return processor;
+	}
+
+	/** @param processor object that will process messages from this folder, or <code>null</code> to use the receiver's */
+	public void setProcessor(EmailReceiveProcessor processor) {
+		this.processor = processor;
+	}
+
+	/** @return object that filters messages from this folder, or <code>null</code> if the receiver's is used */
+	public EmailFilter getEmailFilter() {
+		return emailFilter;
+	}
+
+	/** @param emailFilter object that filters messages from this folder, or <code>null</code> to use the receiver's */
+	public void setEmailFilter(EmailFilter emailFilter) {
+		this.emailFilter = emailFilter;
+	}
+
+	/** @return object that triages messages from this folder on their headers, or <code>null</code> if the receiver's is used */
+	public EmailHeaderFilter getHeaderFilter() {
+		return headerFilter;
+	}
+
+	/** @param headerFilter object that triages messages from this folder on their headers, or <code>null</code> to use the receiver's */
+	public void setHeaderFilter(EmailHeaderFilter headerFilter) {
+		this.headerFilter = headerFilter;
+	}
+
+	/** @return IMAP STATUS of the folder after it was last received from, or <code>null</code> if it has not been */
+	Status getLastStatus() {
+		return lastStatus;
+	}
+
+	/** @param lastStatus IMAP STATUS of the folder after it was received from, or <code>null</code> to force it to be received from next time */
+	void setLastStatus(Status lastStatus) {
+		this.lastStatus = lastStatus;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * @param status the current IMAP STATUS of the folder
+	 * @return <code>true</code> if the folder may have changed since it was last received from
+	 */
+	boolean hasChanged(Status status) {
+		return lastStatus == null
+				|| status.total != lastStatus.total
+				|| status.uidnext != lastStatus.uidnext
+				|| status.unseen != lastStatus.unseen
+				|| status.uidvalidity != lastStatus.uidvalidity;
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Journal of the messages an {@link EmailReceiver} has processed but not yet removed from, or
+ * marked as read on, the server.  After a crash, messages recorded in the journal are committed on
+ * the server without being processed again.
+ * 
+ * The journal is an append-only text file with one entry per line.  Each entry is flushed to the
+ * operating system as it is written, so it survives the process crashing, and acknowledgements and
+ * commits are also forced to disk.  The journal is rewritten, keeping only entries which are still
+ * outstanding, whenever it is opened and each time a poll completes.  A rewrite goes to a temporary
+ * file which then replaces the journal; if the process stops part way through replacing it, the
+ * temporary file is read instead the next time the journal is opened.
+ */
+public class EmailReceiveJournal {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailReceiveJournal.class);
+	/** Encoding of the journal file */
+	private static final String CHARSET = "UTF-8";
+	/** Journal entry type: processing of a message has started */
+	private static final char BEGIN = 'B';
+	/** Journal entry type: a message has been processed, and can be committed on the server */
+	private static final char ACKNOWLEDGED = 'A';
+	/** Journal entry type: a message has been committed on the server */
+	private static final char COMMITTED = 'C';
+	/** Journal entry type: processing of a message failed, or was interrupted, and it will be received again */
+	private static final char FAILED = 'F';
+
+//> INSTANCE PROPERTIES
+	/** The journal file */
+	private final File file;
+	/** Acknowledged messages which have not been committed, by folder key */
+	private final Map<String, Set<String>> acknowledged = new HashMap<String, Set<String>>();
+	/** Messages which were being processed when the journal was last closed, by folder key */
+	private final Map<String, Set<String>> inFlight = new HashMap<String, Set<String>>();
+	/** Stream appending to {@link #file} */
+	private FileOutputStream fileOut;
+	/** Writer appending to {@link #fileOut} */
+	private Writer out;
+
+//> CONSTRUCTORS
+	/**
+	 * Opens a journal, creating it if it does not exist.
+	 * @param file the journal file
+	 * @throws IOException if the journal could not be read or written
+	 */
+	public EmailReceiveJournal(File file) throws IOException {
+		this.file = file;
+		File temp = getTempFile();
+		if(file.exists()) {
+			load(file);
+		} else if(temp.exists()) {
+			// The process stopped after the old journal was removed but before the new one replaced it
+			LOG.info("Recovering receive journal from " + temp);
+			load(temp);
+		}
+		rewrite();
+	}
+
+//> ACCESSORS
+	/**
+	 * @param folderKey key identifying the folder, from {@link EmailReceiveUtils#getFolderKey(javax.mail.Folder)}
+	 * @return the UIDs of messages in the folder which have been processed but not committed
+	 */
+	public synchronized Set<String> getAcknowledged(String folderKey) {
+		Set<String> uids = acknowledged.get(folderKey);
+		return uids == null ? new HashSet<String>() : new HashSet<String>(uids);
+	}
+
+	/**
+	 * @param folderKey key identifying the folder, from {@link EmailReceiveUtils#getFolderKey(javax.mail.Folder)}
+	 * @return the UIDs of messages in the folder which were being processed when the journal was last closed
+	 */
+	public synchronized Set<String> getInFlight(String folderKey) {
+		Set<String> uids = inFlight.get(folderKey);
+		return uids == null ? new HashSet<String>() : new HashSet<String>(uids);
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Records that processing of a message has started.
+	 * @param folderKey key identifying the folder
+	 * @param uid UID of the message
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void begin(String folderKey, String uid) throws IOException {
+		get(inFlight, folderKey).add(uid);
+		append(BEGIN, folderKey, uid);
+		out.flush();
+	}
+
+	/**
+	 * Records that a message has been processed, and forces the journal to disk, so that the message
+	 * is not processed again even if the machine fails before it is committed.
+	 * @param folderKey key identifying the folder
+	 * @param uid UID of the message
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void acknowledged(String folderKey, String uid) throws IOException {
+		remove(inFlight, folderKey, uid);
+		get(acknowledged, folderKey).add(uid);
+		append(ACKNOWLEDGED, folderKey, uid);
+		sync();
+	}
+
+	/**
+	 * Records that processing of a message failed, or was interrupted by an earlier crash, and that it
+	 * will be received again as a new message.  Its entry is dropped when the journal is next compacted,
+	 * so a message which fails on every poll does not make the journal grow.
+	 * @param folderKey key identifying the folder
+	 * @param uid UID of the message
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void failed(String folderKey, String uid) throws IOException {
+		remove(inFlight, folderKey, uid);
+		append(FAILED, folderKey, uid);
+		out.flush();
+	}
+
+	/**
+	 * Records that messages have been committed on the server, and forces the journal to disk.
+	 * @param folderKey key identifying the folder
+	 * @param uids UIDs of the messages
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void committed(String folderKey, Collection<String> uids) throws IOException {
+		for(String uid : uids) {
+			remove(acknowledged, folderKey, uid);
+			append(COMMITTED, folderKey, uid);
+		}
+		sync();
+	}
+
+	/**
+	 * Forces all entries written so far to disk.
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void sync() throws IOException {
+		out.flush();
+		fileOut.getFD().sync();
+	}
+
+	/**
+	 * Rewrites the journal so that it only contains outstanding entries.
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void compact() throws IOException {
+		close();
+		rewrite();
+	}
+
+	/**
+	 * Closes the journal file.
+	 * @throws IOException if the journal could not be written
+	 */
+	public synchronized void close() throws IOException {
+		closeFile();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Forces the entries written so far to disk, and closes the journal file if it is open. */
+	private void closeFile() throws IOException {
+		if(out != null) {
+			out.flush();
+			fileOut.getFD().sync();
+			out.close();
+			out = null;
+			fileOut = null;
+		}
+	}
+
+	/** Reads the entries in a journal file. */
+	private void load(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				// Entries are "<type> <uid> <folder key>"; a partly-written last line is ignored
+				int space = line.indexOf(' ', 2);
+				if(line.length() < 2 || line.charAt(1) != ' ' || space == -1) continue;
+				String uid = line.substring(2, space);
+				String folderKey = line.substring(space + 1);
+				switch(line.charAt(0)) {
+				case BEGIN:
+					get(inFlight, folderKey).add(uid);
+					break;
+				case ACKNOWLEDGED:
+					remove(inFlight, folderKey, uid);
+					get(acknowledged, folderKey).add(uid);
+					break;
+				case COMMITTED:
+					remove(inFlight, folderKey, uid);
+					remove(acknowledged, folderKey, uid);
+					break;
+				case FAILED:
+					remove(inFlight, folderKey, uid);
+					break;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Writes the outstanding entries to a new journal file, and replaces the old file with it. */
+	private void rewrite() throws IOException {
+		File temp = getTempFile();
+		fileOut = new FileOutputStream(temp);
+		out = new OutputStreamWriter(fileOut, CHARSET);
+		for(Map.Entry<String, Set<String>> folder : inFlight.entrySet()) {
+			for(String uid : folder.getValue()) append(BEGIN, folder.getKey(), uid);
+		}
+		for(Map.Entry<String, Set<String>> folder : acknowledged.entrySet()) {
+			for(String uid : folder.getValue()) append(ACKNOWLEDGED, folder.getKey(), uid);
+		}
+		closeFile();
+		
+		// Renaming replaces the old journal in one step where the platform allows it.  Elsewhere the old
+		// journal must be deleted first, and the constructor recovers from the temporary file if the
+		// process stops before the rename.
+		if(!temp.renameTo(file)) {
+			if(file.exists() && !file.delete()) throw new IOException("Unable to replace journal: " + file);
+			if(!temp.renameTo(file)) throw new IOException("Unable to replace journal: " + file);
+		}
+		fileOut = new FileOutputStream(file, true);
+		out = new OutputStreamWriter(fileOut, CHARSET);
+	}
+
+	/** @return the file the journal is written to while it is being rewritten */
+	private File getTempFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/** Appends an entry to the journal. */
+	private void append(char type, String folderKey, String uid) throws IOException {
+		out.write(type);
+		out.write(' ');
+		out.write(uid);
+		out.write(' ');
+		out.write(folderKey);
+		out.write('\n');
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the set of UIDs for a folder, creating it if necessary */
+	private static Set<String> get(Map<String, Set<String>> map, String folderKey) {
+		Set<String> uids = map.get(folderKey);
+		if(uids == null) {
+			uids = new HashSet<String>();
+			map.put(folderKey, uids);
+		}
+		return uids;
+	}
+
+	/** Removes a UID from the set for a folder, removing the set if it becomes empty. */
+	private static void remove(Map<String, Set<String>> map, String folderKey, String uid) {
+		Set<String> uids = map.get(folderKey);
+		if(uids != null && uids.remove(uid) && uids.isEmpty()) map.remove(folderKey);
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Flags.Flag;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+
+/**
+ * Tracks the messages handled during a single poll by an {@link EmailReceiver}, and deletes
+ * them (POP3), marks them as seen (IMAP) or moves them to an archive folder (IMAP) in batches, so
+ * that the number of commands sent to the server does not grow with the number of messages.
+ * In transactional mode, messages are only queued once the processor has acknowledged them.
+ */
+class EmailReceiveTransaction {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailReceiveTransaction.class);
+
+//> INSTANCE PROPERTIES
+	/** The open folder the messages are in */
+	private final Folder folder;
+	/** The messages being received */
+	private final Message[] messages;
+	/** The journal, or <code>null</code> if none is in use */
+	private final EmailReceiveJournal journal;
+	/** Number of messages to commit at a time, or zero to commit them all when the poll ends */
+	private final int batchSize;
+	/** Folder to move committed messages to, or <code>null</code> if they are not moved */
+	private final Folder archiveFolder;
+	/** <code>true</code> if messages are deleted when committed; <code>false</code> if they are marked as seen */
+	private final boolean delete;
+	/** UIDs of {@link #messages}, or <code>null</code> if no journal is in use */
+	private final String[] uids;
+	/** Key identifying {@link #folder} in the journal, or <code>null</code> if no journal is in use */
+	private final String folderKey;
+	/** UIDs of messages which the journal shows were acknowledged in a previous poll */
+	private final Set<String> previouslyAcknowledged;
+	/** Indices of acknowledged messages which have not yet been committed */
+	private final List<Integer> pending = new ArrayList<Integer>();
+	/** UIDs of messages which have been flagged as deleted, but will not actually be deleted until the folder is closed */
+	private final List<String> awaitingClose = new ArrayList<String>();
+
+//> CONSTRUCTORS
+	/**
+	 * @param folder the open folder the messages are in
+	 * @param messages the messages to be received
+	 * @param journal the journal, or <code>null</code> if none is in use
+	 * @param batchSize number of messages to commit at a time, or zero to commit them all when the poll ends
+	 * @param archiveFolder IMAP folder to move committed messages to, or <code>null</code> to mark them as seen instead
+	 * @throws MessagingException if the UIDs of the messages could not be fetched
+	 */
+	EmailReceiveTransaction(Folder folder, Message[] messages, EmailReceiveJournal journal, int batchSize, Folder archiveFolder) throws MessagingException {
+		this.folder = folder;
+		this.messages = messages;
+		this.journal = journal;
+		this.batchSize = batchSize;
+		this.delete = !(folder instanceof IMAPFolder);
+		this.archiveFolder = delete ? null : archiveFolder;
+		if(delete && archiveFolder != null) LOG.warn("Archive folders are only supported for IMAP; POP3 messages will be deleted.");
+		
+		for(Message message : messages) {
+			// Stop IMAP marking messages as seen when their content is fetched
+			if(message instanceof IMAPMessage) ((IMAPMessage) message).setPeek(true);
+		}
+		
+		if(journal != null) {
+			this.uids = EmailReceiveUtils.getUids(folder, messages);
+			this.folderKey = EmailReceiveUtils.getFolderKey(folder);
+			this.previouslyAcknowledged = journal.getAcknowledged(folderKey);
+			Set<String> inFlight = journal.getInFlight(folderKey);
+			if(!inFlight.isEmpty()) {
+				LOG.info(inFlight.size() + " email(s) were being processed when receiving was interrupted, and will be processed again.");
+				try {
+					for(String uid : inFlight) journal.failed(folderKey, uid);
+				} catch(IOException ex) {
+					throw new MessagingException("Unable to write receive journal.", ex);
+				}
+			}
+		} else {
+			this.uids = null;
+			this.folderKey = null;
+			this.previouslyAcknowledged = null;
+		}
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Checks whether a message was acknowledged in an earlier poll, but not committed.  If so, it is
+	 * queued to be committed.
+	 * @param index index of the message
+	 * @return <code>true</code> if the message has already been processed, and should not be processed again
+	 * @throws MessagingException if a batch of messages could not be committed
+	 */
+	boolean recover(int index) throws MessagingException {
+		if(previouslyAcknowledged == null || !previouslyAcknowledged.contains(uids[index])) return false;
+		LOG.debug("Email was processed before receiving was interrupted; committing without processing again.");
+		queue(index);
+		return true;
+	}
+
+	/**
+	 * Records that processing of a message has started.
+	 * @param index index of the message
+	 * @throws MessagingException if the journal could not be written
+	 */
+	void begin(int index) throws MessagingException {
+		if(journal == null) return;
+		try {
+			journal.begin(folderKey, uids[index]);
+		} catch(IOException ex) {
+			throw new MessagingException("Unable to write receive journal.", ex);
+		}
+	}
+
+	/**
+	 * Records that processing of a message failed.  The message is left on the server, to be received
+	 * again next poll.
+	 * @param index index of the message
+	 * @throws MessagingException if the journal could not be written
+	 */
+	void failed(int index) throws MessagingException {
+		if(journal == null) return;
+		try {
+			journal.failed(folderKey, uids[index]);
+		} catch(IOException ex) {
+			throw new MessagingException("Unable to write receive journal.", ex);
+		}
+	}
+
+	/**
+	 * Queues a message to be committed, without recording it in the journal.  This is used outside
+	 * transactional mode, where messages are committed whether or not they are processed successfully.
+	 * @param index index of the message
+	 * @throws MessagingException if a batch of messages could not be committed
+	 */
+	void handled(int index) throws MessagingException {
+		queue(index);
+	}
+
+	/**
+	 * Records that a message has been processed, and queues it to be committed.
+	 * @param index index of the message
+	 * @throws MessagingException if the journal could not be written, or a batch of messages could not be committed
+	 */
+	void acknowledge(int index) throws MessagingException {
+		if(journal != null) {
+			try {
+				journal.acknowledged(folderKey, uids[index]);
+			} catch(IOException ex) {
+				throw new MessagingException("Unable to write receive journal.", ex);
+			}
+		}
+		queue(index);
+	}
+
+	/**
+	 * Commits all acknowledged messages on the server.
+	 * @throws MessagingException if the messages could not be committed
+	 */
+	void commit() throws MessagingException {
+		if(pending.isEmpty()) return;
+		
+		Message[] batch = new Message[pending.size()];
+		List<String> batchUids = new ArrayList<String>(batch.length);
+		for(int i=0; i<batch.length; ++i) {
+			int index = pending.get(i);
+			batch[i] = messages[index];
+			if(uids != null) batchUids.add(uids[index]);
+		}
+		if(archiveFolder != null) {
+			EmailReceiveUtils.moveMessages(folder, batch, archiveFolder);
+		} else {
+			folder.setFlags(batch, new Flags(delete ? Flag.DELETED : Flag.SEEN), true);
+		}
+		pending.clear();
+		
+		if(journal != null) {
+			if(delete) {
+				// POP3 only deletes messages when the folder is closed
+				awaitingClose.addAll(batchUids);
+			} else {
+				try {
+					journal.committed(folderKey, batchUids);
+				} catch(IOException ex) {
+					throw new MessagingException("Unable to write receive journal.", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records that the folder has been closed successfully, so any messages flagged for deletion
+	 * have been deleted.
+	 */
+	void closed() {
+		if(journal == null) return;
+		try {
+			journal.committed(folderKey, awaitingClose);
+			awaitingClose.clear();
+			journal.compact();
+		} catch(IOException ex) {
+			LOG.warn("Unable to write receive journal.", ex);
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Queues a message to be committed, committing the batch if it is full. */
+	private void queue(int index) throws MessagingException {
+		pending.add(index);
+		if(batchSize > 0 && pending.size() >= batchSize) commit();
+	}
+}
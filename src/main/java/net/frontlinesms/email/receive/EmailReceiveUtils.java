@@ -3,18 +3,45 @@
  */
 package net.frontlinesms.email.receive;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
 import java.util.Properties;
 
 import javax.mail.*;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.ParseException;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.log4j.Logger;
 
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPSSLStore;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.Utility;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.MessageSet;
+import com.sun.mail.imap.protocol.Status;
+import com.sun.mail.pop3.POP3Folder;
+import com.sun.mail.pop3.POP3Message;
 import com.sun.mail.pop3.POP3SSLStore;
 import com.sun.mail.pop3.POP3Store;
 
+import net.frontlinesms.email.mime.MimeStreams;
+import net.frontlinesms.email.net.EmailSocket;
+import net.frontlinesms.email.net.EmailSocketFactory;
+
 /**
  * Utility methods for doing common actions on {@link Message}s.
  * @author Alex Anderson <alex@frontlinesms.com>
@@ -27,7 +54,16 @@ public class EmailReceiveUtils {
 	
 	/** MIME Type for plain text */
 	private static final String MIMETYPE_TEXT_PLAIN = "text/plain";
-	private static final String TIMEOUT = "5000";
+	/** Default connection and read timeout for stores, in milliseconds */
+	public static final int DEFAULT_TIMEOUT = 5000;
+	/** Header added to truncated copies of messages, giving the size of the original message */
+	public static final String HEADER_ORIGINAL_SIZE = "X-FrontlineSMS-Original-Size";
+	/** Line separator used in message headers */
+	private static final byte[] CRLF = { '\r', '\n' };
+	/** Rough average length of a line of message text, used to convert byte limits into POP3 TOP line counts */
+	private static final int AVERAGE_LINE_LENGTH = 76;
+	/** Session used for messages created locally rather than read from a store */
+	private static final Session LOCAL_SESSION = Session.getInstance(new Properties(), null);
 
 //> INSTANCE PROPERTIES
 
@@ -48,6 +84,8 @@ public class EmailReceiveUtils {
 	 * @throws IOException
 	 */
 	public static String getMessageText(javax.mail.Message message) throws MessagingException, IOException {
+		String text = readText(message);
+		if(text != null) return text;
 		Object messageContent = message.getContent();
 		if (messageContent instanceof String) {
 			// We've got a simple text message, so just return the text
@@ -61,6 +99,7 @@ public class EmailReceiveUtils {
 				// We haven't found plain text.  The following should match any HTML-based text content.
 				messageText = getMessageText(multipart, "text");
 			}
+			return messageText;
 		}
 		return null;
 	}
@@ -79,6 +118,8 @@ public class EmailReceiveUtils {
 			BodyPart part = multipartContent.getBodyPart(i);
 			String contentType = part.getContentType();
 			if (contentType.startsWith(acceptableMimeType)) {
+				String text = readText(part);
+				if(text != null) return text;
 				Object content = part.getContent();
 				if (content instanceof String) {
 					return (String)content;
@@ -97,43 +138,329 @@ public class EmailReceiveUtils {
 	 * @throws MessagingException 
 	 */
 	public static String getSender(javax.mail.Message message) throws MessagingException {
+		// MIME headers are parsed once, and shared with filters and processors reading the same message
+		if(message instanceof MimeMessage) return EmailEnvelope.get(message).getSender();
+		
 		// First, check the "from" addresses
-		// TODO only call getFrom() once?
-		if (message.getFrom() != null) {
-			for(Address address : message.getFrom()) {
+		String sender = getFirstAddress(message.getFrom());
+		if(sender != null) return sender;
+		
+		// No "from" address was found, so check the "reply to" addresses
+		sender = getFirstAddress(message.getReplyTo());
+		if(sender != null) return sender;
+		
+		// No address could be found, so return empty.
+		return "";
+	}
+
+	/**
+	 * Reads the text of a MIME text part with {@link EmailTextDecoder}, rather than through the part's
+	 * content handler, which looks up its charset and allocates a new decoder each time.
+	 * @return the text of the part, or <code>null</code> if it is not a MIME text part in a charset this JVM supports
+	 */
+	private static String readText(Part part) throws MessagingException, IOException {
+		if(!(part instanceof MimePart) || !part.isMimeType("text/*")) return null;
+		String charsetName;
+		try {
+			charsetName = new ContentType(part.getContentType()).getParameter("charset");
+		} catch(ParseException ex) {
+			return null;
+		}
+		Charset charset = EmailTextDecoder.getCharset(charsetName == null ? "us-ascii" : charsetName);
+		if(charset == null) return null;
+		InputStream in = getDecodedStream((MimePart) part);
+		try {
+			return EmailTextDecoder.decode(in, charset);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the decoded content of a part, read from its raw content with {@link MimeStreams}, whose
+	 * decoders use pooled buffers, where the part has raw content
+	 */
+	private static InputStream getDecodedStream(MimePart part) throws MessagingException, IOException {
+		InputStream raw;
+		try {
+			if(part instanceof MimeBodyPart) raw = ((MimeBodyPart) part).getRawInputStream();
+			else if(part instanceof MimeMessage) raw = ((MimeMessage) part).getRawInputStream();
+			else return part.getInputStream();
+		} catch(MessagingException ex) {
+			// A part built locally has content, but no raw content
+			return part.getInputStream();
+		}
+		return MimeStreams.decode(raw, part.getEncoding());
+	}
+
+	/** @return the first address in an array which has a text form, or <code>null</code> if there is none */
+	private static String getFirstAddress(Address[] addresses) {
+		if(addresses != null) {
+			for(Address address : addresses) {
 				if(address != null) {
-					String sender = address.toString();
-					if(sender != null) return sender;
+					String text = address.toString();
+					if(text != null) return text;
 				}
 			}
 		}
-		
-		// TODO only call getReplyTo() once?
-		if (message.getReplyTo() != null) {
-			// No "from" address was found, so check the "reply to" addresses
-			for(Address address : message.getReplyTo()) {
-				if(address != null) {
-					String sender = address.toString();
-					if(sender != null) return sender;
+		return null;
+	}
+	
+	/**
+	 * Gets the size of each of the supplied messages, using a single IMAP FETCH RFC822.SIZE or POP3 LIST command.
+	 * @param folder the open folder containing the messages
+	 * @param messages the messages
+	 * @return the size of each message in bytes, or <code>-1</code> where the size is unknown
+	 * @throws MessagingException
+	 */
+	public static int[] getSizes(Folder folder, Message[] messages) throws MessagingException {
+		int[] sizes = new int[messages.length];
+		if (folder instanceof POP3Folder) {
+			int[] folderSizes = ((POP3Folder) folder).getSizes();
+			for(int i=0; i<messages.length; ++i) {
+				int index = messages[i].getMessageNumber() - 1;
+				sizes[i] = index >= 0 && index < folderSizes.length ? folderSizes[index] : -1;
+			}
+		} else {
+			FetchProfile profile = new FetchProfile();
+			profile.add(IMAPFolder.FetchProfileItem.SIZE);
+			folder.fetch(messages, profile);
+			for(int i=0; i<messages.length; ++i) {
+				sizes[i] = messages[i].getSize();
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * Creates a local copy of a message containing its headers and at most the first
+	 * <code>maxBodyBytes</code> bytes of its body, without downloading the rest of the message.
+	 * On IMAP the body is fetched with <code>BODY.PEEK[TEXT]&lt;0.n&gt;</code>; on POP3 with
+	 * <code>TOP</code>, which works in lines so is converted from the byte limit approximately.
+	 * The copy has a {@link #HEADER_ORIGINAL_SIZE} header added.
+	 * <p>
+	 * <code>BODY.PEEK[]&lt;0.n&gt;</code> is not used on IMAP because its limit covers the headers as
+	 * well as the body, so a message with long headers would get less body, or none, and its headers
+	 * could be cut off part way.  The headers are fetched whole, with <code>BODY.PEEK[HEADER]</code>,
+	 * unless they were already fetched for triage, so only the body is limited.
+	 * @param folder the open folder containing the message
+	 * @param message the message to copy
+	 * @param originalSize the size of the whole message, or <code>-1</code> if unknown
+	 * @param maxBodyBytes the maximum number of bytes of body to fetch, or zero for headers only
+	 * @return the truncated copy
+	 * @throws MessagingException
+	 */
+	public static MimeMessage getTruncatedCopy(Folder folder, Message message, int originalSize, final int maxBodyBytes) throws MessagingException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(maxBodyBytes + 4096);
+		try {
+			if (message instanceof POP3Message) {
+				int lines = maxBodyBytes == 0 ? 0 : 1 + maxBodyBytes / AVERAGE_LINE_LENGTH;
+				InputStream top = ((POP3Message) message).top(lines);
+				try {
+					MimeStreams.copy(top, out);
+				} finally {
+					top.close();
+				}
+			} else {
+				if (message instanceof MimeMessage) {
+					Enumeration<?> headerLines = ((MimeMessage) message).getAllHeaderLines();
+					while(headerLines.hasMoreElements()) {
+						out.write(((String) headerLines.nextElement()).getBytes("ISO-8859-1"));
+						out.write(CRLF);
+					}
+				} else {
+					Enumeration<?> headers = message.getAllHeaders();
+					while(headers.hasMoreElements()) {
+						Header header = (Header) headers.nextElement();
+						out.write((header.getName() + ": " + header.getValue()).getBytes("ISO-8859-1"));
+						out.write(CRLF);
+					}
+				}
+				out.write(CRLF);
+				
+				if (maxBodyBytes > 0 && folder instanceof IMAPFolder) {
+					final int messageNumber = message.getMessageNumber();
+					ByteArray body = (ByteArray) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+						public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+							BODY body = protocol.peekBody(messageNumber, "TEXT", 0, maxBodyBytes);
+							return body == null ? null : body.getByteArray();
+						}
+					});
+					if (body != null) out.write(body.getBytes(), body.getStart(), body.getCount());
 				}
 			}
+		} catch(IOException ex) {
+			throw new MessagingException("Unable to fetch truncated message.", ex);
 		}
-		// No address could be found, so return empty.
-		return "";
+		
+		MimeMessage copy = new MimeMessage(LOCAL_SESSION, new SharedByteArrayInputStream(out.toByteArray()));
+		copy.setHeader(HEADER_ORIGINAL_SIZE, Integer.toString(originalSize));
+		return copy;
 	}
 	
+	/**
+	 * Gets a key which identifies a folder across sessions.  For IMAP folders the key includes the
+	 * folder's UIDVALIDITY, so that UIDs from before the folder was recreated are not reused.
+	 * @param folder the open folder
+	 * @return a key identifying the folder, account and server
+	 * @throws MessagingException
+	 */
+	public static String getFolderKey(Folder folder) throws MessagingException {
+		URLName url = folder.getStore().getURLName();
+		StringBuilder key = new StringBuilder();
+		key.append(url.getProtocol()).append("://").append(url.getUsername()).append('@')
+				.append(url.getHost()).append(':').append(url.getPort()).append('/').append(folder.getFullName());
+		if (folder instanceof UIDFolder) {
+			key.append(";UIDVALIDITY=").append(((UIDFolder) folder).getUIDValidity());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Fetches the UIDs of the supplied messages, using a single IMAP FETCH UID or POP3 UIDL command.
+	 * @param folder the open folder containing the messages
+	 * @param messages the messages
+	 * @return the UID of each message
+	 * @throws MessagingException
+	 */
+	public static String[] getUids(Folder folder, Message[] messages) throws MessagingException {
+		FetchProfile profile = new FetchProfile();
+		profile.add(UIDFolder.FetchProfileItem.UID);
+		folder.fetch(messages, profile);
+		
+		String[] uids = new String[messages.length];
+		for(int i=0; i<messages.length; ++i) {
+			if (folder instanceof POP3Folder) {
+				uids[i] = ((POP3Folder) folder).getUID(messages[i]);
+			} else {
+				uids[i] = Long.toString(((UIDFolder) folder).getUID(messages[i]));
+			}
+		}
+		return uids;
+	}
+	
+	/**
+	 * Moves messages to another folder on the same server.  If the IMAP server supports the MOVE
+	 * extension, this is a single MOVE command; otherwise the messages are copied with a single COPY
+	 * command and flagged as deleted with a single STORE command, and are removed when the folder is
+	 * expunged or closed.
+	 * @param folder the open folder containing the messages
+	 * @param messages the messages to move
+	 * @param target the folder to move the messages to
+	 * @throws MessagingException
+	 */
+	public static void moveMessages(Folder folder, Message[] messages, Folder target) throws MessagingException {
+		if (messages.length == 0) return;
+		if (folder instanceof IMAPFolder) {
+			final MessageSet[] messageSets = Utility.toMessageSet(messages, null);
+			final String targetName = target.getFullName();
+			Boolean moved = (Boolean) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+				public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+					if (!protocol.hasCapability("MOVE")) return Boolean.FALSE;
+					Argument args = new Argument();
+					args.writeString(BASE64MailboxEncoder.encode(targetName));
+					Response[] responses = protocol.command("MOVE " + MessageSet.toString(messageSets), args);
+					// Let the folder see the EXPUNGE responses for the moved messages
+					protocol.notifyResponseHandlers(responses);
+					protocol.handleResult(responses[responses.length - 1]);
+					return Boolean.TRUE;
+				}
+			});
+			if (moved.booleanValue()) return;
+		}
+		folder.copyMessages(messages, target);
+		folder.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+	}
+
+	/**
+	 * Gets the number of messages, number of unseen messages, next UID and UID validity of an IMAP
+	 * folder with a single STATUS command, without selecting it.
+	 * @param folder the folder, which should not be open
+	 * @return the status of the folder
+	 * @throws MessagingException
+	 */
+	public static Status getStatus(IMAPFolder folder) throws MessagingException {
+		final String folderName = folder.getFullName();
+		return (Status) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+				return protocol.status(folderName, new String[] { "MESSAGES", "UNSEEN", "UIDNEXT", "UIDVALIDITY" });
+			}
+		});
+	}
+
+	/**
+	 * Starts DEFLATE compression (RFC 4978) on the connection used by an open IMAP folder.  Compression
+	 * is only started if the server advertises COMPRESS=DEFLATE and the connection was made by the
+	 * socket factory on the current thread, as the only connection the thread has open to the server;
+	 * otherwise the connection is left uncompressed.
+	 * @param folder the open folder
+	 * @param socketFactory factory which made the folder's connection
+	 * @return <code>true</code> if the connection is compressed
+	 * @throws MessagingException if the server rejected the COMPRESS command
+	 * @see EmailSocketFactory#getThreadSocket(int)
+	 */
+	public static boolean startCompression(IMAPFolder folder, EmailSocketFactory socketFactory) throws MessagingException {
+		final EmailSocket socket = socketFactory.getThreadSocket(folder.getStore().getURLName().getPort());
+		if (socket == null) return false;
+		Boolean compressed = (Boolean) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+				if (socket.isCompressing()) return Boolean.TRUE;
+				if (!protocol.hasCapability("COMPRESS=DEFLATE")) return Boolean.FALSE;
+				
+				protocol.simpleCommand("COMPRESS DEFLATE", null);
+				try {
+					socket.startCompression();
+				} catch (IOException ex) {
+					throw new ProtocolException("Unable to start compression: " + ex.getMessage());
+				}
+				return Boolean.TRUE;
+			}
+		});
+		return compressed.booleanValue();
+	}
+
 	/** @return {@link Store} for accessing the IMAP or POP account. */
 	public static Store getStore(String host, String username, int hostPort, String password, boolean useSSL, EmailReceiveProtocol protocol) {
+		return getStore(host, username, hostPort, password, useSSL, protocol, null);
+	}
+
+	/**
+	 * Gets a {@link Store} for accessing the IMAP or POP account, whose connections are made by the supplied
+	 * socket factory.  Without a factory, SSL connections accept any server certificate; with one, the
+	 * factory's {@link EmailSocketFactory#getTlsContext()} decides which servers to trust.
+	 * @param socketFactory factory for the store's connections, or <code>null</code> to use JavaMail's default
+	 * @return {@link Store} for accessing the IMAP or POP account.
+	 */
+	public static Store getStore(String host, String username, int hostPort, String password, boolean useSSL, EmailReceiveProtocol protocol, EmailSocketFactory socketFactory) {
+		return getStore(host, username, hostPort, password, useSSL, protocol, socketFactory, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Gets a {@link Store} for accessing the IMAP or POP account, with the given timeouts.  Write timeouts
+	 * are not supported by JavaMail, so are set on the socket factory.
+	 * @param socketFactory factory for the store's connections, or <code>null</code> to use JavaMail's default
+	 * @param connectTimeout connection timeout in milliseconds, or zero to wait forever
+	 * @param readTimeout read timeout in milliseconds, or zero to wait forever
+	 * @return {@link Store} for accessing the IMAP or POP account.
+	 */
+	public static Store getStore(String host, String username, int hostPort, String password, boolean useSSL, EmailReceiveProtocol protocol, EmailSocketFactory socketFactory,
+			int connectTimeout, int readTimeout) {
 		// Create the properties
 		Properties props = new Properties();
 		
 		props.setProperty("mail." + protocol + ".socketFactory.fallback", "false");
 		props.setProperty("mail." + protocol + ".socketFactory.port", Integer.toString(hostPort));
 		props.setProperty("mail." + protocol + ".port", Integer.toString(hostPort));
-		props.setProperty("mail." + protocol + ".timeout", TIMEOUT);
-		props.setProperty("mail." + protocol + ".connectiontimeout", TIMEOUT);
-		props.setProperty("mail." + protocol + ".ssl.trust", "*");
+		props.setProperty("mail." + protocol + ".timeout", Integer.toString(readTimeout));
+		props.setProperty("mail." + protocol + ".connectiontimeout", Integer.toString(connectTimeout));
 		props.setProperty("mail." + protocol + ".starttls.enable", String.valueOf(useSSL));
+		if (socketFactory == null) {
+			props.setProperty("mail." + protocol + ".ssl.trust", "*");
+		} else {
+			// The stores take the property prefix from the URL's protocol, so this applies to SSL stores too.
+			// The factory decides which servers to trust.
+			props.put("mail." + protocol + (useSSL ? ".ssl.socketFactory" : ".socketFactory"), socketFactory);
+		}
 		
 		// Create session and URL
 		Session session = Session.getInstance(props, null);
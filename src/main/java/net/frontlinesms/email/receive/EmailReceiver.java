@@ -3,18 +3,32 @@
  */
 package net.frontlinesms.email.receive;
 
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Store;
 import javax.mail.Flags.Flag;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.Status;
+
 import net.frontlinesms.email.EmailFilter;
+import net.frontlinesms.email.EmailHeaderFilter;
+import net.frontlinesms.email.net.EmailEndpointHealth;
+import net.frontlinesms.email.net.EmailEndpointUnavailableException;
+import net.frontlinesms.email.net.EmailSocketFactory;
+import net.frontlinesms.email.net.EmailTlsContext;
+import net.frontlinesms.email.receive.deadletter.EmailDeadLetterStore;
 
 import org.apache.log4j.Logger;
 
@@ -28,6 +42,10 @@ public class EmailReceiver {
 	/** Folder name for the inbox */
 	private static final String FOLDER_INBOX = "INBOX";
 	private static final String HEADER_DATE = "Date";
+	/** Default value for {@link #commitBatchSize} */
+	private static final int DEFAULT_COMMIT_BATCH_SIZE = 50;
+	/** Default value for {@link #partialFetchSize} */
+	private static final int DEFAULT_PARTIAL_FETCH_SIZE = 16 * 1024;
 	
 	/** Logging object for this class */
 	private static Logger LOG = Logger.getLogger(EmailReceiver.class);
@@ -35,6 +53,8 @@ public class EmailReceiver {
 //> INSTANCE PROPERTIES
 	/** Object that filters emails to reduce email spam. */
 	private EmailFilter emailFilter;
+	/** Object that triages emails on their headers alone, before their bodies are downloaded. */
+	private EmailHeaderFilter headerFilter;
 	/** Object that will process received messages. */
 	private final EmailReceiveProcessor processor;
 	/** Flag indicating this should use SSL when connecting to the email server. */
@@ -51,6 +71,44 @@ public class EmailReceiver {
 	private Long lastCheck;
 	/** Protocol: POP3 or IMAP */
 	private EmailReceiveProtocol protocol;
+	/** Size in bytes above which messages are handled according to {@link #oversizePolicy}, or zero for no limit. */
+	private int maxMessageSize;
+	/** What to do with messages larger than {@link #maxMessageSize}. */
+	private EmailSizePolicy oversizePolicy = EmailSizePolicy.PARTIAL;
+	/** Number of bytes of body to fetch for oversized messages when using {@link EmailSizePolicy#PARTIAL}. */
+	private int partialFetchSize = DEFAULT_PARTIAL_FETCH_SIZE;
+	/** Maximum number of bytes of messages to download in a single poll, or zero for no limit. */
+	private long pollByteBudget;
+	/** Budget shared by receivers for message content held in memory, or <code>null</code> if none is in use. */
+	private EmailMemoryBudget memoryBudget;
+	/** Flag indicating messages should only be removed from the server once they have been processed. */
+	private boolean transactional;
+	/** Journal of processed messages, used in transactional mode, or <code>null</code> if none is in use. */
+	private EmailReceiveJournal journal;
+	/** Number of processed messages to delete or mark as seen at a time in transactional mode. */
+	private int commitBatchSize = DEFAULT_COMMIT_BATCH_SIZE;
+	/** Name of the IMAP folder processed messages are moved to, or <code>null</code> to leave them in place. */
+	private String archiveFolderName;
+	/** Store that messages the processor fails on are added to, or <code>null</code> if none is in use. */
+	private EmailDeadLetterStore deadLetterStore;
+	/** Factory for connections to the server, or <code>null</code> to create one as needed. */
+	private EmailSocketFactory socketFactory;
+	/** TLS settings for SSL connections, or <code>null</code> to use the shared settings for the server. */
+	private EmailTlsContext tlsContext;
+	/** Flag indicating IMAP connections should be compressed if the server supports it. */
+	private boolean compressionEnabled;
+	/** Connection timeout in milliseconds, or zero to wait forever. */
+	private int connectTimeout = EmailReceiveUtils.DEFAULT_TIMEOUT;
+	/** Read timeout in milliseconds, or zero to wait forever. */
+	private int readTimeout = EmailReceiveUtils.DEFAULT_TIMEOUT;
+	/** Write timeout in milliseconds, or zero to wait forever. */
+	private int writeTimeout = EmailReceiveUtils.DEFAULT_TIMEOUT;
+	/** Health of the server, or <code>null</code> to use the shared health of the server. */
+	private EmailEndpointHealth endpointHealth;
+	/** Guard checked before each message is downloaded, or <code>null</code> if none is in use. */
+	private EmailPollGuard pollGuard;
+	/** Folders read by {@link #receiveWatchedFolders()} */
+	private final List<EmailReceiveFolder> watchedFolders = new ArrayList<EmailReceiveFolder>();
 
 //> CONSTRUCTORS
 	/**
@@ -72,16 +130,104 @@ public class EmailReceiver {
 		LOG.trace("ENTER : " + hostUsername + "@" + hostAddress + ":" + hostPort);
 
 		//Store store = PopUtils.getPopStore(hostAddress, hostUsername, hostPort, hostPassword, useSsl);
-		Store store = EmailReceiveUtils.getStore(hostAddress, hostUsername, hostPort, hostPassword, useSsl, protocol);
-		Folder folder = null;
+		EmailSocketFactory factory = getSocketFactoryForPoll();
+		Store store = getStore(factory);
+		EmailEndpointHealth health = acquireEndpoint();
+		MessagingException failure = null;
+
+		try {
+			LOG.trace("Connecting to " + protocol + " store: " + hostAddress + ":" + hostPort);
+			store.connect();
+			
+			receive(store, factory, new EmailReceiveFolder(folderName, null));
+
+			LOG.trace("EXIT : " + protocol + " email account checked without error.");
+		} catch(MessagingException ex) {
+			LOG.error("Unable to connect to " + protocol + " account.", ex);
+			failure = ex;
+			throw new EmailReceiveException(ex);
+		} finally {
+			health.recordResult(failure);
+			// Attempt to close the message store
+			try { store.close(); } catch(MessagingException ex) { LOG.warn("Error closing " + protocol + " store.", ex); }
+		}	
+	}
 
+	/**
+	 * Blocking method which reads incoming emails from all folders added with {@link #watchFolder(String, EmailReceiveProcessor)},
+	 * using a single connection.  For IMAP, the status of every folder is checked first with a STATUS
+	 * command, and only folders which have changed since the last poll are opened and read.
+	 * @throws EmailReceiveException if the account could not be read, or any of the folders could not be read
+	 */
+	public void receiveWatchedFolders() throws EmailReceiveException {
+		LOG.trace("ENTER : " + hostUsername + "@" + hostAddress + ":" + hostPort);
+		EmailSocketFactory factory = getSocketFactoryForPoll();
+		Store store = getStore(factory);
+		EmailEndpointHealth health = acquireEndpoint();
+		MessagingException connectFailure = null;
+		MessagingException firstFailure = null;
 		try {
 			LOG.trace("Connecting to " + protocol + " store: " + hostAddress + ":" + hostPort);
 			store.connect();
+			
+			for(EmailReceiveFolder target : getWatchedFolders()) {
+				try {
+					if (protocol == EmailReceiveProtocol.IMAP) {
+						IMAPFolder folder = (IMAPFolder) store.getFolder(target.getName());
+						Status status = EmailReceiveUtils.getStatus(folder);
+						if (!target.hasChanged(status)) {
+							LOG.trace("Folder unchanged since last poll: " + target.getName());
+							continue;
+						}
+						if (receive(store, factory, target)) {
+							// Our own changes to flags and message counts should not count as changes next time, but a
+							// message which arrived while the folder was being read must, so UIDNEXT is kept from before
+							Status after = EmailReceiveUtils.getStatus(folder);
+							after.uidnext = status.uidnext;
+							after.uidvalidity = status.uidvalidity;
+							target.setLastStatus(after);
+						} else {
+							// Messages were left for the next poll
+							target.setLastStatus(null);
+						}
+					} else {
+						receive(store, factory, target);
+					}
+				} catch(MessagingException ex) {
+					LOG.warn("Unable to read " + protocol + " folder: '" + target.getName() + "'", ex);
+					target.setLastStatus(null);
+					if (firstFailure == null) firstFailure = ex;
+					if (!store.isConnected()) break;
+				}
+			}
+			LOG.trace("EXIT : " + protocol + " email account checked.");
+		} catch(MessagingException ex) {
+			LOG.error("Unable to connect to " + protocol + " account.", ex);
+			connectFailure = ex;
+			throw new EmailReceiveException(ex);
+		} finally {
+			health.recordResult(connectFailure != null ? connectFailure : firstFailure);
+			try { store.close(); } catch(MessagingException ex) { LOG.warn("Error closing " + protocol + " store.", ex); }
+		}
+		if (firstFailure != null) throw new EmailReceiveException(firstFailure);
+	}
 
-			// Get a handle on the INBOX folder.
-			folder = store.getDefaultFolder().getFolder(folderName);
-			if(folder == null) throw new MessagingException("Got null handle for requested folder: '" + folderName + "'");
+	/**
+	 * Reads incoming emails from a single folder of a connected store.
+	 * @param store the connected store
+	 * @param factory factory which made the store's connections
+	 * @param target the folder to read, with the processor and filters to use for it
+	 * @return <code>false</code> if the poll's byte budget ran out, or the processor had no demand, before all messages were read
+	 * @throws MessagingException
+	 */
+	private boolean receive(Store store, EmailSocketFactory factory, EmailReceiveFolder target) throws MessagingException {
+		Folder folder = null;
+		EmailReceiveTransaction transaction = null;
+
+		try {
+			// Get a handle on the folder.
+			folder = store.getDefaultFolder().getFolder(target.getName());
+			if(folder == null) throw new MessagingException("Got null handle for requested folder: '" + target.getName() + "'");
 
 			try {
 				LOG.trace("Attempting to open folder for read/write.");
@@ -90,32 +236,253 @@ public class EmailReceiver {
 				LOG.trace("Opening folder for Read/write failed.  Attempting to open folder for read only.");
 				folder.open(Folder.READ_ONLY);
 			}
+			if (compressionEnabled && folder instanceof IMAPFolder) {
+				startCompression((IMAPFolder) folder, factory);
+			}
 
 			Message[] messages = folder.getMessages();
+			if(getHeaderFilter(target) != null) {
+				messages = triage(folder, messages, getHeaderFilter(target));
+			}
+			// Sizes are read up front, in a single command, only if we have limits to enforce
+			int[] sizes = (maxMessageSize > 0 || pollByteBudget > 0 || memoryBudget != null) ? EmailReceiveUtils.getSizes(folder, messages) : null;
+			Folder archive = protocol == EmailReceiveProtocol.IMAP ? getArchiveFolder(store) : null;
+			transaction = transactional
+					? new EmailReceiveTransaction(folder, messages, journal, commitBatchSize, archive)
+					: new EmailReceiveTransaction(folder, messages, null, 0, archive);
+			long bytesRemaining = pollByteBudget > 0 ? pollByteBudget : Long.MAX_VALUE;
+			boolean processedAny = false;
+		
 			// Loop over all of the messages
-			for (Message message : messages) {
-				if (protocol == EmailReceiveProtocol.POP3) {
-					this.handlePopMessage(message);
-				} else if (this.lastCheck == null || !message.getFlags().contains(Flag.SEEN)) {
-					this.processMessage(message, message.getReceivedDate());
+			for (int i=0; i<messages.length; ++i) {
+				Message message = messages[i];
+				if (protocol == EmailReceiveProtocol.IMAP && this.lastCheck != null && message.getFlags().contains(Flag.SEEN)) {
+					continue;
+				}
+				if (transactional && transaction.recover(i)) {
+					continue;
+				}
+				if (!awaitDemand(target)) {
+					LOG.info("Processor has no demand for more emails.  Remaining emails will be received next poll.");
+					return false;
+				}
+				if (pollGuard != null && !pollGuard.isPollAllowed()) {
+					LOG.info("Poll ended by its guard.  Remaining emails will be received next poll.");
+					return false;
+				}
+			
+				Message content = message;
+				if (sizes != null) {
+					long cost = Math.max(sizes[i], 0);
+					if (maxMessageSize > 0 && sizes[i] > maxMessageSize) {
+						if (oversizePolicy == EmailSizePolicy.SKIP) {
+							LOG.info("Skipping email of " + sizes[i] + " bytes.");
+							continue;
+						}
+						int maxBodyBytes = oversizePolicy == EmailSizePolicy.PARTIAL ? partialFetchSize : 0;
+						content = EmailReceiveUtils.getTruncatedCopy(folder, message, sizes[i], maxBodyBytes);
+						cost = content.getSize();
+					}
+					// Always allow one message per poll, so that a message bigger than the budget cannot block the account
+					if (cost > bytesRemaining && processedAny) {
+						LOG.info("Byte budget for this poll used up.  Remaining emails will be received next poll.");
+						return false;
+					}
+					bytesRemaining -= cost;
 				}
-			}
 
-			LOG.trace("EXIT : " + protocol + " email account checked without error.");
-		} catch(MessagingException ex) {
-			LOG.error("Unable to connect to " + protocol + " account.", ex);
-			throw new EmailReceiveException(ex);
+				// Truncated copies are already in memory, and small, so only whole messages are budgeted
+				long memoryReserved = 0;
+				EmailMemoryBudget.SpilledMessage spilled = null;
+				if (memoryBudget != null && content == message) {
+					try {
+						if (sizes[i] >= 0 && sizes[i] <= memoryBudget.getSpillThreshold() && memoryBudget.reserve(sizes[i])) {
+							memoryReserved = sizes[i];
+						} else {
+							content = spilled = memoryBudget.spill(message);
+						}
+					} catch(InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						LOG.info("Interrupted waiting for memory.  Remaining emails will be received next poll.");
+						return false;
+					} catch(IOException ex) {
+						throw new MessagingException("Unable to spill email to disk.", ex);
+					}
+				}
+			
+				try {
+					if (transactional) {
+						transaction.begin(i);
+						try {
+							this.handleMessage(target, message, content);
+						} catch(RuntimeException ex) {
+							LOG.warn("Email could not be processed.  It will be left on the server and received again.", ex);
+							transaction.failed(i);
+							continue;
+						}
+						transaction.acknowledge(i);
+					} else {
+						transaction.handled(i);
+						this.handleMessage(target, message, content);
+					}
+					processedAny = true;
+				} finally {
+					if (memoryReserved > 0) memoryBudget.release(memoryReserved);
+					if (spilled != null) spilled.dispose();
+				}
+			}
+			return true;
 		} finally {
-			// Attempt to close our folder
-			if(folder != null) try { folder.close(true); } catch(MessagingException ex) { LOG.warn("Error closing " + protocol + " folder.", ex); }
-
-			// Attempt to close the message store
-			try { store.close(); } catch(MessagingException ex) { LOG.warn("Error closing " + protocol + " store.", ex); }
+			// Commit any messages processed since the last batch
+			if(transaction != null) try { transaction.commit(); } catch(MessagingException ex) { LOG.warn("Error committing processed emails.", ex); }
 			
-		}	
+			// Attempt to close our folder
+			if(folder != null && folder.isOpen()) try {
+				folder.close(true);
+				if(transaction != null) transaction.closed();
+			} catch(MessagingException ex) { LOG.warn("Error closing " + protocol + " folder.", ex); }
+		}
 	}
 	
-	private void handlePopMessage (Message message) {
+	/**
+	 * Fetches the headers of messages in bulk, and passes them to a header filter.
+	 * Messages which are rejected or deleted are flagged here, and their bodies are never fetched.
+	 * @param folder the open folder the messages are in
+	 * @param messages the messages in the folder
+	 * @param headerFilter the filter to triage the messages with
+	 * @return the messages which were accepted by the filter
+	 * @throws MessagingException
+	 */
+	private Message[] triage(Folder folder, Message[] messages, EmailHeaderFilter headerFilter) throws MessagingException {
+		Message[] candidates = messages;
+		if (protocol == EmailReceiveProtocol.IMAP && this.lastCheck != null) {
+			// Only triage messages which would otherwise be processed
+			FetchProfile flagsProfile = new FetchProfile();
+			flagsProfile.add(FetchProfile.Item.FLAGS);
+			folder.fetch(messages, flagsProfile);
+			
+			List<Message> unseen = new ArrayList<Message>();
+			for (Message message : messages) {
+				if (!message.getFlags().contains(Flag.SEEN)) unseen.add(message);
+			}
+			candidates = unseen.toArray(new Message[unseen.size()]);
+		}
+		
+		// IMAP fetches headers with BODY.PEEK[HEADER]; POP3 with TOP n 0
+		FetchProfile headerProfile = new FetchProfile();
+		headerProfile.add(FetchProfile.Item.ENVELOPE);
+		headerProfile.add(IMAPFolder.FetchProfileItem.HEADERS);
+		folder.fetch(candidates, headerProfile);
+		
+		List<Message> accepted = new ArrayList<Message>(candidates.length);
+		List<Message> deleted = new ArrayList<Message>();
+		List<Message> rejected = new ArrayList<Message>();
+		for (Message message : candidates) {
+			EmailHeaderFilter.Decision decision = headerFilter.filter(message);
+			if (decision == EmailHeaderFilter.Decision.ACCEPT) {
+				accepted.add(message);
+			} else if (decision == EmailHeaderFilter.Decision.DELETE || protocol == EmailReceiveProtocol.POP3) {
+				LOG.info("Email deleted by header filter.");
+				deleted.add(message);
+			} else {
+				LOG.info("Email rejected by header filter.");
+				rejected.add(message);
+			}
+		}
+		// Flag messages with one command each for deleted and rejected messages
+		if (!deleted.isEmpty()) folder.setFlags(deleted.toArray(new Message[deleted.size()]), new Flags(Flag.DELETED), true);
+		if (!rejected.isEmpty()) folder.setFlags(rejected.toArray(new Message[rejected.size()]), new Flags(Flag.SEEN), true);
+		return accepted.toArray(new Message[accepted.size()]);
+	}
+
+	/**
+	 * Checks that the server's circuit breaker allows a connection.  The result of the connection must
+	 * be passed to {@link EmailEndpointHealth#recordResult(Throwable)}.
+	 * @return the health of the server
+	 * @throws EmailReceiveException if recent connections to the server have failed
+	 */
+	private EmailEndpointHealth acquireEndpoint() throws EmailReceiveException {
+		EmailEndpointHealth health = getEndpointHealth();
+		try {
+			health.acquire();
+		} catch (EmailEndpointUnavailableException ex) {
+			LOG.info("Not connecting to " + protocol + " account: " + ex.getMessage());
+			throw new EmailReceiveException(ex);
+		}
+		return health;
+	}
+
+	/**
+	 * @return {@link #socketFactory} if one is set, or otherwise a new factory with this receiver's write timeout
+	 */
+	private EmailSocketFactory getSocketFactoryForPoll() {
+		if (socketFactory != null) return socketFactory;
+		// Share the TLS context between polls, so reconnects resume the previous TLS session
+		EmailSocketFactory factory = useSsl ? new EmailSocketFactory(getTlsContext()) : EmailSocketFactory.create(false);
+		factory.setWriteTimeout(writeTimeout);
+		return factory;
+	}
+
+	/**
+	 * @param factory factory for the store's connections
+	 * @return a store for the account
+	 */
+	private Store getStore(EmailSocketFactory factory) {
+		return EmailReceiveUtils.getStore(hostAddress, hostUsername, hostPort, hostPassword, useSsl, protocol, factory, connectTimeout, readTimeout);
+	}
+
+	/**
+	 * Starts compression on the connection of an open IMAP folder.  If the server does not support
+	 * compression, or rejects it, the folder is read uncompressed.
+	 * @param folder the open folder
+	 * @param factory factory which made the folder's connection
+	 */
+	private void startCompression(IMAPFolder folder, EmailSocketFactory factory) {
+		try {
+			if (!EmailReceiveUtils.startCompression(folder, factory)) {
+				LOG.debug("Compression not available for " + protocol + " account: " + hostAddress);
+			}
+		} catch (MessagingException ex) {
+			LOG.info("Server rejected compression; continuing uncompressed.", ex);
+		}
+	}
+
+	/**
+	 * Gets the folder processed IMAP messages are moved to, creating it if necessary.
+	 * @param store the connected store
+	 * @return the archive folder, or <code>null</code> if processed messages are not moved
+	 * @throws MessagingException
+	 */
+	private Folder getArchiveFolder(Store store) throws MessagingException {
+		if (archiveFolderName == null) return null;
+		Folder archive = store.getFolder(archiveFolderName);
+		if (!archive.exists() && !archive.create(Folder.HOLDS_MESSAGES)) {
+			throw new MessagingException("Unable to create archive folder: '" + archiveFolderName + "'");
+		}
+		return archive;
+	}
+
+	/**
+	 * Processes a message.
+	 * @param target the folder the message is in
+	 * @param message the message on the server
+	 * @param content the message to process; either the message on the server, or a truncated copy of it
+	 */
+	private void handleMessage(EmailReceiveFolder target, Message message, Message content) throws MessagingException {
+		if (protocol == EmailReceiveProtocol.POP3) {
+			this.handlePopMessage(target, message, content);
+		} else {
+			this.processMessage(target, content, message.getReceivedDate());
+		}
+	}
+
+	/**
+	 * Processes a POP message, if it is newer than the last check.
+	 * @param target the folder the message is in
+	 * @param message the message on the server
+	 * @param content the message to process; either the message on the server, or a truncated copy of it
+	 */
+	private void handlePopMessage (EmailReceiveFolder target, Message message, Message content) {
 		Date date = null;
 		try {
 			String[] dateHeader = message.getHeader(HEADER_DATE);
@@ -123,25 +490,71 @@ public class EmailReceiver {
 				DateFormat formatter = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss Z");
 				date = (Date)formatter.parse(dateHeader[0]);
 			}
-			
-			message.setFlag(Flag.DELETED, true);
 		} catch (MessagingException e) {
 		} catch (ParseException e) { }
 		
 		if (this.lastCheck == null || date == null || date.after(new Date(this.lastCheck))) {
-			this.processMessage(message, date); // FIXME date should not be passed here
+			this.processMessage(target, content, date); // FIXME date should not be passed here
 		}
 	}
 
-	private void processMessage(Message message, Date date) {
+	private void processMessage(EmailReceiveFolder target, Message message, Date date) {
+		EmailFilter emailFilter = target.getEmailFilter() != null ? target.getEmailFilter() : this.emailFilter;
+		EmailReceiveProcessor processor = target.getProcessor() != null ? target.getProcessor() : this.processor;
 		if(emailFilter == null || emailFilter.accept(message)) {
 			if(emailFilter != null) LOG.info("Email accepted by filter.  Beginning processing.");
-			processor.processMessage(message, date); // FIXME date should not be passed here
+			try {
+				processor.processMessage(message, date); // FIXME date should not be passed here
+			} catch(RuntimeException ex) {
+				if(deadLetterStore == null) throw ex;
+				deadLetter(message, date, ex);
+			}
 		} else {
 			LOG.info("Email rejected by filter.");
 		}
 	}
 
+	/**
+	 * Waits until the processor for a folder is ready for another message, if it is an {@link EmailDemandProcessor}.
+	 * @return <code>false</code> if the poll should end without downloading any more messages
+	 */
+	private boolean awaitDemand(EmailReceiveFolder target) {
+		EmailReceiveProcessor processor = target.getProcessor() != null ? target.getProcessor() : this.processor;
+		return !(processor instanceof EmailDemandProcessor) || ((EmailDemandProcessor) processor).awaitDemand();
+	}
+
+	/** @return the header filter to use for a folder, or <code>null</code> if none */
+	private EmailHeaderFilter getHeaderFilter(EmailReceiveFolder target) {
+		return target.getHeaderFilter() != null ? target.getHeaderFilter() : this.headerFilter;
+	}
+
+	/** @return a copy of the list of watched folders */
+	private EmailReceiveFolder[] getWatchedFolders() {
+		synchronized(watchedFolders) {
+			return watchedFolders.toArray(new EmailReceiveFolder[watchedFolders.size()]);
+		}
+	}
+
+	/**
+	 * Adds a message the processor failed on to the {@link #deadLetterStore}.
+	 * @param message the message
+	 * @param date the date passed to the processor
+	 * @param error the exception thrown by the processor
+	 * @throws RuntimeException the processor's exception, if the message could not be added to the store
+	 */
+	private void deadLetter(Message message, Date date, RuntimeException error) {
+		LOG.warn("Email could not be processed.  Adding it to the dead letter store.", error);
+		try {
+			deadLetterStore.add(message, date, error);
+		} catch(IOException ex) {
+			LOG.error("Unable to add email to dead letter store.", ex);
+			throw error;
+		} catch(MessagingException ex) {
+			LOG.error("Unable to add email to dead letter store.", ex);
+			throw error;
+		}
+	}
+
 	/**
 	 * Blocking methods that attempts to read messages from a POP email account.
 	 * @throws EmailReceiveException If there was a problem receiving messages with this object.
@@ -149,8 +562,63 @@ public class EmailReceiver {
 	public void receive() throws EmailReceiveException {
 		this.receive(FOLDER_INBOX);
 	}
+
+	/**
+	 * Adds a folder to be read by {@link #receiveWatchedFolders()}.  The returned object can be used
+	 * to set filters for just this folder.
+	 * @param folderName full name of the folder
+	 * @param processor object that will process messages from this folder, or <code>null</code> to use this receiver's processor
+	 * @return the watched folder
+	 */
+	public EmailReceiveFolder watchFolder(String folderName, EmailReceiveProcessor processor) {
+		EmailReceiveFolder folder = new EmailReceiveFolder(folderName, processor);
+		synchronized(watchedFolders) {
+			watchedFolders.add(folder);
+		}
+		return folder;
+	}
+
+	/**
+	 * Stops a folder being read by {@link #receiveWatchedFolders()}.
+	 * @param folder the watched folder, as returned by {@link #watchFolder(String, EmailReceiveProcessor)}
+	 */
+	public void unwatchFolder(EmailReceiveFolder folder) {
+		synchronized(watchedFolders) {
+			watchedFolders.remove(folder);
+		}
+	}
 	
 //> ACCESSORS
+	/**
+	 * @return the emailFilter
+	 */
+	public EmailFilter getEmailFilter() {
+		return emailFilter;
+	}
+
+	/**
+	 * @param emailFilter the emailFilter to set
+	 */
+	public void setEmailFilter(EmailFilter emailFilter) {
+		this.emailFilter = emailFilter;
+	}
+
+	/**
+	 * @return the headerFilter
+	 */
+	public EmailHeaderFilter getHeaderFilter() {
+		return headerFilter;
+	}
+
+	/**
+	 * Sets a filter which triages messages on their headers alone.  When set, headers are fetched
+	 * for all new messages in bulk, and only the bodies of accepted messages are downloaded.
+	 * @param headerFilter the headerFilter to set, or <code>null</code> to process every message
+	 */
+	public void setHeaderFilter(EmailHeaderFilter headerFilter) {
+		this.headerFilter = headerFilter;
+	}
+
 	/**
 	 * @return the useSsl
 	 */
@@ -229,6 +697,290 @@ public class EmailReceiver {
 		return lastCheck;
 	}
 
+	/**
+	 * @return size in bytes above which messages are handled according to the oversize policy, or zero for no limit
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * @param maxMessageSize size in bytes above which messages are handled according to the oversize policy, or zero for no limit
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * @return what to do with messages larger than the maximum message size
+	 */
+	public EmailSizePolicy getOversizePolicy() {
+		return oversizePolicy;
+	}
+
+	/**
+	 * @param oversizePolicy what to do with messages larger than the maximum message size
+	 */
+	public void setOversizePolicy(EmailSizePolicy oversizePolicy) {
+		if(oversizePolicy == null) throw new IllegalArgumentException("Oversize policy must not be null.");
+		this.oversizePolicy = oversizePolicy;
+	}
+
+	/**
+	 * @return number of bytes of body to fetch for oversized messages when using {@link EmailSizePolicy#PARTIAL}
+	 */
+	public int getPartialFetchSize() {
+		return partialFetchSize;
+	}
+
+	/**
+	 * @param partialFetchSize number of bytes of body to fetch for oversized messages when using {@link EmailSizePolicy#PARTIAL}
+	 */
+	public void setPartialFetchSize(int partialFetchSize) {
+		this.partialFetchSize = partialFetchSize;
+	}
+
+	/**
+	 * @return maximum number of bytes of messages to download in a single poll, or zero for no limit
+	 */
+	public long getPollByteBudget() {
+		return pollByteBudget;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of messages to download in a single poll.  Messages beyond
+	 * the budget are left on the server until the next poll.  At least one message is always
+	 * processed per poll, however large it is.
+	 * @param pollByteBudget maximum number of bytes to download per poll, or zero for no limit
+	 */
+	public void setPollByteBudget(long pollByteBudget) {
+		this.pollByteBudget = pollByteBudget;
+	}
+
+	/**
+	 * @return budget for message content held in memory, or <code>null</code> if none is in use
+	 */
+	public EmailMemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets a budget for message content held in memory, usually shared by all the receivers in the
+	 * process.  Each message's size is reserved from the budget before its content is fetched, and
+	 * released once it has been processed; messages which do not fit are spilled to disk.
+	 * @param memoryBudget budget for message content, or <code>null</code> for no limit
+	 */
+	public void setMemoryBudget(EmailMemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return <code>true</code> if messages are only removed from the server once they have been processed
+	 */
+	public boolean isTransactional() {
+		return transactional;
+	}
+
+	/**
+	 * Sets transactional mode.  In transactional mode, a message is acknowledged when the processor
+	 * returns from {@link EmailReceiveProcessor#processMessage(Message, Date)} without throwing an
+	 * exception.  Only acknowledged messages are deleted (POP3) or marked as seen (IMAP), in batches of
+	 * {@link #getCommitBatchSize()}.  If the processor throws a {@link RuntimeException}, the message
+	 * is left on the server and the rest of the messages are still received.
+	 * @param transactional <code>true</code> to only remove messages from the server once they have been processed
+	 */
+	public void setTransactional(boolean transactional) {
+		this.transactional = transactional;
+	}
+
+	/**
+	 * @return journal of processed messages, or <code>null</code> if none is in use
+	 */
+	public EmailReceiveJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Sets a journal of processed messages, used in transactional mode.  With a journal, messages which
+	 * were acknowledged but not committed before a crash are committed on the next poll, rather than
+	 * being processed again.
+	 * @param journal journal of processed messages, or <code>null</code> to use none
+	 */
+	public void setJournal(EmailReceiveJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return number of processed messages to delete or mark as seen at a time in transactional mode
+	 */
+	public int getCommitBatchSize() {
+		return commitBatchSize;
+	}
+
+	/**
+	 * @param commitBatchSize number of processed messages to delete or mark as seen at a time in transactional mode
+	 */
+	public void setCommitBatchSize(int commitBatchSize) {
+		this.commitBatchSize = commitBatchSize;
+	}
+
+	/**
+	 * @return name of the IMAP folder processed messages are moved to, or <code>null</code> if they are left in place
+	 */
+	public String getArchiveFolderName() {
+		return archiveFolderName;
+	}
+
+	/**
+	 * Sets an IMAP folder that processed messages are moved to, rather than being left in the
+	 * received folder marked as seen.  Messages are moved in batches, using MOVE if the server
+	 * supports it and COPY otherwise.  The folder is created if it does not exist.  This has no
+	 * effect for POP3, where processed messages are always deleted.
+	 * @param archiveFolderName name of the folder to move processed messages to, or <code>null</code> to leave them in place
+	 */
+	public void setArchiveFolderName(String archiveFolderName) {
+		this.archiveFolderName = archiveFolderName;
+	}
+
+	/**
+	 * @return store that messages the processor fails on are added to, or <code>null</code> if none is in use
+	 */
+	public EmailDeadLetterStore getDeadLetterStore() {
+		return deadLetterStore;
+	}
+
+	/**
+	 * Sets a store that messages are added to when the processor throws a {@link RuntimeException}.
+	 * Such messages are treated as handled, so the rest of the messages are still received, and they
+	 * can be retried later with an {@link net.frontlinesms.email.receive.deadletter.EmailRetryScheduler}.
+	 * @param deadLetterStore store that messages the processor fails on are added to, or <code>null</code> to use none
+	 */
+	public void setDeadLetterStore(EmailDeadLetterStore deadLetterStore) {
+		this.deadLetterStore = deadLetterStore;
+	}
+
+	/**
+	 * @return guard checked before each message is downloaded, or <code>null</code> if none is in use
+	 */
+	public EmailPollGuard getPollGuard() {
+		return pollGuard;
+	}
+
+	/**
+	 * Sets a guard which is checked before each message is downloaded, and which can end the poll.
+	 * @param pollGuard guard checked before each message is downloaded, or <code>null</code> to use none
+	 */
+	public void setPollGuard(EmailPollGuard pollGuard) {
+		this.pollGuard = pollGuard;
+	}
+
+	/**
+	 * @return factory for connections to the server, or <code>null</code> if one is created for each poll
+	 */
+	public EmailSocketFactory getSocketFactory() {
+		return socketFactory;
+	}
+
+	/**
+	 * Sets a factory for connections to the server.  The factory's {@link EmailSocketFactory#getStatistics()}
+	 * count the bytes sent and received.  The factory must create SSL connections if {@link #isUseSsl()}.
+	 * @param socketFactory factory for connections to the server, or <code>null</code> to create one as needed
+	 */
+	public void setSocketFactory(EmailSocketFactory socketFactory) {
+		this.socketFactory = socketFactory;
+	}
+
+	/** @return connection timeout in milliseconds, or zero if connecting waits forever */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @param connectTimeout connection timeout in milliseconds, or zero to wait forever; defaults to
+	 * {@link EmailReceiveUtils#DEFAULT_TIMEOUT}
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/** @return read timeout in milliseconds, or zero if reads wait forever */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param readTimeout time in milliseconds to wait for the server to send data, or zero to wait
+	 * forever; defaults to {@link EmailReceiveUtils#DEFAULT_TIMEOUT}
+	 */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/** @return write timeout in milliseconds, or zero if writes wait forever */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for the server to accept data that is sent to it.  This is ignored if a
+	 * {@link #setSocketFactory(EmailSocketFactory)} has been set; set the factory's write timeout instead.
+	 * @param writeTimeout write timeout in milliseconds, or zero to wait forever; defaults to
+	 * {@link EmailReceiveUtils#DEFAULT_TIMEOUT}
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * @return health of the server, whose circuit breaker stops connections being attempted while the
+	 * server is down; if none has been set, the health shared by all receivers and senders for this
+	 * server, from {@link EmailEndpointHealth#forEndpoint(String, int)}
+	 */
+	public EmailEndpointHealth getEndpointHealth() {
+		return endpointHealth != null ? endpointHealth : EmailEndpointHealth.forEndpoint(hostAddress, hostPort);
+	}
+
+	/** @param endpointHealth health of the server, or <code>null</code> to use the shared health of the server */
+	public void setEndpointHealth(EmailEndpointHealth endpointHealth) {
+		this.endpointHealth = endpointHealth;
+	}
+
+	/**
+	 * @return TLS settings for SSL connections; if none have been set, the settings shared by all
+	 * receivers and senders for this server, from {@link EmailTlsContext#forEndpoint(String, int)}
+	 */
+	public EmailTlsContext getTlsContext() {
+		return tlsContext != null ? tlsContext : EmailTlsContext.forEndpoint(hostAddress, hostPort);
+	}
+
+	/**
+	 * Sets the TLS settings for SSL connections, such as the trust store and pinned keys.  The context
+	 * caches TLS sessions, so a context kept between polls lets reconnects skip the full handshake.
+	 * This is ignored if a {@link #setSocketFactory(EmailSocketFactory)} has been set.
+	 * @param tlsContext TLS settings, or <code>null</code> to use the shared settings for the server
+	 */
+	public void setTlsContext(EmailTlsContext tlsContext) {
+		this.tlsContext = tlsContext;
+	}
+
+	/**
+	 * @return <code>true</code> if IMAP connections are compressed when the server supports it
+	 */
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	/**
+	 * Sets whether IMAP connections should be compressed with COMPRESS=DEFLATE (RFC 4978), which
+	 * typically reduces the bytes received for text messages by well over half.  Compression is only
+	 * used if the server advertises it; otherwise messages are received uncompressed.  This has no
+	 * effect for POP3.
+	 * @param compressionEnabled <code>true</code> to compress IMAP connections when possible
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+
 	public void setProtocol(EmailReceiveProtocol protocol) {
 		this.protocol = protocol;
 	}
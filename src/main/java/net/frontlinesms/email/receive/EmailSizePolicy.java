@@ -0,0 +1,13 @@
+package net.frontlinesms.email.receive;
+
+/**
+ * What an {@link EmailReceiver} should do with a message larger than its maximum message size.
+ */
+public enum EmailSizePolicy {
+	/** Leave the message on the server untouched, and do not process it. */
+	SKIP,
+	/** Process a copy of the message containing only its headers. */
+	HEADERS_ONLY,
+	/** Process a copy of the message containing its headers and the start of its body. */
+	PARTIAL;
+}
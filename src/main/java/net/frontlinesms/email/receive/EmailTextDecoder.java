@@ -0,0 +1,388 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.internet.MimeUtility;
+
+import net.frontlinesms.email.mime.EmailBufferPool;
+
+/**
+ * Decodes the text of received messages: RFC 2047 encoded-words in headers, and the bytes of text parts.
+ * <p>
+ * This does the work of {@link MimeUtility#decodeText(String)} and of JavaMail's text content handlers
+ * without their per-call costs.  Charsets are looked up once and kept, with the charsets most mail uses
+ * resolved in advance; each thread keeps its own {@link CharsetDecoder} for each charset and its own
+ * buffers, and base64 and Q encoded-words are decoded straight into those buffers.  A header with no
+ * encoded-words is returned as it is, and the most recently decoded headers are kept, since a receive
+ * loop reads the same subjects and sender names over and over.
+ * <p>
+ * Decoding is more lenient than JavaMail's in the ways mail clients commonly need: consecutive
+ * encoded-words in the same charset are decoded together, so a character whose bytes are split between
+ * two words is decoded correctly; encoded-words with nothing between them are all decoded; and base64
+ * without its padding is accepted.  An encoded-word in a charset this JVM does not support, or which is
+ * not well formed, is left as it is.
+ */
+public class EmailTextDecoder {
+//> STATIC CONSTANTS
+	/** Number of decoded headers kept */
+	private static final int CACHE_SIZE = 256;
+	/** Headers longer than this are not kept, so that the cache stays small */
+	private static final int MAX_CACHED_LENGTH = 512;
+	/** Buffers larger than this are not kept by a thread after use */
+	private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+	/** Size of the buffers each thread starts with */
+	private static final int INITIAL_BUFFER = 1024;
+	/** Charsets, by the name they were looked up with */
+	private static final ConcurrentMap<String, Charset> CHARSETS = new ConcurrentHashMap<String, Charset>();
+	/** Charsets most received mail uses, resolved in advance */
+	private static final String[] COMMON_CHARSETS = { "UTF-8", "utf-8", "ISO-8859-1", "iso-8859-1", "windows-1252", "Windows-1252", "US-ASCII", "us-ascii" };
+	/** Recently decoded headers, by their raw value, least recently used first */
+	private static final Map<String, String> RECENT = new LinkedHashMap<String, String>(CACHE_SIZE * 2, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	/** Decoders and buffers of each thread */
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+	/** Values of base64 characters, or -1 for characters which are not base64 */
+	private static final byte[] BASE64 = new byte[128];
+
+	static {
+		for(String name : COMMON_CHARSETS) getCharset(name);
+		Arrays.fill(BASE64, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for(int i=0; i<alphabet.length(); ++i) BASE64[alphabet.charAt(i)] = (byte) i;
+	}
+
+//> CONSTRUCTORS
+	/** Utility class; not instantiated. */
+	private EmailTextDecoder() {}
+
+//> STATIC METHODS
+	/**
+	 * Decodes the RFC 2047 encoded-words in an unfolded header value, as {@link MimeUtility#decodeText(String)} does.
+	 * @param value the raw header value
+	 * @return the decoded value, which is <code>value</code> itself if it has no encoded-words
+	 */
+	public static String decodeHeader(String value) {
+		if(value.indexOf("=?") == -1) return value;
+		boolean cacheable = value.length() <= MAX_CACHED_LENGTH;
+		if(cacheable) {
+			synchronized(RECENT) {
+				String decoded = RECENT.get(value);
+				if(decoded != null) return decoded;
+			}
+		}
+		Buffers buffers = BUFFERS.get();
+		buffers.acquireBytes();
+		String decoded;
+		try {
+			decoded = buffers.decodeWords(value);
+		} finally {
+			buffers.releaseBytes();
+		}
+		if(cacheable) {
+			synchronized(RECENT) {
+				RECENT.put(value, decoded);
+			}
+		}
+		return decoded;
+	}
+
+	/**
+	 * Reads text from a stream to its end.  The stream is not closed.
+	 * @param in stream of encoded text, such as the stream of a text part
+	 * @param charset charset of the text, from {@link #getCharset(String)}
+	 * @return the text
+	 * @throws IOException if the stream could not be read
+	 */
+	public static String decode(InputStream in, Charset charset) throws IOException {
+		Buffers buffers = BUFFERS.get();
+		buffers.acquireBytes();
+		try {
+			return buffers.decode(in, charset);
+		} finally {
+			buffers.releaseBytes();
+		}
+	}
+
+	/**
+	 * @param name MIME or Java name of a charset
+	 * @return the charset, or <code>null</code> if this JVM does not support it
+	 */
+	public static Charset getCharset(String name) {
+		Charset charset = CHARSETS.get(name);
+		if(charset == null) {
+			charset = forName(name);
+			if(charset == null) charset = forName(MimeUtility.javaCharset(name));
+			if(charset == null) return null;
+			CHARSETS.putIfAbsent(name, charset);
+		}
+		return charset;
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the charset with a name, or <code>null</code> if there is none */
+	private static Charset forName(String name) {
+		try {
+			return Charset.forName(name);
+		} catch(IllegalArgumentException ex) {
+			// Illegal or unsupported charset name
+			return null;
+		}
+	}
+
+	/** @return <code>true</code> if a character separates the words of a header */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	/** @return the value of a hexadecimal digit, or -1 if it is not one */
+	private static int hex(char c) {
+		if(c >= '0' && c <= '9') return c - '0';
+		if(c >= 'A' && c <= 'F') return c - 'A' + 10;
+		if(c >= 'a' && c <= 'f') return c - 'a' + 10;
+		return -1;
+	}
+
+//> INNER CLASSES
+	/**
+	 * Decoders and buffers used by one thread.  The byte buffer is borrowed from the shared
+	 * {@link EmailBufferPool} for each call, so that threads which are idle, or finished, do not hold one.
+	 */
+	private static class Buffers {
+		/** Decoder for each charset this thread has used */
+		private final Map<Charset, CharsetDecoder> decoders = new HashMap<Charset, CharsetDecoder>();
+		/** Bytes of the encoded-words being decoded, or of a text part; <code>null</code> between calls */
+		private byte[] bytes;
+		/** Number of bytes in {@link #bytes} */
+		private int byteCount;
+		/** Characters decoded from {@link #bytes} */
+		private CharBuffer chars = CharBuffer.allocate(INITIAL_BUFFER);
+		/** Decoded header being built */
+		private final StringBuilder text = new StringBuilder(INITIAL_BUFFER);
+
+		/** @return a header value with its encoded-words decoded */
+		String decodeWords(String value) {
+			text.setLength(0);
+			byteCount = 0;
+			int length = value.length();
+			// Charset of the decoded bytes in {@link #bytes}, or null if there are none
+			Charset pending = null;
+			boolean lastEncoded = false;
+			int whitespaceStart = 0;
+			int i = 0;
+			while(i < length) {
+				// Find the next whitespace-separated word
+				while(i < length && isWhitespace(value.charAt(i))) ++i;
+				if(i == length) break;
+				int wordEnd = i;
+				while(wordEnd < length && !isWhitespace(value.charAt(wordEnd))) ++wordEnd;
+
+				// A word is decoded only if the whole of it is one or more encoded-words
+				boolean encoded = true;
+				for(int word=i; word<wordEnd && encoded; word=encodedWordEnd(value, word, wordEnd)) {
+					encoded = encodedWordEnd(value, word, wordEnd) != -1;
+				}
+				if(encoded) {
+					// Whitespace between encoded-words is dropped
+					if(!lastEncoded) text.append(value, whitespaceStart, i);
+					for(int word=i; word<wordEnd; ) {
+						int end = encodedWordEnd(value, word, wordEnd);
+						if(pending != null && !pending.equals(wordCharset)) flush(pending);
+						pending = wordCharset;
+						appendBytes(value, word, end);
+						word = end;
+					}
+				} else {
+					if(pending != null) flush(pending);
+					pending = null;
+					text.append(value, whitespaceStart, wordEnd);
+				}
+				lastEncoded = encoded;
+				whitespaceStart = wordEnd;
+				i = wordEnd;
+			}
+			if(pending != null) flush(pending);
+			text.append(value, whitespaceStart, length);
+			String result = text.toString();
+			if(text.capacity() > MAX_RETAINED_BUFFER) {
+				text.setLength(0);
+				text.trimToSize();
+			}
+			return result;
+		}
+
+		/** Charset of the last word checked by {@link #encodedWordEnd(String, int, int)} */
+		private Charset wordCharset;
+
+		/**
+		 * Checks for a well formed encoded-word, in a supported charset, at an index.  Its charset is left
+		 * in {@link #wordCharset}.
+		 * @return the index after the end of the encoded-word, or -1 if there is none
+		 */
+		private int encodedWordEnd(String value, int start, int end) {
+			if(end - start < 8 || value.charAt(start) != '=' || value.charAt(start + 1) != '?') return -1;
+			int charsetEnd = value.indexOf('?', start + 2);
+			if(charsetEnd == -1 || charsetEnd + 3 > end || value.charAt(charsetEnd + 2) != '?') return -1;
+			int textEnd = value.indexOf("?=", charsetEnd + 3);
+			if(textEnd == -1 || textEnd + 2 > end) return -1;
+			char encoding = value.charAt(charsetEnd + 1);
+			if(encoding == 'Q' || encoding == 'q') {
+				for(int i=charsetEnd+3; i<textEnd; ++i) {
+					if(value.charAt(i) != '=') continue;
+					if(i + 2 >= textEnd || hex(value.charAt(i + 1)) == -1 || hex(value.charAt(i + 2)) == -1) return -1;
+					i += 2;
+				}
+			} else if(encoding != 'B' && encoding != 'b') {
+				return -1;
+			}
+			// RFC 2231 allows a language after the charset name
+			int language = value.indexOf('*', start + 2);
+			wordCharset = getCharset(value.substring(start + 2, language != -1 && language < charsetEnd ? language : charsetEnd));
+			return wordCharset == null ? -1 : textEnd + 2;
+		}
+
+		/** Adds the bytes of a well formed encoded-word to {@link #bytes}. */
+		private void appendBytes(String value, int start, int end) {
+			int charsetEnd = value.indexOf('?', start + 2);
+			char encoding = value.charAt(charsetEnd + 1);
+			if(encoding == 'B' || encoding == 'b') decodeBase64(value, charsetEnd + 3, end - 2);
+			else decodeQ(value, charsetEnd + 3, end - 2);
+		}
+
+		/** Decodes base64 text into {@link #bytes}, ignoring characters outside the alphabet. */
+		private void decodeBase64(String value, int start, int end) {
+			ensureBytes(byteCount + (end - start) * 3 / 4 + 3);
+			int bits = 0;
+			int count = 0;
+			for(int i=start; i<end; ++i) {
+				char c = value.charAt(i);
+				if(c == '=') break;
+				int v = c < 128 ? BASE64[c] : -1;
+				if(v == -1) continue;
+				bits = (bits << 6) | v;
+				if(++count == 4) {
+					bytes[byteCount++] = (byte) (bits >> 16);
+					bytes[byteCount++] = (byte) (bits >> 8);
+					bytes[byteCount++] = (byte) bits;
+					bits = 0;
+					count = 0;
+				}
+			}
+			if(count == 3) {
+				bytes[byteCount++] = (byte) (bits >> 10);
+				bytes[byteCount++] = (byte) (bits >> 2);
+			} else if(count == 2) {
+				bytes[byteCount++] = (byte) (bits >> 4);
+			}
+		}
+
+		/** Decodes well formed Q encoded text into {@link #bytes}. */
+		private void decodeQ(String value, int start, int end) {
+			ensureBytes(byteCount + end - start);
+			for(int i=start; i<end; ++i) {
+				char c = value.charAt(i);
+				if(c == '_') {
+					bytes[byteCount++] = ' ';
+				} else if(c == '=') {
+					bytes[byteCount++] = (byte) ((hex(value.charAt(i + 1)) << 4) | hex(value.charAt(i + 2)));
+					i += 2;
+				} else {
+					bytes[byteCount++] = (byte) c;
+				}
+			}
+		}
+
+		/** Decodes the bytes in {@link #bytes} and adds them to the text. */
+		private void flush(Charset charset) {
+			decodeBytes(charset);
+			text.append(chars.array(), 0, chars.position());
+			byteCount = 0;
+		}
+
+		/** @return the text read from a stream */
+		String decode(InputStream in, Charset charset) throws IOException {
+			byteCount = 0;
+			int read;
+			while((read = in.read(bytes, byteCount, bytes.length - byteCount)) != -1) {
+				byteCount += read;
+				if(byteCount == bytes.length) ensureBytes(bytes.length * 2);
+			}
+			decodeBytes(charset);
+			String result = new String(chars.array(), 0, chars.position());
+			byteCount = 0;
+			if(chars.capacity() > MAX_RETAINED_BUFFER) chars = CharBuffer.allocate(INITIAL_BUFFER);
+			return result;
+		}
+
+		/** Decodes the bytes in {@link #bytes} into {@link #chars}, replacing any which are malformed. */
+		private void decodeBytes(Charset charset) {
+			CharsetDecoder decoder = decoders.get(charset);
+			if(decoder == null) {
+				decoder = charset.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				decoders.put(charset, decoder);
+			}
+			int needed = (int) Math.ceil(byteCount * (double) decoder.maxCharsPerByte()) + 1;
+			if(chars.capacity() < needed) chars = CharBuffer.allocate(needed);
+			chars.clear();
+			decoder.reset();
+			ByteBuffer in = ByteBuffer.wrap(bytes, 0, byteCount);
+			CoderResult result = decoder.decode(in, chars, true);
+			if(result.isUnderflow()) result = decoder.flush(chars);
+			if(result.isError()) {
+				// Not possible with REPLACE, but report it rather than return partial text
+				try {
+					result.throwException();
+				} catch(CharacterCodingException ex) {
+					throw new IllegalStateException("Unable to decode text as " + charset, ex);
+				}
+			}
+		}
+
+		/** Borrows {@link #bytes} from the shared pool. */
+		void acquireBytes() {
+			bytes = EmailBufferPool.getShared().acquire(INITIAL_BUFFER);
+			byteCount = 0;
+		}
+
+		/** Returns {@link #bytes} to the shared pool. */
+		void releaseBytes() {
+			EmailBufferPool.getShared().release(bytes);
+			bytes = null;
+		}
+
+		/** Makes {@link #bytes} at least a given size, keeping its contents. */
+		private void ensureBytes(int size) {
+			if(bytes.length < size) {
+				bytes = EmailBufferPool.getShared().grow(bytes, byteCount, Math.max(size, bytes.length * 2));
+			}
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.bounce;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.ParseException;
+
+import net.frontlinesms.email.receive.EmailEnvelope;
+
+/**
+ * Recognises bounces and delivery status notifications, and reads the delivery reports in them.
+ * <p>
+ * Bounces are recognised from their headers alone: standard notifications (RFC 3464) are
+ * <code>multipart/report</code> with a <code>report-type</code> of <code>delivery-status</code>, and the
+ * common non-standard bounces either carry an <code>X-Failed-Recipients</code> header, as Exim and Gmail
+ * add, or come from a mailer daemon with a bounce subject.
+ * <p>
+ * Reading a standard notification only downloads its MIME structure and its machine-readable parts: the
+ * <code>message/delivery-status</code> part, which is read with a streaming parser, and the headers of
+ * the returned message, which are read from the start of its part until the first blank line.  On
+ * IMAP each part is fetched separately, so the human-readable text and the body of the returned message
+ * are never downloaded, unless the server cannot describe the structure of the report, in which case
+ * the whole report is downloaded.  For non-standard bounces, only the first 16KB of
+ * their text are read, looking for the <code>&lt;address&gt;:</code> lines Postfix and qmail write.
+ */
+public class EmailBounceClassifier {
+//> STATIC CONSTANTS
+	/** Maximum number of bytes of a non-standard bounce's text which are read */
+	static final int MAX_SCAN_BYTES = 16 * 1024;
+	/** Longest line read from a part; longer lines are cut short */
+	private static final int MAX_LINE_LENGTH = 4096;
+	/** Status reported for a failed recipient when a bounce does not give one */
+	private static final String DEFAULT_FAILED_STATUS = "5.0.0";
+	/** Subjects of non-standard bounces, in lower case */
+	private static final String[] BOUNCE_SUBJECTS = {
+		"undelivered mail returned to sender",
+		"delivery status notification (failure)",
+		"mail delivery failed",
+		"undeliverable",
+		"delivery failure",
+		"returned mail",
+		"failure notice",
+	};
+	/** Local parts of the addresses bounces are sent from, in lower case */
+	private static final String[] BOUNCE_SENDERS = { "mailer-daemon", "postmaster" };
+	/** Enhanced status code, as in RFC 3463 */
+	private static final Pattern STATUS_CODE = Pattern.compile("\\b([245]\\.\\d{1,3}\\.\\d{1,3})\\b");
+	/** Line starting with a recipient address in angle brackets, as Postfix and qmail write them */
+	private static final Pattern RECIPIENT_LINE = Pattern.compile("^<([^<>@\\s]+@[^<>\\s]+)>:");
+
+//> CONSTRUCTORS
+	/** Static utility class */
+	private EmailBounceClassifier() {}
+
+//> STATIC METHODS
+	/**
+	 * Checks whether a message is a bounce or delivery status notification, using only its headers.
+	 * @param message the message
+	 * @return <code>true</code> if the message is a bounce
+	 * @throws MessagingException if the headers could not be read
+	 */
+	public static boolean isBounce(Message message) throws MessagingException {
+		EmailEnvelope envelope = EmailEnvelope.get(message);
+		if(isDeliveryReport(envelope)) return true;
+		if(envelope.getHeader("X-Failed-Recipients") != null) return true;
+		String subject = envelope.getSubject();
+		if(subject == null || !isFromMailerDaemon(envelope)) return false;
+		subject = subject.toLowerCase(Locale.ENGLISH);
+		for(String bounceSubject : BOUNCE_SUBJECTS) {
+			if(subject.indexOf(bounceSubject) != -1) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the delivery reports in a bounce.
+	 * @param message a message for which {@link #isBounce(Message)} returned <code>true</code>
+	 * @return a report for each recipient found in the bounce, or an empty list if none was found
+	 * @throws MessagingException if the message could not be read
+	 * @throws IOException if the message could not be read
+	 */
+	public static List<EmailDeliveryEvent> classify(Message message) throws MessagingException, IOException {
+		if(isDeliveryReport(EmailEnvelope.get(message))) {
+			Object content;
+			try {
+				content = message.getContent();
+			} catch(MessagingException ex) {
+				// Some servers cannot describe the structure of a report, so read it from a copy of the whole message
+				if(!(message instanceof MimeMessage)) throw ex;
+				content = new MimeMessage((MimeMessage) message).getContent();
+			}
+			if(content instanceof Multipart) return classifyReport((Multipart) content);
+		}
+		return classifyNonStandard(message);
+	}
+
+//> STATIC HELPER METHODS
+	/** @return <code>true</code> if the message is a standard delivery status notification */
+	private static boolean isDeliveryReport(EmailEnvelope envelope) {
+		String contentType = envelope.getHeader("Content-Type");
+		if(contentType == null) return false;
+		try {
+			ContentType type = new ContentType(contentType);
+			String reportType = type.getParameter("report-type");
+			return type.match("multipart/report") && reportType != null && reportType.equalsIgnoreCase("delivery-status");
+		} catch(ParseException ex) {
+			return false;
+		}
+	}
+
+	/** @return <code>true</code> if the message's sender or return path is a mailer daemon or null */
+	private static boolean isFromMailerDaemon(EmailEnvelope envelope) {
+		String returnPath = envelope.getHeader("Return-Path");
+		if(returnPath != null && returnPath.trim().equals("<>")) return true;
+		for(EmailEnvelope.Mailbox address : envelope.getFrom()) {
+			String email = address.getAddress();
+			String localPart = email.substring(0, Math.max(email.indexOf('@'), 0)).toLowerCase(Locale.ENGLISH);
+			for(String sender : BOUNCE_SENDERS) {
+				if(localPart.equals(sender)) return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return the reports in the parts of a <code>multipart/report</code> */
+	private static List<EmailDeliveryEvent> classifyReport(Multipart report) throws MessagingException, IOException {
+		String originalMessageId = null;
+		List<String[]> recipients = null;
+		for(int i=0; i<report.getCount(); ++i) {
+			Part part = report.getBodyPart(i);
+			if(recipients == null && (part.isMimeType("message/delivery-status") || part.isMimeType("message/global-delivery-status"))) {
+				recipients = parseDeliveryStatus(new BufferedInputStream(part.getInputStream()));
+			} else if(originalMessageId == null && (part.isMimeType("text/rfc822-headers") || part.isMimeType("message/rfc822"))) {
+				originalMessageId = readMessageId(new BufferedInputStream(part.getInputStream()));
+			}
+		}
+		if(recipients == null) return Collections.emptyList();
+		List<EmailDeliveryEvent> events = new ArrayList<EmailDeliveryEvent>(recipients.size());
+		for(String[] fields : recipients) {
+			EmailDeliveryEvent event = createEvent(fields, originalMessageId);
+			if(event != null) events.add(event);
+		}
+		return events;
+	}
+
+	/**
+	 * Parses the per-recipient fields of a <code>message/delivery-status</code> body: Final-Recipient,
+	 * Action, Status and Diagnostic-Code.
+	 * @return for each recipient, the values of those fields, in that order, any of which may be <code>null</code>
+	 */
+	static List<String[]> parseDeliveryStatus(InputStream in) throws IOException {
+		List<String[]> recipients = new ArrayList<String[]>();
+		try {
+			// The first group of fields describes the whole message; each later group, one recipient
+			boolean perMessage = true;
+			boolean inGroup = false;
+			String[] fields = null;
+			String field = null;
+			StringBuilder value = new StringBuilder();
+			while(true) {
+				String line = readLine(in);
+				if(line != null && line.length() > 0 && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+					// Folded continuation of the previous field
+					if(field != null) value.append(' ').append(line.trim());
+					continue;
+				}
+				if(field != null && fields != null) setField(fields, field, value.toString().trim());
+				field = null;
+				if(line == null || line.trim().length() == 0) {
+					if(fields != null) recipients.add(fields);
+					fields = null;
+					if(inGroup) perMessage = false;
+					inGroup = false;
+					if(line == null) break;
+					continue;
+				}
+				inGroup = true;
+				if(!perMessage && fields == null) fields = new String[4];
+				int colon = line.indexOf(':');
+				if(colon == -1) continue;
+				field = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+				value.setLength(0);
+				value.append(line.substring(colon + 1));
+			}
+		} finally {
+			in.close();
+		}
+		return recipients;
+	}
+
+	/** Sets one of the per-recipient fields parsed by {@link #parseDeliveryStatus(InputStream)}. */
+	private static void setField(String[] fields, String field, String value) {
+		if(field.equals("final-recipient")) fields[0] = value;
+		else if(field.equals("action")) fields[1] = value;
+		else if(field.equals("status")) fields[2] = value;
+		else if(field.equals("diagnostic-code")) fields[3] = value;
+	}
+
+	/** @return an event for one recipient's fields, or <code>null</code> if they have no recipient or action */
+	private static EmailDeliveryEvent createEvent(String[] fields, String originalMessageId) {
+		if(fields[0] == null || fields[1] == null) return null;
+		EmailDeliveryEvent.Action action;
+		try {
+			action = EmailDeliveryEvent.Action.valueOf(fields[1].trim().toUpperCase(Locale.ENGLISH));
+		} catch(IllegalArgumentException ex) {
+			return null;
+		}
+		String status = null;
+		if(fields[2] != null) {
+			Matcher matcher = STATUS_CODE.matcher(fields[2]);
+			if(matcher.find()) status = matcher.group(1);
+		}
+		if(status == null) status = action == EmailDeliveryEvent.Action.FAILED ? DEFAULT_FAILED_STATUS : "2.0.0";
+		return new EmailDeliveryEvent(stripType(fields[0]), action, status, fields[3] == null ? null : stripType(fields[3]), originalMessageId);
+	}
+
+	/** @return the reports for a non-standard bounce */
+	private static List<EmailDeliveryEvent> classifyNonStandard(Message message) throws MessagingException, IOException {
+		List<String> recipients = new ArrayList<String>();
+		String[] failedRecipients = message.getHeader("X-Failed-Recipients");
+		if(failedRecipients != null) {
+			for(String header : failedRecipients) {
+				for(String recipient : header.split(",")) {
+					if(recipient.trim().length() > 0) recipients.add(recipient.trim());
+				}
+			}
+		}
+		String status = null;
+		Part text = findText(message);
+		if(text != null) {
+			InputStream in = new BufferedInputStream(text.getInputStream());
+			try {
+				int read = 0;
+				String line;
+				while(read < MAX_SCAN_BYTES && (line = readLine(in)) != null) {
+					read += line.length() + 1;
+					Matcher recipient = RECIPIENT_LINE.matcher(line);
+					if(failedRecipients == null && recipient.find() && !recipients.contains(recipient.group(1))) recipients.add(recipient.group(1));
+					if(status == null) {
+						Matcher code = STATUS_CODE.matcher(line);
+						if(code.find() && code.group(1).charAt(0) != '2') status = code.group(1);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		if(status == null) status = DEFAULT_FAILED_STATUS;
+		EmailDeliveryEvent.Action action = status.charAt(0) == '4' ? EmailDeliveryEvent.Action.DELAYED : EmailDeliveryEvent.Action.FAILED;
+		List<EmailDeliveryEvent> events = new ArrayList<EmailDeliveryEvent>(recipients.size());
+		for(String recipient : recipients) events.add(new EmailDeliveryEvent(recipient, action, status, null, null));
+		return events;
+	}
+
+	/** @return the first <code>text/plain</code> part of a message, or <code>null</code> if it has none */
+	private static Part findText(Part part) throws MessagingException, IOException {
+		if(part.isMimeType("text/plain")) return part;
+		if(part.isMimeType("multipart/*")) {
+			Multipart multipart = (Multipart) part.getContent();
+			for(int i=0; i<multipart.getCount(); ++i) {
+				Part text = findText(multipart.getBodyPart(i));
+				if(text != null) return text;
+			}
+		}
+		return null;
+	}
+
+	/** @return the Message-ID from a block of headers, reading no further than the first blank line */
+	private static String readMessageId(InputStream in) throws IOException {
+		try {
+			String line;
+			boolean inMessageId = false;
+			StringBuilder messageId = new StringBuilder();
+			while((line = readLine(in)) != null && line.length() > 0) {
+				if(line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+					if(inMessageId) messageId.append(line.trim());
+				} else if(inMessageId) {
+					break;
+				} else if(line.regionMatches(true, 0, "Message-ID:", 0, 11)) {
+					inMessageId = true;
+					messageId.append(line.substring(11).trim());
+				}
+			}
+			return messageId.length() == 0 ? null : messageId.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return the value of a typed field such as <code>rfc822; user@example.com</code>, without its type */
+	private static String stripType(String value) {
+		int semicolon = value.indexOf(';');
+		return (semicolon == -1 ? value : value.substring(semicolon + 1)).trim();
+	}
+
+	/**
+	 * Reads a line of ASCII text, without its line ending.
+	 * @return the line, or <code>null</code> at the end of the stream
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int b;
+		while((b = in.read()) != -1 && b != '\n') {
+			if(line.length() < MAX_LINE_LENGTH) line.append((char) b);
+		}
+		if(b == -1 && line.length() == 0) return null;
+		int end = line.length();
+		if(end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+		return line.toString();
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.bounce;
+
+import java.util.List;
+
+import javax.mail.Message;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailHeaderFilter;
+import net.frontlinesms.email.receive.EmailReceiver;
+
+/**
+ * {@link EmailHeaderFilter} which takes bounces out of an {@link EmailReceiver}'s normal processing.
+ * <p>
+ * The receiver fetches the headers of all new messages in one batch and passes each to this filter.
+ * Bounces are recognised from those headers by {@link EmailBounceClassifier}, and their delivery reports
+ * are read and passed to an {@link EmailDeliveryListener}; the bounce is then deleted, or rejected if
+ * {@link #setBounceDecision(EmailHeaderFilter.Decision)} says so, and never reaches the receiver's
+ * processor.  Other messages are passed on to another header filter, if there is one, or accepted.
+ * <p>
+ * A bounce which cannot be read, which contains no reports, or whose reports the listener throws an
+ * exception for, is accepted, so that the processor still sees it.
+ */
+public class EmailBounceFilter implements EmailHeaderFilter {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailBounceFilter.class);
+
+//> INSTANCE PROPERTIES
+	/** Listener the delivery reports are passed to */
+	private final EmailDeliveryListener listener;
+	/** Filter for messages which are not bounces, or <code>null</code> to accept them all */
+	private final EmailHeaderFilter next;
+	/** What is done with a bounce once its reports have been passed to {@link #listener} */
+	private Decision bounceDecision = Decision.DELETE;
+
+//> CONSTRUCTORS
+	/**
+	 * @param listener listener the delivery reports are passed to
+	 * @param next filter for messages which are not bounces, or <code>null</code> to accept them all
+	 */
+	public EmailBounceFilter(EmailDeliveryListener listener, EmailHeaderFilter next) {
+		if(listener == null) throw new IllegalArgumentException("Listener must not be null.");
+		this.listener = listener;
+		this.next = next;
+	}
+
+//> ACCESSORS
+	/** @return what is done with a bounce once its reports have been passed on */
+	public Decision getBounceDecision() {
+		return bounceDecision;
+	}
+
+	/**
+	 * @param bounceDecision what is done with a bounce once its reports have been passed on: {@link Decision#DELETE},
+	 * or {@link Decision#REJECT} to keep it on the server
+	 */
+	public void setBounceDecision(Decision bounceDecision) {
+		if(bounceDecision == Decision.ACCEPT) throw new IllegalArgumentException("Bounces cannot be accepted once they have been reported.");
+		this.bounceDecision = bounceDecision;
+	}
+
+//> HEADER FILTER METHODS
+	public Decision filter(Message message) {
+		try {
+			if(EmailBounceClassifier.isBounce(message)) {
+				List<EmailDeliveryEvent> events = EmailBounceClassifier.classify(message);
+				if(events.isEmpty()) {
+					LOG.info("Bounce contains no delivery reports; passing it on for processing.");
+					return Decision.ACCEPT;
+				}
+				LOG.debug("Bounce reports: " + events);
+				listener.deliveryReported(events);
+				return bounceDecision;
+			}
+		} catch(Exception ex) {
+			LOG.warn("Unable to read bounce; passing it on for processing.", ex);
+			return Decision.ACCEPT;
+		}
+		return next == null ? Decision.ACCEPT : next.filter(message);
+	}
+}
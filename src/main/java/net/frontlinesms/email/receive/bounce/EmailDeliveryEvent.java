@@ -0,0 +1,89 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.bounce;
+
+/**
+ * Report of what happened to an email sent to one recipient, read from a delivery status notification
+ * or bounce.
+ */
+public class EmailDeliveryEvent {
+//> INNER CLASSES
+	/** What the reporting server did with the email, as in the Action field of RFC 3464 */
+	public enum Action {
+		/** The email could not be delivered, and the server has given up */
+		FAILED,
+		/** The email has not been delivered yet, but the server is still trying */
+		DELAYED,
+		/** The email was delivered */
+		DELIVERED,
+		/** The email was passed to a server which does not report delivery */
+		RELAYED,
+		/** The email was delivered to the recipient, and passed on to further addresses */
+		EXPANDED;
+	}
+
+//> INSTANCE PROPERTIES
+	/** Address the email was sent to */
+	private final String recipient;
+	/** What the reporting server did with the email */
+	private final Action action;
+	/** Enhanced status code, such as <code>5.1.1</code> */
+	private final String status;
+	/** Reply from the remote server, or <code>null</code> if none was reported */
+	private final String diagnostic;
+	/** Message-ID of the email, or <code>null</code> if the report did not include it */
+	private final String originalMessageId;
+
+//> CONSTRUCTORS
+	/**
+	 * @param recipient address the email was sent to
+	 * @param action what the reporting server did with the email
+	 * @param status enhanced status code, such as <code>5.1.1</code>
+	 * @param diagnostic reply from the remote server, or <code>null</code> if none was reported
+	 * @param originalMessageId Message-ID of the email, or <code>null</code> if the report did not include it
+	 */
+	public EmailDeliveryEvent(String recipient, Action action, String status, String diagnostic, String originalMessageId) {
+		this.recipient = recipient;
+		this.action = action;
+		this.status = status;
+		this.diagnostic = diagnostic;
+		this.originalMessageId = originalMessageId;
+	}
+
+//> ACCESSORS
+	/** @return address the email was sent to */
+	public String getRecipient() {
+		return recipient;
+	}
+
+	/** @return what the reporting server did with the email */
+	public Action getAction() {
+		return action;
+	}
+
+	/** @return enhanced status code, such as <code>5.1.1</code> */
+	public String getStatus() {
+		return status;
+	}
+
+	/** @return reply from the remote server, or <code>null</code> if none was reported */
+	public String getDiagnostic() {
+		return diagnostic;
+	}
+
+	/** @return Message-ID of the email, or <code>null</code> if the report did not include it */
+	public String getOriginalMessageId() {
+		return originalMessageId;
+	}
+
+	/** @return <code>true</code> if the email failed permanently, so the recipient should not be sent to again */
+	public boolean isPermanentFailure() {
+		return action == Action.FAILED && status.startsWith("5.");
+	}
+
+	@Override
+	public String toString() {
+		return recipient + " " + action + " " + status + (diagnostic == null ? "" : " (" + diagnostic + ")");
+	}
+}
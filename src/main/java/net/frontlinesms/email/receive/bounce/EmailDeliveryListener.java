@@ -0,0 +1,19 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.bounce;
+
+import java.util.List;
+
+/**
+ * Receives the delivery reports read from bounces by an {@link EmailBounceFilter}.
+ */
+public interface EmailDeliveryListener {
+	/**
+	 * Called once for each bounce, with a report for each recipient in it.  The bounce is removed from
+	 * the server after this returns; if this throws a {@link RuntimeException}, the bounce is passed to
+	 * the receiver's processor instead.
+	 * @param events the reports, at least one
+	 */
+	public void deliveryReported(List<EmailDeliveryEvent> events);
+}
@@ -0,0 +1,66 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.cluster;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring which assigns accounts to nodes.  Each node is placed on the ring at a number of
+ * points, and an account belongs to the node at the first point after the account's own hash.  When a
+ * node joins or leaves, only the accounts between its points and the points before them move, so most
+ * accounts keep their node.
+ */
+public class EmailHashRing {
+//> STATIC CONSTANTS
+	/** Default value for {@link #pointsPerNode} */
+	public static final int DEFAULT_POINTS_PER_NODE = 100;
+
+//> INSTANCE PROPERTIES
+	/** Nodes, by their points on the ring */
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+//> CONSTRUCTORS
+	/**
+	 * @param nodes the nodes on the ring
+	 * @param pointsPerNode number of points each node is placed at; more points spread accounts more evenly
+	 */
+	public EmailHashRing(Collection<String> nodes, int pointsPerNode) {
+		for(String node : nodes) {
+			for(int i=0; i<pointsPerNode; ++i) {
+				ring.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+//> ACCESSORS
+	/**
+	 * @param account key identifying the account
+	 * @return the node the account belongs to, or <code>null</code> if there are no nodes
+	 */
+	public String getNode(String account) {
+		if(ring.isEmpty()) return null;
+		SortedMap<Long, String> after = ring.tailMap(hash(account));
+		return after.isEmpty() ? ring.get(ring.firstKey()) : after.get(after.firstKey());
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the first 8 bytes of the MD5 digest of some text */
+	private static long hash(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+			long hash = 0;
+			for(int i=0; i<8; ++i) hash = hash << 8 | (digest[i] & 0xFF);
+			return hash;
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("MD5 is not supported.", ex);
+		} catch(UnsupportedEncodingException ex) {
+			throw new IllegalStateException("UTF-8 is not supported.", ex);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.cluster;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailClock;
+import net.frontlinesms.email.receive.EmailPollGuard;
+import net.frontlinesms.email.receive.EmailReceiveException;
+import net.frontlinesms.email.receive.EmailReceiver;
+
+/**
+ * Shares the polling of accounts between the nodes of a cluster, so that each account is polled by
+ * exactly one node at a time.
+ * <p>
+ * Every node constructs an {@link EmailReceiver} for every account, and polls it through
+ * {@link #receive(EmailReceiver)}.  Accounts are assigned to the live nodes by an {@link EmailHashRing},
+ * and a node only polls an account while it holds the account's lease in the shared
+ * {@link EmailLeaseStore}.  When a node joins, the accounts it takes over are released by their old
+ * nodes at their next poll; when a node leaves, or stops renewing its registration, its accounts move
+ * to the remaining nodes once its leases are released or expire.  Since a lease can only be held by one
+ * node, nodes which briefly disagree about the ring never poll the same account at once.
+ * <p>
+ * While an account is polled, its lease is renewed before each message once a third of the lease
+ * duration has passed, through the receiver's {@link EmailPollGuard}.  If the lease cannot be renewed,
+ * because the store failed or the account has moved, the poll ends before the next message.  Downloading
+ * and processing a single message must therefore take less than the lease duration, so it should be
+ * longer than the receiver's connect and read timeouts allow.
+ * <p>
+ * Expiry times are written by the node which takes a lease or registers, and compared against the wall
+ * clock of whichever node reads them.  The clocks of all the nodes must agree to well within a third of
+ * the lease duration, for example by running NTP; a node whose clock runs ahead of the others sees their
+ * leases expire early, and may poll an account which is still being polled.
+ */
+public class EmailLeaseCoordinator {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailLeaseCoordinator.class);
+	/** Default value for {@link #leaseDuration}: 5 minutes */
+	public static final long DEFAULT_LEASE_DURATION = 5 * 60 * 1000;
+
+//> INSTANCE PROPERTIES
+	/** Store shared by the cluster */
+	private final EmailLeaseStore store;
+	/** Name of this node, unique within the cluster */
+	private final String node;
+	/** Time in milliseconds that leases and this node's registration last for */
+	private final long leaseDuration;
+	/** Number of points each node is placed at on the hash ring */
+	private int pointsPerNode = EmailHashRing.DEFAULT_POINTS_PER_NODE;
+	/** <code>true</code> between {@link #join()} and {@link #leave()} */
+	private boolean joined;
+	/** Time at which this node's registration is next renewed */
+	private long nextRegistration;
+	/** Accounts this node holds the lease on */
+	private final Set<String> held = Collections.synchronizedSet(new HashSet<String>());
+	/** Clock used for registration renewal and lease expiry */
+	private EmailClock clock = EmailClock.SYSTEM;
+
+//> CONSTRUCTORS
+	/**
+	 * @param store store shared by the cluster
+	 * @param node name of this node, unique within the cluster
+	 * @param leaseDuration time in milliseconds that leases and this node's registration last for
+	 */
+	public EmailLeaseCoordinator(EmailLeaseStore store, String node, long leaseDuration) {
+		if(node.indexOf(' ') != -1) throw new IllegalArgumentException("Node name must not contain spaces: " + node);
+		this.store = store;
+		this.node = node;
+		this.leaseDuration = leaseDuration;
+	}
+
+//> ACCESSORS
+	/** @return name of this node */
+	public String getNode() {
+		return node;
+	}
+
+	/** @return number of points each node is placed at on the hash ring */
+	public int getPointsPerNode() {
+		return pointsPerNode;
+	}
+
+	/**
+	 * Sets the number of points each node is placed at on the hash ring.  All nodes must use the same value.
+	 * @param pointsPerNode number of points each node is placed at on the hash ring
+	 */
+	public void setPointsPerNode(int pointsPerNode) {
+		this.pointsPerNode = pointsPerNode;
+	}
+
+	/**
+	 * @param account key identifying the account, from {@link #getAccountKey(EmailReceiver)}
+	 * @return the node the account is assigned to, or <code>null</code> if no nodes are alive
+	 * @throws IOException if the store could not be read
+	 */
+	public String getAssignedNode(String account) throws IOException {
+		return new EmailHashRing(store.getLiveNodes(), pointsPerNode).getNode(account);
+	}
+
+	/** @return the accounts this node holds the lease on */
+	public Set<String> getHeldAccounts() {
+		synchronized(held) {
+			return new HashSet<String>(held);
+		}
+	}
+
+	/**
+	 * Sets the clock used for registration renewal and lease expiry.
+	 * @param clock the clock, normally {@link EmailClock#SYSTEM}
+	 */
+	public void setClock(EmailClock clock) {
+		this.clock = clock;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Registers this node, so that accounts start being assigned to it.
+	 * @throws IOException if the store could not be written
+	 */
+	public synchronized void join() throws IOException {
+		store.register(node, leaseDuration);
+		joined = true;
+		nextRegistration = clock.currentTimeMillis() + leaseDuration / 3;
+	}
+
+	/**
+	 * Removes this node from the cluster and releases its leases, so that other nodes take over its
+	 * accounts without waiting for the leases to expire.  Polls must have stopped first.
+	 * @throws IOException if the store could not be written
+	 */
+	public synchronized void leave() throws IOException {
+		joined = false;
+		store.unregister(node);
+		held.clear();
+	}
+
+	/**
+	 * Takes or renews the lease on an account if it is assigned to this node, and releases the lease if
+	 * the account has moved to another node.
+	 * @param account key identifying the account, from {@link #getAccountKey(EmailReceiver)}
+	 * @return <code>true</code> if this node holds the lease, and may poll the account; always
+	 * <code>false</code> if this node has not joined the cluster
+	 * @throws IOException if the store could not be read or written
+	 */
+	public boolean acquire(String account) throws IOException {
+		if(!renewRegistration()) return false;
+		if(!node.equals(getAssignedNode(account))) {
+			if(held.remove(account)) {
+				LOG.info("Account " + account + " has moved to another node; releasing its lease.");
+				store.release(account, node);
+			}
+			return false;
+		}
+		if(store.acquire(account, node, leaseDuration)) {
+			if(held.add(account)) LOG.info("Took the lease on account " + account);
+			return true;
+		}
+		// The account's previous node still holds the lease
+		return false;
+	}
+
+	/**
+	 * Polls an account if this node holds, or can take, its lease.
+	 * @param receiver receiver for the account
+	 * @return <code>true</code> if the account was polled, or <code>false</code> if it belongs to another node
+	 * @throws EmailReceiveException if the account could not be read
+	 * @throws IOException if the store could not be read or written
+	 */
+	public boolean receive(EmailReceiver receiver) throws EmailReceiveException, IOException {
+		String account = getAccountKey(receiver);
+		if(!acquire(account)) return false;
+		EmailPollGuard previousGuard = receiver.getPollGuard();
+		LeaseRenewal renewal = new LeaseRenewal(account, previousGuard);
+		receiver.setPollGuard(renewal);
+		try {
+			receiver.receive();
+		} finally {
+			receiver.setPollGuard(previousGuard);
+		}
+		if(clock.currentTimeMillis() > renewal.expiry) {
+			LOG.warn("Poll of " + account + " outlasted its lease, so another node may have polled it at the same time.  The lease duration should be increased.");
+		}
+		return true;
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Renews this node's registration if a third of its duration has passed.
+	 * @return <code>false</code> if this node has not joined the cluster
+	 */
+	private synchronized boolean renewRegistration() throws IOException {
+		if(!joined) return false;
+		if(clock.currentTimeMillis() >= nextRegistration) join();
+		return true;
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * @param receiver receiver for an account
+	 * @return key identifying the account, which is the same on every node
+	 */
+	public static String getAccountKey(EmailReceiver receiver) {
+		return receiver.getProtocol() + "://" + receiver.getHostUsername() + "@" + receiver.getHostAddress() + ":" + receiver.getHostPort();
+	}
+
+//> INNER CLASSES
+	/**
+	 * Renews the lease on an account while it is polled, and ends the poll if the lease is lost.
+	 */
+	private class LeaseRenewal implements EmailPollGuard {
+		/** Key identifying the account being polled */
+		private final String account;
+		/** Guard which was set on the receiver before the poll, or <code>null</code> if none was */
+		private final EmailPollGuard previous;
+		/** Time at which the lease expires unless it is renewed */
+		private long expiry;
+		/** Time at which the lease is next renewed */
+		private long nextRenewal;
+		/** <code>true</code> once the lease could not be renewed */
+		private boolean lost;
+
+		/**
+		 * @param account key identifying the account, whose lease has just been taken or renewed
+		 * @param previous guard which was set on the receiver before the poll, or <code>null</code> if none was
+		 */
+		LeaseRenewal(String account, EmailPollGuard previous) {
+			this.account = account;
+			this.previous = previous;
+			renewed();
+		}
+
+		public boolean isPollAllowed() {
+			if(lost) return false;
+			if(clock.currentTimeMillis() >= nextRenewal) {
+				try {
+					if(acquire(account)) {
+						renewed();
+					} else {
+						LOG.warn("Lost the lease on account " + account + " during a poll; ending the poll.");
+						lost = true;
+					}
+				} catch(IOException ex) {
+					LOG.warn("Unable to renew the lease on account " + account + "; ending the poll.", ex);
+					lost = true;
+				}
+				if(lost) return false;
+			}
+			return previous == null || previous.isPollAllowed();
+		}
+
+		/** Records that the lease has just been taken or renewed. */
+		private void renewed() {
+			long now = clock.currentTimeMillis();
+			expiry = now + leaseDuration;
+			nextRenewal = now + leaseDuration / 3;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.cluster;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Store, shared by all the nodes of a cluster, of which nodes are alive and which node holds the lease
+ * on each account.  Every operation must be atomic across the whole cluster.
+ * <p>
+ * Leases and node registrations expire at a time given by the clock of the node which wrote them, so the
+ * clocks of the nodes must agree to well within a lease's duration.
+ */
+public interface EmailLeaseStore {
+	/**
+	 * Takes or renews a lease.  The lease is granted if it is free, has expired, or is already held by
+	 * the same owner.
+	 * @param name name of the lease
+	 * @param owner node asking for the lease
+	 * @param duration time in milliseconds until the lease expires
+	 * @return <code>true</code> if the owner now holds the lease
+	 * @throws IOException if the store could not be read or written
+	 */
+	public boolean acquire(String name, String owner, long duration) throws IOException;
+
+	/**
+	 * Gives up a lease, if it is held by the owner.
+	 * @param name name of the lease
+	 * @param owner node giving up the lease
+	 * @throws IOException if the store could not be read or written
+	 */
+	public void release(String name, String owner) throws IOException;
+
+	/**
+	 * Records that a node is alive, until its registration expires or it is removed.
+	 * @param node the node
+	 * @param duration time in milliseconds until the registration expires
+	 * @throws IOException if the store could not be read or written
+	 */
+	public void register(String node, long duration) throws IOException;
+
+	/**
+	 * Removes a node's registration, and releases all the leases it holds.
+	 * @param node the node
+	 * @throws IOException if the store could not be read or written
+	 */
+	public void unregister(String node) throws IOException;
+
+	/**
+	 * @return the nodes whose registrations have not expired
+	 * @throws IOException if the store could not be read
+	 */
+	public Set<String> getLiveNodes() throws IOException;
+}
@@ -0,0 +1,234 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.frontlinesms.email.EmailClock;
+
+/**
+ * {@link EmailLeaseStore} kept in a directory on a filesystem shared by all the nodes.  All leases and
+ * node registrations are kept in one properties file, which is read and rewritten while holding an
+ * exclusive lock on a separate lock file.  The shared filesystem must support file locks across
+ * machines, as NFSv4 does.
+ * <p>
+ * Within one JVM, stores using the same directory also share an in-process lock, since file locks are
+ * held on behalf of the whole JVM.
+ */
+public class FileEmailLeaseStore implements EmailLeaseStore {
+//> STATIC CONSTANTS
+	/** Name of the file holding the leases */
+	private static final String LEASE_FILE = "leases.properties";
+	/** Name of the file which is locked while the leases are read or written */
+	private static final String LOCK_FILE = "leases.lock";
+	/** Prefix of the properties holding leases, which are "&lt;owner&gt; &lt;expiry time&gt;" */
+	private static final String PREFIX_LEASE = "lease.";
+	/** Prefix of the properties holding node registrations, which are the expiry time */
+	private static final String PREFIX_NODE = "node.";
+	/** In-process locks, by canonical directory path */
+	private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+//> INSTANCE PROPERTIES
+	/** Directory holding the lease and lock files */
+	private final File directory;
+	/** In-process lock shared by all stores using {@link #directory} */
+	private final Object lock;
+	/** Clock used for lease and registration expiry */
+	private EmailClock clock = EmailClock.SYSTEM;
+
+//> CONSTRUCTORS
+	/**
+	 * @param directory directory on a shared filesystem, which is created if it does not exist
+	 * @throws IOException if the directory could not be created
+	 */
+	public FileEmailLeaseStore(File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create lease directory: " + directory);
+		this.directory = directory;
+		Object newLock = new Object();
+		Object existing = LOCKS.putIfAbsent(directory.getCanonicalPath(), newLock);
+		this.lock = existing != null ? existing : newLock;
+	}
+
+//> ACCESSORS
+	/**
+	 * Sets the clock used for lease and registration expiry.
+	 * @param clock the clock, normally {@link EmailClock#SYSTEM}
+	 */
+	public void setClock(EmailClock clock) {
+		this.clock = clock;
+	}
+
+//> LEASE STORE METHODS
+	public boolean acquire(String name, String owner, long duration) throws IOException {
+		synchronized(lock) {
+			FileLock fileLock = lock();
+			try {
+				Properties leases = load();
+				long now = clock.currentTimeMillis();
+				String lease = leases.getProperty(PREFIX_LEASE + name);
+				if(lease != null && getExpiry(lease) > now && !getOwner(lease).equals(owner)) return false;
+				leases.setProperty(PREFIX_LEASE + name, owner + " " + (now + duration));
+				save(leases);
+				return true;
+			} finally {
+				unlock(fileLock);
+			}
+		}
+	}
+
+	public void release(String name, String owner) throws IOException {
+		synchronized(lock) {
+			FileLock fileLock = lock();
+			try {
+				Properties leases = load();
+				String lease = leases.getProperty(PREFIX_LEASE + name);
+				if(lease != null && getOwner(lease).equals(owner)) {
+					leases.remove(PREFIX_LEASE + name);
+					save(leases);
+				}
+			} finally {
+				unlock(fileLock);
+			}
+		}
+	}
+
+	public void register(String node, long duration) throws IOException {
+		synchronized(lock) {
+			FileLock fileLock = lock();
+			try {
+				Properties leases = load();
+				leases.setProperty(PREFIX_NODE + node, Long.toString(clock.currentTimeMillis() + duration));
+				save(leases);
+			} finally {
+				unlock(fileLock);
+			}
+		}
+	}
+
+	public void unregister(String node) throws IOException {
+		synchronized(lock) {
+			FileLock fileLock = lock();
+			try {
+				Properties leases = load();
+				leases.remove(PREFIX_NODE + node);
+				for(Iterator<Map.Entry<Object, Object>> entries = leases.entrySet().iterator(); entries.hasNext(); ) {
+					Map.Entry<Object, Object> entry = entries.next();
+					if(((String) entry.getKey()).startsWith(PREFIX_LEASE) && getOwner((String) entry.getValue()).equals(node)) {
+						entries.remove();
+					}
+				}
+				save(leases);
+			} finally {
+				unlock(fileLock);
+			}
+		}
+	}
+
+	public Set<String> getLiveNodes() throws IOException {
+		Properties leases;
+		synchronized(lock) {
+			FileLock fileLock = lock();
+			try {
+				leases = load();
+			} finally {
+				unlock(fileLock);
+			}
+		}
+		long now = clock.currentTimeMillis();
+		Set<String> nodes = new HashSet<String>();
+		for(Object property : leases.keySet()) {
+			String key = (String) property;
+			if(key.startsWith(PREFIX_NODE) && Long.parseLong(leases.getProperty(key)) > now) {
+				nodes.add(key.substring(PREFIX_NODE.length()));
+			}
+		}
+		return nodes;
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Takes the exclusive lock on the lock file, waiting for other nodes to release it. */
+	private FileLock lock() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+		try {
+			return file.getChannel().lock();
+		} catch(IOException ex) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	/** Releases the lock on the lock file, and closes it. */
+	private static void unlock(FileLock fileLock) throws IOException {
+		try {
+			fileLock.release();
+		} finally {
+			fileLock.channel().close();
+		}
+	}
+
+	/** @return the leases and node registrations, or none if the lease file does not exist yet */
+	private Properties load() throws IOException {
+		Properties leases = new Properties();
+		File file = new File(directory, LEASE_FILE);
+		// The node writing the leases stopped after deleting the old file but before renaming the new one
+		if(!file.exists()) file = new File(directory, LEASE_FILE + ".tmp");
+		if(file.exists()) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				leases.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return leases;
+	}
+
+	/**
+	 * Writes the leases and node registrations to a temporary file, and renames it over the lease file.
+	 * Where the platform cannot rename over an existing file, the lease file is deleted first, and
+	 * {@link #load()} reads the temporary file if the node stops between the two steps.
+	 */
+	private void save(Properties leases) throws IOException {
+		File file = new File(directory, LEASE_FILE);
+		File temp = new File(directory, LEASE_FILE + ".tmp");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+		try {
+			leases.store(out, null);
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(file)) {
+			if(file.exists() && !file.delete() || !temp.renameTo(file)) {
+				throw new IOException("Unable to update leases: " + file);
+			}
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the owner of a lease property */
+	private static String getOwner(String lease) {
+		return lease.substring(0, lease.lastIndexOf(' '));
+	}
+
+	/** @return the expiry time of a lease property */
+	private static long getExpiry(String lease) {
+		return Long.parseLong(lease.substring(lease.lastIndexOf(' ') + 1));
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.deadletter;
+
+import java.util.Date;
+
+/**
+ * An email which could not be processed, held in an {@link EmailDeadLetterStore}.
+ * Instances are snapshots; the store creates a new instance each time an entry changes.
+ */
+public class EmailDeadLetter {
+//> STATIC CONSTANTS
+	/** Status of a dead letter */
+	public enum Status {
+		/** The email will be retried when {@link EmailDeadLetter#getNextAttempt()} is reached */
+		RETRYING,
+		/** The email has failed too many times, and will not be retried unless it is replayed */
+		DEAD;
+	}
+
+//> INSTANCE PROPERTIES
+	/** Unique ID of this entry in its store */
+	private final String id;
+	/** Status of this entry */
+	private final Status status;
+	/** Number of times processing this email has failed */
+	private final int attempts;
+	/** Time processing this email first failed */
+	private final long firstFailed;
+	/** Time this email will next be retried */
+	private final long nextAttempt;
+	/** Description of the last failure */
+	private final String lastError;
+	/** Date the email was received, as passed to the processor, or <code>null</code> if unknown */
+	private final Date receivedDate;
+	/** Subject of the email, for display */
+	private final String subject;
+	/** Sender of the email, for display */
+	private final String sender;
+
+//> CONSTRUCTORS
+	EmailDeadLetter(String id, Status status, int attempts, long firstFailed, long nextAttempt, String lastError, Date receivedDate, String subject, String sender) {
+		this.id = id;
+		this.status = status;
+		this.attempts = attempts;
+		this.firstFailed = firstFailed;
+		this.nextAttempt = nextAttempt;
+		this.lastError = lastError;
+		this.receivedDate = receivedDate;
+		this.subject = subject;
+		this.sender = sender;
+	}
+
+//> ACCESSORS
+	/** @return unique ID of this entry in its store */
+	public String getId() {
+		return id;
+	}
+
+	/** @return status of this entry */
+	public Status getStatus() {
+		return status;
+	}
+
+	/** @return number of times processing this email has failed */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/** @return time processing this email first failed */
+	public long getFirstFailed() {
+		return firstFailed;
+	}
+
+	/** @return time this email will next be retried, if its status is {@link Status#RETRYING} */
+	public long getNextAttempt() {
+		return nextAttempt;
+	}
+
+	/** @return description of the last failure */
+	public String getLastError() {
+		return lastError;
+	}
+
+	/** @return date the email was received, as passed to the processor, or <code>null</code> if unknown */
+	public Date getReceivedDate() {
+		return receivedDate;
+	}
+
+	/** @return subject of the email */
+	public String getSubject() {
+		return subject;
+	}
+
+	/** @return sender of the email */
+	public String getSender() {
+		return sender;
+	}
+
+	@Override
+	public String toString() {
+		return id + " [" + status + ", " + attempts + " attempt(s)] " + sender + ": " + subject;
+	}
+}
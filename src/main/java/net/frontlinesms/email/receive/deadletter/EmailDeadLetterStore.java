@@ -0,0 +1,415 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.deadletter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.receive.EmailReceiveUtils;
+
+/**
+ * Local store of emails which could not be processed.  Each email is kept as two files in the
+ * store's directory: the raw message, and a properties file describing its failures.  Emails are
+ * retried with exponential backoff by an {@link EmailRetryScheduler} until they succeed or reach
+ * the maximum number of attempts, after which they are kept as {@link EmailDeadLetter.Status#DEAD}
+ * until they are replayed or purged.
+ */
+public class EmailDeadLetterStore {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailDeadLetterStore.class);
+	/** Extension of raw message files */
+	private static final String MESSAGE_EXTENSION = ".eml";
+	/** Extension of metadata files */
+	private static final String METADATA_EXTENSION = ".properties";
+	/** Extension added to a metadata file's name while it is being written */
+	private static final String TEMP_EXTENSION = ".tmp";
+	/** Session used when parsing stored messages */
+	private static final Session SESSION = Session.getInstance(System.getProperties());
+	/** Longest error description kept for an entry */
+	private static final int MAX_ERROR_LENGTH = 4096;
+	/** Orders entries by the time they first failed */
+	private static final Comparator<EmailDeadLetter> BY_FIRST_FAILED = new Comparator<EmailDeadLetter>() {
+		public int compare(EmailDeadLetter one, EmailDeadLetter two) {
+			return one.getFirstFailed() < two.getFirstFailed() ? -1 : one.getFirstFailed() == two.getFirstFailed() ? 0 : 1;
+		}
+	};
+
+	/** Metadata property: status */
+	private static final String PROPERTY_STATUS = "status";
+	/** Metadata property: number of attempts */
+	private static final String PROPERTY_ATTEMPTS = "attempts";
+	/** Metadata property: time of the first failure */
+	private static final String PROPERTY_FIRST_FAILED = "firstFailed";
+	/** Metadata property: time of the next attempt */
+	private static final String PROPERTY_NEXT_ATTEMPT = "nextAttempt";
+	/** Metadata property: description of the last failure */
+	private static final String PROPERTY_LAST_ERROR = "lastError";
+	/** Metadata property: date the email was received */
+	private static final String PROPERTY_RECEIVED_DATE = "receivedDate";
+	/** Metadata property: subject */
+	private static final String PROPERTY_SUBJECT = "subject";
+	/** Metadata property: sender */
+	private static final String PROPERTY_SENDER = "sender";
+
+//> INSTANCE PROPERTIES
+	/** Directory the store's files are kept in */
+	private final File directory;
+	/** All entries in the store, by ID */
+	private final Map<String, EmailDeadLetter> entries = new HashMap<String, EmailDeadLetter>();
+	/** Maximum number of times an email is attempted before it is marked as dead */
+	private int maxAttempts = 5;
+	/** Delay, in milliseconds, before the first retry */
+	private long initialRetryDelay = 60 * 1000;
+	/** Longest delay, in milliseconds, between retries */
+	private long maxRetryDelay = 6 * 60 * 60 * 1000;
+	/** Factor the retry delay is multiplied by after each failure */
+	private double backoffMultiplier = 2;
+	/** Counter used to make entry IDs unique */
+	private int idCounter;
+
+//> CONSTRUCTORS
+	/**
+	 * Opens a store, creating its directory if necessary.
+	 * @param directory directory the store's files are kept in
+	 * @throws IOException if the directory could not be created or read
+	 */
+	public EmailDeadLetterStore(File directory) throws IOException {
+		this.directory = directory;
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create dead letter directory: " + directory);
+		load();
+	}
+
+//> ACCESSORS
+	/** @param maxAttempts maximum number of times an email is attempted, including the original failure, before it is marked as dead */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/** @param initialRetryDelay delay, in milliseconds, before the first retry */
+	public void setInitialRetryDelay(long initialRetryDelay) {
+		this.initialRetryDelay = initialRetryDelay;
+	}
+
+	/** @param maxRetryDelay longest delay, in milliseconds, between retries */
+	public void setMaxRetryDelay(long maxRetryDelay) {
+		this.maxRetryDelay = maxRetryDelay;
+	}
+
+	/** @param backoffMultiplier factor the retry delay is multiplied by after each failure */
+	public void setBackoffMultiplier(double backoffMultiplier) {
+		this.backoffMultiplier = backoffMultiplier;
+	}
+
+	/** @return the number of entries in the store */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Adds an email which failed to be processed for the first time.
+	 * @param message the email
+	 * @param receivedDate date the email was received, as passed to the processor
+	 * @param error the reason processing failed
+	 * @return the new entry
+	 * @throws IOException if the email could not be written to the store
+	 * @throws MessagingException if the email could not be read
+	 */
+	public EmailDeadLetter add(Message message, Date receivedDate, Throwable error) throws IOException, MessagingException {
+		String id;
+		synchronized(this) {
+			id = Long.toString(System.currentTimeMillis(), 36) + "-" + Integer.toString(idCounter++, 36);
+		}
+		
+		// Write the message outside the lock, as this may download it from the server
+		File messageFile = getMessageFile(id);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(messageFile));
+		boolean written = false;
+		try {
+			message.writeTo(out);
+			written = true;
+		} finally {
+			out.close();
+			if(!written) messageFile.delete();
+		}
+		
+		long now = System.currentTimeMillis();
+		EmailDeadLetter entry = createEntry(id, 1, now, now, describe(error), receivedDate,
+				message.getSubject(), EmailReceiveUtils.getSender(message));
+		synchronized(this) {
+			save(entry);
+			entries.put(id, entry);
+		}
+		LOG.info("Email added to dead letter store: " + entry);
+		return entry;
+	}
+
+	/**
+	 * @return all entries in the store, oldest first
+	 */
+	public synchronized List<EmailDeadLetter> list() {
+		List<EmailDeadLetter> list = new ArrayList<EmailDeadLetter>(entries.values());
+		Collections.sort(list, BY_FIRST_FAILED);
+		return list;
+	}
+
+	/**
+	 * @param status the status to list
+	 * @return all entries in the store with the given status, oldest first
+	 */
+	public synchronized List<EmailDeadLetter> list(EmailDeadLetter.Status status) {
+		List<EmailDeadLetter> list = new ArrayList<EmailDeadLetter>();
+		for(EmailDeadLetter entry : entries.values()) {
+			if(entry.getStatus() == status) list.add(entry);
+		}
+		Collections.sort(list, BY_FIRST_FAILED);
+		return list;
+	}
+
+	/**
+	 * @param now the current time
+	 * @return entries which are due to be retried, oldest first
+	 */
+	public synchronized List<EmailDeadLetter> getDue(long now) {
+		List<EmailDeadLetter> due = new ArrayList<EmailDeadLetter>();
+		for(EmailDeadLetter entry : entries.values()) {
+			if(entry.getStatus() == EmailDeadLetter.Status.RETRYING && entry.getNextAttempt() <= now) due.add(entry);
+		}
+		Collections.sort(due, BY_FIRST_FAILED);
+		return due;
+	}
+
+	/**
+	 * Reads an email from the store.
+	 * @param entry the entry
+	 * @return the email
+	 * @throws IOException if the email could not be read
+	 * @throws MessagingException if the email could not be parsed
+	 */
+	public MimeMessage getMessage(EmailDeadLetter entry) throws IOException, MessagingException {
+		RandomAccessFile file = new RandomAccessFile(getMessageFile(entry.getId()), "r");
+		try {
+			byte[] content = new byte[(int) file.length()];
+			file.readFully(content);
+			return new MimeMessage(SESSION, new SharedByteArrayInputStream(content));
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Records that an email was processed successfully, removing it from the store.
+	 * @param entry the entry
+	 */
+	public synchronized void succeeded(EmailDeadLetter entry) {
+		remove(entry.getId());
+	}
+
+	/**
+	 * Records that an email failed to be processed again.  It is scheduled to be retried after
+	 * a backoff delay, or marked as dead if it has reached the maximum number of attempts.
+	 * @param entry the entry
+	 * @param error the reason processing failed
+	 * @return the updated entry
+	 * @throws IOException if the store could not be updated
+	 */
+	public synchronized EmailDeadLetter failed(EmailDeadLetter entry, Throwable error) throws IOException {
+		EmailDeadLetter current = entries.get(entry.getId());
+		if(current == null) return entry;
+		EmailDeadLetter updated = createEntry(current.getId(), current.getAttempts() + 1, current.getFirstFailed(), System.currentTimeMillis(),
+				describe(error), current.getReceivedDate(), current.getSubject(), current.getSender());
+		save(updated);
+		entries.put(updated.getId(), updated);
+		if(updated.getStatus() == EmailDeadLetter.Status.DEAD) {
+			LOG.warn("Email failed " + updated.getAttempts() + " times and will not be retried: " + updated);
+		}
+		return updated;
+	}
+
+	/**
+	 * Schedules entries to be retried immediately, resetting their number of attempts.
+	 * @param entries the entries
+	 * @throws IOException if the store could not be updated
+	 */
+	public synchronized void requeue(Collection<EmailDeadLetter> entries) throws IOException {
+		long now = System.currentTimeMillis();
+		for(EmailDeadLetter entry : entries) {
+			EmailDeadLetter current = this.entries.get(entry.getId());
+			if(current == null) continue;
+			EmailDeadLetter updated = new EmailDeadLetter(current.getId(), EmailDeadLetter.Status.RETRYING, 0, current.getFirstFailed(), now,
+					current.getLastError(), current.getReceivedDate(), current.getSubject(), current.getSender());
+			save(updated);
+			this.entries.put(updated.getId(), updated);
+		}
+	}
+
+	/**
+	 * Removes entries from the store without processing them.
+	 * @param entries the entries
+	 * @return the number of entries removed
+	 */
+	public synchronized int purge(Collection<EmailDeadLetter> entries) {
+		int purged = 0;
+		for(EmailDeadLetter entry : entries) {
+			if(remove(entry.getId())) ++purged;
+		}
+		LOG.info(purged + " email(s) purged from dead letter store.");
+		return purged;
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Creates an entry after a failure, working out its status and when it should next be retried.
+	 * @param attempts number of failures so far, including this one
+	 * @param now the time of this failure
+	 */
+	private EmailDeadLetter createEntry(String id, int attempts, long firstFailed, long now, String lastError, Date receivedDate, String subject, String sender) {
+		EmailDeadLetter.Status status = attempts >= maxAttempts ? EmailDeadLetter.Status.DEAD : EmailDeadLetter.Status.RETRYING;
+		double delay = initialRetryDelay * Math.pow(backoffMultiplier, attempts - 1);
+		long nextAttempt = now + (long) Math.min(delay, maxRetryDelay);
+		return new EmailDeadLetter(id, status, attempts, firstFailed, nextAttempt, lastError, receivedDate, subject, sender);
+	}
+
+	/** Loads all entries from the store's directory. */
+	private void load() throws IOException {
+		File[] files = directory.listFiles();
+		if(files == null) throw new IOException("Unable to list dead letter directory: " + directory);
+		for(File file : files) {
+			String name = file.getName();
+			if(name.endsWith(METADATA_EXTENSION + TEMP_EXTENSION)) {
+				// An update was written but did not replace the metadata file.  If the old file is
+				// still there it is kept; otherwise the process stopped between deleting it and
+				// renaming the update, and the update is complete, so it is used.
+				File metadataFile = new File(directory, name.substring(0, name.length() - TEMP_EXTENSION.length()));
+				if(metadataFile.exists()) {
+					file.delete();
+					continue;
+				}
+				if(!file.renameTo(metadataFile)) {
+					LOG.warn("Unable to recover dead letter metadata: " + file);
+					continue;
+				}
+				LOG.info("Recovered dead letter metadata from " + file);
+				file = metadataFile;
+				name = file.getName();
+			}
+			if(!name.endsWith(METADATA_EXTENSION)) continue;
+			String id = name.substring(0, name.length() - METADATA_EXTENSION.length());
+			if(entries.containsKey(id)) continue;
+			if(!getMessageFile(id).isFile()) {
+				LOG.warn("Ignoring dead letter with no message file: " + file);
+				continue;
+			}
+			
+			Properties properties = new Properties();
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				properties.load(in);
+				String receivedDate = properties.getProperty(PROPERTY_RECEIVED_DATE);
+				EmailDeadLetter entry = new EmailDeadLetter(id,
+						EmailDeadLetter.Status.valueOf(properties.getProperty(PROPERTY_STATUS)),
+						Integer.parseInt(properties.getProperty(PROPERTY_ATTEMPTS)),
+						Long.parseLong(properties.getProperty(PROPERTY_FIRST_FAILED)),
+						Long.parseLong(properties.getProperty(PROPERTY_NEXT_ATTEMPT)),
+						properties.getProperty(PROPERTY_LAST_ERROR, ""),
+						receivedDate == null ? null : new Date(Long.parseLong(receivedDate)),
+						properties.getProperty(PROPERTY_SUBJECT, ""),
+						properties.getProperty(PROPERTY_SENDER, ""));
+				entries.put(id, entry);
+			} catch(RuntimeException ex) {
+				LOG.warn("Ignoring unreadable dead letter: " + file, ex);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes an entry's metadata file.  The metadata is written to a temporary file which is then
+	 * renamed over the old one.  Where the platform cannot rename over an existing file, the old file
+	 * is deleted first, and {@link #load()} recovers from the temporary file if the process stops
+	 * between the two steps.
+	 */
+	private void save(EmailDeadLetter entry) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(PROPERTY_STATUS, entry.getStatus().name());
+		properties.setProperty(PROPERTY_ATTEMPTS, Integer.toString(entry.getAttempts()));
+		properties.setProperty(PROPERTY_FIRST_FAILED, Long.toString(entry.getFirstFailed()));
+		properties.setProperty(PROPERTY_NEXT_ATTEMPT, Long.toString(entry.getNextAttempt()));
+		properties.setProperty(PROPERTY_LAST_ERROR, entry.getLastError());
+		if(entry.getReceivedDate() != null) properties.setProperty(PROPERTY_RECEIVED_DATE, Long.toString(entry.getReceivedDate().getTime()));
+		if(entry.getSubject() != null) properties.setProperty(PROPERTY_SUBJECT, entry.getSubject());
+		if(entry.getSender() != null) properties.setProperty(PROPERTY_SENDER, entry.getSender());
+		
+		File metadataFile = getMetadataFile(entry.getId());
+		File temp = new File(directory, entry.getId() + METADATA_EXTENSION + TEMP_EXTENSION);
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(metadataFile)) {
+			if(metadataFile.exists() && !metadataFile.delete() || !temp.renameTo(metadataFile)) {
+				throw new IOException("Unable to update dead letter: " + metadataFile);
+			}
+		}
+	}
+
+	/** Removes an entry and its files. */
+	private boolean remove(String id) {
+		if(entries.remove(id) == null) return false;
+		// The metadata file is deleted first, so a partly-removed entry is ignored when loading
+		if(!getMetadataFile(id).delete() || !getMessageFile(id).delete()) {
+			LOG.warn("Unable to delete dead letter files for " + id);
+		}
+		return true;
+	}
+
+	/** @return the file an entry's raw message is kept in */
+	private File getMessageFile(String id) {
+		return new File(directory, id + MESSAGE_EXTENSION);
+	}
+
+	/** @return the file an entry's metadata is kept in */
+	private File getMetadataFile(String id) {
+		return new File(directory, id + METADATA_EXTENSION);
+	}
+
+//> STATIC HELPER METHODS
+	/** @return a description of an error, including its stack trace */
+	private static String describe(Throwable error) {
+		StringWriter description = new StringWriter();
+		error.printStackTrace(new PrintWriter(description));
+		String text = description.toString();
+		return text.length() > MAX_ERROR_LENGTH ? text.substring(0, MAX_ERROR_LENGTH) : text;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.deadletter;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+
+/**
+ * Retries emails in an {@link EmailDeadLetterStore} on a background thread, so that failed emails
+ * do not hold up the receiving of others.  Each email is retried when its backoff delay has passed;
+ * a failure of one email does not stop the others being retried.
+ */
+public class EmailRetryScheduler {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailRetryScheduler.class);
+
+//> INSTANCE PROPERTIES
+	/** Store of emails to retry */
+	private final EmailDeadLetterStore store;
+	/** Object that will process retried emails. */
+	private final EmailReceiveProcessor processor;
+	/** Interval, in milliseconds, at which the store is checked for emails due to be retried */
+	private long checkInterval = 30 * 1000;
+	/** Executor running retries, or <code>null</code> if the scheduler is not running */
+	private ScheduledExecutorService executor;
+
+//> CONSTRUCTORS
+	/**
+	 * @param store store of emails to retry
+	 * @param processor object that will process retried emails
+	 */
+	public EmailRetryScheduler(EmailDeadLetterStore store, EmailReceiveProcessor processor) {
+		if(processor == null) throw new IllegalArgumentException("Processor must not be null.");
+		this.store = store;
+		this.processor = processor;
+	}
+
+//> ACCESSORS
+	/** @param checkInterval interval, in milliseconds, at which the store is checked for emails due to be retried; takes effect on the next {@link #start()} */
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+//> INSTANCE METHODS
+	/** Starts retrying emails in the background. */
+	public synchronized void start() {
+		if(executor != null) return;
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					retryDue();
+				} catch(Throwable t) {
+					LOG.warn("Error retrying failed emails.", t);
+				}
+			}
+		}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops retrying emails, waiting for any retry in progress to finish. */
+	public void stop() {
+		ScheduledExecutorService executor;
+		synchronized(this) {
+			executor = this.executor;
+			this.executor = null;
+		}
+		if(executor == null) return;
+		executor.shutdown();
+		try {
+			executor.awaitTermination(60, TimeUnit.SECONDS);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Retries all emails which are due.
+	 * @return the number of emails processed successfully
+	 */
+	public int retryDue() {
+		return retry(store.getDue(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Retries emails immediately, whatever their status.  This can be used to replay emails marked
+	 * as dead, for example once the fault which stopped them being processed has been fixed.
+	 * @param entries the entries to retry
+	 * @return the number of emails processed successfully
+	 */
+	public int replay(Collection<EmailDeadLetter> entries) {
+		return retry(entries);
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Retries each of the supplied entries once. */
+	private int retry(Collection<EmailDeadLetter> entries) {
+		int succeeded = 0;
+		for(EmailDeadLetter entry : entries) {
+			Message message;
+			try {
+				message = store.getMessage(entry);
+			} catch(IOException ex) {
+				LOG.warn("Unable to read dead letter " + entry.getId(), ex);
+				continue;
+			} catch(MessagingException ex) {
+				LOG.warn("Unable to parse dead letter " + entry.getId(), ex);
+				continue;
+			}
+			
+			try {
+				processor.processMessage(message, entry.getReceivedDate());
+			} catch(RuntimeException ex) {
+				try {
+					store.failed(entry, ex);
+				} catch(IOException ioEx) {
+					LOG.warn("Unable to update dead letter " + entry.getId(), ioEx);
+				}
+				continue;
+			}
+			store.succeeded(entry);
+			++succeeded;
+		}
+		if(!entries.isEmpty()) LOG.info(succeeded + " of " + entries.size() + " failed email(s) retried successfully.");
+		return succeeded;
+	}
+}
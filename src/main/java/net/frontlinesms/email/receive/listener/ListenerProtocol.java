@@ -0,0 +1,11 @@
+package net.frontlinesms.email.receive.listener;
+
+/**
+ * Protocol spoken by an {@link SmtpListener}.
+ */
+public enum ListenerProtocol {
+	/** SMTP, as used for relaying between mail servers.  One reply is given for each message. */
+	SMTP,
+	/** LMTP (RFC 2033), as used for final delivery from an MTA.  One reply is given for each recipient of each message. */
+	LMTP;
+}
@@ -0,0 +1,134 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.listener;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the raw bytes of a message while it is being received.  Messages are buffered in memory
+ * up to a threshold, then moved to a temporary file.  Bytes written beyond the maximum message
+ * size are discarded, and the spool is marked as overflowed.
+ */
+class MessageSpool extends OutputStream {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(MessageSpool.class);
+
+//> INSTANCE PROPERTIES
+	/** Number of bytes to hold in memory before moving to a temporary file */
+	private final int memoryThreshold;
+	/** Maximum number of bytes to accept, or zero for no limit */
+	private final long maxSize;
+	/** Directory to create temporary files in, or <code>null</code> for the system default */
+	private final File spoolDirectory;
+	/** In-memory buffer, or <code>null</code> once the message has moved to a file */
+	private ByteArrayOutputStream memory;
+	/** Temporary file holding the message, or <code>null</code> if it is still in memory */
+	private File file;
+	/** Stream writing to {@link #file} */
+	private OutputStream fileOut;
+	/** Number of bytes written, including any discarded */
+	private long size;
+	/** Stream the message is being read from, once it has been opened */
+	private InputStream openStream;
+
+//> CONSTRUCTORS
+	/**
+	 * @param memoryThreshold number of bytes to hold in memory before moving to a temporary file
+	 * @param maxSize maximum number of bytes to accept, or zero for no limit
+	 * @param spoolDirectory directory to create temporary files in, or <code>null</code> for the system default
+	 */
+	MessageSpool(int memoryThreshold, long maxSize, File spoolDirectory) {
+		this.memoryThreshold = memoryThreshold;
+		this.maxSize = maxSize;
+		this.spoolDirectory = spoolDirectory;
+		this.memory = new ByteArrayOutputStream(Math.min(memoryThreshold, 8192));
+	}
+
+//> ACCESSORS
+	/** @return the number of bytes written to this spool, including any discarded */
+	long getSize() {
+		return size;
+	}
+
+	/** @return <code>true</code> if more than the maximum message size was written to this spool */
+	boolean isOverflowed() {
+		return maxSize > 0 && size > maxSize;
+	}
+
+//> OUTPUTSTREAM METHODS
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		size += len;
+		if(isOverflowed()) return;
+		
+		if(memory != null && memory.size() + len > memoryThreshold) {
+			file = File.createTempFile("frontlinesms-smtp-", ".eml", spoolDirectory);
+			fileOut = new BufferedOutputStream(new FileOutputStream(file));
+			memory.writeTo(fileOut);
+			memory = null;
+		}
+		if(memory != null) {
+			memory.write(b, off, len);
+		} else {
+			fileOut.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(fileOut != null) {
+			fileOut.close();
+			fileOut = null;
+		}
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Opens the spooled message for reading.  The returned stream is a
+	 * {@link javax.mail.internet.SharedInputStream}, so messages parsed from it refer to the
+	 * spooled content rather than copying it.
+	 * @return a stream over the complete message
+	 * @throws IOException if the spooled message could not be read
+	 */
+	InputStream open() throws IOException {
+		close();
+		if(memory != null) {
+			openStream = new SharedByteArrayInputStream(memory.toByteArray());
+		} else {
+			openStream = new SharedFileInputStream(file);
+		}
+		return openStream;
+	}
+
+	/** Releases the spooled message, deleting its temporary file if there is one. */
+	void dispose() {
+		try {
+			close();
+			if(openStream != null) openStream.close();
+		} catch(IOException ex) {
+			LOG.debug("Error closing spooled message.", ex);
+		}
+		if(file != null && !file.delete()) {
+			LOG.warn("Unable to delete spooled message: " + file);
+		}
+		memory = null;
+	}
+}
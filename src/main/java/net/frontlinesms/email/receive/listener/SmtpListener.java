@@ -0,0 +1,437 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.listener;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailFilter;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+
+/**
+ * Embedded SMTP or LMTP server which receives messages pushed by a mail server, and passes
+ * them to an {@link EmailReceiveProcessor}.  This allows messages to be received as soon as
+ * they are delivered, rather than polling a POP or IMAP account with an
+ * {@link net.frontlinesms.email.receive.EmailReceiver}.
+ * 
+ * All connections are handled by a single thread using non-blocking I/O.  Message content is
+ * streamed into memory up to {@link #setMemoryThreshold(int)} bytes and then to a temporary
+ * file, and is parsed and processed on a small pool of worker threads.  The server does no
+ * authentication, so it should only be bound to an address reachable by trusted mail servers.
+ */
+public class SmtpListener {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(SmtpListener.class);
+	/** Default port for the listener to bind to */
+	public static final int DEFAULT_PORT = 2525;
+	/** Interval, in milliseconds, at which idle connections are checked for */
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+
+//> INSTANCE PROPERTIES
+	/** Processor that received messages are passed to */
+	private final EmailReceiveProcessor processor;
+	/** Session used when parsing received messages */
+	private final Session session = Session.getInstance(System.getProperties());
+	/** Filter that received messages must pass before they are processed, or <code>null</code> to accept all messages */
+	private EmailFilter emailFilter;
+	/** Protocol spoken by this listener */
+	private ListenerProtocol protocol = ListenerProtocol.SMTP;
+	/** Address to bind to */
+	private InetSocketAddress bindAddress = new InetSocketAddress(DEFAULT_PORT);
+	/** Name this server announces itself as */
+	private String serverName;
+	/** Maximum number of simultaneous connections */
+	private int maxConnections = 50;
+	/** Maximum message size, in bytes, or zero for no limit */
+	private long maxMessageSize = 10 * 1024 * 1024;
+	/** Maximum number of bytes of a single message to hold in memory before spooling it to disk */
+	private int memoryThreshold = 256 * 1024;
+	/** Directory that large messages are spooled to, or <code>null</code> for the system temporary directory */
+	private File spoolDirectory;
+	/** Number of threads processing received messages */
+	private int workerThreads = 2;
+	/** Maximum number of received messages waiting to be processed */
+	private int maxQueuedMessages = 100;
+	/** Time, in milliseconds, after which an idle connection is closed */
+	private long idleTimeout = 5 * 60 * 1000;
+	/** Maximum number of recipients accepted for a single message */
+	private int maxRecipients = 100;
+
+	/** Selector for all of this listener's channels, or <code>null</code> if the listener is not running */
+	private Selector selector;
+	/** Channel accepting new connections */
+	private ServerSocketChannel serverChannel;
+	/** Thread running {@link #selector} */
+	private Thread selectorThread;
+	/** Threads processing received messages */
+	private ThreadPoolExecutor workers;
+	/** Open sessions */
+	private final Set<SmtpListenerSession> sessions = new HashSet<SmtpListenerSession>();
+	/** Tasks to run on the selector thread, queued by worker threads */
+	private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Set to <code>false</code> to stop the selector thread */
+	private volatile boolean running;
+
+//> CONSTRUCTORS
+	/**
+	 * @param processor processor that received messages are passed to
+	 */
+	public SmtpListener(EmailReceiveProcessor processor) {
+		this.processor = processor;
+	}
+
+//> ACCESSORS
+	/** @param emailFilter filter that received messages must pass before they are processed, or <code>null</code> to accept all messages */
+	public void setEmailFilter(EmailFilter emailFilter) {
+		this.emailFilter = emailFilter;
+	}
+
+	/** @return filter that received messages must pass before they are processed, or <code>null</code> if all messages are accepted */
+	public EmailFilter getEmailFilter() {
+		return emailFilter;
+	}
+
+	/** @param protocol protocol to speak; must be set before {@link #start()} */
+	public void setProtocol(ListenerProtocol protocol) {
+		this.protocol = protocol;
+	}
+
+	/** @return protocol spoken by this listener */
+	public ListenerProtocol getProtocol() {
+		return protocol;
+	}
+
+	/** @param bindAddress address to bind to; must be set before {@link #start()} */
+	public void setBindAddress(InetSocketAddress bindAddress) {
+		this.bindAddress = bindAddress;
+	}
+
+	/** @param serverName name this server announces itself as, or <code>null</code> to use the local host name */
+	public void setServerName(String serverName) {
+		this.serverName = serverName;
+	}
+
+	/** @return name this server announces itself as */
+	public String getServerName() {
+		if(serverName == null) {
+			try {
+				serverName = InetAddress.getLocalHost().getHostName();
+			} catch(IOException ex) {
+				serverName = "localhost";
+			}
+		}
+		return serverName;
+	}
+
+	/** @param maxConnections maximum number of simultaneous connections; further connections are refused with a 421 reply */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/** @param maxMessageSize maximum message size, in bytes, or zero for no limit */
+	public void setMaxMessageSize(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/** @return maximum message size, in bytes, or zero for no limit */
+	public long getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/** @param memoryThreshold maximum number of bytes of a single message to hold in memory before spooling it to disk */
+	public void setMemoryThreshold(int memoryThreshold) {
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	/** @param spoolDirectory directory that large messages are spooled to, or <code>null</code> for the system temporary directory */
+	public void setSpoolDirectory(File spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/** @param workerThreads number of threads processing received messages; must be set before {@link #start()} */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/** @param maxQueuedMessages maximum number of received messages waiting to be processed; further messages are refused with a 451 reply */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		this.maxQueuedMessages = maxQueuedMessages;
+	}
+
+	/** @param idleTimeout time, in milliseconds, after which an idle connection is closed */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/** @param maxRecipients maximum number of recipients accepted for a single message */
+	public void setMaxRecipients(int maxRecipients) {
+		this.maxRecipients = maxRecipients;
+	}
+
+	/** @return maximum number of recipients accepted for a single message */
+	public int getMaxRecipients() {
+		return maxRecipients;
+	}
+
+	/** @return the port this listener is bound to, or <code>-1</code> if it is not running */
+	public int getLocalPort() {
+		ServerSocketChannel serverChannel = this.serverChannel;
+		return serverChannel == null ? -1 : serverChannel.socket().getLocalPort();
+	}
+
+	/** @return the number of open connections */
+	public int getConnectionCount() {
+		synchronized(sessions) {
+			return sessions.size();
+		}
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Binds to the configured address and starts accepting connections.
+	 * @throws IOException if the listener could not be bound
+	 */
+	public synchronized void start() throws IOException {
+		if(running) return;
+		
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(bindAddress);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		
+		workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maxQueuedMessages));
+		
+		running = true;
+		selectorThread = new Thread("SmtpListener:" + getLocalPort()) {
+			@Override
+			public void run() {
+				runSelector();
+			}
+		};
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		LOG.info(protocol + " listener started on " + serverChannel.socket().getLocalSocketAddress());
+	}
+
+	/**
+	 * Stops accepting connections, closes all open connections and waits for messages
+	 * already being processed to finish.
+	 */
+	public synchronized void stop() {
+		if(!running) return;
+		
+		running = false;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdown();
+		try {
+			workers.awaitTermination(30, TimeUnit.SECONDS);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		serverChannel = null;
+		LOG.info(protocol + " listener stopped.");
+	}
+
+//> SESSION CALLBACKS
+	/** @return a new spool for the content of a received message */
+	MessageSpool createSpool() {
+		return new MessageSpool(memoryThreshold, maxMessageSize, spoolDirectory);
+	}
+
+	/**
+	 * Queues a received message to be processed by a worker thread.  Once it has been processed,
+	 * {@link SmtpListenerSession#delivered(boolean)} is called on the selector thread.
+	 * @param session the session the message was received on
+	 * @param spool the received message
+	 * @return <code>true</code> if the message was queued, or <code>false</code> if too many messages are already waiting
+	 */
+	boolean deliver(final SmtpListenerSession session, final MessageSpool spool) {
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					final boolean success = process(spool);
+					selectorTasks.add(new Runnable() {
+						public void run() {
+							session.delivered(success);
+						}
+					});
+					selector.wakeup();
+				}
+			});
+			return true;
+		} catch(RejectedExecutionException ex) {
+			LOG.warn("Message processing queue is full; deferring received message.");
+			return false;
+		}
+	}
+
+	/** @param session a session whose connection has been closed */
+	void sessionClosed(SmtpListenerSession session) {
+		synchronized(sessions) {
+			sessions.remove(session);
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Parses a received message and passes it to the processor, if it is accepted by the filter.
+	 * Called on a worker thread.
+	 * @param spool the received message
+	 * @return <code>true</code> if the message was processed or filtered out, or <code>false</code> if there was an error
+	 */
+	private boolean process(MessageSpool spool) {
+		try {
+			MimeMessage message = new MimeMessage(session, spool.open());
+			if(emailFilter == null || emailFilter.accept(message)) {
+				processor.processMessage(message, new Date());
+			} else {
+				LOG.info("Received message rejected by filter.");
+			}
+			return true;
+		} catch(Throwable t) {
+			LOG.warn("Error processing received message.", t);
+			return false;
+		} finally {
+			spool.dispose();
+		}
+	}
+
+	/** Main loop of the selector thread. */
+	private void runSelector() {
+		long lastIdleCheck = System.currentTimeMillis();
+		while(running) {
+			try {
+				selector.select(IDLE_CHECK_INTERVAL);
+				
+				Runnable task;
+				while((task = selectorTasks.poll()) != null) {
+					try {
+						task.run();
+					} catch(RuntimeException ex) {
+						LOG.warn("Error completing delivery in " + protocol + " listener.", ex);
+					}
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handleKey(key);
+				}
+				
+				long now = System.currentTimeMillis();
+				if(now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+					closeIdleSessions(now);
+					lastIdleCheck = now;
+				}
+			} catch(IOException ex) {
+				LOG.warn("Error in " + protocol + " listener.", ex);
+			} catch(RuntimeException ex) {
+				// Keep the selector thread alive, so that one bad event does not stop all receiving
+				LOG.error("Unexpected error in " + protocol + " listener.", ex);
+			}
+		}
+		
+		// Shut down all connections
+		for(SmtpListenerSession session : getSessions()) session.close();
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch(IOException ex) {
+			LOG.debug("Error closing " + protocol + " listener.", ex);
+		}
+	}
+
+	/** Handles a single ready channel. */
+	private void handleKey(SelectionKey key) throws IOException {
+		if(!key.isValid()) return;
+		
+		if(key.isAcceptable()) {
+			accept();
+			return;
+		}
+		
+		SmtpListenerSession session = (SmtpListenerSession) key.attachment();
+		try {
+			if(key.isReadable()) session.readable();
+			if(key.isValid() && key.isWritable()) session.writable();
+		} catch(IOException ex) {
+			LOG.debug("Connection error; closing session.", ex);
+			session.close();
+		} catch(RuntimeException ex) {
+			// A bug or bad input in one session should only cost that session its connection
+			LOG.warn("Unexpected error handling " + protocol + " session; closing it.", ex);
+			session.close();
+		}
+	}
+
+	/** Accepts a new connection. */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if(channel == null) return;
+		
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		SmtpListenerSession session = new SmtpListenerSession(this, channel, key);
+		key.attach(session);
+		
+		int connections;
+		synchronized(sessions) {
+			connections = sessions.size();
+			sessions.add(session);
+		}
+		if(connections >= maxConnections) {
+			LOG.info("Refusing connection from " + channel.socket().getInetAddress() + ": too many connections.");
+			session.reject("421 4.3.2 Too many connections; try again later");
+		} else {
+			session.opened();
+		}
+	}
+
+	/** Closes sessions which have been idle for longer than {@link #idleTimeout}. */
+	private void closeIdleSessions(long now) {
+		for(SmtpListenerSession session : getSessions()) {
+			if(now - session.getLastActivity() > idleTimeout) {
+				LOG.debug("Closing idle connection from " + session.getChannel().socket().getInetAddress());
+				session.close();
+			}
+		}
+	}
+
+	/** @return a copy of the set of open sessions */
+	private SmtpListenerSession[] getSessions() {
+		synchronized(sessions) {
+			return sessions.toArray(new SmtpListenerSession[sessions.size()]);
+		}
+	}
+}
@@ -0,0 +1,471 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.listener;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.internet.MailDateFormat;
+
+import org.apache.log4j.Logger;
+
+/**
+ * State of a single client connection to an {@link SmtpListener}.  All methods are called
+ * from the listener's selector thread, except where noted.
+ */
+class SmtpListenerSession {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(SmtpListenerSession.class);
+	/** Size of the input buffer, and so the longest command line accepted */
+	private static final int INPUT_BUFFER_SIZE = 8192;
+	/** Encoding used for protocol lines */
+	private static final String PROTOCOL_CHARSET = "ISO-8859-1";
+
+	/** States of an SMTP session */
+	private enum State {
+		/** Waiting for commands */
+		COMMAND,
+		/** Receiving message content after a DATA command */
+		DATA,
+		/** Receiving a chunk of message content after a BDAT command */
+		CHUNK,
+		/** Waiting for a received message to be processed before replying */
+		DELIVERING,
+		/** Closing once all pending replies are written */
+		CLOSING;
+	}
+
+//> INSTANCE PROPERTIES
+	/** The listener this session belongs to */
+	private final SmtpListener listener;
+	/** Connection to the client */
+	private final SocketChannel channel;
+	/** Selector registration for {@link #channel} */
+	private final SelectionKey key;
+	/** Bytes read from the client but not yet handled */
+	private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+	/** Replies waiting to be written to the client */
+	private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+	/** Current state of this session */
+	private State state = State.COMMAND;
+	/** Name the client gave in its HELO, EHLO or LHLO command */
+	private String clientName;
+	/** Reverse path of the current transaction, or <code>null</code> if no transaction is in progress */
+	private String reversePath;
+	/** Recipients of the current transaction */
+	private final List<String> recipients = new ArrayList<String>();
+	/** Spool for the message content of the current transaction */
+	private MessageSpool spool;
+	/** <code>true</code> if the next byte of message content starts a line */
+	private boolean atLineStart;
+	/** <code>true</code> if the current transaction declared BODY=BINARYMIME, and so must use BDAT */
+	private boolean binaryMime;
+	/** Bytes of the current BDAT chunk still to be read */
+	private long chunkRemaining;
+	/** <code>true</code> if the current BDAT chunk is the last of the message */
+	private boolean lastChunk;
+	/** Error reply to send once the current BDAT chunk has been discarded, or <code>null</code> if the chunk is accepted */
+	private String chunkError;
+	/** Time of the last activity on this session */
+	private long lastActivity = System.currentTimeMillis();
+
+//> CONSTRUCTORS
+	SmtpListenerSession(SmtpListener listener, SocketChannel channel, SelectionKey key) {
+		this.listener = listener;
+		this.channel = channel;
+		this.key = key;
+	}
+
+//> ACCESSORS
+	/** @return the time of the last activity on this session */
+	long getLastActivity() {
+		return lastActivity;
+	}
+
+	/** @return the connection to the client */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+//> EVENT HANDLERS
+	/** Called when the connection is accepted. */
+	void opened() {
+		reply("220 " + listener.getServerName() + " " + listener.getProtocol() + " service ready");
+	}
+
+	/**
+	 * Called when the client has sent data.
+	 * @throws IOException if the connection failed
+	 */
+	void readable() throws IOException {
+		int read = channel.read(input);
+		if(read == -1) {
+			close();
+			return;
+		}
+		lastActivity = System.currentTimeMillis();
+		handleInput();
+	}
+
+	/**
+	 * Called when the connection can accept more data.
+	 * @throws IOException if the connection failed
+	 */
+	void writable() throws IOException {
+		while(!output.isEmpty()) {
+			ByteBuffer head = output.getFirst();
+			channel.write(head);
+			if(head.hasRemaining()) return;
+			output.removeFirst();
+		}
+		if(state == State.CLOSING) {
+			close();
+		} else {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Called once a received message has been processed.
+	 * @param success <code>true</code> if the message was processed, or <code>false</code> if processing failed
+	 */
+	void delivered(boolean success) {
+		if(!key.isValid()) return;
+		
+		lastActivity = System.currentTimeMillis();
+		String response = success ? "250 2.0.0 Message accepted" : "451 4.3.0 Message could not be processed";
+		if(listener.getProtocol() == ListenerProtocol.LMTP) {
+			for(String recipient : recipients) reply(response + " for " + recipient);
+		} else {
+			reply(response);
+		}
+		resetTransaction();
+		state = State.COMMAND;
+		key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		
+		// Handle any commands which were pipelined behind the message
+		try {
+			handleInput();
+		} catch(IOException ex) {
+			LOG.debug("Error handling pipelined input.", ex);
+			close();
+		}
+	}
+
+	/** Closes the connection and releases any spooled message. */
+	void close() {
+		if(spool != null && state != State.DELIVERING) {
+			spool.dispose();
+			spool = null;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch(IOException ex) {
+			LOG.debug("Error closing SMTP listener connection.", ex);
+		}
+		listener.sessionClosed(this);
+	}
+
+	/**
+	 * Rejects the client and closes the connection once the rejection has been written.
+	 * @param reply the rejection reply to send
+	 */
+	void reject(String reply) {
+		reply(reply);
+		state = State.CLOSING;
+	}
+
+//> PROTOCOL METHODS
+	/** Handles as much buffered input as possible. */
+	private void handleInput() throws IOException {
+		input.flip();
+		try {
+			while(state == State.CHUNK || (input.hasRemaining() && (state == State.COMMAND || state == State.DATA))) {
+				if(state == State.DATA) {
+					if(!handleData()) break;
+				} else if(state == State.CHUNK) {
+					if(!handleChunk()) break;
+				} else {
+					String line = readLine();
+					if(line == null) break;
+					handleCommand(line);
+				}
+			}
+		} finally {
+			input.compact();
+		}
+		
+		if(state == State.COMMAND && !input.hasRemaining()) {
+			// The buffer is full without containing a complete command line
+			input.clear();
+			reply("500 5.5.2 Line too long");
+		}
+	}
+
+	/** @return the next complete line of input, without its line terminator, or <code>null</code> if there is none */
+	private String readLine() throws UnsupportedEncodingException {
+		int start = input.position();
+		for(int i=start; i<input.limit(); ++i) {
+			if(input.get(i) == '\n') {
+				int end = (i > start && input.get(i - 1) == '\r') ? i - 1 : i;
+				String line = new String(input.array(), input.arrayOffset() + start, end - start, PROTOCOL_CHARSET);
+				input.position(i + 1);
+				return line;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copies message content from the input buffer to the spool, removing dot-stuffing.
+	 * @return <code>true</code> if the end of the message was reached, or <code>false</code> if more input is needed
+	 */
+	private boolean handleData() throws IOException {
+		byte[] array = input.array();
+		int offset = input.arrayOffset();
+		while(input.hasRemaining()) {
+			int position = input.position();
+			if(atLineStart && input.get(position) == '.') {
+				// Need to see up to three bytes to tell the terminator from a stuffed dot
+				if(input.remaining() < 3 && (input.remaining() == 1 || input.get(position + 1) == '\r')) return false;
+				if(input.get(position + 1) == '\r' && input.get(position + 2) == '\n') {
+					input.position(position + 3);
+					endData();
+					return true;
+				}
+				// Remove the stuffed dot
+				input.position(++position);
+			}
+			
+			int end = position;
+			while(end < input.limit() && input.get(end) != '\n') ++end;
+			atLineStart = end < input.limit();
+			if(atLineStart) ++end;
+			spool.write(array, offset + position, end - position);
+			input.position(end);
+		}
+		return false;
+	}
+
+	/**
+	 * Copies the content of a BDAT chunk from the input buffer to the spool.  Chunks are binary, so
+	 * no dot-stuffing is removed.
+	 * @return <code>true</code> if the end of the chunk was reached, or <code>false</code> if more input is needed
+	 */
+	private boolean handleChunk() throws IOException {
+		int length = (int) Math.min(chunkRemaining, input.remaining());
+		if(chunkError == null) spool.write(input.array(), input.arrayOffset() + input.position(), length);
+		input.position(input.position() + length);
+		chunkRemaining -= length;
+		if(chunkRemaining > 0) return false;
+		
+		if(chunkError != null) {
+			reply(chunkError);
+			state = State.COMMAND;
+		} else if(lastChunk) {
+			endData();
+		} else {
+			reply("250 2.0.0 Chunk received");
+			state = State.COMMAND;
+		}
+		return true;
+	}
+
+	/** Called when the end of the message content has been received. */
+	private void endData() throws IOException {
+		spool.close();
+		if(spool.isOverflowed()) {
+			reply("552 5.3.4 Message size exceeds fixed maximum message size");
+			resetTransaction();
+			state = State.COMMAND;
+			return;
+		}
+		
+		state = State.DELIVERING;
+		// Stop reading until the message has been processed, so replies stay in order
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		MessageSpool delivered = spool;
+		spool = null;
+		if(!listener.deliver(this, delivered)) {
+			delivered.dispose();
+			reply("451 4.3.2 Too busy to accept message; try again later");
+			resetTransaction();
+			state = State.COMMAND;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	/** Handles a single command line. */
+	private void handleCommand(String line) throws IOException {
+		String verb = line;
+		String argument = "";
+		int space = line.indexOf(' ');
+		if(space != -1) {
+			verb = line.substring(0, space);
+			argument = line.substring(space + 1).trim();
+		}
+		verb = verb.toUpperCase(Locale.ENGLISH);
+		boolean lmtp = listener.getProtocol() == ListenerProtocol.LMTP;
+		
+		if((verb.equals("HELO") && !lmtp) || (verb.equals("EHLO") && !lmtp) || (verb.equals("LHLO") && lmtp)) {
+			clientName = argument;
+			resetTransaction();
+			if(verb.equals("HELO")) {
+				reply("250 " + listener.getServerName());
+			} else {
+				reply("250-" + listener.getServerName());
+				reply("250-PIPELINING");
+				reply("250-8BITMIME");
+				reply("250-CHUNKING");
+				reply("250-BINARYMIME");
+				reply("250-ENHANCEDSTATUSCODES");
+				reply("250 SIZE" + (listener.getMaxMessageSize() > 0 ? " " + listener.getMaxMessageSize() : ""));
+			}
+		} else if(verb.equals("MAIL")) {
+			if(clientName == null) {
+				reply("503 5.5.1 Send " + (lmtp ? "LHLO" : "HELO/EHLO") + " first");
+			} else if(reversePath != null) {
+				reply("503 5.5.1 Sender already specified");
+			} else if(!argument.toUpperCase(Locale.ENGLISH).startsWith("FROM:")) {
+				reply("501 5.5.4 Syntax: MAIL FROM:<address>");
+			} else if(getDeclaredSize(argument) > listener.getMaxMessageSize() && listener.getMaxMessageSize() > 0) {
+				reply("552 5.3.4 Message size exceeds fixed maximum message size");
+			} else {
+				reversePath = getPath(argument.substring(5));
+				binaryMime = "BINARYMIME".equalsIgnoreCase(getParameter(argument, "BODY"));
+				reply("250 2.1.0 Sender OK");
+			}
+		} else if(verb.equals("RCPT")) {
+			if(reversePath == null) {
+				reply("503 5.5.1 Need MAIL before RCPT");
+			} else if(!argument.toUpperCase(Locale.ENGLISH).startsWith("TO:")) {
+				reply("501 5.5.4 Syntax: RCPT TO:<address>");
+			} else if(recipients.size() >= listener.getMaxRecipients()) {
+				reply("452 4.5.3 Too many recipients");
+			} else {
+				recipients.add(getPath(argument.substring(3)));
+				reply("250 2.1.5 Recipient OK");
+			}
+		} else if(verb.equals("DATA")) {
+			if(recipients.isEmpty()) {
+				reply("503 5.5.1 Need RCPT before DATA");
+			} else if(binaryMime || spool != null) {
+				reply("503 5.5.1 BDAT must be used for this message");
+			} else {
+				startData();
+				atLineStart = true;
+				state = State.DATA;
+				reply("354 Start mail input; end with <CRLF>.<CRLF>");
+			}
+		} else if(verb.equals("BDAT")) {
+			String[] arguments = argument.split(" +");
+			try {
+				chunkRemaining = Long.parseLong(arguments[0]);
+			} catch(NumberFormatException ex) {
+				chunkRemaining = -1;
+			}
+			if(chunkRemaining < 0) {
+				// The chunk size is unknown, so the connection cannot be resynchronised
+				reject("501 5.5.4 Syntax: BDAT <size> [LAST]");
+				return;
+			}
+			lastChunk = arguments.length > 1 && arguments[1].equalsIgnoreCase("LAST");
+			chunkError = null;
+			if(recipients.isEmpty()) {
+				chunkError = "503 5.5.1 Need RCPT before BDAT";
+			} else if(spool == null) {
+				startData();
+			}
+			state = State.CHUNK;
+		} else if(verb.equals("RSET")) {
+			resetTransaction();
+			reply("250 2.0.0 OK");
+		} else if(verb.equals("NOOP")) {
+			reply("250 2.0.0 OK");
+		} else if(verb.equals("VRFY")) {
+			reply("252 2.5.0 Cannot VRFY user");
+		} else if(verb.equals("QUIT")) {
+			reject("221 2.0.0 " + listener.getServerName() + " closing connection");
+		} else {
+			reply("500 5.5.1 Command not recognised");
+		}
+	}
+
+	/** Prepares to receive message content, starting the spool with trace headers. */
+	private void startData() throws IOException {
+		spool = listener.createSpool();
+		
+		String trace = "Return-Path: <" + reversePath + ">\r\n"
+				+ "Received: from " + clientName + " (" + channel.socket().getInetAddress().getHostAddress() + ")\r\n"
+				+ "\tby " + listener.getServerName() + " with " + listener.getProtocol() + ";\r\n"
+				+ "\t" + new MailDateFormat().format(new Date()) + "\r\n";
+		byte[] traceBytes = trace.getBytes(PROTOCOL_CHARSET);
+		spool.write(traceBytes, 0, traceBytes.length);
+	}
+
+	/** Clears the state of the current mail transaction. */
+	private void resetTransaction() {
+		reversePath = null;
+		binaryMime = false;
+		recipients.clear();
+		if(spool != null) {
+			spool.dispose();
+			spool = null;
+		}
+	}
+
+	/** Queues a reply line to be written to the client. */
+	private void reply(String line) {
+		try {
+			output.add(ByteBuffer.wrap((line + "\r\n").getBytes(PROTOCOL_CHARSET)));
+		} catch(UnsupportedEncodingException ex) {
+			throw new IllegalStateException(PROTOCOL_CHARSET + " not supported.");
+		}
+		if(key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the address part of a MAIL FROM or RCPT TO argument, without angle brackets or parameters */
+	private static String getPath(String argument) {
+		String path = argument.trim();
+		if(path.startsWith("<")) {
+			int close = path.indexOf('>');
+			return close == -1 ? path.substring(1) : path.substring(1, close);
+		}
+		int space = path.indexOf(' ');
+		return space == -1 ? path : path.substring(0, space);
+	}
+
+	/** @return the value of the SIZE parameter of a MAIL FROM argument, or zero if there is none */
+	private static long getDeclaredSize(String argument) {
+		String size = getParameter(argument, "SIZE");
+		if(size == null) return 0;
+		try {
+			return Long.parseLong(size);
+		} catch(NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	/** @return the value of a parameter of a MAIL FROM argument, or <code>null</code> if it is not present */
+	private static String getParameter(String argument, String name) {
+		String prefix = name + "=";
+		for(String parameter : argument.split(" ")) {
+			if(parameter.toUpperCase(Locale.ENGLISH).startsWith(prefix)) {
+				return parameter.substring(prefix.length());
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,405 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.local;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailFilter;
+import net.frontlinesms.email.receive.EmailReceiveException;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+
+/**
+ * Object that reads messages delivered by a local mail server into a maildir or spool directory,
+ * as an alternative to reading them back from the server over POP or IMAP.
+ * 
+ * If the directory has a <code>new</code> subdirectory it is treated as a maildir: messages are
+ * read from <code>new</code> and moved to <code>cur</code> once processed.  Otherwise every file
+ * in the directory is treated as a message.  In either case, processed messages can instead be
+ * moved to an archive directory.  Moves are done by renaming, so the archive must be on the same
+ * file system.
+ * 
+ * Messages can be read once with {@link #receive()}, or the directory can be watched for new
+ * messages with {@link #start()}.
+ * 
+ * If the processor throws an exception for a message, its file is moved to the quarantine
+ * directory if one is set.  Otherwise it is left where it is, and is read again the next time
+ * the directory is read.
+ */
+public class MaildirReceiver {
+//> STATIC CONSTANTS
+	/** Logging object for this class */
+	private static Logger LOG = Logger.getLogger(MaildirReceiver.class);
+	/** Name of the maildir subdirectory new messages are delivered to */
+	private static final String MAILDIR_NEW = "new";
+	/** Name of the maildir subdirectory messages are moved to once they have been read */
+	private static final String MAILDIR_CUR = "cur";
+	/** Suffix added to a maildir message's name when it is moved to {@link #MAILDIR_CUR}, marking it as seen */
+	private static final String MAILDIR_SEEN_SUFFIX = ":2,S";
+	/** Files no larger than this are read into memory; larger files are parsed directly from disk */
+	private static final int IN_MEMORY_THRESHOLD = 64 * 1024;
+	/** Some file systems only record modification times to the second, so a directory modified this recently must be listed again */
+	private static final long MODIFICATION_TIME_RESOLUTION = 2000;
+	/** Session used when parsing messages */
+	private static final Session SESSION = Session.getInstance(System.getProperties());
+	/** Selects message files, ignoring directories and hidden files */
+	private static final FileFilter MESSAGE_FILE_FILTER = new FileFilter() {
+		public boolean accept(File file) {
+			return file.isFile() && !file.getName().startsWith(".");
+		}
+	};
+
+//> INSTANCE PROPERTIES
+	/** Object that will process received messages. */
+	private final EmailReceiveProcessor processor;
+	/** The maildir or spool directory */
+	private final File directory;
+	/** Object that filters emails to reduce email spam. */
+	private EmailFilter emailFilter;
+	/** Directory processed messages are moved to, or <code>null</code> to use the maildir's <code>cur</code> directory */
+	private File archiveDirectory;
+	/** Directory messages the processor failed on are moved to, or <code>null</code> to leave them to be read again */
+	private File quarantineDirectory;
+	/** Number of threads used to process a backlog of messages */
+	private int workerThreads = 1;
+	/** Interval, in milliseconds, at which the directory is checked for new messages when watching */
+	private long pollInterval = 1000;
+
+	/** Thread watching the directory, or <code>null</code> if it is not being watched */
+	private Thread watchThread;
+	/** Modification time of the incoming directory when it was last listed */
+	private long lastListedModification = -1;
+	/** Time the incoming directory was last listed */
+	private long lastListed;
+
+//> CONSTRUCTORS
+	/**
+	 * Creates a new {@link MaildirReceiver}
+	 * @param processor The {@link EmailReceiveProcessor} which processes incoming messages.
+	 * @param directory The maildir, or a directory containing one message per file.
+	 */
+	public MaildirReceiver(EmailReceiveProcessor processor, File directory) {
+		if(processor == null) throw new IllegalArgumentException("Processor must not be null.");
+		if(directory == null) throw new IllegalArgumentException("Directory must not be null.");
+		this.processor = processor;
+		this.directory = directory;
+	}
+
+//> RECEIVE METHODS
+	/**
+	 * Blocking method which processes all messages currently waiting in the directory.
+	 * @return the number of messages processed
+	 * @throws EmailReceiveException if the directory could not be read
+	 */
+	public int receive() throws EmailReceiveException {
+		ExecutorService workers = workerThreads > 1 ? Executors.newFixedThreadPool(workerThreads) : null;
+		try {
+			return receive(workers);
+		} finally {
+			if(workers != null) workers.shutdown();
+		}
+	}
+
+	/**
+	 * Starts watching the directory, processing messages as they arrive.
+	 */
+	public synchronized void start() {
+		if(watchThread != null) return;
+		watchThread = new Thread("MaildirReceiver:" + directory.getName()) {
+			@Override
+			public void run() {
+				watch();
+			}
+		};
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/**
+	 * Stops watching the directory, waiting for any messages being processed to finish.
+	 */
+	public void stop() {
+		Thread watchThread;
+		synchronized(this) {
+			watchThread = this.watchThread;
+			this.watchThread = null;
+		}
+		if(watchThread == null) return;
+		watchThread.interrupt();
+		try {
+			watchThread.join();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Main loop of {@link #watchThread}. */
+	private void watch() {
+		ExecutorService workers = workerThreads > 1 ? Executors.newFixedThreadPool(workerThreads) : null;
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				if(hasChanged()) {
+					try {
+						receive(workers);
+					} catch(EmailReceiveException ex) {
+						LOG.warn("Unable to read messages from " + directory, ex);
+					} catch(RuntimeException ex) {
+						// Keep watching, in case the problem is fixed
+						LOG.error("Unable to read messages from " + directory, ex);
+					}
+				}
+				Thread.sleep(pollInterval);
+			}
+		} catch(InterruptedException ex) {
+			// Stopped
+		} finally {
+			synchronized(this) {
+				// If this thread is stopping for any reason other than stop(), let start() run it again
+				if(watchThread == Thread.currentThread()) watchThread = null;
+			}
+			if(workers != null) {
+				workers.shutdown();
+				try {
+					workers.awaitTermination(30, TimeUnit.SECONDS);
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the modification time of the incoming directory, so that it is only listed when
+	 * a message may have been added.
+	 * @return <code>true</code> if the directory may contain new messages
+	 */
+	private boolean hasChanged() {
+		long modified = getIncomingDirectory().lastModified();
+		return modified != lastListedModification
+				|| lastListed - modified < MODIFICATION_TIME_RESOLUTION;
+	}
+
+	/**
+	 * Processes all messages currently waiting in the directory.
+	 * @param workers threads to process messages with, or <code>null</code> to process them on this thread
+	 * @return the number of messages processed
+	 */
+	private int receive(ExecutorService workers) throws EmailReceiveException {
+		File incoming = getIncomingDirectory();
+		if(archiveDirectory == null && !new File(directory, MAILDIR_CUR).isDirectory()) {
+			throw new IllegalStateException("No archive directory set, and no maildir cur directory in: " + directory);
+		}
+		lastListed = System.currentTimeMillis();
+		lastListedModification = incoming.lastModified();
+		File[] files = incoming.listFiles(MESSAGE_FILE_FILTER);
+		if(files == null) throw new EmailReceiveException(new IOException("Unable to list directory: " + incoming));
+		
+		// Maildir names start with the delivery time, so this is roughly the order of delivery
+		Arrays.sort(files);
+		
+		int processed = 0;
+		if(workers == null) {
+			for(File file : files) {
+				if(receive(file)) ++processed;
+			}
+		} else {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(files.length);
+			for(final File file : files) {
+				results.add(workers.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						return receive(file);
+					}
+				}));
+			}
+			try {
+				for(Future<Boolean> result : results) {
+					if(result.get()) ++processed;
+				}
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch(ExecutionException ex) {
+				throw new EmailReceiveException(ex.getCause());
+			}
+		}
+		return processed;
+	}
+
+	/**
+	 * Processes a single message file, and moves it out of the incoming directory.  If the file cannot
+	 * be parsed or the processor fails, the file is quarantined or left in place.
+	 * @param file the message file
+	 * @return <code>true</code> if the message was processed
+	 */
+	private boolean receive(File file) {
+		InputStream in = null;
+		boolean failed = false;
+		try {
+			in = open(file);
+			MimeMessage message = new MimeMessage(SESSION, in);
+			if(emailFilter == null || emailFilter.accept(message)) {
+				if(emailFilter != null) LOG.info("Email accepted by filter.  Beginning processing.");
+				processor.processMessage(message, new Date(file.lastModified()));
+			} else {
+				LOG.info("Email rejected by filter.");
+			}
+		} catch(IOException ex) {
+			// The file may have been removed by another reader
+			LOG.debug("Unable to read message file: " + file, ex);
+			return false;
+		} catch(MessagingException ex) {
+			LOG.warn("Unable to parse message file: " + file, ex);
+			failed = true;
+		} catch(RuntimeException ex) {
+			LOG.warn("Email could not be processed: " + file, ex);
+			failed = true;
+		} finally {
+			if(in != null) try { in.close(); } catch(IOException ex) { LOG.debug("Error closing message file.", ex); }
+		}
+		if(failed) {
+			quarantine(file);
+			return false;
+		}
+		
+		File target = getTarget(file);
+		if(!file.renameTo(target)) {
+			LOG.warn("Unable to move processed message from " + file + " to " + target);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves a message file the processor failed on to the {@link #quarantineDirectory}, or leaves it
+	 * in place to be read again if there is none.
+	 * @param file the message file
+	 */
+	private void quarantine(File file) {
+		if(quarantineDirectory == null) {
+			LOG.info("Leaving message file to be read again: " + file);
+			return;
+		}
+		File target = new File(quarantineDirectory, file.getName());
+		if(!file.renameTo(target)) {
+			LOG.warn("Unable to quarantine message file " + file + " to " + target);
+		}
+	}
+
+	/**
+	 * Opens a message file for parsing.  Small files are read into memory in one go; larger ones
+	 * are read on demand, so that message content is only loaded if it is used.
+	 */
+	private InputStream open(File file) throws IOException {
+		long length = file.length();
+		if(length > IN_MEMORY_THRESHOLD) {
+			return new SharedFileInputStream(file);
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] content = new byte[(int) raf.length()];
+			raf.readFully(content);
+			return new SharedByteArrayInputStream(content);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** @return the directory new messages are read from */
+	private File getIncomingDirectory() {
+		File maildirNew = new File(directory, MAILDIR_NEW);
+		return maildirNew.isDirectory() ? maildirNew : directory;
+	}
+
+	/** @return the location a processed message file should be moved to */
+	private File getTarget(File file) {
+		File maildirCur = new File(directory, MAILDIR_CUR);
+		if(archiveDirectory == null && maildirCur.isDirectory()) {
+			String name = file.getName();
+			if(name.indexOf(':') == -1) name += MAILDIR_SEEN_SUFFIX;
+			return new File(maildirCur, name);
+		}
+		return new File(archiveDirectory, file.getName());
+	}
+
+//> ACCESSORS
+	/**
+	 * @return the emailFilter
+	 */
+	public EmailFilter getEmailFilter() {
+		return emailFilter;
+	}
+
+	/**
+	 * @param emailFilter the emailFilter to set
+	 */
+	public void setEmailFilter(EmailFilter emailFilter) {
+		this.emailFilter = emailFilter;
+	}
+
+	/**
+	 * @return directory processed messages are moved to, or <code>null</code> if they are moved to the maildir's <code>cur</code> directory
+	 */
+	public File getArchiveDirectory() {
+		return archiveDirectory;
+	}
+
+	/**
+	 * Sets the directory processed messages are moved to.  This must be set when reading from a
+	 * spool directory rather than a maildir.
+	 * @param archiveDirectory directory processed messages are moved to, or <code>null</code> to use the maildir's <code>cur</code> directory
+	 */
+	public void setArchiveDirectory(File archiveDirectory) {
+		this.archiveDirectory = archiveDirectory;
+	}
+
+	/**
+	 * @return directory messages the processor failed on are moved to, or <code>null</code> if they are left to be read again
+	 */
+	public File getQuarantineDirectory() {
+		return quarantineDirectory;
+	}
+
+	/**
+	 * Sets the directory messages the processor failed on are moved to.  Without one, such messages
+	 * stay in the incoming directory and are retried every time the directory is read.
+	 * @param quarantineDirectory directory messages the processor failed on are moved to, or <code>null</code> to leave them to be read again
+	 */
+	public void setQuarantineDirectory(File quarantineDirectory) {
+		this.quarantineDirectory = quarantineDirectory;
+	}
+
+	/**
+	 * @param workerThreads number of threads used to process a backlog of messages; takes effect on the next {@link #receive()} or {@link #start()}
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * @param pollInterval interval, in milliseconds, at which the directory is checked for new messages when watching
+	 */
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+}
@@ -0,0 +1,18 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.local;
+
+/**
+ * Receives progress reports from an {@link MboxImporter}.
+ */
+public interface MboxImportListener {
+	/**
+	 * Called each time a chunk of the mbox file has been imported.  This is called on the
+	 * importer's worker threads, but never by more than one thread at a time.
+	 * @param checkpoint byte offset in the file before which every message has been imported; an import can be resumed from here
+	 * @param length length of the file, in bytes
+	 * @param messagesImported number of messages imported so far
+	 */
+	public void progress(long checkpoint, long length, int messagesImported);
+}
@@ -0,0 +1,403 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailFilter;
+import net.frontlinesms.email.receive.EmailReceiveException;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+
+/**
+ * Imports messages from an mbox archive, passing each one to an {@link EmailReceiveProcessor}.
+ * 
+ * The file is memory-mapped a window at a time and scanned for the "From " lines which separate
+ * messages.  Runs of messages are grouped into chunks, which are unescaped, parsed and processed
+ * in parallel.  The number of bytes in chunks waiting to be processed is limited, so memory use
+ * is bounded however large the archive is.
+ * 
+ * Messages may be processed out of order.  Progress is reported to an {@link MboxImportListener}
+ * as a checkpoint offset, before which every message has been processed; an interrupted import
+ * can be resumed from the last checkpoint with {@link #importMbox(File, long)}.
+ */
+public class MboxImporter {
+//> STATIC CONSTANTS
+	/** Logging object for this class */
+	private static Logger LOG = Logger.getLogger(MboxImporter.class);
+	/** The bytes which start a message separator line */
+	private static final byte[] FROM = { 'F', 'r', 'o', 'm', ' ' };
+	/** Default value for {@link #mapSize} */
+	private static final int DEFAULT_MAP_SIZE = 256 * 1024 * 1024;
+	/** Default value for {@link #chunkSize} */
+	private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	/** Default value for {@link #memoryBudget} */
+	private static final int DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+	/** Session used when parsing messages */
+	private static final Session SESSION = Session.getInstance(System.getProperties());
+
+//> INSTANCE PROPERTIES
+	/** Object that will process imported messages. */
+	private final EmailReceiveProcessor processor;
+	/** Object that filters emails to reduce email spam. */
+	private EmailFilter emailFilter;
+	/** Object notified of the progress of imports, or <code>null</code> if none */
+	private MboxImportListener listener;
+	/** Number of threads parsing and processing messages */
+	private int workerThreads = Runtime.getRuntime().availableProcessors();
+	/** Number of bytes of the file to map at a time */
+	private int mapSize = DEFAULT_MAP_SIZE;
+	/** Approximate number of bytes of messages in each chunk dispatched to a worker */
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	/** Maximum number of bytes in chunks which have been dispatched but not yet processed */
+	private int memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+//> CONSTRUCTORS
+	/**
+	 * Creates a new {@link MboxImporter}
+	 * @param processor The {@link EmailReceiveProcessor} which processes imported messages.
+	 */
+	public MboxImporter(EmailReceiveProcessor processor) {
+		if(processor == null) throw new IllegalArgumentException("Processor must not be null.");
+		this.processor = processor;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Blocking method which imports all messages from an mbox file.
+	 * @param mbox the mbox file
+	 * @return the number of messages imported
+	 * @throws EmailReceiveException if the file could not be read
+	 */
+	public int importMbox(File mbox) throws EmailReceiveException {
+		return importMbox(mbox, 0);
+	}
+
+	/**
+	 * Blocking method which imports messages from an mbox file, starting at a checkpoint.  If the
+	 * importing thread is interrupted, messages already dispatched are finished and the import stops.
+	 * @param mbox the mbox file
+	 * @param offset the byte offset to start at; this should be <code>0</code>, or a checkpoint reported to the {@link MboxImportListener}
+	 * @return the number of messages imported
+	 * @throws EmailReceiveException if the file could not be read
+	 */
+	public int importMbox(File mbox, long offset) throws EmailReceiveException {
+		RandomAccessFile file = null;
+		ExecutorService workers = Executors.newFixedThreadPool(workerThreads);
+		Semaphore budget = new Semaphore(memoryBudget);
+		try {
+			file = new RandomAccessFile(mbox, "r");
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			ImportProgress progress = new ImportProgress(offset, length);
+			
+			long position = offset;
+			int sequence = 0;
+			int windowSize = mapSize;
+			while(position < length && !Thread.currentThread().isInterrupted()) {
+				long size = Math.min(windowSize, length - position);
+				boolean lastWindow = position + size == length;
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+				
+				// Find the start of every message in the window
+				List<Integer> starts = new ArrayList<Integer>();
+				for(int start = nextSeparator(window, 0); start != -1; start = nextSeparator(window, start + 1)) {
+					starts.add(start);
+				}
+				if(starts.isEmpty()) {
+					if(lastWindow) break;
+					// No complete separator line in this window; look further
+					windowSize = growWindow(windowSize);
+					continue;
+				}
+				// The last message in the window may be cut short, unless this is the end of the file
+				if(lastWindow) {
+					starts.add((int) size);
+				} else if(starts.size() == 1) {
+					// A single message larger than the window
+					windowSize = growWindow(windowSize);
+					position += starts.get(0);
+					continue;
+				}
+				
+				// Dispatch complete messages in chunks
+				int chunkStart = 0;
+				while(chunkStart < starts.size() - 1) {
+					int chunkEnd = chunkStart + 1;
+					while(chunkEnd < starts.size() - 1 && starts.get(chunkEnd) - starts.get(chunkStart) < chunkSize) ++chunkEnd;
+					
+					int[] messageStarts = new int[chunkEnd - chunkStart + 1];
+					for(int i=0; i<messageStarts.length; ++i) {
+						messageStarts[i] = starts.get(chunkStart + i);
+					}
+					int permits = Math.min(messageStarts[messageStarts.length - 1] - messageStarts[0], memoryBudget);
+					budget.acquire(permits);
+					workers.execute(new ImportChunk(window, messageStarts, position + messageStarts[messageStarts.length - 1], sequence++, permits, budget, progress));
+					chunkStart = chunkEnd;
+				}
+				
+				position += starts.get(starts.size() - 1);
+				windowSize = mapSize;
+			}
+			
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			return progress.getMessagesImported();
+		} catch(IOException ex) {
+			throw new EmailReceiveException(ex);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new EmailReceiveException(ex);
+		} finally {
+			workers.shutdown();
+			if(file != null) try { file.close(); } catch(IOException ex) { LOG.warn("Error closing mbox file.", ex); }
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Parses and processes a single message.
+	 * @param content the message, without its separator line
+	 */
+	private boolean importMessage(byte[] content) {
+		try {
+			Message message = new MimeMessage(SESSION, new SharedByteArrayInputStream(content));
+			if(emailFilter == null || emailFilter.accept(message)) {
+				Date date = message.getSentDate();
+				processor.processMessage(message, date);
+				return true;
+			} else {
+				LOG.info("Email rejected by filter.");
+			}
+		} catch(MessagingException ex) {
+			LOG.warn("Unable to parse message from mbox.", ex);
+		} catch(RuntimeException ex) {
+			LOG.warn("Error processing message from mbox.", ex);
+		}
+		return false;
+	}
+
+//> ACCESSORS
+	/**
+	 * @return the emailFilter
+	 */
+	public EmailFilter getEmailFilter() {
+		return emailFilter;
+	}
+
+	/**
+	 * @param emailFilter the emailFilter to set
+	 */
+	public void setEmailFilter(EmailFilter emailFilter) {
+		this.emailFilter = emailFilter;
+	}
+
+	/**
+	 * @param listener object notified of the progress of imports, or <code>null</code> if none
+	 */
+	public void setListener(MboxImportListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param workerThreads number of threads parsing and processing messages
+	 */
+	public void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * @param mapSize number of bytes of the file to map at a time; this is grown as necessary for messages larger than it
+	 */
+	public void setMapSize(int mapSize) {
+		this.mapSize = mapSize;
+	}
+
+	/**
+	 * @param chunkSize approximate number of bytes of messages in each chunk dispatched to a worker
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param memoryBudget maximum number of bytes in chunks which have been dispatched but not yet processed
+	 */
+	public void setMemoryBudget(int memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * Finds the next message separator line in a buffer.  The start of the buffer is treated as the
+	 * start of a line.
+	 * @param buffer the buffer to search
+	 * @param from index to start searching at
+	 * @return index of the start of the next line starting with "From ", or <code>-1</code> if there is none
+	 */
+	static int nextSeparator(ByteBuffer buffer, int from) {
+		int limit = buffer.limit() - FROM.length;
+		if(from == 0) {
+			if(startsWithFrom(buffer, 0)) return 0;
+			from = 1;
+		}
+		for(int i=from; i<=limit; ++i) {
+			if(buffer.get(i - 1) == '\n' && buffer.get(i) == 'F' && startsWithFrom(buffer, i)) return i;
+		}
+		return -1;
+	}
+
+	/** @return <code>true</code> if the buffer contains "From " at the given index */
+	private static boolean startsWithFrom(ByteBuffer buffer, int index) {
+		if(index + FROM.length > buffer.limit()) return false;
+		for(int i=0; i<FROM.length; ++i) {
+			if(buffer.get(index + i) != FROM[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies a message out of an mbox, skipping its separator line, removing the blank line
+	 * before the next separator, and removing one level of quoting from quoted "From " lines.
+	 * @param buffer buffer containing the mbox
+	 * @param start index of the message's separator line
+	 * @param end index of the next message's separator line, or the end of the file
+	 * @return the message content
+	 */
+	static byte[] unescape(ByteBuffer buffer, int start, int end) {
+		int position = start;
+		while(position < end && buffer.get(position++) != '\n') {}
+		// Remove the blank line separating this message from the next
+		if(end > position && buffer.get(end - 1) == '\n') --end;
+		if(end > position && buffer.get(end - 1) == '\r') --end;
+		
+		byte[] content = new byte[end - position];
+		int length = 0;
+		boolean lineStart = true;
+		for(int i=position; i<end; ++i) {
+			byte b = buffer.get(i);
+			if(lineStart && b == '>' && isQuotedFrom(buffer, i, end)) {
+				// Drop the first '>' of a quoted "From " line
+				lineStart = false;
+				continue;
+			}
+			content[length++] = b;
+			lineStart = b == '\n';
+		}
+		if(length == content.length) return content;
+		byte[] trimmed = new byte[length];
+		System.arraycopy(content, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+	/** @return <code>true</code> if the line starting at the given index consists of one or more '>' followed by "From " */
+	private static boolean isQuotedFrom(ByteBuffer buffer, int index, int end) {
+		while(index < end && buffer.get(index) == '>') ++index;
+		return index + FROM.length <= end && startsWithFrom(buffer, index);
+	}
+
+	/** @return a larger window size, for when a message does not fit in the current one */
+	private static int growWindow(int windowSize) throws IOException {
+		if(windowSize == Integer.MAX_VALUE) throw new IOException("Message in mbox too large to import.");
+		return (int) Math.min(2L * windowSize, Integer.MAX_VALUE);
+	}
+
+//> INNER CLASSES
+	/**
+	 * A run of consecutive messages from the mbox, which are imported together by one worker.
+	 */
+	private class ImportChunk implements Runnable {
+		/** The mapped window containing the messages */
+		private final ByteBuffer window;
+		/** Indices in {@link #window} of the start of each message, followed by the end of the last message */
+		private final int[] messageStarts;
+		/** Offset in the file of the end of this chunk */
+		private final long endOffset;
+		/** Position of this chunk in the sequence of chunks dispatched */
+		private final int sequence;
+		/** Number of bytes of memory budget held by this chunk */
+		private final int permits;
+		/** Memory budget to release {@link #permits} to once this chunk is imported */
+		private final Semaphore budget;
+		/** Progress of the import */
+		private final ImportProgress progress;
+
+		ImportChunk(ByteBuffer window, int[] messageStarts, long endOffset, int sequence, int permits, Semaphore budget, ImportProgress progress) {
+			this.window = window;
+			this.messageStarts = messageStarts;
+			this.endOffset = endOffset;
+			this.sequence = sequence;
+			this.permits = permits;
+			this.budget = budget;
+			this.progress = progress;
+		}
+
+		public void run() {
+			int imported = 0;
+			try {
+				for(int i=0; i<messageStarts.length - 1; ++i) {
+					if(importMessage(unescape(window, messageStarts[i], messageStarts[i + 1]))) ++imported;
+				}
+			} finally {
+				budget.release(permits);
+				progress.completed(sequence, endOffset, imported);
+			}
+		}
+	}
+
+	/**
+	 * Tracks which chunks of an import have completed, to work out the checkpoint offset.
+	 */
+	private class ImportProgress {
+		/** Length of the file being imported */
+		private final long length;
+		/** Chunks which have completed but follow a chunk which has not, mapped to their end offsets */
+		private final Map<Integer, Long> completed = new HashMap<Integer, Long>();
+		/** Sequence number of the first chunk which has not completed */
+		private int nextSequence;
+		/** Offset before which every chunk has completed */
+		private long checkpoint;
+		/** Number of messages imported */
+		private int messagesImported;
+
+		ImportProgress(long offset, long length) {
+			this.checkpoint = offset;
+			this.length = length;
+		}
+
+		synchronized void completed(int sequence, long endOffset, int imported) {
+			messagesImported += imported;
+			completed.put(sequence, endOffset);
+			while(completed.containsKey(nextSequence)) {
+				checkpoint = completed.remove(nextSequence++);
+			}
+			if(listener != null) listener.progress(checkpoint, length, messagesImported);
+		}
+
+		synchronized int getMessagesImported() {
+			return messagesImported;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.stream;
+
+/**
+ * Source of items which are only sent as a subscriber asks for them.  This follows the Reactive
+ * Streams <code>Publisher</code> contract, as found in <code>java.util.concurrent.Flow</code> since
+ * Java 9, so that adapters to other libraries are trivial.
+ * @param <T> type of the items published
+ */
+public interface EmailPublisher<T> {
+	/**
+	 * Adds a subscriber.  {@link EmailSubscriber#onSubscribe(EmailSubscription)} is called before
+	 * any other method of the subscriber.
+	 * @param subscriber the subscriber
+	 */
+	public void subscribe(EmailSubscriber<? super T> subscriber);
+}
@@ -0,0 +1,237 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.receive.EmailDemandProcessor;
+import net.frontlinesms.email.receive.EmailReceiver;
+
+/**
+ * Publishes the messages read by an {@link EmailReceiver} to a subscriber, only as fast as the
+ * subscriber asks for them.
+ * <p>
+ * Use this as the receiver's processor, and poll the receiver as usual.  Before each message is
+ * downloaded, the receiver checks that the subscriber has asked for another; if not, the poll ends,
+ * closing the folder, and the rest of the messages stay on the server until a later poll.  A
+ * subscriber which cancels its subscription therefore stops the next message being downloaded.
+ * <p>
+ * Each message is sent as a detached copy, which can be used after the folder is closed and from any
+ * thread.  Once {@link EmailSubscriber#onNext(Object)} returns, the message counts as processed, and
+ * is committed on the server; if <code>onNext</code> throws an exception, the message is treated as a
+ * processing failure, so in transactional mode it is received again by a later poll.
+ * <p>
+ * There is one subscriber at a time.  Once a subscriber has cancelled, another may subscribe.
+ */
+public class EmailReceivePublisher implements EmailPublisher<MimeMessage>, EmailDemandProcessor {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailReceivePublisher.class);
+	/** Session used for the detached copies of messages */
+	private static final Session SESSION = Session.getInstance(new Properties());
+
+//> INSTANCE PROPERTIES
+	/** Time in milliseconds a poll waits for the subscriber to ask for more messages, or zero to end the poll immediately */
+	private final long demandTimeout;
+	/** The current subscription, or <code>null</code> if there has been no subscriber */
+	private ReceiveSubscription subscription;
+	/** <code>true</code> once {@link #complete()} has been called */
+	private boolean completed;
+
+//> CONSTRUCTORS
+	/** Creates a publisher which ends a poll as soon as the subscriber has no demand. */
+	public EmailReceivePublisher() {
+		this(0);
+	}
+
+	/**
+	 * @param demandTimeout time in milliseconds a poll waits for the subscriber to ask for more messages
+	 * before ending, holding its connection open, or zero to end the poll immediately
+	 */
+	public EmailReceivePublisher(long demandTimeout) {
+		this.demandTimeout = demandTimeout;
+	}
+
+//> PUBLISHER METHODS
+	public void subscribe(EmailSubscriber<? super MimeMessage> subscriber) {
+		if(subscriber == null) throw new NullPointerException("Subscriber must not be null.");
+		ReceiveSubscription rejected = null;
+		boolean alreadyCompleted;
+		synchronized(this) {
+			alreadyCompleted = completed;
+			if(!completed && subscription != null && !subscription.isCancelled()) {
+				rejected = new ReceiveSubscription(subscriber);
+				rejected.cancel();
+			} else {
+				subscription = new ReceiveSubscription(subscriber);
+				if(completed) subscription.cancel();
+			}
+		}
+		if(rejected != null) {
+			subscriber.onSubscribe(rejected);
+			subscriber.onError(new IllegalStateException("Publisher already has a subscriber."));
+			return;
+		}
+		subscriber.onSubscribe(getSubscription());
+		if(alreadyCompleted) subscriber.onComplete();
+	}
+
+//> PROCESSOR METHODS
+	public boolean awaitDemand() {
+		ReceiveSubscription subscription = getSubscription();
+		return subscription != null && subscription.awaitDemand(demandTimeout);
+	}
+
+	public void processMessage(Message message, Date date) {
+		ReceiveSubscription subscription = getSubscription();
+		if(subscription == null) throw new IllegalStateException("Email received with no subscriber.");
+		MimeMessage copy;
+		try {
+			copy = detach(message);
+		} catch(Exception ex) {
+			IllegalStateException failure = new IllegalStateException("Unable to copy email: " + ex.getMessage());
+			failure.initCause(ex);
+			throw failure;
+		}
+		subscription.onNext(copy);
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Tells the subscriber that there will be no more messages, for example because the receiver is
+	 * no longer being polled.  Subscribers added later are completed immediately.
+	 */
+	public void complete() {
+		ReceiveSubscription subscription;
+		synchronized(this) {
+			if(completed) return;
+			completed = true;
+			subscription = this.subscription;
+		}
+		if(subscription != null) subscription.complete();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return the current subscription, or <code>null</code> if there has been no subscriber */
+	private synchronized ReceiveSubscription getSubscription() {
+		return subscription;
+	}
+
+//> STATIC HELPER METHODS
+	/** @return a copy of a message which does not depend on the folder it came from */
+	private static MimeMessage detach(Message message) throws MessagingException, IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream(Math.max(message.getSize(), 1024));
+		message.writeTo(content);
+		return new MimeMessage(SESSION, new SharedByteArrayInputStream(content.toByteArray()));
+	}
+
+//> INNER CLASSES
+	/** Subscription which counts the messages the subscriber has asked for. */
+	private static class ReceiveSubscription implements EmailSubscription {
+		/** The subscriber */
+		private final EmailSubscriber<? super MimeMessage> subscriber;
+		/** Lock held while the subscriber is called, so that it is only called by one thread at a time */
+		private final Object signalLock = new Object();
+		/** Number of messages asked for and not yet sent; {@link Long#MAX_VALUE} if there is no limit */
+		private long demand;
+		/** <code>true</code> once the subscription has been cancelled, or has ended */
+		private boolean cancelled;
+
+		ReceiveSubscription(EmailSubscriber<? super MimeMessage> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if(n <= 0) {
+				if(cancel(true)) {
+					signalError(new IllegalArgumentException("Number of messages requested must be positive: " + n));
+				}
+				return;
+			}
+			synchronized(this) {
+				if(cancelled) return;
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				notifyAll();
+			}
+		}
+
+		public void cancel() {
+			cancel(true);
+		}
+
+		synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Waits for the subscriber to ask for a message.
+		 * @param timeout maximum time to wait, in milliseconds, or zero not to wait
+		 * @return <code>true</code> if the subscriber has asked for a message
+		 */
+		synchronized boolean awaitDemand(long timeout) {
+			long deadline = System.currentTimeMillis() + timeout;
+			try {
+				while(!cancelled && demand == 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) return false;
+					wait(remaining);
+				}
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return !cancelled;
+		}
+
+		/** Sends a message to the subscriber, counting it against the demand. */
+		void onNext(MimeMessage message) {
+			synchronized(this) {
+				if(demand == 0) LOG.warn("Sending email which was not requested; the subscription may have been cancelled.");
+				else if(demand != Long.MAX_VALUE) --demand;
+			}
+			synchronized(signalLock) {
+				subscriber.onNext(message);
+			}
+		}
+
+		/** Ends the subscription and tells the subscriber there are no more messages. */
+		void complete() {
+			if(!cancel(false)) return;
+			synchronized(signalLock) {
+				subscriber.onComplete();
+			}
+		}
+
+		/** Tells the subscriber that the subscription failed. */
+		private void signalError(Throwable error) {
+			synchronized(signalLock) {
+				subscriber.onError(error);
+			}
+		}
+
+		/**
+		 * Marks the subscription as ended.
+		 * @param byRequest <code>true</code> if the subscriber asked for this
+		 * @return <code>true</code> if the subscription had not already ended
+		 */
+		private synchronized boolean cancel(boolean byRequest) {
+			if(cancelled) return false;
+			cancelled = true;
+			notifyAll();
+			if(byRequest) LOG.debug("Email subscription cancelled.");
+			return true;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.internet.MimeMessage;
+
+import net.frontlinesms.email.EmailFilter;
+
+/**
+ * Operators which build one {@link EmailPublisher} on another.  Each operator passes the demand of its
+ * subscriber upstream, so a slow subscriber at the end of a chain still slows the receiver feeding it.
+ */
+public final class EmailStreams {
+//> CONSTRUCTORS
+	/** Static utility class */
+	private EmailStreams() {}
+
+//> STATIC FACTORIES
+	/**
+	 * Passes on only the messages a filter accepts.  Each message the filter rejects is replaced by
+	 * asking for another, so the subscriber still receives as many messages as it asks for.
+	 * @param source publisher of messages
+	 * @param filter filter deciding which messages to pass on
+	 * @return publisher of the accepted messages
+	 */
+	public static EmailPublisher<MimeMessage> filter(final EmailPublisher<MimeMessage> source, final EmailFilter filter) {
+		return new EmailPublisher<MimeMessage>() {
+			public void subscribe(EmailSubscriber<? super MimeMessage> subscriber) {
+				source.subscribe(new FilterSubscriber(subscriber, filter));
+			}
+		};
+	}
+
+	/**
+	 * Groups items into lists.  A subscriber asking for <em>n</em> lists causes <em>n</em> times
+	 * <code>size</code> items to be asked for upstream.  When the source completes, any items in an
+	 * unfinished list are sent as a shorter list.
+	 * <p>
+	 * Items are only sent once a list is full, so when the source is an {@link EmailReceivePublisher},
+	 * messages which have been committed on the server may wait in an unfinished list until later polls.
+	 * @param source publisher of items
+	 * @param size number of items in each list
+	 * @return publisher of the lists
+	 */
+	public static <T> EmailPublisher<List<T>> batch(final EmailPublisher<T> source, final int size) {
+		if(size <= 0) throw new IllegalArgumentException("Batch size must be positive: " + size);
+		return new EmailPublisher<List<T>>() {
+			public void subscribe(EmailSubscriber<? super List<T>> subscriber) {
+				source.subscribe(new BatchSubscriber<T>(subscriber, size));
+			}
+		};
+	}
+
+//> INNER CLASSES
+	/**
+	 * Subscriber which sits between a source and a downstream subscriber, and passes on the downstream
+	 * subscriber's requests and cancellation.
+	 * @param <T> type of item received from the source
+	 * @param <R> type of item sent to the downstream subscriber
+	 */
+	private static abstract class OperatorSubscriber<T, R> implements EmailSubscriber<T>, EmailSubscription {
+		/** The subscriber this sends items to */
+		protected final EmailSubscriber<? super R> downstream;
+		/** The subscription to the source */
+		protected EmailSubscription upstream;
+
+		OperatorSubscriber(EmailSubscriber<? super R> downstream) {
+			this.downstream = downstream;
+		}
+
+		public void onSubscribe(EmailSubscription subscription) {
+			this.upstream = subscription;
+			downstream.onSubscribe(this);
+		}
+
+		public void onError(Throwable error) {
+			downstream.onError(error);
+		}
+
+		public void onComplete() {
+			downstream.onComplete();
+		}
+
+		public void request(long n) {
+			upstream.request(n);
+		}
+
+		public void cancel() {
+			upstream.cancel();
+		}
+	}
+
+	/** Subscriber passing on the messages a filter accepts. */
+	private static class FilterSubscriber extends OperatorSubscriber<MimeMessage, MimeMessage> {
+		/** Filter deciding which messages to pass on */
+		private final EmailFilter filter;
+
+		FilterSubscriber(EmailSubscriber<? super MimeMessage> downstream, EmailFilter filter) {
+			super(downstream);
+			this.filter = filter;
+		}
+
+		public void onNext(MimeMessage message) {
+			if(filter.accept(message)) downstream.onNext(message);
+			else upstream.request(1);
+		}
+	}
+
+	/** Subscriber grouping items into lists. */
+	private static class BatchSubscriber<T> extends OperatorSubscriber<T, List<T>> {
+		/** Number of items in each list */
+		private final int size;
+		/** Items in the unfinished list */
+		private List<T> batch;
+
+		BatchSubscriber(EmailSubscriber<? super List<T>> downstream, int size) {
+			super(downstream);
+			this.size = size;
+			this.batch = new ArrayList<T>(size);
+		}
+
+		public void onNext(T item) {
+			batch.add(item);
+			if(batch.size() == size) {
+				List<T> full = batch;
+				batch = new ArrayList<T>(size);
+				downstream.onNext(full);
+			}
+		}
+
+		public void onComplete() {
+			if(!batch.isEmpty()) {
+				List<T> partial = batch;
+				batch = new ArrayList<T>(0);
+				downstream.onNext(partial);
+			}
+			downstream.onComplete();
+		}
+
+		public void request(long n) {
+			if(n <= 0) upstream.request(n);
+			else upstream.request(n > Long.MAX_VALUE / size ? Long.MAX_VALUE : n * size);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.stream;
+
+/**
+ * Receiver of items from an {@link EmailPublisher}.  Methods are called one at a time, though not
+ * necessarily always from the same thread.
+ * @param <T> type of the items received
+ */
+public interface EmailSubscriber<T> {
+	/**
+	 * Called once when the subscriber is added to a publisher.  No items are sent until they are
+	 * requested from the subscription.
+	 * @param subscription the subscription
+	 */
+	public void onSubscribe(EmailSubscription subscription);
+
+	/**
+	 * Called for each item, never more times than have been requested.
+	 * @param item the item
+	 */
+	public void onNext(T item);
+
+	/**
+	 * Called if the publisher fails.  No more methods are called afterwards.
+	 * @param error the reason the publisher failed
+	 */
+	public void onError(Throwable error);
+
+	/** Called when the publisher has no more items.  No more methods are called afterwards. */
+	public void onComplete();
+}
@@ -0,0 +1,20 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.receive.stream;
+
+/**
+ * Link between an {@link EmailPublisher} and one of its {@link EmailSubscriber}s, through which the
+ * subscriber asks for items.
+ */
+public interface EmailSubscription {
+	/**
+	 * Asks for more items.  Requests add up, so <code>request(2)</code> followed by <code>request(3)</code>
+	 * allows five items to be sent.
+	 * @param n number of items, which must be positive; {@link Long#MAX_VALUE} asks for all items
+	 */
+	public void request(long n);
+
+	/** Stops items being sent.  Items may still be sent for a short while after this is called. */
+	public void cancel();
+}
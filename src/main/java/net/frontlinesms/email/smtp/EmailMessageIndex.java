@@ -0,0 +1,511 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailClock;
+
+/**
+ * Persistent index of the Message-IDs of sent emails, which finds the email a reply answers from the
+ * reply's <code>In-Reply-To</code> and <code>References</code> headers.  Each Message-ID is stored
+ * with correlation data chosen by the sender, such as the conversation the email belongs to.
+ * <p>
+ * The index is kept in two files in its directory.  The log file holds the Message-IDs and correlation
+ * data, appended as they are added.  The index file is a hash table of fixed-size slots, each holding a
+ * 64-bit fingerprint of a Message-ID, its expiry time and the position of its record in the log, and
+ * uses linear probing.  The table is kept less than three quarters full, so a lookup reads a small,
+ * constant number of slots and one log record, whatever the size of the index.  Nothing is held in
+ * the heap, so tens of millions of entries only cost their disk space, around 100 bytes each.
+ * <p>
+ * Entries expire a fixed time after they are added, and expired slots are reused.  When the table fills
+ * up, it is compacted: the live entries are copied to new files with a table sized for them.  The log is
+ * the master copy: while the index is open its table is marked as being modified, and if the process
+ * stops without closing the index, the table is rebuilt from the log when it is next opened.  Writes are
+ * not forced to disk until {@link #sync()} or {@link #close()}, so entries added just before a crash
+ * may be lost.
+ */
+public class EmailMessageIndex {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailMessageIndex.class);
+	/** Default value for {@link #ttl}: 90 days */
+	public static final long DEFAULT_TTL = 90L * 24 * 60 * 60 * 1000;
+	/** Name of the log file */
+	private static final String LOG_FILE = "messages.log";
+	/** Name of the index file */
+	private static final String INDEX_FILE = "messages.idx";
+	/** Extension of files being written by a compaction */
+	private static final String TEMP_EXTENSION = ".tmp";
+	/** Value at the start of a valid index file */
+	private static final long MAGIC = 0x464c534d49445831L;
+	/** Bytes at the start of the index file: magic number, capacity, number of slots used, and clean flag */
+	private static final int HEADER_SIZE = 32;
+	/** Bytes in a slot: fingerprint, expiry time, and position of the record in the log plus one, or zero if the slot is empty */
+	private static final int SLOT_SIZE = 24;
+	/** Smallest number of slots in the table */
+	private static final long MIN_CAPACITY = 1024;
+	/** Message-ID in a header */
+	private static final Pattern MESSAGE_ID = Pattern.compile("<[^<>\\s]+>");
+
+//> INSTANCE PROPERTIES
+	/** Directory holding the files */
+	private final File directory;
+	/** Domain used in the Message-IDs created by {@link #createMessageId(String)} */
+	private final String domain;
+	/** Time in milliseconds an entry lasts for */
+	private final long ttl;
+	/** Clock used for entry expiry */
+	private final EmailClock clock;
+	/** The log file */
+	private RandomAccessFile log;
+	/** The hash table */
+	private Table table;
+
+//> CONSTRUCTORS
+	/**
+	 * Opens an index, creating it if it does not exist.
+	 * @param directory directory holding the index files, which is created if it does not exist
+	 * @param domain domain used in the Message-IDs created by {@link #createMessageId(String)}
+	 * @param ttl time in milliseconds an entry lasts for
+	 * @throws IOException if the index could not be read or created
+	 */
+	public EmailMessageIndex(File directory, String domain, long ttl) throws IOException {
+		this(directory, domain, ttl, EmailClock.SYSTEM);
+	}
+
+	/**
+	 * Opens an index, creating it if it does not exist.
+	 * @param directory directory holding the index files, which is created if it does not exist
+	 * @param domain domain used in the Message-IDs created by {@link #createMessageId(String)}
+	 * @param ttl time in milliseconds an entry lasts for
+	 * @param clock clock used for entry expiry
+	 * @throws IOException if the index could not be read or created
+	 */
+	public EmailMessageIndex(File directory, String domain, long ttl, EmailClock clock) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Unable to create message index directory: " + directory);
+		this.directory = directory;
+		this.domain = domain;
+		this.ttl = ttl;
+		this.clock = clock;
+		open();
+	}
+
+//> ACCESSORS
+	/** @return the number of slots in use, including expired entries which have not yet been reused */
+	public synchronized long size() {
+		return table.size;
+	}
+
+	/**
+	 * Creates a Message-ID for an email.  The same key always gives the same Message-ID, so an email
+	 * which is sent again after a failure keeps its Message-ID.
+	 * @param key key identifying the email, unique among all emails sent through this index
+	 * @return the Message-ID, in angle brackets
+	 */
+	public String createMessageId(String key) {
+		byte[] digest = md5(key);
+		StringBuilder messageId = new StringBuilder("<");
+		for(byte b : digest) {
+			messageId.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return messageId.append('@').append(domain).append('>').toString();
+	}
+
+	/**
+	 * @param messageId a Message-ID, in angle brackets
+	 * @return the correlation data of the sent email with the Message-ID, or <code>null</code> if there is none, or it has expired
+	 * @throws IOException if the index could not be read
+	 */
+	public synchronized String get(String messageId) throws IOException {
+		messageId = messageId.trim();
+		long now = clock.currentTimeMillis();
+		long fingerprint = fingerprint(messageId);
+		for(long slot = table.home(fingerprint), probes = 0; probes < table.capacity; slot = table.next(slot), ++probes) {
+			ByteBuffer buffer = table.read(slot);
+			long position = buffer.getLong(16);
+			if(position == 0) return null;
+			if(buffer.getLong(0) == fingerprint && buffer.getLong(8) > now) {
+				Record record = readRecord(log, position - 1);
+				if(record.messageId.equals(messageId)) return record.correlation;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the sent email a received email replies to.  The <code>In-Reply-To</code> header is tried
+	 * first, then the <code>References</code> header, from the most recent Message-ID to the oldest.
+	 * Only the headers of the message are read.
+	 * @param message a received email
+	 * @return the correlation data of the sent email it replies to, or <code>null</code> if none was found
+	 * @throws MessagingException if the headers could not be read
+	 * @throws IOException if the index could not be read
+	 */
+	public String resolve(Message message) throws MessagingException, IOException {
+		List<String> messageIds = getMessageIds(message.getHeader("In-Reply-To"));
+		List<String> references = getMessageIds(message.getHeader("References"));
+		for(int i=references.size()-1; i>=0; --i) messageIds.add(references.get(i));
+		for(String messageId : messageIds) {
+			String correlation = get(messageId);
+			if(correlation != null) return correlation;
+		}
+		return null;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Adds a sent email, or replaces its correlation data.
+	 * @param messageId the email's Message-ID, in angle brackets
+	 * @param correlation data identifying the email
+	 * @throws IOException if the index could not be written
+	 */
+	public synchronized void put(String messageId, String correlation) throws IOException {
+		messageId = messageId.trim();
+		long now = clock.currentTimeMillis();
+		if((table.size + 1) * 4 > table.capacity * 3) compact();
+		long position = log.length();
+		log.seek(position);
+		log.write(encodeRecord(now + ttl, messageId, correlation));
+		table.put(fingerprint(messageId), now + ttl, position, messageId, now, log);
+	}
+
+	/**
+	 * Copies the live entries to new files, with a hash table sized for them, and drops expired entries.
+	 * This is done automatically when the table fills up.
+	 * @return the number of live entries
+	 * @throws IOException if the index could not be read or written
+	 */
+	public synchronized long compact() throws IOException {
+		long now = clock.currentTimeMillis();
+		long live = 0;
+		for(long slot=0; slot<table.capacity; ++slot) {
+			ByteBuffer buffer = table.read(slot);
+			if(buffer.getLong(16) != 0 && buffer.getLong(8) > now) ++live;
+		}
+		File tempLogFile = new File(directory, LOG_FILE + TEMP_EXTENSION);
+		File tempIndexFile = new File(directory, INDEX_FILE + TEMP_EXTENSION);
+		tempLogFile.delete();
+		tempIndexFile.delete();
+		RandomAccessFile tempLog = new RandomAccessFile(tempLogFile, "rw");
+		Table tempTable = Table.create(tempIndexFile, getCapacity(live));
+		try {
+			for(long slot=0; slot<table.capacity; ++slot) {
+				ByteBuffer buffer = table.read(slot);
+				long expiry = buffer.getLong(8);
+				if(buffer.getLong(16) == 0 || expiry <= now) continue;
+				Record record = readRecord(log, buffer.getLong(16) - 1);
+				long position = tempLog.length();
+				tempLog.seek(position);
+				tempLog.write(encodeRecord(expiry, record.messageId, record.correlation));
+				tempTable.put(buffer.getLong(0), expiry, position, record.messageId, now, tempLog);
+			}
+			tempTable.writeHeader(true);
+		} finally {
+			tempLog.close();
+			tempTable.close();
+		}
+		
+		log.close();
+		table.close();
+		// If the process stops part way through, the table is rebuilt from whichever log is in place
+		replace(tempLogFile, new File(directory, LOG_FILE));
+		replace(tempIndexFile, new File(directory, INDEX_FILE));
+		open();
+		LOG.debug("Compacted message index to " + live + " entries.");
+		return live;
+	}
+
+	/**
+	 * Forces all changes to disk.
+	 * @throws IOException if the index could not be written
+	 */
+	public synchronized void sync() throws IOException {
+		log.getFD().sync();
+		table.channel.force(false);
+	}
+
+	/**
+	 * Closes the index, marking its table as up to date.
+	 * @throws IOException if the index could not be written
+	 */
+	public synchronized void close() throws IOException {
+		if(log == null) return;
+		log.getFD().sync();
+		table.writeHeader(true);
+		table.channel.force(false);
+		log.close();
+		table.close();
+		log = null;
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Opens the files, rebuilding the table from the log if it was not closed cleanly. */
+	private void open() throws IOException {
+		File logFile = new File(directory, LOG_FILE);
+		File indexFile = new File(directory, INDEX_FILE);
+		File tempLogFile = new File(directory, LOG_FILE + TEMP_EXTENSION);
+		if(!logFile.exists() && tempLogFile.exists()) {
+			// A compaction stopped after removing the old log but before renaming the new one
+			replace(tempLogFile, logFile);
+			indexFile.delete();
+		}
+		log = new RandomAccessFile(logFile, "rw");
+		table = Table.open(indexFile);
+		if(table == null) {
+			LOG.info("Rebuilding message index from " + logFile);
+			rebuild(indexFile);
+		}
+		// Until the index is closed, the table on disk may not match the log
+		table.writeHeader(false);
+		table.channel.force(false);
+	}
+
+	/** Builds a new table from the records in the log, dropping a partly-written last record. */
+	private void rebuild(File indexFile) throws IOException {
+		long now = clock.currentTimeMillis();
+		List<long[]> entries = new ArrayList<long[]>();
+		long length = log.length();
+		long position = 0;
+		while(position < length) {
+			if(position + 4 > length) break;
+			log.seek(position);
+			int recordLength = log.readInt();
+			if(recordLength < 12 || position + 4 + recordLength > length) break;
+			Record record = readRecord(log, position);
+			if(record.expiry > now) entries.add(new long[] { position, record.expiry });
+			position += 4 + recordLength;
+		}
+		if(position < length) {
+			LOG.warn("Dropping incomplete record at the end of " + LOG_FILE);
+			log.setLength(position);
+		}
+		indexFile.delete();
+		table = Table.create(indexFile, getCapacity(entries.size()));
+		for(long[] entry : entries) {
+			Record record = readRecord(log, entry[0]);
+			table.put(fingerprint(record.messageId), entry[1], entry[0], record.messageId, now, log);
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/** @return a table capacity with room for the supplied number of entries and as many again */
+	private static long getCapacity(long entries) {
+		long capacity = MIN_CAPACITY;
+		while(capacity < entries * 2) capacity <<= 1;
+		return capacity;
+	}
+
+	/** @return the Message-IDs in headers, in the order they appear */
+	private static List<String> getMessageIds(String[] headers) {
+		List<String> messageIds = new ArrayList<String>();
+		if(headers != null) {
+			for(String header : headers) {
+				Matcher matcher = MESSAGE_ID.matcher(header);
+				while(matcher.find()) messageIds.add(matcher.group());
+			}
+		}
+		return messageIds;
+	}
+
+	/** @return a log record: its length, then the expiry time, Message-ID and correlation data */
+	private static byte[] encodeRecord(long expiry, String messageId, String correlation) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + messageId.length() + correlation.length());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeLong(expiry);
+		out.writeUTF(messageId);
+		out.writeUTF(correlation);
+		out.close();
+		byte[] record = bytes.toByteArray();
+		int length = record.length - 4;
+		record[0] = (byte) (length >>> 24);
+		record[1] = (byte) (length >>> 16);
+		record[2] = (byte) (length >>> 8);
+		record[3] = (byte) length;
+		return record;
+	}
+
+	/** @return the log record at a position in a log */
+	private static Record readRecord(RandomAccessFile log, long position) throws IOException {
+		log.seek(position);
+		byte[] bytes = new byte[log.readInt()];
+		log.readFully(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		return new Record(in.readLong(), in.readUTF(), in.readUTF());
+	}
+
+	/** Renames a file over another, deleting the other first if the platform requires it. */
+	private static void replace(File from, File to) throws IOException {
+		if(!from.renameTo(to)) {
+			if(to.exists() && !to.delete() || !from.renameTo(to)) {
+				throw new IOException("Unable to replace " + to);
+			}
+		}
+	}
+
+	/** @return the first 8 bytes of the MD5 digest of a Message-ID */
+	private static long fingerprint(String messageId) {
+		byte[] digest = md5(messageId);
+		long fingerprint = 0;
+		for(int i=0; i<8; ++i) fingerprint = fingerprint << 8 | (digest[i] & 0xFF);
+		return fingerprint;
+	}
+
+	/** @return the MD5 digest of some text */
+	private static byte[] md5(String text) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("MD5 is not supported.", ex);
+		} catch(IOException ex) {
+			throw new IllegalStateException("UTF-8 is not supported.", ex);
+		}
+	}
+
+//> INNER CLASSES
+	/** Record read from the log. */
+	private static class Record {
+		final long expiry;
+		final String messageId;
+		final String correlation;
+
+		Record(long expiry, String messageId, String correlation) {
+			this.expiry = expiry;
+			this.messageId = messageId;
+			this.correlation = correlation;
+		}
+	}
+
+	/** Hash table in an index file. */
+	private static class Table {
+		/** The index file */
+		final RandomAccessFile file;
+		/** Channel used to read and write slots */
+		final FileChannel channel;
+		/** Number of slots, a power of two */
+		final long capacity;
+		/** Number of slots in use */
+		long size;
+
+		private Table(RandomAccessFile file, long capacity, long size) {
+			this.file = file;
+			this.channel = file.getChannel();
+			this.capacity = capacity;
+			this.size = size;
+		}
+
+		/** @return a new, empty table */
+		static Table create(File indexFile, long capacity) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+			file.setLength(0);
+			file.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+			Table table = new Table(file, capacity, 0);
+			table.writeHeader(false);
+			return table;
+		}
+
+		/** @return the table in an index file, or <code>null</code> if there is none, or it was not closed cleanly */
+		static Table open(File indexFile) throws IOException {
+			if(!indexFile.exists() || indexFile.length() < HEADER_SIZE) return null;
+			RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+			file.seek(0);
+			long magic = file.readLong();
+			long capacity = file.readLong();
+			long size = file.readLong();
+			boolean clean = file.readLong() == 1;
+			if(magic != MAGIC || !clean || capacity < MIN_CAPACITY || (capacity & (capacity - 1)) != 0
+					|| file.length() != HEADER_SIZE + capacity * SLOT_SIZE) {
+				file.close();
+				return null;
+			}
+			return new Table(file, capacity, size);
+		}
+
+		/** Writes the header, with the supplied clean flag. */
+		void writeHeader(boolean clean) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putLong(MAGIC).putLong(capacity).putLong(size).putLong(clean ? 1 : 0).flip();
+			while(header.hasRemaining()) channel.write(header, header.position());
+		}
+
+		/** @return the first slot a fingerprint is looked for in */
+		long home(long fingerprint) {
+			return fingerprint & (capacity - 1);
+		}
+
+		/** @return the slot after another, wrapping round at the end */
+		long next(long slot) {
+			return (slot + 1) & (capacity - 1);
+		}
+
+		/** @return the contents of a slot */
+		ByteBuffer read(long slot) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+			long position = HEADER_SIZE + slot * SLOT_SIZE;
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, position + buffer.position()) == -1) throw new IOException("Message index is truncated.");
+			}
+			return buffer;
+		}
+
+		/** Writes a slot. */
+		void write(long slot, long fingerprint, long expiry, long logPosition) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+			buffer.putLong(fingerprint).putLong(expiry).putLong(logPosition + 1).flip();
+			long position = HEADER_SIZE + slot * SLOT_SIZE;
+			while(buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+		}
+
+		/**
+		 * Adds an entry, replacing any entry with the same Message-ID, or else reusing the first expired slot.
+		 * @param log the log the entry's record is in, used to check Message-IDs with the same fingerprint
+		 */
+		void put(long fingerprint, long expiry, long logPosition, String messageId, long now, RandomAccessFile log) throws IOException {
+			long reusable = -1;
+			for(long slot = home(fingerprint), probes = 0; probes < capacity; slot = next(slot), ++probes) {
+				ByteBuffer buffer = read(slot);
+				long position = buffer.getLong(16);
+				if(position == 0) {
+					if(reusable == -1) {
+						reusable = slot;
+						++size;
+					}
+					break;
+				}
+				if(buffer.getLong(0) == fingerprint && readRecord(log, position - 1).messageId.equals(messageId)) {
+					reusable = slot;
+					break;
+				}
+				if(reusable == -1 && buffer.getLong(8) <= now) reusable = slot;
+			}
+			if(reusable == -1) throw new IOException("Message index is full.");
+			write(reusable, fingerprint, expiry, logPosition);
+		}
+
+		/** Closes the index file. */
+		void close() throws IOException {
+			file.close();
+		}
+	}
+}
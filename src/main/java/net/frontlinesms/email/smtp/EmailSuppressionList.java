@@ -0,0 +1,415 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailClock;
+
+/**
+ * List of addresses which emails must not be sent to, such as addresses which have hard-bounced or
+ * unsubscribed.  Senders check every recipient against the list before sending, so lookups never
+ * block: they read an immutable snapshot, which is replaced whole when the list is reloaded.
+ * <p>
+ * The snapshot holds a Bloom filter, which rules out most addresses which are not on the list without
+ * any further work, and a sorted array of 64-bit address fingerprints with their expiry times, which is
+ * binary searched to confirm a match.  Two different addresses share a fingerprint with a probability of
+ * about one in 2<sup>64</sup>, so a confirmed match can be treated as exact.  An entry costs about 17
+ * bytes of heap, whatever the length of its address.
+ * <p>
+ * The list is kept in a text file with one entry per line: "&lt;address&gt; &lt;reason&gt; &lt;expiry
+ * time&gt;", where the expiry time is in milliseconds since the epoch, or -1 if the entry never expires.
+ * Changes are appended to the file, and a later entry for an address replaces any earlier one; removing an
+ * address appends an entry which has already expired.  {@link #compact()} rewrites the file with only the
+ * entries still in force.
+ */
+public class EmailSuppressionList {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EmailSuppressionList.class);
+	/** Expiry time of entries which never expire */
+	public static final long NEVER = -1;
+	/** Encoding of the list file */
+	private static final String CHARSET = "UTF-8";
+	/** Bits of Bloom filter per entry, which gives false positives for about 1% of addresses */
+	private static final int BLOOM_BITS_PER_ENTRY = 10;
+	/** Number of bits set in the Bloom filter for each entry */
+	private static final int BLOOM_HASHES = 7;
+
+	/** Reasons an address is suppressed */
+	public enum Reason {
+		/** Mail to the address was permanently rejected */
+		HARD_BOUNCE,
+		/** The recipient asked not to be sent any more mail */
+		UNSUBSCRIBED,
+		/** The recipient reported mail as spam */
+		COMPLAINT,
+		/** The address was added by hand */
+		MANUAL;
+	}
+
+//> INSTANCE PROPERTIES
+	/** The list file */
+	private final File file;
+	/** Entries loaded from the file when the list was last loaded */
+	private volatile Snapshot snapshot;
+	/** Entries added or removed since the list was last loaded, by normalised address */
+	private final Map<String, Entry> recent = new ConcurrentHashMap<String, Entry>();
+	/** Clock used for entry expiry */
+	private final EmailClock clock;
+
+//> CONSTRUCTORS
+	/**
+	 * Opens a suppression list, creating its file if it does not exist.
+	 * @param file the list file
+	 * @throws IOException if the file could not be read or created
+	 */
+	public EmailSuppressionList(File file) throws IOException {
+		this(file, EmailClock.SYSTEM);
+	}
+
+	/**
+	 * Opens a suppression list, creating its file if it does not exist.
+	 * @param file the list file
+	 * @param clock clock used for entry expiry
+	 * @throws IOException if the file could not be read or created
+	 */
+	public EmailSuppressionList(File file, EmailClock clock) throws IOException {
+		this.file = file;
+		this.clock = clock;
+		if(!file.exists() && !file.createNewFile()) throw new IOException("Unable to create suppression list: " + file);
+		load();
+	}
+
+//> ACCESSORS
+	/**
+	 * @param address an email address
+	 * @return <code>true</code> if emails must not be sent to the address
+	 */
+	public boolean isSuppressed(String address) {
+		String normalised = normalise(address);
+		Entry entry = recent.get(normalised);
+		if(entry != null) return entry.isInForce(clock.currentTimeMillis());
+		return snapshot.isSuppressed(fingerprint(normalised), clock.currentTimeMillis());
+	}
+
+	/**
+	 * @param address an email address
+	 * @return <code>true</code> if emails must not be sent to the address
+	 */
+	public boolean isSuppressed(Address address) {
+		return address instanceof InternetAddress && isSuppressed(((InternetAddress) address).getAddress());
+	}
+
+	/**
+	 * @param addresses email addresses
+	 * @return the addresses which are not suppressed, or <code>addresses</code> itself if none are
+	 */
+	public Address[] filter(Address[] addresses) {
+		List<Address> allowed = new ArrayList<Address>(addresses.length);
+		for(Address address : addresses) {
+			if(isSuppressed(address)) LOG.debug("Not sending to suppressed address: " + address);
+			else allowed.add(address);
+		}
+		if(allowed.size() == addresses.length) return addresses;
+		// Keep the array's type, so that an InternetAddress[] stays one
+		Address[] result = (Address[]) Array.newInstance(addresses.getClass().getComponentType(), allowed.size());
+		return allowed.toArray(result);
+	}
+
+	/** @return the number of entries loaded from the file when the list was last loaded */
+	public int getLoadedSize() {
+		return snapshot.size();
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Adds an address to the list, or replaces its entry.
+	 * @param address the address
+	 * @param reason why the address is suppressed
+	 * @param expiry time in milliseconds since the epoch at which the address stops being suppressed, or {@link #NEVER}
+	 * @throws IOException if the list file could not be written
+	 */
+	public synchronized void add(String address, Reason reason, long expiry) throws IOException {
+		Entry entry = new Entry(reason, expiry);
+		String normalised = normalise(address);
+		Writer out = openForAppend();
+		try {
+			write(out, normalised, entry);
+		} finally {
+			out.close();
+		}
+		recent.put(normalised, entry);
+	}
+
+	/**
+	 * Removes an address from the list.
+	 * @param address the address
+	 * @throws IOException if the list file could not be written
+	 */
+	public synchronized void remove(String address) throws IOException {
+		add(address, Reason.MANUAL, 0);
+	}
+
+	/**
+	 * Adds many addresses at once.  Each line read is either an address, which is added with the
+	 * supplied reason and expiry, or an entry in the format of the list file, as written by
+	 * {@link #exportTo(Writer)}.  Blank lines and lines starting with <code>#</code> are ignored.
+	 * @param in source of the addresses
+	 * @param reason reason for lines which are just an address
+	 * @param expiry expiry time for lines which are just an address, or {@link #NEVER}
+	 * @return the number of entries added
+	 * @throws IOException if the addresses could not be read, or the list file could not be written
+	 */
+	public synchronized int importFrom(Reader in, Reason reason, long expiry) throws IOException {
+		BufferedReader reader = new BufferedReader(in);
+		Writer out = openForAppend();
+		int count = 0;
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(line.length() == 0 || line.charAt(0) == '#') continue;
+				String[] fields = line.split("\\s+");
+				Entry entry = fields.length == 3 ? parse(fields) : new Entry(reason, expiry);
+				if(entry == null) {
+					LOG.warn("Ignoring invalid suppression entry: " + line);
+					continue;
+				}
+				write(out, normalise(fields[0]), entry);
+				++count;
+			}
+		} finally {
+			out.close();
+		}
+		reload();
+		return count;
+	}
+
+	/**
+	 * Writes the entries which are in force, in the format of the list file.
+	 * @param out destination of the entries
+	 * @return the number of entries written
+	 * @throws IOException if the list file could not be read, or the entries could not be written
+	 */
+	public synchronized int exportTo(Writer out) throws IOException {
+		int count = 0;
+		long now = clock.currentTimeMillis();
+		for(Map.Entry<String, Entry> entry : read().entrySet()) {
+			if(entry.getValue().isInForce(now)) {
+				write(out, entry.getKey(), entry.getValue());
+				++count;
+			}
+		}
+		out.flush();
+		return count;
+	}
+
+	/**
+	 * Reloads the list from its file, for example after another process has changed it.  Lookups carry
+	 * on against the old entries until the new ones are ready.
+	 * @throws IOException if the list file could not be read
+	 */
+	public synchronized void reload() throws IOException {
+		load();
+	}
+
+	/**
+	 * Rewrites the list file with only the entries which are in force, and reloads it.
+	 * @throws IOException if the list file could not be read or written
+	 */
+	public synchronized void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), CHARSET));
+		try {
+			exportTo(out);
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(file)) {
+			if(file.exists() && !file.delete() || !temp.renameTo(file)) {
+				throw new IOException("Unable to replace suppression list: " + file);
+			}
+		}
+		reload();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Loads the list from its file, replacing the snapshot. */
+	private void load() throws IOException {
+		Map<String, Entry> entries = read();
+		snapshot = new Snapshot(entries, clock.currentTimeMillis());
+		// Every change in recent has been written to the file, so is in the new snapshot
+		recent.clear();
+		LOG.debug("Loaded " + snapshot.size() + " suppressed addresses from " + file);
+	}
+
+	/** @return the latest entry for each address in the list file, in the order they were first added */
+	private Map<String, Entry> read() throws IOException {
+		Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				// A partly-written last line is ignored
+				String[] fields = line.split(" ");
+				Entry entry = fields.length == 3 ? parse(fields) : null;
+				if(entry != null) entries.put(fields[0], entry);
+			}
+		} finally {
+			in.close();
+		}
+		return entries;
+	}
+
+	/** @return a writer appending to the list file */
+	private Writer openForAppend() throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), CHARSET));
+	}
+
+//> STATIC HELPER METHODS
+	/** Writes an entry in the format of the list file. */
+	private static void write(Writer out, String address, Entry entry) throws IOException {
+		out.write(address + " " + entry.reason + " " + entry.expiry + "\n");
+	}
+
+	/** @return the entry described by the reason and expiry fields of a line, or <code>null</code> if they are invalid */
+	private static Entry parse(String[] fields) {
+		try {
+			return new Entry(Reason.valueOf(fields[1]), Long.parseLong(fields[2]));
+		} catch(IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/** @return an address in the form it is stored in */
+	private static String normalise(String address) {
+		return address.trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	/** @return a 64-bit fingerprint of a normalised address: FNV-1a, with the MurmurHash3 finaliser to mix its bits */
+	static long fingerprint(String address) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0; i<address.length(); ++i) {
+			hash ^= address.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+//> INNER CLASSES
+	/** Reason and expiry time of a suppressed address. */
+	private static class Entry {
+		final Reason reason;
+		final long expiry;
+
+		Entry(Reason reason, long expiry) {
+			this.reason = reason;
+			this.expiry = expiry;
+		}
+
+		/** @return <code>true</code> if the entry has not expired at the supplied time */
+		boolean isInForce(long now) {
+			return expiry == NEVER || expiry > now;
+		}
+	}
+
+	/** Immutable set of entries, which can be searched without locking. */
+	private static class Snapshot {
+		/** Bloom filter of the fingerprints */
+		private final long[] bloom;
+		/** Number of bits in {@link #bloom} */
+		private final int bloomBits;
+		/** Fingerprints of the entries, in ascending order */
+		private final long[] fingerprints;
+		/** Expiry time of the entry with the fingerprint at the same index */
+		private final long[] expiries;
+
+		/**
+		 * @param entries entries by normalised address
+		 * @param now current time; entries which have already expired are left out
+		 */
+		Snapshot(Map<String, Entry> entries, long now) {
+			final long[][] pairs = new long[entries.size()][];
+			int count = 0;
+			for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+				if(entry.getValue().isInForce(now)) {
+					pairs[count++] = new long[] { fingerprint(entry.getKey()), entry.getValue().expiry };
+				}
+			}
+			Arrays.sort(pairs, 0, count, new Comparator<long[]>() {
+				public int compare(long[] one, long[] two) {
+					return one[0] < two[0] ? -1 : one[0] == two[0] ? 0 : 1;
+				}
+			});
+			fingerprints = new long[count];
+			expiries = new long[count];
+			bloomBits = Math.max(64, count * BLOOM_BITS_PER_ENTRY);
+			bloom = new long[(bloomBits + 63) / 64];
+			for(int i=0; i<count; ++i) {
+				fingerprints[i] = pairs[i][0];
+				expiries[i] = pairs[i][1];
+				int h1 = (int) fingerprints[i];
+				int h2 = (int) (fingerprints[i] >>> 32);
+				for(int k=0; k<BLOOM_HASHES; ++k) {
+					int bit = ((h1 + k * h2) & Integer.MAX_VALUE) % bloomBits;
+					bloom[bit >>> 6] |= 1L << bit;
+				}
+			}
+		}
+
+		/** @return the number of entries */
+		int size() {
+			return fingerprints.length;
+		}
+
+		/** @return <code>true</code> if an entry with the fingerprint is in force at the supplied time */
+		boolean isSuppressed(long fingerprint, long now) {
+			int h1 = (int) fingerprint;
+			int h2 = (int) (fingerprint >>> 32);
+			for(int k=0; k<BLOOM_HASHES; ++k) {
+				int bit = ((h1 + k * h2) & Integer.MAX_VALUE) % bloomBits;
+				if((bloom[bit >>> 6] & 1L << bit) == 0) return false;
+			}
+			int index = Arrays.binarySearch(fingerprints, fingerprint);
+			if(index < 0) return false;
+			// Addresses which share a fingerprint are next to each other
+			for(int i=index; i>=0 && fingerprints[i] == fingerprint; --i) {
+				if(expiries[i] == NEVER || expiries[i] > now) return true;
+			}
+			for(int i=index+1; i<fingerprints.length && fingerprints[i] == fingerprint; ++i) {
+				if(expiries[i] == NEVER || expiries[i] > now) return true;
+			}
+			return false;
+		}
+	}
+}
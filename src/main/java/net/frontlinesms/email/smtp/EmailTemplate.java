@@ -0,0 +1,106 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subject or body text containing <code>${name}</code> placeholders.  The template text is parsed
+ * once when it is compiled, so rendering it for each recipient of a mail merge is a straight copy
+ * of literal segments and values into the caller's buffer.
+ */
+public final class EmailTemplate {
+//> STATIC CONSTANTS
+	/** Marks the start of a placeholder in template text. */
+	private static final String PLACEHOLDER_START = "${";
+	/** Marks the end of a placeholder in template text. */
+	private static final char PLACEHOLDER_END = '}';
+	/** Guess at the average length of a substituted value, used when sizing new buffers. */
+	private static final int AVERAGE_VALUE_LENGTH = 16;
+
+//> INSTANCE PROPERTIES
+	/** Literal text segments.  There is always exactly one more literal than there are placeholders. */
+	private final String[] literals;
+	/** Names of the placeholders which sit between each pair of literals. */
+	private final String[] keys;
+	/** Total length of the literal text in this template. */
+	private final int literalLength;
+
+//> CONSTRUCTORS
+	private EmailTemplate(String[] literals, String[] keys) {
+		this.literals = literals;
+		this.keys = keys;
+		int length = 0;
+		for(String literal : literals) length += literal.length();
+		this.literalLength = length;
+	}
+
+//> ACCESSORS
+	/** @return the names of the placeholders in this template, in the order they appear */
+	public String[] getPlaceholderNames() {
+		return keys.clone();
+	}
+
+	/** @return a reasonable initial capacity for a buffer this template will be rendered into */
+	public int getEstimatedLength() {
+		return literalLength + keys.length * AVERAGE_VALUE_LENGTH;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Renders this template into the supplied buffer.  Placeholders with no value in the supplied
+	 * map are rendered as empty text.
+	 * @param values values to substitute for placeholders, keyed on placeholder name
+	 * @param out buffer to append the rendered text to
+	 * @return the supplied buffer
+	 */
+	public StringBuilder render(Map<String, ?> values, StringBuilder out) {
+		out.append(literals[0]);
+		for(int i=0; i<keys.length; ++i) {
+			Object value = values.get(keys[i]);
+			if(value != null) out.append(value);
+			out.append(literals[i + 1]);
+		}
+		return out;
+	}
+
+	/**
+	 * Renders this template into a new {@link String}.
+	 * @param values values to substitute for placeholders, keyed on placeholder name
+	 * @return the rendered text
+	 * @see #render(Map, StringBuilder)
+	 */
+	public String render(Map<String, ?> values) {
+		return render(values, new StringBuilder(getEstimatedLength())).toString();
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * Parses template text.  An opening <code>${</code> with no closing brace is treated as literal text.
+	 * @param template the template text
+	 * @return the compiled template
+	 */
+	public static EmailTemplate compile(String template) {
+		if(template == null) throw new IllegalArgumentException("Template must not be null.");
+		List<String> literals = new ArrayList<String>();
+		List<String> keys = new ArrayList<String>();
+		
+		int literalStart = 0;
+		int searchFrom = 0;
+		while(true) {
+			int start = template.indexOf(PLACEHOLDER_START, searchFrom);
+			if(start == -1) break;
+			int end = template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+			if(end == -1) break;
+			literals.add(template.substring(literalStart, start));
+			keys.add(template.substring(start + PLACEHOLDER_START.length(), end).trim());
+			literalStart = searchFrom = end + 1;
+		}
+		literals.add(template.substring(literalStart));
+		
+		return new EmailTemplate(literals.toArray(new String[literals.size()]), keys.toArray(new String[keys.size()]));
+	}
+}
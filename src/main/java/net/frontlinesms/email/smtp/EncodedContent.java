@@ -0,0 +1,122 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Transfer-encoded content of a {@link PreencodedBodyPart}, held either in memory or in a
+ * memory-mapped file.  Content is immutable once created, so may be shared between threads.
+ */
+abstract class EncodedContent {
+//> ACCESSORS
+	/** @return the number of bytes of content */
+	abstract int getLength();
+
+//> INSTANCE METHODS
+	/**
+	 * Writes the content to a stream.
+	 * @param os the stream to write to
+	 * @throws IOException if there was a problem writing to the stream
+	 */
+	abstract void writeTo(OutputStream os) throws IOException;
+
+	/**
+	 * Writes the content directly to a channel.
+	 * @param target the channel to write to
+	 * @throws IOException if there was a problem writing to the channel
+	 */
+	abstract void transferTo(WritableByteChannel target) throws IOException;
+
+	/** @return a new stream for reading the content */
+	abstract InputStream newInputStream();
+
+//> STATIC FACTORIES
+	/**
+	 * @param content array holding the encoded content.  This array must not be modified once passed to this method.
+	 * @param offset the start of the content in the supplied array
+	 * @param length the length of the content
+	 * @return content held in the supplied array
+	 */
+	static EncodedContent inMemory(byte[] content, int offset, int length) {
+		return new BufferContent(ByteBuffer.wrap(content, offset, length)) {
+			@Override
+			void writeTo(OutputStream os) throws IOException {
+				ByteBuffer buffer = getBuffer();
+				os.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+			}
+		};
+	}
+
+	/**
+	 * @param buffer a buffer, such as a {@link java.nio.MappedByteBuffer}, whose remaining bytes are the content.
+	 * This buffer must not be modified once passed to this method.
+	 * @return content held in the supplied buffer
+	 */
+	static EncodedContent inBuffer(ByteBuffer buffer) {
+		return new BufferContent(buffer);
+	}
+
+//> INNER CLASSES
+	/** Content held in a {@link ByteBuffer}.  Each reader works on its own view of the buffer. */
+	private static class BufferContent extends EncodedContent {
+		/** The content.  The position and limit of this buffer are never changed. */
+		private final ByteBuffer buffer;
+
+		BufferContent(ByteBuffer buffer) {
+			this.buffer = buffer.slice();
+		}
+
+		/** @return a new view of the content, with its own position */
+		ByteBuffer getBuffer() {
+			return buffer.duplicate();
+		}
+
+		@Override
+		int getLength() {
+			return buffer.remaining();
+		}
+
+		@Override
+		void writeTo(OutputStream os) throws IOException {
+			transferTo(Channels.newChannel(os));
+		}
+
+		@Override
+		void transferTo(WritableByteChannel target) throws IOException {
+			ByteBuffer view = getBuffer();
+			while(view.hasRemaining()) {
+				target.write(view);
+			}
+		}
+
+		@Override
+		InputStream newInputStream() {
+			final ByteBuffer view = getBuffer();
+			return new InputStream() {
+				@Override
+				public int read() {
+					return view.hasRemaining() ? view.get() & 0xFF : -1;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) {
+					if(len == 0) return 0;
+					if(!view.hasRemaining()) return -1;
+					len = Math.min(len, view.remaining());
+					view.get(b, off, len);
+					return len;
+				}
+				@Override
+				public int available() {
+					return view.remaining();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.mail.MessagingException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of encoded file attachments, so that a file sent to many recipients is read and
+ * base64-encoded only once.  Entries are keyed on the file's canonical path, size and
+ * modification time, so a file which changes is re-encoded the next time it is attached.
+ * <p>
+ * Encoded parts are kept in memory up to a byte budget.  When that budget is exceeded the least
+ * recently used parts are spilled to memory-mapped temporary files, which have their own budget
+ * beyond which the least recently used files are deleted.  Parts too large for the memory budget
+ * are encoded straight to a temporary file.
+ * <p>
+ * This class is thread-safe.
+ */
+public class EncodedPartCache {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(EncodedPartCache.class);
+	/** Prefix for the names of spooled part files */
+	private static final String SPOOL_FILE_PREFIX = "frontlinesms-part-";
+	/** Suffix for the names of spooled part files */
+	private static final String SPOOL_FILE_SUFFIX = ".mime";
+	/** Maximum size of the header block of an encoded part */
+	private static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+//> INSTANCE PROPERTIES
+	/** Maximum number of bytes of encoded parts held on the heap */
+	private final long memoryBudget;
+	/** Maximum number of bytes of encoded parts held in temporary files */
+	private final long diskBudget;
+	/** Directory in which to create temporary files, or <code>null</code> to use the system default */
+	private final File spoolDirectory;
+	/** Parts held on the heap, in least- to most-recently used order */
+	private final LinkedHashMap<Key, Entry> memoryEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	/** Parts held in temporary files, in least- to most-recently used order */
+	private final LinkedHashMap<Key, Entry> diskEntries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	/** Number of bytes currently held on the heap */
+	private long memoryUsed;
+	/** Number of bytes currently held in temporary files */
+	private long diskUsed;
+	/** Number of requests which were served from the cache */
+	private long hitCount;
+	/** Number of requests which required a file to be encoded */
+	private long missCount;
+
+//> CONSTRUCTORS
+	/**
+	 * @param memoryBudget maximum number of bytes of encoded parts to keep on the heap
+	 * @param diskBudget maximum number of bytes of encoded parts to keep in temporary files
+	 * @param spoolDirectory directory in which to create temporary files, or <code>null</code> to use the system default
+	 */
+	public EncodedPartCache(long memoryBudget, long diskBudget, File spoolDirectory) {
+		if(memoryBudget < 0 || diskBudget < 0) throw new IllegalArgumentException("Budgets must not be negative.");
+		this.memoryBudget = memoryBudget;
+		this.diskBudget = diskBudget;
+		this.spoolDirectory = spoolDirectory;
+	}
+
+//> ACCESSORS
+	/** @return the number of bytes of encoded parts currently held on the heap */
+	public synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+
+	/** @return the number of bytes of encoded parts currently held in temporary files */
+	public synchronized long getDiskUsed() {
+		return diskUsed;
+	}
+
+	/** @return the number of requests which were served from the cache */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/** @return the number of requests which required a file to be encoded */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Gets an encoded attachment part for a file, encoding the file if it is not already cached.
+	 * @param attachment the file to attach
+	 * @return a new part for adding to a single message
+	 * @throws MessagingException if the file could not be read or encoded
+	 */
+	public PreencodedBodyPart getAttachment(File attachment) throws MessagingException {
+		Key key = new Key(attachment);
+		synchronized(this) {
+			Entry entry = get(key);
+			if(entry != null) {
+				++hitCount;
+				return entry.newPart();
+			}
+			++missCount;
+		}
+		
+		// Encode outside the lock so that other attachments can be served in the meantime
+		Entry entry = encode(attachment, key);
+		List<Entry> spills = new ArrayList<Entry>();
+		List<Entry> discards = new ArrayList<Entry>();
+		PreencodedBodyPart part;
+		synchronized(this) {
+			Entry existing = get(key);
+			if(existing != null) {
+				// Another thread encoded the same file while we were
+				discards.add(entry);
+				part = existing.newPart();
+			} else {
+				if(entry.spoolFile == null) {
+					addToMemory(entry, spills);
+				} else {
+					addToDisk(entry, discards);
+				}
+				part = entry.newPart();
+			}
+		}
+		
+		// Evictions are chosen under the lock, but their files are written and deleted outside it
+		for(Entry evicted : spills) spillToDisk(evicted, discards);
+		for(Entry discarded : discards) discarded.discard();
+		return part;
+	}
+
+	/** Removes all entries from this cache, deleting any temporary files. */
+	public void clear() {
+		List<Entry> discards;
+		synchronized(this) {
+			discards = new ArrayList<Entry>(diskEntries.values());
+			memoryEntries.clear();
+			diskEntries.clear();
+			memoryUsed = 0;
+			diskUsed = 0;
+		}
+		for(Entry entry : discards) entry.discard();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** @return the cached entry for the supplied key, or <code>null</code> if there is none */
+	private Entry get(Key key) {
+		Entry entry = memoryEntries.get(key);
+		if(entry == null) entry = diskEntries.get(key);
+		return entry;
+	}
+
+	/**
+	 * Adds an entry to the heap, removing least-recently used entries if the budget is exceeded.
+	 * @param entry the entry to add
+	 * @param spills list to which removed entries which should be spilled to disk are added
+	 */
+	private void addToMemory(Entry entry, List<Entry> spills) {
+		memoryEntries.put(entry.key, entry);
+		memoryUsed += entry.length;
+		
+		Iterator<Entry> eldest = memoryEntries.values().iterator();
+		while(memoryUsed > memoryBudget && eldest.hasNext()) {
+			Entry evicted = eldest.next();
+			eldest.remove();
+			memoryUsed -= evicted.length;
+			if(evicted.length <= diskBudget) {
+				spills.add(evicted);
+			}
+		}
+	}
+
+	/**
+	 * Adds an entry to disk, removing least-recently used files if the budget is exceeded.
+	 * @param entry the entry to add
+	 * @param discards list to which removed entries, whose files should be deleted, are added
+	 */
+	private void addToDisk(Entry entry, List<Entry> discards) {
+		diskEntries.put(entry.key, entry);
+		diskUsed += entry.length;
+		
+		Iterator<Entry> eldest = diskEntries.values().iterator();
+		while(diskUsed > diskBudget && eldest.hasNext()) {
+			Entry evicted = eldest.next();
+			eldest.remove();
+			diskUsed -= evicted.length;
+			discards.add(evicted);
+		}
+	}
+
+	/**
+	 * Writes an entry evicted from the heap to a temporary file and adds it to the disk entries.  This
+	 * must be called without holding the lock on this cache.  If the entry cannot be written it is
+	 * dropped, and the file will be encoded again the next time it is attached.
+	 * @param evicted the entry evicted from the heap
+	 * @param discards list to which entries whose files should be deleted are added
+	 */
+	private void spillToDisk(Entry evicted, List<Entry> discards) {
+		Entry spilled;
+		try {
+			spilled = spill(evicted);
+		} catch(MessagingException ex) {
+			LOG.warn("Unable to spill encoded attachment to disk; it has been dropped from the cache.", ex);
+			return;
+		}
+		synchronized(this) {
+			if(get(spilled.key) != null) {
+				// The file was encoded again while it was being spilled
+				discards.add(spilled);
+			} else {
+				addToDisk(spilled, discards);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a file, on the heap if it is likely to fit in the memory budget or to disk otherwise.
+	 * @param attachment the file to encode
+	 * @param key the cache key for the file
+	 * @return a new entry, not yet added to the cache
+	 * @throws MessagingException if the file could not be read or encoded
+	 */
+	private Entry encode(File attachment, Key key) throws MessagingException {
+		try {
+			if(getEstimatedEncodedLength(key.size) <= memoryBudget) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream((int) getEstimatedEncodedLength(key.size));
+				PreencodedBodyPart.encodeTo(PreencodedBodyPart.createAttachmentPart(attachment), out);
+				byte[] encoded = out.toByteArray();
+				int headerLength = PreencodedBodyPart.getHeaderLength(encoded, encoded.length);
+				return new Entry(key, copyOf(encoded, headerLength),
+						EncodedContent.inMemory(encoded, headerLength, encoded.length - headerLength), encoded.length, null);
+			} else {
+				File spoolFile = createSpoolFile();
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(spoolFile));
+				try {
+					PreencodedBodyPart.encodeTo(PreencodedBodyPart.createAttachmentPart(attachment), out);
+				} finally {
+					out.close();
+				}
+				return map(key, spoolFile);
+			}
+		} catch(IOException ex) {
+			throw new MessagingException("Unable to encode attachment: " + attachment, ex);
+		}
+	}
+
+	/**
+	 * Writes a heap entry to a temporary file.
+	 * @param entry the entry to spill
+	 * @return a new entry for the memory-mapped file
+	 * @throws MessagingException if the file could not be written
+	 */
+	private Entry spill(Entry entry) throws MessagingException {
+		try {
+			File spoolFile = createSpoolFile();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(spoolFile));
+			try {
+				out.write(entry.headerBytes);
+				entry.content.writeTo(out);
+			} finally {
+				out.close();
+			}
+			return map(entry.key, spoolFile);
+		} catch(IOException ex) {
+			throw new MessagingException("Unable to spill encoded attachment to disk.", ex);
+		}
+	}
+
+	/** @return a new, empty temporary file */
+	private File createSpoolFile() throws IOException {
+		return File.createTempFile(SPOOL_FILE_PREFIX, SPOOL_FILE_SUFFIX, spoolDirectory);
+	}
+
+	/**
+	 * Memory-maps a file containing an encoded part.
+	 * @param key the cache key for the part
+	 * @param spoolFile file containing the headers and content of the part
+	 * @return a new entry for the file
+	 * @throws IOException if the file could not be mapped
+	 * @throws MessagingException if the file does not contain a valid part
+	 */
+	private static Entry map(Key key, File spoolFile) throws IOException, MessagingException {
+		RandomAccessFile file = new RandomAccessFile(spoolFile, "r");
+		try {
+			long length = file.length();
+			if(length > Integer.MAX_VALUE) throw new MessagingException("Encoded attachment too large: " + length + " bytes");
+			// The mapping remains valid after the file is closed
+			MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			
+			byte[] prefix = new byte[(int) Math.min(length, MAX_HEADER_LENGTH)];
+			mapped.get(prefix);
+			int headerLength = PreencodedBodyPart.getHeaderLength(prefix, prefix.length);
+			mapped.position(headerLength);
+			return new Entry(key, copyOf(prefix, headerLength), EncodedContent.inBuffer(mapped), length, spoolFile);
+		} finally {
+			file.close();
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/** @return a generous estimate of the size of a file once it has been base64 encoded */
+	private static long getEstimatedEncodedLength(long size) {
+		// 4 bytes out for every 3 in, plus CRLF every 76 characters, plus headers
+		return (size * 4 / 3) + (size / 38) + 1024;
+	}
+
+	/** @return a copy of the first <code>length</code> bytes of the supplied array */
+	private static byte[] copyOf(byte[] bytes, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, 0, copy, 0, length);
+		return copy;
+	}
+
+//> INNER CLASSES
+	/** Identifies a particular version of a file. */
+	private static final class Key {
+		private final String path;
+		private final long lastModified;
+		private final long size;
+
+		Key(File file) throws MessagingException {
+			try {
+				this.path = file.getCanonicalPath();
+			} catch(IOException ex) {
+				throw new MessagingException("Unable to resolve attachment path: " + file, ex);
+			}
+			this.lastModified = file.lastModified();
+			this.size = file.length();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) return false;
+			Key that = (Key) obj;
+			return this.path.equals(that.path) && this.lastModified == that.lastModified && this.size == that.size;
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() ^ (int) (lastModified ^ (lastModified >>> 32)) ^ (int) size;
+		}
+	}
+
+	/** An encoded part held by the cache. */
+	private static final class Entry {
+		private final Key key;
+		/** Encoded headers of the part, including the blank line which follows them */
+		private final byte[] headerBytes;
+		/** Encoded content of the part */
+		private final EncodedContent content;
+		/** Total encoded length of the part */
+		private final long length;
+		/** The temporary file backing this entry, or <code>null</code> if it is held on the heap */
+		private final File spoolFile;
+
+		Entry(Key key, byte[] headerBytes, EncodedContent content, long length, File spoolFile) {
+			this.key = key;
+			this.headerBytes = headerBytes;
+			this.content = content;
+			this.length = length;
+			this.spoolFile = spoolFile;
+		}
+
+		/** @return a new part sharing this entry's encoded bytes */
+		PreencodedBodyPart newPart() throws MessagingException {
+			return new PreencodedBodyPart(headerBytes, content);
+		}
+
+		/** Deletes the temporary file backing this entry, if there is one. */
+		void discard() {
+			// Parts already handed out keep working, as a mapping outlives the deletion of its file
+			if(spoolFile != null && !spoolFile.delete()) {
+				LOG.warn("Unable to delete spooled part: " + spoolFile);
+			}
+		}
+	}
+}
@@ -0,0 +1,442 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.activation.DataSource;
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimePartDataSource;
+
+import org.apache.log4j.Logger;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import net.frontlinesms.email.net.EmailEndpointHealth;
+import net.frontlinesms.email.net.EmailEndpointUnavailableException;
+
+/**
+ * {@link SMTPTransport} which also supports the SMTP extensions which reduce the bytes sent for a message:
+ * <ul>
+ * <li>8BITMIME (RFC 6152): when <code>mail.smtp.allow8bitmime</code> is set, JavaMail sends text parts
+ * unencoded; this transport also declares BODY=8BITMIME, as the extension requires.</li>
+ * <li>CHUNKING (RFC 3030): when {@link #PROPERTY_CHUNK_SIZE} is set, content is sent with BDAT commands
+ * rather than DATA, so it needs no dot-stuffing.</li>
+ * <li>BINARYMIME (RFC 3030): when {@link #PROPERTY_BINARYMIME} is set, base64 and quoted-printable parts
+ * are sent unencoded, saving a quarter of the size of binary attachments.  If the server also advertises
+ * PIPELINING, binary content is sent in chunks of exactly the chunk size, whatever it contains.</li>
+ * </ul>
+ * Each extension is only used if the server advertises it; otherwise the message is sent exactly as
+ * {@link SMTPTransport} would send it.
+ * <p>
+ * If a session has an {@link EmailSuppressionList} in {@link #PROPERTY_SUPPRESSION_LIST}, suppressed
+ * recipients are dropped from every message before it is sent, and a message whose recipients are all
+ * suppressed is not sent at all.
+ * <p>
+ * Connections are made through the server's {@link EmailEndpointHealth}, so that while the server is down
+ * sends fail immediately rather than each waiting for the connection to time out.
+ * <p>
+ * Register this for a session with {@link #register(Session)}.
+ */
+public class ExtendedSmtpTransport extends SMTPTransport {
+//> STATIC CONSTANTS
+	/** Logging object */
+	private static Logger LOG = Logger.getLogger(ExtendedSmtpTransport.class);
+	/** Session property giving the size of BDAT chunks, in bytes; zero or unset to send content with DATA */
+	public static final String PROPERTY_CHUNK_SIZE = "mail.smtp.chunksize";
+	/** Session property which, if <code>true</code>, sends encoded parts as binary when the server supports BINARYMIME */
+	public static final String PROPERTY_BINARYMIME = "mail.smtp.binarymime";
+	/** Session property holding the {@link EmailEndpointHealth} of the server; if unset, the shared health of the server is used */
+	public static final String PROPERTY_ENDPOINT_HEALTH = "mail.smtp.endpointhealth";
+	/** Session property holding the {@link EmailSuppressionList} recipients are checked against; if unset, no recipients are suppressed */
+	public static final String PROPERTY_SUPPRESSION_LIST = "mail.smtp.suppressionlist";
+	/** Port used for SMTP if none is configured */
+	private static final int DEFAULT_PORT = 25;
+	/** Port used for SMTP over SSL if none is configured */
+	private static final int DEFAULT_SSL_PORT = 465;
+	/** Chunk size used for BINARYMIME messages if {@link #PROPERTY_CHUNK_SIZE} is not set */
+	private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	/** Transfer encoding header */
+	private static final String HEADER_CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+	/** Encoding used for SMTP commands */
+	private static final String COMMAND_CHARSET = "US-ASCII";
+
+//> INSTANCE PROPERTIES
+	/** Value of the BODY parameter for the message being sent, or <code>null</code> if none should be declared */
+	private String bodyType;
+	/** Size of BDAT chunks for the message being sent, or zero to send it with DATA */
+	private int chunkSize;
+	/** Stream the message being sent is written to, if it is sent with BDAT */
+	private ChunkOutputStream chunkStream;
+
+//> CONSTRUCTORS
+	public ExtendedSmtpTransport(Session session, URLName urlname) {
+		super(session, urlname);
+	}
+
+//> STATIC FACTORIES
+	/**
+	 * Makes a session use this transport for the <code>smtp</code> protocol.
+	 * @param session the session
+	 */
+	public static void register(Session session) {
+		try {
+			session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", ExtendedSmtpTransport.class.getName(), "FrontlineSMS", null));
+		} catch(MessagingException ex) {
+			throw new IllegalStateException("Unable to register SMTP transport: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the health of the SMTP server of a session.
+	 * @param session the session
+	 * @param host host name of the server, or <code>null</code> to use the session's <code>mail.smtp.host</code>
+	 * @param port port of the server, or <code>-1</code> to use the session's <code>mail.smtp.port</code> or the default port
+	 * @return the health set in {@link #PROPERTY_ENDPOINT_HEALTH}, or the shared health of the server
+	 */
+	public static EmailEndpointHealth getEndpointHealth(Session session, String host, int port) {
+		Object health = session.getProperties().get(PROPERTY_ENDPOINT_HEALTH);
+		if(health instanceof EmailEndpointHealth) return (EmailEndpointHealth) health;
+		if(host == null) host = session.getProperty("mail.smtp.host");
+		if(host == null) host = "localhost";
+		if(port == -1) {
+			String configuredPort = session.getProperty("mail.smtp.port");
+			if(configuredPort != null) port = Integer.parseInt(configuredPort);
+			else port = Boolean.valueOf(session.getProperty("mail.smtp.ssl.enable")).booleanValue() ? DEFAULT_SSL_PORT : DEFAULT_PORT;
+		}
+		return EmailEndpointHealth.forEndpoint(host, port);
+	}
+
+	/**
+	 * @param session the session
+	 * @return the suppression list set in {@link #PROPERTY_SUPPRESSION_LIST}, or <code>null</code> if none is set
+	 */
+	public static EmailSuppressionList getSuppressionList(Session session) {
+		Object suppressionList = session.getProperties().get(PROPERTY_SUPPRESSION_LIST);
+		return suppressionList instanceof EmailSuppressionList ? (EmailSuppressionList) suppressionList : null;
+	}
+
+//> SERVICE METHODS
+	@Override
+	protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+		EmailEndpointHealth health = getEndpointHealth(session, host, port);
+		try {
+			health.acquire();
+		} catch(EmailEndpointUnavailableException ex) {
+			throw new MessagingException(ex.getMessage(), ex);
+		}
+		MessagingException failure = null;
+		try {
+			return super.protocolConnect(host, port, user, password);
+		} catch(MessagingException ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			health.recordResult(failure);
+		}
+	}
+
+//> TRANSPORT METHODS
+	@Override
+	public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+		EmailSuppressionList suppressionList = getSuppressionList(session);
+		if(suppressionList != null && addresses != null && addresses.length > 0) {
+			addresses = suppressionList.filter(addresses);
+			if(addresses.length == 0) {
+				LOG.info("Not sending email: all of its recipients are suppressed.");
+				return;
+			}
+		}
+		int configuredChunkSize = getIntProperty(PROPERTY_CHUNK_SIZE);
+		boolean chunking = supportsExtension("CHUNKING");
+		List<EncodingChange> changes = new ArrayList<EncodingChange>();
+		try {
+			chunkSize = chunking ? configuredChunkSize : 0;
+			bodyType = null;
+			if(chunking && isSet(PROPERTY_BINARYMIME) && supportsExtension("BINARYMIME") && message instanceof MimeMessage) {
+				if(convertToBinary((MimeMessage) message, changes)) {
+					bodyType = "BINARYMIME";
+					if(chunkSize <= 0) chunkSize = DEFAULT_CHUNK_SIZE;
+				}
+			}
+			if(bodyType == null && isSet("mail.smtp.allow8bitmime") && supportsExtension("8BITMIME")) {
+				bodyType = "8BITMIME";
+			}
+			super.sendMessage(message, addresses);
+		} catch(MessagingException ex) {
+			// A connection lost part way through a message counts against the server, as a failed connect does
+			if(EmailEndpointHealth.isConnectionFailure(ex)) {
+				URLName url = getURLName();
+				getEndpointHealth(session, url == null ? null : url.getHost(), url == null ? -1 : url.getPort()).recordFailure(ex);
+			}
+			throw ex;
+		} finally {
+			bodyType = null;
+			chunkSize = 0;
+			chunkStream = null;
+			// Leave the message as we found it, in case it is sent again through another server
+			for(EncodingChange change : changes) change.undo();
+		}
+	}
+
+//> SMTPTRANSPORT METHODS
+	@Override
+	protected void sendCommand(String command) throws MessagingException {
+		if(bodyType != null && command.startsWith("MAIL FROM:")) {
+			command += " BODY=" + bodyType;
+		}
+		super.sendCommand(command);
+	}
+
+	@Override
+	protected OutputStream data() throws MessagingException {
+		if(chunkSize <= 0) return super.data();
+		// Binary content may have no line breaks at all, so it is cut at the chunk size if the server lets us pipeline
+		boolean exact = "BINARYMIME".equals(bodyType) && supportsExtension("PIPELINING");
+		chunkStream = new ChunkOutputStream(chunkSize, exact);
+		return chunkStream;
+	}
+
+	@Override
+	protected void finishData() throws IOException, MessagingException {
+		if(chunkStream == null) {
+			super.finishData();
+		} else {
+			chunkStream.finish();
+		}
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Sends a BDAT command and its chunk of content, and reads the server's response.  As JavaMail does not
+	 * expose its raw output stream, the content is sent as part of the command line, and JavaMail appends
+	 * CRLF to each command.  If the chunk ends with CRLF, that is the chunk's final CRLF.  Otherwise a NOOP
+	 * command is pipelined after the chunk to take the CRLF, which needs the server to support PIPELINING.
+	 * @param chunk buffer holding the chunk
+	 * @param length length of the chunk
+	 * @param last <code>true</code> if this is the last chunk of the message, which must end with CRLF
+	 */
+	private void sendChunk(byte[] chunk, int length, boolean last) throws MessagingException {
+		boolean lineEnd = length >= 2 && chunk[length - 2] == '\r' && chunk[length - 1] == '\n';
+		byte[] command;
+		byte[] noop;
+		try {
+			command = ("BDAT " + length + (last ? " LAST" : "") + "\r\n").getBytes(COMMAND_CHARSET);
+			noop = "NOOP".getBytes(COMMAND_CHARSET);
+		} catch(UnsupportedEncodingException ex) {
+			throw new IllegalStateException(COMMAND_CHARSET + " not supported.");
+		}
+		int contentLength = lineEnd ? length - 2 : length;
+		byte[] line = new byte[command.length + contentLength + (lineEnd ? 0 : noop.length)];
+		System.arraycopy(command, 0, line, 0, command.length);
+		System.arraycopy(chunk, 0, line, command.length, contentLength);
+		if(!lineEnd) System.arraycopy(noop, 0, line, command.length + contentLength, noop.length);
+		int response = simpleCommand(line);
+		String failure = response == 250 ? null : getLastServerResponse();
+		// The NOOP's response must be read even if the chunk failed, to keep the connection in step
+		if(!lineEnd && readServerResponse() != 250 && failure == null) {
+			throw new MessagingException("NOOP after BDAT failed: " + getLastServerResponse());
+		}
+		if(failure != null) {
+			throw new MessagingException("BDAT failed: " + failure);
+		}
+	}
+
+	/**
+	 * Labels the base64 and quoted-printable parts of a message as binary, so they are sent unencoded.
+	 * Only parts whose content came from a data source or object are changed; parts parsed from an
+	 * existing message, and {@link PreencodedBodyPart}s, are already encoded and are left as they are.
+	 * @param message the message to change
+	 * @param changes list the changes are added to, so they can be undone
+	 * @return <code>true</code> if any part was changed
+	 */
+	private boolean convertToBinary(MimePart part, List<EncodingChange> changes) throws MessagingException {
+		if(part instanceof PreencodedBodyPart) return false;
+		DataSource source = part.getDataHandler().getDataSource();
+		if(source instanceof MimePartDataSource) return false;
+		
+		boolean changed = false;
+		if(part.isMimeType("multipart/*")) {
+			Object content;
+			try {
+				content = part.getContent();
+			} catch(IOException ex) {
+				return false;
+			}
+			if(!(content instanceof Multipart)) return false;
+			Multipart multipart = (Multipart) content;
+			for(int i=0; i<multipart.getCount(); ++i) {
+				if(multipart.getBodyPart(i) instanceof MimePart) {
+					changed |= convertToBinary((MimePart) multipart.getBodyPart(i), changes);
+				}
+			}
+		} else if(part.isMimeType("message/rfc822")) {
+			return false;
+		} else {
+			String encoding = part.getEncoding();
+			changed = "base64".equalsIgnoreCase(encoding) || "quoted-printable".equalsIgnoreCase(encoding);
+		}
+		// A multipart containing a binary part must be labelled binary too
+		if(changed) changes.add(new EncodingChange(part, part.getHeader(HEADER_CONTENT_TRANSFER_ENCODING, null), "binary"));
+		return changed;
+	}
+
+	/** @return the value of an integer session property, or zero if it is not set or not a number */
+	private int getIntProperty(String name) {
+		try {
+			String value = session.getProperty(name);
+			return value == null ? 0 : Integer.parseInt(value.trim());
+		} catch(NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	/** @return <code>true</code> if a boolean session property is set to <code>true</code> */
+	private boolean isSet(String name) {
+		return Boolean.valueOf(session.getProperty(name)).booleanValue();
+	}
+
+//> INNER CLASSES
+	/** Change to the transfer encoding of a part, which can be undone. */
+	private static class EncodingChange {
+		/** The changed part */
+		private final MimePart part;
+		/** The part's transfer encoding header before the change, or <code>null</code> if it had none */
+		private final String original;
+
+		EncodingChange(MimePart part, String original, String encoding) throws MessagingException {
+			this.part = part;
+			this.original = original;
+			part.setHeader(HEADER_CONTENT_TRANSFER_ENCODING, encoding);
+		}
+
+		void undo() {
+			try {
+				if(original == null) part.removeHeader(HEADER_CONTENT_TRANSFER_ENCODING);
+				else part.setHeader(HEADER_CONTENT_TRANSFER_ENCODING, original);
+			} catch(MessagingException ex) {
+				// The part was writable when it was changed, so this should never happen
+				throw new IllegalStateException(ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Buffers message content and sends it in BDAT chunks.  Unless chunks are exact, they are split
+	 * after a CRLF, so a chunk may grow beyond the chunk size if the content has long lines.
+	 */
+	private class ChunkOutputStream extends OutputStream {
+		/** Size at which a chunk is sent */
+		private final int chunkSize;
+		/** <code>true</code> if every chunk but the last is exactly {@link #chunkSize} bytes, wherever that falls in the content */
+		private final boolean exact;
+		/** Content not yet sent */
+		private final Buffer buffer;
+
+		ChunkOutputStream(int chunkSize, boolean exact) {
+			this.chunkSize = chunkSize;
+			this.exact = exact;
+			this.buffer = new Buffer(chunkSize + 1024);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			buffer.write(b);
+			if(buffer.size() >= chunkSize) sendChunks();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			buffer.write(b, off, len);
+			if(buffer.size() >= chunkSize) sendChunks();
+		}
+
+		/** Sends the buffered content as chunks of exactly the chunk size, or up to its last CRLF as one chunk. */
+		private void sendChunks() throws IOException {
+			try {
+				if(exact) {
+					while(buffer.size() >= chunkSize) {
+						sendChunk(buffer.array(), chunkSize, false);
+						buffer.discard(chunkSize);
+					}
+				} else {
+					int end = buffer.lastLineEnd();
+					if(end == -1) return;
+					sendChunk(buffer.array(), end, false);
+					buffer.discard(end);
+				}
+			} catch(MessagingException ex) {
+				IOException ioex = new IOException(ex.getMessage());
+				ioex.initCause(ex);
+				throw ioex;
+			}
+		}
+
+		/** Sends the remaining content as the last chunk, ending it with a CRLF if it does not already end with one. */
+		void finish() throws MessagingException {
+			if(buffer.lastLineEnd() != buffer.size()) {
+				buffer.write('\r');
+				buffer.write('\n');
+			}
+			sendChunk(buffer.array(), buffer.size(), true);
+			buffer.reset();
+		}
+	}
+
+	/** {@link ByteArrayOutputStream} which exposes its buffer, and finds line ends without rescanning content. */
+	private static class Buffer extends ByteArrayOutputStream {
+		/** Length of the content up to and including the last CRLF found, or -1 if none has been found */
+		private int lineEnd = -1;
+		/** Length of the content which has been searched for CRLFs */
+		private int scanned;
+
+		Buffer(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		/** @return the length of the content up to and including its last CRLF, or -1 if it has none */
+		int lastLineEnd() {
+			for(int i=count; i>=Math.max(2, scanned + 1); --i) {
+				if(buf[i - 2] == '\r' && buf[i - 1] == '\n') {
+					lineEnd = i;
+					break;
+				}
+			}
+			scanned = count;
+			return lineEnd;
+		}
+
+		/** Removes the first bytes of the content. */
+		void discard(int length) {
+			System.arraycopy(buf, length, buf, 0, count - length);
+			count -= length;
+			lineEnd = lineEnd > length ? lineEnd - length : -1;
+			scanned = Math.max(0, scanned - length);
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			lineEnd = -1;
+			scanned = 0;
+		}
+	}
+}
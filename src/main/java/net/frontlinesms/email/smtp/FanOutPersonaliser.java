@@ -0,0 +1,22 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Adjusts the headers of each copy of a message sent by {@link SmtpFanOut}.
+ */
+public interface FanOutPersonaliser {
+	/**
+	 * Personalises the copy of a message for one recipient.  Only headers should be changed
+	 * here; setting new content forces the whole message to be re-encoded for this recipient.
+	 * @param message the recipient's copy of the message, whose To header is already set to the recipient
+	 * @param recipient the recipient
+	 * @throws MessagingException if the headers could not be set
+	 */
+	public void personalise(MimeMessage message, InternetAddress recipient) throws MessagingException;
+}
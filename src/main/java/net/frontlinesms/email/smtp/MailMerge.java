@@ -0,0 +1,154 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailException;
+
+/**
+ * Sends a personalised copy of one email to each of many recipients.  The subject and body
+ * templates are compiled once, and rendered into the same buffers for every recipient.  Parts
+ * shared by every message, such as a common attachment, are encoded once when they are added.
+ * All messages in a merge are sent over a single {@link SmtpBatch} connection.
+ */
+public class MailMerge {
+//> INSTANCE PROPERTIES
+	/** Logging object */
+	private final Logger log = Logger.getLogger(this.getClass());
+	/** Sender used to create and deliver the messages */
+	private final SmtpEmailSender sender;
+	/** Template for the subject of each message */
+	private final EmailTemplate subjectTemplate;
+	/** Template for the text content of each message */
+	private final EmailTemplate bodyTemplate;
+	/** Parts added unchanged to every message */
+	private final List<PreencodedBodyPart> sharedParts = new ArrayList<PreencodedBodyPart>();
+	/** The address each message should show in the "from" field */
+	private Address fromAddress;
+
+//> CONSTRUCTORS
+	/**
+	 * @param sender the sender used to deliver the merged messages
+	 * @param subjectTemplate template for the subject of each message
+	 * @param bodyTemplate template for the text content of each message
+	 */
+	public MailMerge(SmtpEmailSender sender, EmailTemplate subjectTemplate, EmailTemplate bodyTemplate) {
+		if(sender == null) throw new IllegalArgumentException("Sender must not be null.");
+		this.sender = sender;
+		this.subjectTemplate = subjectTemplate;
+		this.bodyTemplate = bodyTemplate;
+		this.fromAddress = sender.getLocalEmailAddress();
+	}
+
+//> ACCESSORS
+	/** @param fromAddress the address each message should show in the "from" field */
+	public void setFromAddress(Address fromAddress) {
+		this.fromAddress = fromAddress;
+	}
+
+	/** @return the address each message should show in the "from" field */
+	public Address getFromAddress() {
+		return fromAddress;
+	}
+
+	/**
+	 * Attaches a file to every message in this merge.  The file is read and encoded immediately,
+	 * unless it is already held in the sender's {@link SmtpEmailSender#getAttachmentCache()}.
+	 * @param attachment the file to attach
+	 * @throws EmailException if the file could not be read or encoded
+	 */
+	public void addSharedAttachment(File attachment) throws EmailException {
+		try {
+			EncodedPartCache cache = sender.getAttachmentCache();
+			sharedParts.add(cache != null ? cache.getAttachment(attachment) : PreencodedBodyPart.forFile(attachment));
+		} catch(MessagingException ex) {
+			throw new EmailException(ex);
+		}
+	}
+
+	/**
+	 * Adds a body part to every message in this merge.  The part is encoded immediately, and
+	 * should not be modified afterwards.
+	 * @param part the part to add
+	 * @throws EmailException if the part could not be encoded
+	 */
+	public void addSharedPart(MimeBodyPart part) throws EmailException {
+		try {
+			sharedParts.add(part instanceof PreencodedBodyPart ? (PreencodedBodyPart) part : PreencodedBodyPart.encode(part));
+		} catch(MessagingException ex) {
+			throw new EmailException(ex);
+		}
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Renders and sends one message per recipient.  A message which is rejected is logged and
+	 * skipped; the merge only stops early if the connection to the server is lost.
+	 * @param recipients the recipients of the merge
+	 * @return the number of messages which were sent successfully
+	 * @throws EmailException if the connection to the SMTP server could not be opened, or was lost
+	 */
+	public int send(Iterable<MailMergeRecipient> recipients) throws EmailException {
+		StringBuilder subject = new StringBuilder(subjectTemplate.getEstimatedLength());
+		StringBuilder body = new StringBuilder(bodyTemplate.getEstimatedLength());
+		
+		SmtpBatch batch = sender.openBatch();
+		try {
+			for(MailMergeRecipient recipient : recipients) {
+				subject.setLength(0);
+				body.setLength(0);
+				subjectTemplate.render(recipient.getValues(), subject);
+				bodyTemplate.render(recipient.getValues(), body);
+				
+				try {
+					batch.send(createMessage(recipient.getRecipients(), subject.toString(), body.toString()));
+				} catch(MessagingException ex) {
+					log.info("Unable to create merged email for " + recipient.getRecipients(), ex);
+				} catch(EmailException ex) {
+					if(!batch.isConnected()) throw ex;
+				}
+			}
+			return batch.getSentCount();
+		} finally {
+			batch.close();
+		}
+	}
+
+	/** @return a new message with the supplied rendered text and all shared parts */
+	private Message createMessage(String recipients, String subject, String textContent) throws MessagingException {
+		MimeMessage msg = sender.createMessage();
+		msg.setFrom(fromAddress);
+		msg.setRecipients(Message.RecipientType.TO, recipients);
+		msg.setSubject(subject);
+		msg.setSentDate(new Date());
+		
+		if(sharedParts.isEmpty()) {
+			msg.setText(textContent);
+		} else {
+			Multipart multipart = new MimeMultipart();
+			MimeBodyPart messageBodyPart = new PooledBodyPart();
+			messageBodyPart.setText(textContent);
+			multipart.addBodyPart(messageBodyPart);
+			for(PreencodedBodyPart shared : sharedParts) {
+				multipart.addBodyPart(shared.duplicate());
+			}
+			msg.setContent(multipart);
+		}
+		return msg;
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A recipient of a {@link MailMerge}, and the values to substitute into the templates for them.
+ */
+public class MailMergeRecipient {
+//> INSTANCE PROPERTIES
+	/** The recipient email address(es), as per {@link javax.mail.internet.InternetAddress#parse(String)} */
+	private final String recipients;
+	/** Values to substitute into the merge templates, keyed on placeholder name */
+	private final Map<String, ?> values;
+
+//> CONSTRUCTORS
+	/**
+	 * @param recipients the recipient email address(es), as per {@link javax.mail.internet.InternetAddress#parse(String)}
+	 * @param values values to substitute into the merge templates, keyed on placeholder name, or
+	 * <code>null</code> to render every placeholder as empty text
+	 */
+	public MailMergeRecipient(String recipients, Map<String, ?> values) {
+		this.recipients = recipients;
+		this.values = values != null ? values : Collections.<String, Object>emptyMap();
+	}
+
+//> ACCESSORS
+	/** @return the recipient email address(es) */
+	public String getRecipients() {
+		return recipients;
+	}
+
+	/** @return values to substitute into the merge templates, keyed on placeholder name */
+	public Map<String, ?> getValues() {
+		return values;
+	}
+}
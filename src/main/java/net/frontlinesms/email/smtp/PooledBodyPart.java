@@ -0,0 +1,61 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import net.frontlinesms.email.mime.MimeStreams;
+
+/**
+ * {@link MimeBodyPart} which is written with the encoders of {@link MimeStreams}, whose buffers come
+ * from a shared pool, rather than with JavaMail's encoders, which allocate new buffers for every part.
+ * The content of a file or byte array is copied straight from its source into the encoder.  The bytes
+ * written are the same as {@link MimeBodyPart} writes, except that a space at the very end of
+ * quoted-printable content is written as <code>=20</code> when the encoder finishes, where
+ * {@link MimeBodyPart} drops it.
+ */
+public class PooledBodyPart extends MimeBodyPart {
+//> STATIC CONSTANTS
+	/** Line break after each header, and after the headers */
+	private static final byte[] CRLF = { '\r', '\n' };
+
+//> INSTANCE METHODS
+	@Override
+	public void writeTo(OutputStream out) throws IOException, MessagingException {
+		if(isMimeType("multipart/*") || isMimeType("message/*")) {
+			// JavaMail restricts the encoding of nested content, which is not worth repeating here
+			super.writeTo(out);
+			return;
+		}
+		Enumeration<?> headerLines = getAllHeaderLines();
+		while(headerLines.hasMoreElements()) {
+			out.write(((String) headerLines.nextElement()).getBytes("ISO-8859-1"));
+			out.write(CRLF);
+		}
+		out.write(CRLF);
+		
+		OutputStream encoder = MimeStreams.encode(out, getEncoding());
+		DataSource source = getDataHandler().getDataSource();
+		if(source instanceof FileDataSource || source instanceof ByteArrayDataSource) {
+			InputStream in = source.getInputStream();
+			try {
+				MimeStreams.copy(in, encoder);
+			} finally {
+				in.close();
+			}
+		} else {
+			getDataHandler().writeTo(encoder);
+		}
+		MimeStreams.finish(encoder);
+	}
+}
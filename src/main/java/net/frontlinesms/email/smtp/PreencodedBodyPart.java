@@ -0,0 +1,209 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * {@link MimeBodyPart} whose headers and transfer-encoded content were generated once, up front.
+ * Writing this part copies the stored bytes rather than re-reading and re-encoding its source,
+ * so the same attachment can be added to any number of messages for the price of a memory copy.
+ */
+public class PreencodedBodyPart extends MimeBodyPart {
+//> STATIC CONSTANTS
+	/** Content passed to the superclass, which never reads it as {@link #getContentStream()} is overridden. */
+	private static final byte[] NO_CONTENT = new byte[0];
+
+//> INSTANCE PROPERTIES
+	/** The headers of this part, and the blank line which follows them, exactly as written to the wire. */
+	private final byte[] headerBytes;
+	/** The transfer-encoded content of this part. */
+	private final EncodedContent content;
+
+//> CONSTRUCTORS
+	/**
+	 * Creates a new part from bytes which have already been encoded.
+	 * @param encoded the complete encoded part, including its headers
+	 * @throws MessagingException if the headers could not be parsed
+	 */
+	public PreencodedBodyPart(byte[] encoded) throws MessagingException {
+		this(encoded, getHeaderLength(encoded, encoded.length));
+	}
+
+	private PreencodedBodyPart(byte[] encoded, int headerLength) throws MessagingException {
+		this(copyOf(encoded, headerLength), EncodedContent.inMemory(encoded, headerLength, encoded.length - headerLength));
+	}
+
+	/**
+	 * @param headerBytes the encoded headers, including the blank line which follows them
+	 * @param content the encoded content
+	 * @throws MessagingException if the headers could not be parsed
+	 */
+	PreencodedBodyPart(byte[] headerBytes, EncodedContent content) throws MessagingException {
+		super(new InternetHeaders(new ByteArrayInputStream(headerBytes)), NO_CONTENT);
+		this.headerBytes = headerBytes;
+		this.content = content;
+	}
+
+//> ACCESSORS
+	/** @return the number of bytes written each time this part is sent */
+	public int getEncodedLength() {
+		return headerBytes.length + content.getLength();
+	}
+
+	@Override
+	public int getSize() {
+		return content.getLength();
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Creates another part sharing this part's encoded bytes, for adding to a different message.
+	 * Only the headers are re-parsed; the content is not copied.
+	 * @return a new part with the same content as this one
+	 * @throws MessagingException if the headers could not be parsed
+	 */
+	public PreencodedBodyPart duplicate() throws MessagingException {
+		return new PreencodedBodyPart(headerBytes, content);
+	}
+
+	/** Writes the stored bytes unchanged. */
+	@Override
+	public void writeTo(OutputStream os) throws IOException, MessagingException {
+		os.write(headerBytes);
+		content.writeTo(os);
+	}
+
+	/**
+	 * Writes the stored bytes unchanged, directly to a channel.
+	 * @param target the channel to write to
+	 * @throws IOException if there was a problem writing to the channel
+	 */
+	public void transferTo(WritableByteChannel target) throws IOException {
+		ByteBuffer headers = ByteBuffer.wrap(headerBytes);
+		while(headers.hasRemaining()) {
+			target.write(headers);
+		}
+		content.transferTo(target);
+	}
+
+	/** @return the stored content, which is decoded by the superclass as required */
+	@Override
+	protected InputStream getContentStream() {
+		return content.newInputStream();
+	}
+
+	/** Headers were finalised when this part was encoded, and must match the stored bytes. */
+	@Override
+	protected void updateHeaders() throws MessagingException {}
+
+//> STATIC FACTORIES
+	/**
+	 * Encodes a file attachment.
+	 * @param attachment the file to attach
+	 * @return a part containing the encoded file
+	 * @throws MessagingException if there was a problem reading or encoding the file
+	 */
+	public static PreencodedBodyPart forFile(File attachment) throws MessagingException {
+		return new PreencodedBodyPart(encodeToBytes(createAttachmentPart(attachment)));
+	}
+
+	/**
+	 * Encodes a body part.  The supplied part should not be used again after calling this method.
+	 * @param part the part to encode
+	 * @return a part containing the encoded bytes of the supplied part
+	 * @throws MessagingException if there was a problem encoding the part
+	 */
+	public static PreencodedBodyPart encode(MimeBodyPart part) throws MessagingException {
+		return new PreencodedBodyPart(encodeToBytes(part));
+	}
+
+//> STATIC HELPER METHODS
+	/**
+	 * @param attachment a file to attach
+	 * @return an un-encoded part containing the file
+	 * @throws MessagingException
+	 */
+	static MimeBodyPart createAttachmentPart(File attachment) throws MessagingException {
+		MimeBodyPart part = new PooledBodyPart();
+		// Use a JAF FileDataSource as it does MIME type detection
+		part.setDataHandler(new DataHandler(new FileDataSource(attachment)));
+		part.setFileName(attachment.getName());
+		return part;
+	}
+
+	/**
+	 * Finalises the headers of a part and writes it, headers and encoded content, to a stream.
+	 * @param part the part to encode
+	 * @param out the stream to write to
+	 * @throws MessagingException if there was a problem encoding the part
+	 * @throws IOException if there was a problem writing to the stream
+	 */
+	static void encodeTo(MimeBodyPart part, OutputStream out) throws MessagingException, IOException {
+		// Content-Type and Content-Transfer-Encoding headers are only finalised when the
+		// message containing a part is saved, so save a throwaway message around this one.
+		MimeMultipart holder = new MimeMultipart();
+		holder.addBodyPart(part);
+		MimeMessage scratch = new MimeMessage((Session) null) {
+			@Override
+			protected void updateMessageID() {}
+		};
+		scratch.setContent(holder);
+		scratch.saveChanges();
+		
+		part.writeTo(out);
+	}
+
+	/** @see #encodeTo(MimeBodyPart, OutputStream) */
+	private static byte[] encodeToBytes(MimeBodyPart part) throws MessagingException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			encodeTo(part, out);
+		} catch(IOException ex) {
+			throw new MessagingException("Unable to encode body part.", ex);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Finds the end of the header block of an encoded part.
+	 * @param encoded the start of an encoded part
+	 * @param length the number of valid bytes in the supplied array
+	 * @return the length of the headers, including the blank line which ends them
+	 * @throws MessagingException if the end of the headers could not be found
+	 */
+	static int getHeaderLength(byte[] encoded, int length) throws MessagingException {
+		// A part with no headers at all starts with the blank line
+		if(length >= 2 && encoded[0] == '\r' && encoded[1] == '\n') return 2;
+		for(int i=3; i<length; ++i) {
+			if(encoded[i] == '\n' && encoded[i - 1] == '\r' && encoded[i - 2] == '\n' && encoded[i - 3] == '\r') {
+				return i + 1;
+			}
+		}
+		throw new MessagingException("Encoded body part has no header terminator.");
+	}
+
+	/** @return a copy of the first <code>length</code> bytes of the supplied array */
+	private static byte[] copyOf(byte[] bytes, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, 0, copy, 0, length);
+		return copy;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailException;
+
+/**
+ * A single open connection to an SMTP server over which many messages can be sent, avoiding
+ * the connect/EHLO/QUIT cycle that {@link Transport#send(Message)} performs for every message.
+ * Instances are obtained from {@link SmtpEmailSender#openBatch()} and must be closed after use.
+ */
+public class SmtpBatch {
+//> INSTANCE PROPERTIES
+	/** Logging object */
+	private final Logger log = Logger.getLogger(this.getClass());
+	/** The connected transport that messages are sent over */
+	private final Transport transport;
+	/** The number of messages successfully sent over this connection */
+	private int sentCount;
+
+//> CONSTRUCTORS
+	/**
+	 * @param transport a connected transport
+	 */
+	SmtpBatch(Transport transport) {
+		this.transport = transport;
+	}
+
+//> ACCESSORS
+	/** @return the number of messages successfully sent over this connection */
+	public int getSentCount() {
+		return sentCount;
+	}
+
+	/** @return <code>true</code> if the underlying connection is still open */
+	public boolean isConnected() {
+		return transport.isConnected();
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Sends a message to all of its recipients.
+	 * @param message the message to send
+	 * @throws EmailException if there was a problem sending the message
+	 */
+	public void send(Message message) throws EmailException {
+		try {
+			message.saveChanges();
+			transport.sendMessage(message, message.getAllRecipients());
+			++sentCount;
+		} catch(MessagingException ex) {
+			log.info("Exception thrown while sending batched email.", ex);
+			throw new EmailException(ex);
+		}
+	}
+
+	/**
+	 * Sends a message exactly as it is, to an envelope which may differ from its headers.  The
+	 * message is not saved first, so a message parsed from pre-encoded bytes is written unchanged.
+	 * @param message the message to send
+	 * @param envelopeRecipients the addresses to give in RCPT TO commands
+	 * @throws EmailException if there was a problem sending the message.  If the cause is a
+	 * {@link javax.mail.SendFailedException}, it lists which recipients were accepted.
+	 */
+	public void sendPrepared(Message message, Address[] envelopeRecipients) throws EmailException {
+		try {
+			transport.sendMessage(message, envelopeRecipients);
+			++sentCount;
+		} catch(MessagingException ex) {
+			log.info("Exception thrown while sending batched email.", ex);
+			throw new EmailException(ex);
+		}
+	}
+
+	/** Closes the connection to the SMTP server. */
+	public void close() {
+		try {
+			transport.close();
+		} catch(MessagingException ex) {
+			log.warn("Error closing SMTP transport.", ex);
+		}
+	}
+}
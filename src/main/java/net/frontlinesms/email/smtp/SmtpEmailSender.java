@@ -4,6 +4,7 @@
 package net.frontlinesms.email.smtp;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
 import java.util.Properties;
@@ -27,21 +28,56 @@ import javax.mail.internet.MimeMultipart;
 import org.apache.log4j.Logger;
 
 import net.frontlinesms.email.EmailException;
+import net.frontlinesms.email.net.EmailEndpointHealth;
+import net.frontlinesms.email.net.EmailSocketFactory;
+import net.frontlinesms.email.net.EmailTlsContext;
 
 /**
  * Class for handling direct submission of emails to SMTP servers.
  * @author Alex Anderson <alex@frontlinesms.com>
  */
 public class SmtpEmailSender {
+	/** Default connection timeout, in milliseconds */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+	/** Default time to wait for a response from the server, in milliseconds */
+	public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+	/** Default time to wait for the server to accept data, in milliseconds */
+	public static final int DEFAULT_WRITE_TIMEOUT = 60 * 1000;
+	
 	/** Logging object */
 	private final Logger log = Logger.getLogger(this.getClass());
 	/** SMTP email session */
 	private final Session session;
+	/** Cache of encoded attachments, or <code>null</code> if attachments should be encoded for every message */
+	private EncodedPartCache attachmentCache;
+	/** TLS settings for SSL and STARTTLS connections, or <code>null</code> to use the shared settings for the server */
+	private EmailTlsContext tlsContext;
+	/** Factory for plain connections set with {@link #setSocketFactory(EmailSocketFactory)}, or <code>null</code> if this sender creates its own */
+	private EmailSocketFactory socketFactory;
+	/** Time to wait for the server to accept data, in milliseconds, or zero to wait forever */
+	private int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+	/** Index the Message-IDs of correlated emails are recorded in, or <code>null</code> if none is in use */
+	private EmailMessageIndex messageIndex;
 	
 	public SmtpEmailSender(String smtpServer) {
 		Properties props = new Properties();
 	    props.put("mail.smtp.host", smtpServer);
+	    props.put("mail.smtp.connectiontimeout", Integer.toString(DEFAULT_CONNECT_TIMEOUT));
+	    props.put("mail.smtp.timeout", Integer.toString(DEFAULT_READ_TIMEOUT));
+	    // Retrying a failed connection without our socket factory would only double the time taken to fail
+	    props.put("mail.smtp.socketFactory.fallback", "false");
 	    this.session = Session.getInstance(props, null);		
+	    ExtendedSmtpTransport.register(session);
+	    updateSocketFactories();
+	}
+
+	/**
+	 * @param smtpServer host name of the SMTP server
+	 * @param smtpPort port of the SMTP server
+	 */
+	public SmtpEmailSender(String smtpServer, int smtpPort) {
+		this(smtpServer);
+		session.getProperties().setProperty("mail.smtp.port", Integer.toString(smtpPort));
 	}
 	
 	/**
@@ -131,14 +167,19 @@ public class SmtpEmailSender {
 		    Multipart multipart = new MimeMultipart();
 		    
 		    // Create a message part to represent the body text
-		    BodyPart messageBodyPart = new MimeBodyPart();
+		    BodyPart messageBodyPart = new PooledBodyPart();
 		    messageBodyPart.setText(textContent);
 		    // Add the message body to the mime message
 		    multipart.addBodyPart(messageBodyPart);
 		    
 		    if (attachments != null) {
 		    	for(File attachment : attachments) {
-			    	MimeBodyPart attachmentBodyPart = new MimeBodyPart();
+		    		if(attachmentCache != null) {
+		    			multipart.addBodyPart(attachmentCache.getAttachment(attachment));
+		    			continue;
+		    		}
+		    		
+			    	MimeBodyPart attachmentBodyPart = new PooledBodyPart();
 			
 			    	// Use a JAF FileDataSource as it does MIME type detection
 			    	DataSource source = new FileDataSource(attachment);
@@ -160,8 +201,379 @@ public class SmtpEmailSender {
 	    	throw new EmailException(ex);
 	    }
 	}
-	
+
+	/**
+	 * Create and send an email whose replies can be matched to it with {@link EmailMessageIndex#resolve(Message)}.
+	 * @param recipients The recipient email address(es) to use in the {@link RecipientType#TO} field.  These should be specified as per {@link InternetAddress#parse(String)}.
+	 * @param fromAddress The address the email should show in the "from" field
+	 * @param subject The subject of the email
+	 * @param textContent The text content of the email
+	 * @param key key identifying the email, from which its Message-ID is made; sending again with the same key gives the same Message-ID
+	 * @param correlation data which replies to the email are resolved to
+	 * @return the Message-ID of the email
+	 * @throws EmailException if there was a problem sending the email
+	 * @see #createMessage(String, String)
+	 */
+	public String sendEmail(String recipients, Address fromAddress, String subject, String textContent, String key, String correlation) throws EmailException {
+		MimeMessage msg = createMessage(key, correlation);
+		try {
+			msg.setFrom(fromAddress);
+			msg.setRecipients(Message.RecipientType.TO, recipients);
+			msg.setSubject(subject);
+			msg.setSentDate(new Date());
+			msg.setText(textContent);
+			Transport.send(msg);
+			return msg.getMessageID();
+		} catch(MessagingException ex) {
+			log.info("Exception thrown while sending email to " + recipients, ex);
+			throw new EmailException(ex);
+		}
+	}
+
+	/**
+	 * Create an email with one text part and 0-N file attachments, and send a separate copy to each
+	 * recipient so that no recipient sees the others' addresses.  The email is only encoded once.
+	 * @param recipients The recipient email address(es).  These should be specified as per {@link InternetAddress#parse(String)}.
+	 * @param fromAddress The address the email should show in the "from" field
+	 * @param subject The subject of the email
+	 * @param textContent The text content of the email
+	 * @param attachments Files to attach to this email
+	 * @return the number of recipients the SMTP server accepted the email for
+	 * @throws EmailException if there was a problem creating the email, or the connection to the SMTP server was lost
+	 * @see SmtpFanOut
+	 */
+	public int sendEmailSeparately(String recipients, Address fromAddress, String subject, String textContent, File... attachments) throws EmailException {
+		MimeMessage msg = new MimeMessage(session);
+		try {
+			msg.setFrom(fromAddress);
+			msg.setSubject(subject);
+			msg.setSentDate(new Date());
+			if(attachments == null || attachments.length == 0) {
+				msg.setText(textContent);
+			} else {
+				Multipart multipart = new MimeMultipart();
+				BodyPart messageBodyPart = new PooledBodyPart();
+				messageBodyPart.setText(textContent);
+				multipart.addBodyPart(messageBodyPart);
+				for(File attachment : attachments) {
+					// Attachments are encoded exactly once for the whole fan-out, so always pre-encode them
+					multipart.addBodyPart(attachmentCache != null ? attachmentCache.getAttachment(attachment) : PreencodedBodyPart.forFile(attachment));
+				}
+				msg.setContent(multipart);
+			}
+		} catch(MessagingException ex) {
+			log.info("Exception thrown while creating email for " + recipients, ex);
+			throw new EmailException(ex);
+		}
+		return new SmtpFanOut(this, msg).send(recipients);
+	}
+
+	/**
+	 * Opens a connection to the SMTP server which can be used to send many messages.
+	 * The returned batch must be closed by the caller.
+	 * @return a connected {@link SmtpBatch}
+	 * @throws EmailException if the connection could not be opened
+	 */
+	public SmtpBatch openBatch() throws EmailException {
+		try {
+			Transport transport = session.getTransport("smtp");
+			transport.connect();
+			return new SmtpBatch(transport);
+		} catch(MessagingException ex) {
+			log.info("Exception thrown while connecting to SMTP server.", ex);
+			throw new EmailException(ex);
+		}
+	}
+
+	/**
+	 * Sends a message created with {@link #createMessage()}, to the recipients in its headers.
+	 * @param message the message
+	 * @throws EmailException if there was a problem sending the email
+	 */
+	public void send(Message message) throws EmailException {
+		try {
+			Transport.send(message);
+		} catch(MessagingException ex) {
+			log.info("Exception thrown while sending email.", ex);
+			throw new EmailException(ex);
+		}
+	}
+
+	/** @return a new, empty message using this sender's SMTP session */
+	public MimeMessage createMessage() {
+		return new MimeMessage(session);
+	}
+
+	/**
+	 * Creates a message with a Message-ID made from a key, and records the Message-ID in the
+	 * {@link #getMessageIndex()} with correlation data for replies.  The Message-ID is recorded before the
+	 * message is sent, so that a quick reply can always be resolved; if the message is never sent, its
+	 * entry simply expires.
+	 * @param key key identifying the email, from which its Message-ID is made; creating a message again with the same key gives the same Message-ID
+	 * @param correlation data which replies to the email are resolved to
+	 * @return a new, empty message using this sender's SMTP session
+	 * @throws EmailException if the Message-ID could not be recorded
+	 * @throws IllegalStateException if no message index is set
+	 */
+	public MimeMessage createMessage(String key, String correlation) throws EmailException {
+		if(messageIndex == null) throw new IllegalStateException("No message index is set.");
+		String messageId = messageIndex.createMessageId(key);
+		try {
+			messageIndex.put(messageId, correlation);
+		} catch(IOException ex) {
+			log.warn("Unable to record Message-ID " + messageId, ex);
+			throw new EmailException(ex);
+		}
+		return new IndexedMimeMessage(session, messageId);
+	}
+
+//> ACCESSORS
+	/** @return host name of the SMTP server */
+	public String getSmtpServer() {
+		return session.getProperty("mail.smtp.host");
+	}
+
+	/**
+	 * Sets a cache of encoded attachments, so that files attached to many emails are only encoded once.
+	 * @param attachmentCache the cache to use, or <code>null</code> to encode attachments for every message
+	 */
+	public void setAttachmentCache(EncodedPartCache attachmentCache) {
+		this.attachmentCache = attachmentCache;
+	}
+
+	/** @return the cache of encoded attachments, or <code>null</code> if none is in use */
+	public EncodedPartCache getAttachmentCache() {
+		return attachmentCache;
+	}
+
+	/**
+	 * Sets whether text may be sent unencoded to servers which support 8BITMIME, rather than as
+	 * quoted-printable or base64.
+	 * @param use8BitMime <code>true</code> to send 8-bit text unencoded when the server allows it
+	 */
+	public void setUse8BitMime(boolean use8BitMime) {
+		session.getProperties().setProperty("mail.smtp.allow8bitmime", Boolean.toString(use8BitMime));
+	}
+
+	/** @return <code>true</code> if 8-bit text is sent unencoded when the server allows it */
+	public boolean isUse8BitMime() {
+		return Boolean.valueOf(session.getProperty("mail.smtp.allow8bitmime")).booleanValue();
+	}
+
+	/**
+	 * Sets whether message content is sent in chunks with BDAT, to servers which support CHUNKING,
+	 * rather than dot-stuffed with DATA.
+	 * @param chunkSize size of each chunk in bytes, or zero to always use DATA
+	 */
+	public void setChunkSize(int chunkSize) {
+		session.getProperties().setProperty(ExtendedSmtpTransport.PROPERTY_CHUNK_SIZE, Integer.toString(chunkSize));
+	}
+
+	/** @return size of each BDAT chunk in bytes, or zero if DATA is always used */
+	public int getChunkSize() {
+		String chunkSize = session.getProperty(ExtendedSmtpTransport.PROPERTY_CHUNK_SIZE);
+		return chunkSize == null ? 0 : Integer.parseInt(chunkSize);
+	}
+
+	/**
+	 * Sets whether attachments may be sent unencoded to servers which support BINARYMIME and
+	 * CHUNKING, rather than base64 encoded.  This saves a quarter of the bytes sent for binary
+	 * attachments.  Attachments from an {@link EncodedPartCache} are already encoded, so are sent as
+	 * they are.
+	 * @param useBinaryMime <code>true</code> to send attachments unencoded when the server allows it
+	 */
+	public void setUseBinaryMime(boolean useBinaryMime) {
+		session.getProperties().setProperty(ExtendedSmtpTransport.PROPERTY_BINARYMIME, Boolean.toString(useBinaryMime));
+	}
+
+	/** @return <code>true</code> if attachments are sent unencoded when the server allows it */
+	public boolean isUseBinaryMime() {
+		return Boolean.valueOf(session.getProperty(ExtendedSmtpTransport.PROPERTY_BINARYMIME)).booleanValue();
+	}
+
+	/**
+	 * Sets a factory for plain connections to the SMTP server.  The factory's {@link EmailSocketFactory#getStatistics()}
+	 * count the bytes sent and received.  TLS is started over these connections with STARTTLS using
+	 * {@link #getTlsContext()}.
+	 * The factory's own write timeout is used, rather than {@link #getWriteTimeout()}.
+	 * @param socketFactory factory for connections to the SMTP server, or <code>null</code> for this sender to create its own
+	 */
+	public void setSocketFactory(EmailSocketFactory socketFactory) {
+		this.socketFactory = socketFactory;
+		updateSocketFactories();
+	}
+
+	/**
+	 * Sets whether connections to the SMTP server use SSL from the start, as on port 465.
+	 * @param useSsl <code>true</code> to connect with SSL
+	 */
+	public void setUseSsl(boolean useSsl) {
+		session.getProperties().setProperty("mail.smtp.ssl.enable", Boolean.toString(useSsl));
+		updateSocketFactories();
+	}
+
+	/** @return <code>true</code> if connections to the SMTP server use SSL from the start */
+	public boolean isUseSsl() {
+		return isEnabled("mail.smtp.ssl.enable");
+	}
+
+	/**
+	 * Sets whether plain connections to the SMTP server are switched to TLS with STARTTLS, when the
+	 * server supports it.
+	 * @param useStartTls <code>true</code> to use STARTTLS when the server supports it
+	 */
+	public void setUseStartTls(boolean useStartTls) {
+		session.getProperties().setProperty("mail.smtp.starttls.enable", Boolean.toString(useStartTls));
+		updateSocketFactories();
+	}
+
+	/** @return <code>true</code> if plain connections to the SMTP server are switched to TLS when possible */
+	public boolean isUseStartTls() {
+		return isEnabled("mail.smtp.starttls.enable");
+	}
+
+	/**
+	 * @return TLS settings for SSL and STARTTLS connections; if none have been set, the settings shared by
+	 * all senders and receivers for this server, from {@link EmailTlsContext#forEndpoint(String, int)}
+	 */
+	public EmailTlsContext getTlsContext() {
+		return resolveTlsContext();
+	}
+
+	/**
+	 * Sets the TLS settings for SSL and STARTTLS connections, such as the trust store and pinned keys.
+	 * The context caches TLS sessions, so a context kept between sends lets reconnects skip the full
+	 * handshake.
+	 * @param tlsContext TLS settings, or <code>null</code> to use the shared settings for the server
+	 */
+	public void setTlsContext(EmailTlsContext tlsContext) {
+		this.tlsContext = tlsContext;
+		updateSocketFactories();
+	}
+
+	/** @return connection timeout in milliseconds, or zero if connecting waits forever */
+	public int getConnectTimeout() {
+		return Integer.parseInt(session.getProperty("mail.smtp.connectiontimeout"));
+	}
+
+	/** @param connectTimeout connection timeout in milliseconds, or zero to wait forever; defaults to {@link #DEFAULT_CONNECT_TIMEOUT} */
+	public void setConnectTimeout(int connectTimeout) {
+		session.getProperties().setProperty("mail.smtp.connectiontimeout", Integer.toString(connectTimeout));
+	}
+
+	/** @return time in milliseconds to wait for a response from the server, or zero to wait forever */
+	public int getReadTimeout() {
+		return Integer.parseInt(session.getProperty("mail.smtp.timeout"));
+	}
+
+	/**
+	 * Sets how long to wait for a response from the server.  Some servers take a while to accept a
+	 * message after its content has been sent, so this should not be set too short.
+	 * @param readTimeout read timeout in milliseconds, or zero to wait forever; defaults to {@link #DEFAULT_READ_TIMEOUT}
+	 */
+	public void setReadTimeout(int readTimeout) {
+		session.getProperties().setProperty("mail.smtp.timeout", Integer.toString(readTimeout));
+	}
+
+	/** @return time in milliseconds to wait for the server to accept data, or zero to wait forever */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for the server to accept data that is sent to it.  This is ignored if a
+	 * {@link #setSocketFactory(EmailSocketFactory)} has been set; set the factory's write timeout instead.
+	 * @param writeTimeout write timeout in milliseconds, or zero to wait forever; defaults to {@link #DEFAULT_WRITE_TIMEOUT}
+	 */
+	public void setWriteTimeout(int writeTimeout) {
+		this.writeTimeout = writeTimeout;
+		updateSocketFactories();
+	}
+
+	/**
+	 * @return health of the SMTP server, whose circuit breaker stops sends being attempted while the
+	 * server is down; if none has been set, the health shared by all senders and receivers for this
+	 * server, from {@link EmailEndpointHealth#forEndpoint(String, int)}
+	 */
+	public EmailEndpointHealth getEndpointHealth() {
+		return ExtendedSmtpTransport.getEndpointHealth(session, null, -1);
+	}
+
+	/** @param endpointHealth health of the SMTP server, or <code>null</code> to use the shared health of the server */
+	public void setEndpointHealth(EmailEndpointHealth endpointHealth) {
+		if(endpointHealth == null) session.getProperties().remove(ExtendedSmtpTransport.PROPERTY_ENDPOINT_HEALTH);
+		else session.getProperties().put(ExtendedSmtpTransport.PROPERTY_ENDPOINT_HEALTH, endpointHealth);
+	}
+
+	/** @return list of addresses which emails are not sent to, or <code>null</code> if none is in use */
+	public EmailSuppressionList getSuppressionList() {
+		return ExtendedSmtpTransport.getSuppressionList(session);
+	}
+
+	/**
+	 * Sets a list of addresses which emails must not be sent to.  Suppressed recipients are dropped from
+	 * every email this sender sends, including batches and fan-outs.
+	 * @param suppressionList list of suppressed addresses, or <code>null</code> to send to every recipient
+	 */
+	public void setSuppressionList(EmailSuppressionList suppressionList) {
+		if(suppressionList == null) session.getProperties().remove(ExtendedSmtpTransport.PROPERTY_SUPPRESSION_LIST);
+		else session.getProperties().put(ExtendedSmtpTransport.PROPERTY_SUPPRESSION_LIST, suppressionList);
+	}
+
+	/** @return index the Message-IDs of correlated emails are recorded in, or <code>null</code> if none is in use */
+	public EmailMessageIndex getMessageIndex() {
+		return messageIndex;
+	}
+
+	/** @param messageIndex index the Message-IDs of correlated emails are recorded in, or <code>null</code> to use none */
+	public void setMessageIndex(EmailMessageIndex messageIndex) {
+		this.messageIndex = messageIndex;
+	}
+
+	/** @return the SMTP session used by this sender */
+	Session getSession() {
+		return session;
+	}
+
 //> INSTANCE HELPER METHODS
+	/**
+	 * Sets the factories JavaMail uses for connections.  Plain connections use {@link #socketFactory} if
+	 * one was set, or otherwise a factory with {@link #writeTimeout}.  SSL connections and STARTTLS use
+	 * a factory made from {@link #getTlsContext()} rather than JavaMail's default, which creates a new
+	 * TLS context for each connection.
+	 */
+	private void updateSocketFactories() {
+		EmailSocketFactory plainFactory = socketFactory;
+		if(plainFactory == null) {
+			plainFactory = EmailSocketFactory.create(false);
+			plainFactory.setWriteTimeout(writeTimeout);
+		}
+		session.getProperties().put("mail.smtp.socketFactory", plainFactory);
+		if(isEnabled("mail.smtp.ssl.enable") || isEnabled("mail.smtp.starttls.enable")) {
+			EmailSocketFactory sslFactory = new EmailSocketFactory(resolveTlsContext());
+			sslFactory.setWriteTimeout(writeTimeout);
+			session.getProperties().put("mail.smtp.ssl.socketFactory", sslFactory);
+		} else {
+			session.getProperties().remove("mail.smtp.ssl.socketFactory");
+		}
+	}
+
+	/**
+	 * Implements {@link #getTlsContext()} without calling methods which subclasses may override, so that
+	 * it is safe to use from the constructor.
+	 */
+	private EmailTlsContext resolveTlsContext() {
+		if(tlsContext != null) return tlsContext;
+		String port = session.getProperty("mail.smtp.port");
+		return EmailTlsContext.forEndpoint(session.getProperty("mail.smtp.host"),
+				port != null ? Integer.parseInt(port) : isEnabled("mail.smtp.ssl.enable") ? 465 : 25);
+	}
+
+	/** @return <code>true</code> if a boolean session property is set to true */
+	private boolean isEnabled(String property) {
+		return Boolean.valueOf(session.getProperty(property)).booleanValue();
+	}
+
 	public InternetAddress getLocalEmailAddress(String addressAsString, String personalName) {
 		InternetAddress emailAddress = getLocalEmailAddress();
 	    try {
@@ -184,4 +596,21 @@ public class SmtpEmailSender {
 	}
 	
 //> STATIC HELPER METHODS
+
+//> INNER CLASSES
+	/** Message which keeps the Message-ID it was created with, rather than making a new one each time it is saved. */
+	private static class IndexedMimeMessage extends MimeMessage {
+		/** The Message-ID */
+		private final String messageId;
+
+		IndexedMimeMessage(Session session, String messageId) {
+			super(session);
+			this.messageId = messageId;
+		}
+
+		@Override
+		protected void updateMessageID() throws MessagingException {
+			setHeader("Message-ID", messageId);
+		}
+	}
 }
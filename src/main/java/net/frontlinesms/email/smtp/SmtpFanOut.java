@@ -0,0 +1,226 @@
+/**
+ * 
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.frontlinesms.email.EmailException;
+
+/**
+ * Sends one message to many recipients, each of whom sees only their own address.  The message
+ * is encoded once.  Without a {@link FanOutPersonaliser}, recipients are sent the same copy of the
+ * message, addressed to "undisclosed recipients", with many RCPT TO commands and a single DATA
+ * transfer per SMTP transaction.  With a personaliser, each recipient gets their own transaction
+ * and copy of the headers, but the encoded body is still shared rather than re-encoded.
+ */
+public class SmtpFanOut {
+//> STATIC CONSTANTS
+	/** Default value for {@link #maxRecipientsPerTransaction}, kept under the common relay limit of 100 */
+	public static final int DEFAULT_MAX_RECIPIENTS_PER_TRANSACTION = 50;
+	/** Value of the To header of a message sent to many private envelopes at once */
+	private static final String UNDISCLOSED_RECIPIENTS = "undisclosed-recipients:;";
+	/** Headers which are set separately for each copy of the message */
+	private static final String[] RECIPIENT_HEADERS = { "To", "Cc", "Bcc" };
+	private static final String HEADER_TO = "To";
+	private static final String HEADER_MESSAGE_ID = "Message-ID";
+	/** Orders addresses by domain, so that each transaction is delivered to as few domains as possible */
+	private static final Comparator<InternetAddress> DOMAIN_ORDER = new Comparator<InternetAddress>() {
+		public int compare(InternetAddress a, InternetAddress b) {
+			return getDomain(a).compareTo(getDomain(b));
+		}
+	};
+
+//> INSTANCE PROPERTIES
+	/** Logging object */
+	private final Logger log = Logger.getLogger(this.getClass());
+	/** Sender used to deliver the messages */
+	private final SmtpEmailSender sender;
+	/** The message to send.  Its recipient headers are ignored. */
+	private final MimeMessage message;
+	/** Maximum number of RCPT TO commands in a single SMTP transaction */
+	private int maxRecipientsPerTransaction = DEFAULT_MAX_RECIPIENTS_PER_TRANSACTION;
+	/** Object which personalises each copy of the message, or <code>null</code> if every recipient gets the same copy */
+	private FanOutPersonaliser personaliser;
+
+//> CONSTRUCTORS
+	/**
+	 * @param sender the sender used to deliver the messages
+	 * @param message the message to send, with sender, subject and content set.  Its recipient headers are ignored.
+	 */
+	public SmtpFanOut(SmtpEmailSender sender, MimeMessage message) {
+		if(sender == null) throw new IllegalArgumentException("Sender must not be null.");
+		if(message == null) throw new IllegalArgumentException("Message must not be null.");
+		this.sender = sender;
+		this.message = message;
+	}
+
+//> ACCESSORS
+	/** @param maxRecipientsPerTransaction maximum number of RCPT TO commands in a single SMTP transaction */
+	public void setMaxRecipientsPerTransaction(int maxRecipientsPerTransaction) {
+		if(maxRecipientsPerTransaction < 1) throw new IllegalArgumentException("At least one recipient is required per transaction.");
+		this.maxRecipientsPerTransaction = maxRecipientsPerTransaction;
+	}
+
+	/** @return maximum number of RCPT TO commands in a single SMTP transaction */
+	public int getMaxRecipientsPerTransaction() {
+		return maxRecipientsPerTransaction;
+	}
+
+	/** @param personaliser object which personalises each copy of the message, or <code>null</code> to send every recipient the same copy */
+	public void setPersonaliser(FanOutPersonaliser personaliser) {
+		this.personaliser = personaliser;
+	}
+
+	/** @return object which personalises each copy of the message, or <code>null</code> if every recipient gets the same copy */
+	public FanOutPersonaliser getPersonaliser() {
+		return personaliser;
+	}
+
+//> INSTANCE METHODS
+	/**
+	 * Sends the message to each of the supplied recipients.
+	 * @param recipients the recipient email address(es), as per {@link InternetAddress#parse(String)}
+	 * @return the number of recipients the SMTP server accepted the message for
+	 * @throws EmailException if the addresses could not be parsed, or the connection to the SMTP server was lost
+	 */
+	public int send(String recipients) throws EmailException {
+		try {
+			return send(InternetAddress.parse(recipients));
+		} catch(MessagingException ex) {
+			throw new EmailException(ex);
+		}
+	}
+
+	/**
+	 * Sends the message to each of the supplied recipients.
+	 * @param recipients the recipients
+	 * @return the number of recipients the SMTP server accepted the message for
+	 * @throws EmailException if the message could not be encoded, or the connection to the SMTP server was lost
+	 */
+	public int send(InternetAddress[] recipients) throws EmailException {
+		byte[] encoded;
+		String messageId;
+		try {
+			message.saveChanges();
+			messageId = message.getMessageID();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			message.writeTo(out, RECIPIENT_HEADERS);
+			encoded = out.toByteArray();
+		} catch(MessagingException ex) {
+			throw new EmailException(ex);
+		} catch(IOException ex) {
+			throw new EmailException(ex);
+		}
+		
+		// Drop suppressed recipients here too, so that they are not counted as accepted
+		EmailSuppressionList suppressionList = sender.getSuppressionList();
+		if(suppressionList != null) recipients = (InternetAddress[]) suppressionList.filter(recipients);
+		if(recipients.length == 0) return 0;
+		
+		InternetAddress[] sorted = recipients.clone();
+		Arrays.sort(sorted, DOMAIN_ORDER);
+		
+		int accepted = 0;
+		SmtpBatch batch = sender.openBatch();
+		try {
+			if(personaliser == null) {
+				MimeMessage copy = copy(encoded);
+				setHeader(copy, HEADER_TO, UNDISCLOSED_RECIPIENTS);
+				for(int start=0; start<sorted.length; start+=maxRecipientsPerTransaction) {
+					InternetAddress[] envelope = new InternetAddress[Math.min(maxRecipientsPerTransaction, sorted.length - start)];
+					System.arraycopy(sorted, start, envelope, 0, envelope.length);
+					accepted += send(batch, copy, envelope);
+				}
+			} else {
+				for(int i=0; i<sorted.length; ++i) {
+					MimeMessage copy = copy(encoded);
+					try {
+						copy.setRecipient(Message.RecipientType.TO, sorted[i]);
+						if(messageId != null) copy.setHeader(HEADER_MESSAGE_ID, getPersonalisedMessageId(messageId, i));
+						personaliser.personalise(copy, sorted[i]);
+					} catch(MessagingException ex) {
+						log.info("Unable to personalise email for " + sorted[i], ex);
+						continue;
+					}
+					accepted += send(batch, copy, new InternetAddress[] { sorted[i] });
+				}
+			}
+		} finally {
+			batch.close();
+		}
+		return accepted;
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Sends one transaction.  Rejected recipients are logged rather than aborting the fan-out.
+	 * @return the number of recipients the message was accepted for
+	 * @throws EmailException if the connection to the SMTP server was lost
+	 */
+	private int send(SmtpBatch batch, MimeMessage copy, InternetAddress[] envelope) throws EmailException {
+		try {
+			batch.sendPrepared(copy, envelope);
+			return envelope.length;
+		} catch(EmailException ex) {
+			if(!batch.isConnected()) throw ex;
+			if(ex.getCause() instanceof SendFailedException) {
+				Address[] validSent = ((SendFailedException) ex.getCause()).getValidSentAddresses();
+				return validSent == null ? 0 : validSent.length;
+			}
+			return 0;
+		}
+	}
+
+	/** @return a new message sharing the supplied encoded bytes */
+	private MimeMessage copy(byte[] encoded) throws EmailException {
+		try {
+			// A shared stream lets the copy refer to the encoded content rather than copying it, and a
+			// message parsed from a stream writes that content unchanged unless its content is replaced.
+			return new MimeMessage(sender.getSession(), new SharedByteArrayInputStream(encoded));
+		} catch(MessagingException ex) {
+			throw new EmailException(ex);
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/** Sets a header, wrapping any exception thrown. */
+	private static void setHeader(MimeMessage message, String name, String value) throws EmailException {
+		try {
+			message.setHeader(name, value);
+		} catch(MessagingException ex) {
+			throw new EmailException(ex);
+		}
+	}
+
+	/**
+	 * @param messageId the Message-ID of the original message
+	 * @param index the index of the recipient
+	 * @return a Message-ID for a recipient's copy of the message, unique to that recipient
+	 */
+	private static String getPersonalisedMessageId(String messageId, int index) {
+		String id = messageId;
+		if(id.startsWith("<") && id.endsWith(">")) id = id.substring(1, id.length() - 1);
+		return "<" + index + "." + id + ">";
+	}
+
+	/** @return the lower-case domain of an address, or an empty string if it has none */
+	private static String getDomain(InternetAddress address) {
+		String addr = address.getAddress();
+		int at = addr == null ? -1 : addr.lastIndexOf('@');
+		return at == -1 ? "" : addr.substring(at + 1).toLowerCase();
+	}
+}
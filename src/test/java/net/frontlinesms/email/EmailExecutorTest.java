@@ -0,0 +1,200 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+
+import net.frontlinesms.email.receive.EmailReceiveException;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.email.receive.EmailReceiver;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailExecutor}.
+ */
+public class EmailExecutorTest extends BaseTestCase {
+	/** Time in milliseconds to wait for other threads before failing */
+	private static final long TIMEOUT = 5000;
+
+	private EmailExecutor executor;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(executor != null) executor.shutdownNow();
+		super.tearDown();
+	}
+
+	/** Unit tests for the number of operations running at once against each server being limited. */
+	public void testPermitsPerHost() throws Exception {
+		executor = EmailExecutor.platformThreads(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for(int i=0; i<6; ++i) {
+			results.add(executor.submit(i % 2 == 0 ? "Mail.Example.com" : "mail.example.com", new Callable<Void>() {
+				public Void call() throws Exception {
+					int now = running.incrementAndGet();
+					synchronized(maxRunning) {
+						if(now > maxRunning.get()) maxRunning.set(now);
+					}
+					release.await();
+					running.decrementAndGet();
+					return null;
+				}
+			}));
+		}
+		waitFor("four tasks to wait for a permit", new Callable<Boolean>() {
+			public Boolean call() {
+				return executor.getWaitingOperations("MAIL.example.com") == 4;
+			}
+		});
+		assertEquals("Checking operations running against the server", 2, executor.getActiveOperations("mail.example.com"));
+		assertEquals("Checking other servers are not limited", "done", executor.submit("other.example.com", new Callable<String>() {
+			public String call() {
+				return "done";
+			}
+		}).get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		for(Future<Void> result : results) result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals("Checking at most two operations ran at once", 2, maxRunning.get());
+		assertEquals("Checking no operations are running", 0, executor.getActiveOperations("mail.example.com"));
+		assertEquals("Checking no operations are waiting", 0, executor.getWaitingOperations("mail.example.com"));
+	}
+
+	/** Unit tests for tasks waiting for a server being run in the order they started waiting. */
+	public void testFairQueueing() throws Exception {
+		executor = EmailExecutor.platformThreads(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Future<Void> first = executor.submit(null, new Callable<Void>() {
+			public Void call() throws Exception {
+				release.await();
+				return null;
+			}
+		});
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for(int i=0; i<5; ++i) {
+			final int task = i;
+			results.add(executor.submit(null, new Callable<Boolean>() {
+				public Boolean call() {
+					return order.add(task);
+				}
+			}));
+			waitFor("task " + i + " to wait for a permit", new Callable<Boolean>() {
+				public Boolean call() {
+					return executor.getWaitingOperations(null) == task + 1;
+				}
+			});
+		}
+		assertEquals("Checking a null host is counted", 1, executor.getActiveOperations(null));
+
+		release.countDown();
+		first.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		for(Future<Boolean> result : results) result.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertEquals("Checking tasks ran in the order they waited", "[0, 1, 2, 3, 4]", order.toString());
+	}
+
+	/** Unit tests for a receive loop carrying on after a failed poll, and stopping when cancelled. */
+	public void testStartReceiving() throws Exception {
+		executor = EmailExecutor.platformThreads(1);
+		final CountingReceiver receiver = new CountingReceiver();
+		Future<?> loop = executor.startReceiving(receiver, 10);
+		waitFor("three polls", new Callable<Boolean>() {
+			public Boolean call() {
+				return receiver.polls.get() >= 3;
+			}
+		});
+
+		loop.cancel(true);
+		Thread.sleep(50);
+		int polls = receiver.polls.get();
+		Thread.sleep(200);
+		assertEquals("Checking the loop stops when cancelled", polls, receiver.polls.get());
+	}
+
+	/** Unit tests for platform threads being used where virtual threads would pin, or do not exist. */
+	public void testVirtualThreadFallback() throws Exception {
+		executor = EmailExecutor.virtualThreads(5, 17);
+		assertFalse("Checking platform threads are used before Java 21", executor.isVirtual());
+		executor.shutdownNow();
+		executor = EmailExecutor.virtualThreads(5, 21);
+		assertFalse("Checking platform threads are used where JavaMail would pin carrier threads", executor.isVirtual());
+		assertEquals("Checking the permits are kept", 5, executor.getPermitsPerHost());
+		executor.shutdownNow();
+
+		boolean supported;
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			supported = true;
+		} catch(NoSuchMethodException ex) {
+			supported = false;
+		}
+		executor = EmailExecutor.virtualThreads(5, 24);
+		assertEquals("Checking virtual threads are used on Java 24 if this JVM has them", supported, executor.isVirtual());
+		assertEquals("Checking tasks run", "done", executor.submit("mail.example.com", new Callable<String>() {
+			public String call() {
+				return "done";
+			}
+		}).get(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+//> HELPER METHODS
+	/** Waits for a condition to become true, failing if it does not within {@link #TIMEOUT}. */
+	private static void waitFor(String description, Callable<Boolean> condition) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(!condition.call()) {
+			if(System.currentTimeMillis() > deadline) fail("Timed out waiting for " + description);
+			Thread.sleep(5);
+		}
+	}
+
+//> INNER CLASSES
+	/** Receiver which counts its polls rather than connecting to a server, and fails its first poll. */
+	private static class CountingReceiver extends EmailReceiver {
+		/** Number of polls started */
+		private final AtomicInteger polls = new AtomicInteger();
+
+		CountingReceiver() {
+			super(new EmailReceiveProcessor() {
+				public void processMessage(Message message, Date date) {}
+			});
+			setHostAddress("mail.example.com");
+			setHostUsername("user");
+		}
+
+		@Override
+		public void receive() throws EmailReceiveException {
+			if(polls.incrementAndGet() == 1) throw new EmailReceiveException(new Exception("Connection refused"));
+		}
+	}
+}
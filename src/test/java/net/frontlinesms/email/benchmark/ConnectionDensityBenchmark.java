@@ -0,0 +1,292 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ *
+ * This file is part of FrontlineSMS.
+ *
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.mail.Message;
+
+import net.frontlinesms.email.EmailExecutor;
+import net.frontlinesms.email.net.EmailSocketFactory;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.email.receive.EmailReceiveProtocol;
+import net.frontlinesms.email.receive.EmailReceiver;
+
+/**
+ * Load test measuring how many IMAP connections one JVM can hold open at once with an
+ * {@link EmailExecutor}, and how much heap and resident memory each one costs.
+ * <p>
+ * A minimal IMAP server is started in a separate JVM, so that its memory is not counted.  It answers
+ * every SELECT only after a delay, so each account's {@link EmailReceiver#receive()} stays blocked
+ * in the middle of its poll, holding its connection and its thread.  Once every account is connected,
+ * the heap in use after a full GC and the resident set size of the process are compared with those
+ * measured before the accounts were started.
+ * <pre>
+ * java ConnectionDensityBenchmark [virtual|platform] [connections] [holdSeconds]
+ * </pre>
+ * Run it on Java 21 or later for virtual threads; on older JVMs both modes use platform threads.
+ */
+public class ConnectionDensityBenchmark {
+//> STATIC CONSTANTS
+	/** Default number of accounts */
+	private static final int DEFAULT_CONNECTIONS = 2000;
+	/** Default time in seconds the server delays each SELECT for */
+	private static final int DEFAULT_HOLD_SECONDS = 30;
+	/** Bytes in a gigabyte */
+	private static final double GIGABYTE = 1024 * 1024 * 1024;
+
+//> MAIN
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("server")) {
+			new SlowImapServer(Long.parseLong(args[1])).run();
+			return;
+		}
+		boolean virtual = args.length == 0 || !args[0].equals("platform");
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONNECTIONS;
+		int holdSeconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_HOLD_SECONDS;
+
+		Process server = startServer(holdSeconds * 1000L);
+		try {
+			int port = Integer.parseInt(new BufferedReader(new InputStreamReader(server.getInputStream())).readLine());
+			measure(virtual, connections, holdSeconds, port);
+		} finally {
+			server.destroy();
+		}
+		System.exit(0);
+	}
+
+//> MEASUREMENT
+	private static void measure(boolean virtual, int connections, int holdSeconds, int port) throws Exception {
+		EmailExecutor executor = virtual ? EmailExecutor.virtualThreads(connections) : EmailExecutor.platformThreads(connections);
+		EmailSocketFactory socketFactory = EmailSocketFactory.create(false);
+		List<EmailReceiver> receivers = new ArrayList<EmailReceiver>();
+		for(int i=0; i<connections; ++i) {
+			EmailReceiver receiver = new EmailReceiver(new EmailReceiveProcessor() {
+				public void processMessage(Message message, Date date) {}
+			});
+			receiver.setProtocol(EmailReceiveProtocol.IMAP);
+			receiver.setHostAddress("127.0.0.1");
+			receiver.setHostPort(port);
+			receiver.setHostUsername("user" + i);
+			receiver.setHostPassword("password");
+			receiver.setReadTimeout((holdSeconds + 30) * 1000);
+			receiver.setSocketFactory(socketFactory);
+			receivers.add(receiver);
+		}
+		long baselineHeap = usedHeap();
+		long baselineRss = residentSetSize();
+
+		long start = System.currentTimeMillis();
+		List<Future<Void>> polls = new ArrayList<Future<Void>>();
+		for(EmailReceiver receiver : receivers) polls.add(executor.receive(receiver));
+		long deadline = start + holdSeconds * 1000L / 2;
+		while(socketFactory.getStatistics().getConnections() < connections && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		long connectTime = System.currentTimeMillis() - start;
+		long held = socketFactory.getStatistics().getConnections();
+		long heap = usedHeap() - baselineHeap;
+		long rss = residentSetSize() - baselineRss;
+
+		int failures = 0;
+		for(Future<Void> poll : polls) {
+			try {
+				poll.get();
+			} catch(Exception ex) {
+				++failures;
+			}
+		}
+		executor.shutdown();
+
+		System.out.println((executor.isVirtual() ? "virtual" : "platform") + " threads on Java " + System.getProperty("java.version")
+				+ ": " + held + "/" + connections + " connections held after " + connectTime + "ms");
+		if(held > 0) {
+			System.out.println("  heap:     " + (heap / held) + " bytes per connection, " + (long) (held * GIGABYTE / Math.max(heap, 1)) + " connections per GB");
+			if(rss > 0) {
+				System.out.println("  resident: " + (rss / held) + " bytes per connection, " + (long) (held * GIGABYTE / rss) + " connections per GB");
+			}
+		}
+		System.out.println("  " + (connections - failures) + " polls completed, " + failures + " failed");
+	}
+
+	/** @return bytes of heap in use after a full garbage collection */
+	private static long usedHeap() throws InterruptedException {
+		for(int i=0; i<3; ++i) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/** @return resident set size of this process in bytes, or zero if it is not available on this platform */
+	private static long residentSetSize() throws IOException {
+		File status = new File("/proc/self/status");
+		if(!status.exists()) return 0;
+		BufferedReader reader = new BufferedReader(new FileReader(status));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+				}
+			}
+			return 0;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Starts the IMAP server in a new JVM, which prints its port when it is ready. */
+	private static Process startServer(long holdMillis) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				ConnectionDensityBenchmark.class.getName(), "server", Long.toString(holdMillis)).start();
+	}
+
+//> INNER CLASSES
+	/**
+	 * IMAP server which answers just enough for {@link EmailReceiver} to log in and select a folder,
+	 * and delays its answer to SELECT.  All connections are handled by one thread.
+	 */
+	private static class SlowImapServer {
+		/** Time in milliseconds SELECT is delayed for */
+		private final long holdMillis;
+		/** Responses waiting to be sent, in the order they are due */
+		private final LinkedList<DelayedResponse> delayed = new LinkedList<DelayedResponse>();
+
+		SlowImapServer(long holdMillis) {
+			this.holdMillis = holdMillis;
+		}
+
+		void run() throws IOException {
+			Selector selector = Selector.open();
+			ServerSocketChannel server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress("127.0.0.1", 0), 10000);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			System.out.println(server.socket().getLocalPort());
+			System.out.flush();
+
+			while(true) {
+				long wait = delayed.isEmpty() ? 0 : Math.max(1, delayed.getFirst().due - System.currentTimeMillis());
+				selector.select(wait);
+				for(Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.isAcceptable()) {
+						SocketChannel client = server.accept();
+						if(client == null) continue;
+						client.configureBlocking(false);
+						client.register(selector, SelectionKey.OP_READ, new StringBuilder());
+						send(client, "* OK [CAPABILITY IMAP4rev1] Benchmark server ready");
+					} else if(key.isReadable()) {
+						read(key);
+					}
+				}
+				long now = System.currentTimeMillis();
+				while(!delayed.isEmpty() && delayed.getFirst().due <= now) {
+					DelayedResponse response = delayed.removeFirst();
+					if(response.client.isOpen()) send(response.client, response.text);
+				}
+			}
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			SocketChannel client = (SocketChannel) key.channel();
+			ByteBuffer buffer = ByteBuffer.allocate(1024);
+			int read;
+			try {
+				read = client.read(buffer);
+			} catch(IOException ex) {
+				read = -1;
+			}
+			if(read == -1) {
+				key.cancel();
+				client.close();
+				return;
+			}
+			StringBuilder line = (StringBuilder) key.attachment();
+			line.append(new String(buffer.array(), 0, read, "US-ASCII"));
+			int end;
+			while((end = line.indexOf("\r\n")) != -1) {
+				String command = line.substring(0, end);
+				line.delete(0, end + 2);
+				respond(client, command);
+			}
+		}
+
+		private void respond(SocketChannel client, String command) throws IOException {
+			String[] parts = command.split(" ");
+			String tag = parts[0];
+			String verb = parts.length > 1 ? parts[1].toUpperCase() : "";
+			if(verb.equals("CAPABILITY")) {
+				send(client, "* CAPABILITY IMAP4rev1\r\n" + tag + " OK CAPABILITY completed");
+			} else if(verb.equals("SELECT") || verb.equals("EXAMINE")) {
+				delayed.addLast(new DelayedResponse(client, System.currentTimeMillis() + holdMillis,
+						"* FLAGS (\\Seen \\Deleted)\r\n* 0 EXISTS\r\n* 0 RECENT\r\n* OK [UIDVALIDITY 1] UIDs valid\r\n"
+						+ tag + " OK [READ-WRITE] " + verb + " completed"));
+			} else if(verb.equals("LOGOUT")) {
+				send(client, "* BYE Logging out\r\n" + tag + " OK LOGOUT completed");
+				client.close();
+			} else {
+				send(client, tag + " OK " + verb + " completed");
+			}
+		}
+
+		private void send(SocketChannel client, String text) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap((text + "\r\n").getBytes("US-ASCII"));
+			try {
+				while(buffer.hasRemaining()) client.write(buffer);
+			} catch(IOException ex) {
+				client.close();
+			}
+		}
+	}
+
+	/** Response which is sent once it is due. */
+	private static class DelayedResponse {
+		final SocketChannel client;
+		final long due;
+		final String text;
+
+		DelayedResponse(SocketChannel client, long due, String text) {
+			this.client = client;
+			this.due = due;
+			this.text = text;
+		}
+	}
+}
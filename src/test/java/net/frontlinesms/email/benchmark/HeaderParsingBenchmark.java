@@ -0,0 +1,173 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import net.frontlinesms.email.receive.EmailEnvelope;
+import net.frontlinesms.email.receive.EmailTextDecoder;
+
+/**
+ * Compares the cost of reading the headers a receive loop reads from each message - the sender, the
+ * subject and the From addresses a filter checks - through JavaMail's accessors and through an
+ * {@link EmailEnvelope}.
+ * <p>
+ * The JavaMail measurement reads the headers as <code>EmailReceiveUtils.getSender()</code> did before
+ * the envelope was added, calling <code>getFrom()</code> twice, and then as a filter would.  The envelope
+ * is measured both when it is created for each message, which is the cost of the first reader, and when
+ * it is shared, which is the cost of every later reader.
+ * <p>
+ * Decoding of encoded-words is measured on its own, with {@link MimeUtility#decodeText(String)} and
+ * with {@link EmailTextDecoder}: once with more distinct subjects than the decoder keeps, so that every
+ * subject is decoded, and once with a few subjects repeated, as a receive loop sees them.
+ * <pre>
+ * java HeaderParsingBenchmark [iterations]
+ * </pre>
+ */
+public class HeaderParsingBenchmark {
+//> STATIC CONSTANTS
+	/** Default number of times each measurement reads the headers */
+	private static final int DEFAULT_ITERATIONS = 1000000;
+	/** Number of rounds run before measuring, so that the JIT compiler has finished */
+	private static final int WARMUP_ROUNDS = 3;
+	/** Number of distinct subjects decoded when every subject must be decoded */
+	private static final int DISTINCT_SUBJECTS = 4096;
+	/** Header block of the message read */
+	private static final String HEADERS = "Return-Path: <alice@example.com>\r\n"
+			+ "Received: from mail.example.com (mail.example.com [192.0.2.1])\r\n"
+			+ "\tby mx.example.org with ESMTPS id abc123\r\n"
+			+ "\tfor <bob@example.org>; Mon, 19 Oct 2026 09:00:00 +0000\r\n"
+			+ "Message-ID: <20261019090000.12345@mail.example.com>\r\n"
+			+ "Date: Mon, 19 Oct 2026 09:00:00 +0000\r\n"
+			+ "From: =?UTF-8?B?QWxpY2Ugw4lsaXNl?= <alice@example.com>\r\n"
+			+ "Reply-To: \"Survey team\" <survey@example.com>\r\n"
+			+ "To: Bob <bob@example.org>, carol@example.org (Carol)\r\n"
+			+ "Subject: =?UTF-8?Q?R=C3=A9ponse_au_sondage?=\r\n"
+			+ "MIME-Version: 1.0\r\n"
+			+ "Content-Type: text/plain; charset=UTF-8\r\n"
+			+ "\r\n";
+
+//> MAIN
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		MimeMessage message = new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(HEADERS.getBytes("US-ASCII")));
+		for(int round=0; round<=WARMUP_ROUNDS; ++round) {
+			boolean report = round == WARMUP_ROUNDS;
+			measure("JavaMail accessors", new JavaMailReader(message), iterations, report);
+			measure("envelope, created", new EnvelopeReader(message, false), iterations, report);
+			measure("envelope, shared", new EnvelopeReader(message, true), iterations, report);
+			measure("decodeText, distinct", new Decoder(DISTINCT_SUBJECTS, true), iterations, report);
+			measure("decoder, distinct", new Decoder(DISTINCT_SUBJECTS, false), iterations, report);
+			measure("decodeText, repeated", new Decoder(16, true), iterations, report);
+			measure("decoder, repeated", new Decoder(16, false), iterations, report);
+		}
+	}
+
+//> MEASUREMENT
+	private static void measure(String name, HeaderReader reader, int iterations, boolean report) throws Exception {
+		int check = 0;
+		long start = System.nanoTime();
+		for(int i=0; i<iterations; ++i) check += reader.read();
+		long elapsed = System.nanoTime() - start;
+		if(report) {
+			System.out.println(String.format("%-22s %8.1f ns per message (%d)", name, (double) elapsed / iterations, check));
+		}
+	}
+
+//> INNER CLASSES
+	/** Reads the headers of a message. */
+	private interface HeaderReader {
+		/** @return a value depending on what was read, so that the reads are not optimised away */
+		int read() throws Exception;
+	}
+
+	/** Reads headers through JavaMail's accessors. */
+	private static class JavaMailReader implements HeaderReader {
+		private final MimeMessage message;
+
+		JavaMailReader(MimeMessage message) {
+			this.message = message;
+		}
+
+		public int read() throws Exception {
+			String sender = "";
+			if(message.getFrom() != null) {
+				for(Address address : message.getFrom()) {
+					sender = address.toString();
+					break;
+				}
+			}
+			int check = sender.length() + message.getSubject().length();
+			for(Address address : message.getFrom()) check += address.hashCode();
+			return check;
+		}
+	}
+
+	/** Reads headers through an envelope. */
+	private static class EnvelopeReader implements HeaderReader {
+		private final MimeMessage message;
+		private final boolean shared;
+
+		EnvelopeReader(MimeMessage message, boolean shared) {
+			this.message = message;
+			this.shared = shared;
+		}
+
+		public int read() throws Exception {
+			EmailEnvelope envelope = shared ? EmailEnvelope.get(message) : new EmailEnvelope(message);
+			int check = envelope.getSender().length() + envelope.getSubject().length();
+			for(EmailEnvelope.Mailbox address : envelope.getFrom()) check += address.getAddress().hashCode();
+			return check;
+		}
+	}
+
+	/** Decodes encoded subjects in turn. */
+	private static class Decoder implements HeaderReader {
+		private final String[] subjects;
+		private final boolean javaMail;
+		private int next;
+
+		Decoder(int count, boolean javaMail) throws Exception {
+			this.javaMail = javaMail;
+			subjects = new String[count];
+			for(int i=0; i<count; ++i) {
+				subjects[i] = i % 2 == 0 ? "Re: =?UTF-8?Q?R=C3=A9ponse_n=C2=B0_" + i + "?="
+						: "=?ISO-8859-1?B?" + base64("Enquête " + i) + "?=";
+			}
+		}
+
+		public int read() throws Exception {
+			String subject = subjects[next];
+			next = (next + 1) % subjects.length;
+			return (javaMail ? MimeUtility.decodeText(subject) : EmailTextDecoder.decodeHeader(subject)).length();
+		}
+
+		private static String base64(String text) throws Exception {
+			String encoded = MimeUtility.encodeText(text, "ISO-8859-1", "B");
+			return encoded.substring(15, encoded.length() - 2);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+
+import net.frontlinesms.email.mime.EmailBufferPool;
+import net.frontlinesms.email.mime.MimeStreams;
+import net.frontlinesms.email.smtp.PooledBodyPart;
+
+/**
+ * Compares the time and the heap allocated to decode and encode the content of a message through
+ * JavaMail's transfer encoders and through {@link MimeStreams}, whose buffers come from the shared
+ * {@link EmailBufferPool}.
+ * <p>
+ * Decoding reads a base64 and a quoted-printable body, as a received text part is read.  Encoding
+ * writes a base64 attachment, as an outgoing message is sent, with {@link MimeBodyPart} and with
+ * {@link PooledBodyPart}.  Allocation is measured with <code>com.sun.management.ThreadMXBean</code>,
+ * where the JVM provides it, and excludes the content itself, which both sides read from and write
+ * to the same reused arrays.
+ * <pre>
+ * java MimeAllocationBenchmark [iterations] [contentBytes]
+ * </pre>
+ */
+public class MimeAllocationBenchmark {
+//> STATIC CONSTANTS
+	/** Default number of messages each measurement decodes or encodes */
+	private static final int DEFAULT_ITERATIONS = 20000;
+	/** Default size of the content of each message, in bytes */
+	private static final int DEFAULT_CONTENT_BYTES = 20000;
+	/** Number of rounds run before measuring, so that the JIT compiler has finished */
+	private static final int WARMUP_ROUNDS = 3;
+
+//> MAIN
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		int contentBytes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONTENT_BYTES;
+		byte[] binary = new byte[contentBytes];
+		new Random(1).nextBytes(binary);
+		StringBuilder text = new StringBuilder();
+		while(text.length() < contentBytes) text.append("Réponse n° ").append(text.length()).append(" au sondage = oui\r\n");
+		byte[] base64 = encode(binary, "base64");
+		byte[] quotedPrintable = encode(text.toString().getBytes("UTF-8"), "quoted-printable");
+
+		for(int round=0; round<=WARMUP_ROUNDS; ++round) {
+			boolean report = round == WARMUP_ROUNDS;
+			measure("JavaMail base64 decode", new Decode(base64, "base64", true), iterations, report);
+			measure("pooled base64 decode", new Decode(base64, "base64", false), iterations, report);
+			measure("JavaMail QP decode", new Decode(quotedPrintable, "quoted-printable", true), iterations, report);
+			measure("pooled QP decode", new Decode(quotedPrintable, "quoted-printable", false), iterations, report);
+			measure("MimeBodyPart writeTo", new Encode(binary, new MimeBodyPart()), iterations, report);
+			measure("PooledBodyPart writeTo", new Encode(binary, new PooledBodyPart()), iterations, report);
+		}
+		System.out.println("Pool: " + EmailBufferPool.getShared());
+	}
+
+//> MEASUREMENT
+	private static void measure(String name, Operation operation, int iterations, boolean report) throws Exception {
+		long check = 0;
+		long startBytes = allocatedBytes();
+		long start = System.nanoTime();
+		for(int i=0; i<iterations; ++i) check += operation.run();
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - startBytes;
+		if(report) {
+			System.out.println(String.format("%-24s %9.1f us %9d bytes allocated per message (%d)",
+					name, elapsed / 1000.0 / iterations, startBytes < 0 ? -1 : allocated / iterations, check));
+		}
+	}
+
+	/** @return bytes of heap allocated by this thread so far, or -1 if the JVM does not say */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		try {
+			// com.sun.management.ThreadMXBean is looked up by reflection, as not every JVM has it
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) method.invoke(threads, Thread.currentThread().getId());
+		} catch(Exception ex) {
+			return -1;
+		}
+	}
+
+	private static byte[] encode(byte[] content, String encoding) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream encoder = MimeUtility.encode(out, encoding);
+		encoder.write(content);
+		encoder.close();
+		return out.toByteArray();
+	}
+
+//> INNER CLASSES
+	/** Decodes or encodes one message. */
+	private interface Operation {
+		/** @return a value depending on the result, so that the work is not optimised away */
+		long run() throws Exception;
+	}
+
+	/** Decodes content into a reused array. */
+	private static class Decode implements Operation {
+		private final byte[] encoded;
+		private final String encoding;
+		private final boolean javaMail;
+		private final byte[] decoded = new byte[8192];
+
+		Decode(byte[] encoded, String encoding, boolean javaMail) {
+			this.encoded = encoded;
+			this.encoding = encoding;
+			this.javaMail = javaMail;
+		}
+
+		public long run() throws Exception {
+			InputStream raw = new ByteArrayInputStream(encoded);
+			InputStream in = javaMail ? MimeUtility.decode(raw, encoding) : MimeStreams.decode(raw, encoding);
+			long total = 0;
+			int read;
+			while((read = in.read(decoded, 0, decoded.length)) != -1) total += read;
+			in.close();
+			return total;
+		}
+	}
+
+	/** Writes an attachment to a stream which reuses its array. */
+	private static class Encode implements Operation {
+		private final MimeBodyPart part;
+		private final ReusedOutputStream out = new ReusedOutputStream();
+
+		Encode(byte[] content, MimeBodyPart part) throws Exception {
+			this.part = part;
+			part.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+			part.setFileName("survey.bin");
+			part.setHeader("Content-Transfer-Encoding", "base64");
+		}
+
+		public long run() throws Exception {
+			out.reset();
+			part.writeTo(out);
+			return out.size();
+		}
+	}
+
+	/** Output stream which keeps its array when reset, so that writing to it allocates nothing. */
+	private static class ReusedOutputStream extends ByteArrayOutputStream {
+		ReusedOutputStream() {
+			super(64 * 1024);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ *
+ * This file is part of FrontlineSMS.
+ *
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import net.frontlinesms.email.net.EmailSocketFactory;
+import net.frontlinesms.email.net.EmailTlsContext;
+
+/**
+ * Measures the time taken to connect to a mail server over TLS and read its greeting, with a new
+ * {@link EmailTlsContext} for every connection, as JavaMail's default SSL handling behaves, and with
+ * one context shared between connections, which lets reconnects resume the previous TLS session.
+ * <p>
+ * By default a local TLS server is started with a certificate generated by <code>keytool</code>, and
+ * the client trusts only that certificate and pins its key.  A remote server can be given on the
+ * command line instead, in which case its certificate is checked against the JVM's trust store.
+ * <pre>
+ * java TlsResumptionBenchmark [host port]
+ * </pre>
+ */
+public class TlsResumptionBenchmark {
+//> STATIC CONSTANTS
+	/** Number of connections made in each measurement */
+	private static final int CONNECTIONS = 200;
+	/** Number of connections made before measuring, to warm up the JVM */
+	private static final int WARMUP_CONNECTIONS = 50;
+	/** Connection timeout, in milliseconds */
+	private static final int CONNECT_TIMEOUT = 10000;
+	/** Password of the generated key store */
+	private static final String PASSWORD = "benchmark";
+
+//> MAIN
+	public static void main(String[] args) throws Exception {
+		String host;
+		int port;
+		LocalServer server = null;
+		if(args.length >= 2) {
+			host = args[0];
+			port = Integer.parseInt(args[1]);
+		} else {
+			File keyStoreFile = createKeyStore();
+			try {
+				KeyStore keyStore = KeyStore.getInstance("JKS");
+				FileInputStream in = new FileInputStream(keyStoreFile);
+				try {
+					keyStore.load(in, PASSWORD.toCharArray());
+				} finally {
+					in.close();
+				}
+				server = new LocalServer(keyStore);
+				host = "localhost";
+				port = server.getPort();
+					System.out.println("Local server key: " + getKeyHash((X509Certificate) keyStore.getCertificate("server")));
+			} finally {
+				keyStoreFile.delete();
+			}
+		}
+
+		try {
+			KeyStore trustStore = server == null ? null : server.getKeyStore();
+			String pin = server == null ? null : getKeyHash((X509Certificate) trustStore.getCertificate("server"));
+
+			measure("warm up", host, port, trustStore, pin, WARMUP_CONNECTIONS, false);
+			measure("new context per connection", host, port, trustStore, pin, CONNECTIONS, false);
+			measure("shared context", host, port, trustStore, pin, CONNECTIONS, true);
+			if(server != null) checkRejected(host, port, trustStore);
+		} finally {
+			if(server != null) server.close();
+		}
+	}
+
+//> MEASUREMENT
+	/**
+	 * Makes a number of connections and prints the mean time per connection and the number of
+	 * handshakes which were resumed.
+	 */
+	private static void measure(String name, String host, int port, KeyStore trustStore, String pin, int connections, boolean shared) throws Exception {
+		EmailTlsContext sharedContext = createContext(trustStore, pin);
+		long fullHandshakes = 0;
+		long resumedHandshakes = 0;
+		long start = System.nanoTime();
+		for(int i=0; i<connections; ++i) {
+			EmailTlsContext context = shared ? sharedContext : createContext(trustStore, pin);
+			connect(new EmailSocketFactory(context), host, port);
+			if(!shared) {
+				fullHandshakes += context.getFullHandshakes();
+				resumedHandshakes += context.getResumedHandshakes();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if(shared) {
+			fullHandshakes = sharedContext.getFullHandshakes();
+			resumedHandshakes = sharedContext.getResumedHandshakes();
+		}
+		System.out.println(name + ": " + (elapsed / connections / 1000) + "us per connection, "
+				+ fullHandshakes + " full handshakes, " + resumedHandshakes + " resumed");
+	}
+
+	/** Checks that a server is rejected when its certificate is not trusted, or its key is not pinned. */
+	private static void checkRejected(String host, int port, KeyStore trustStore) throws Exception {
+		checkRejected("untrusted certificate", new EmailTlsContext(), host, port);
+		EmailTlsContext wrongPin = createContext(trustStore, null);
+		wrongPin.addPinnedKey("0000000000000000000000000000000000000000000000000000000000000000");
+		checkRejected("wrong pinned key", wrongPin, host, port);
+		checkRejected("wrong host name", createContext(trustStore, null), "127.0.0.2", port);
+	}
+
+	private static void checkRejected(String name, EmailTlsContext context, String host, int port) throws Exception {
+		try {
+			connect(new EmailSocketFactory(context), host, port);
+			throw new IllegalStateException("Connection was accepted with " + name);
+		} catch(IOException ex) {
+			System.out.println(name + " rejected: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Connects to the server and reads the first line it sends.  The socket is connected as JavaMail
+	 * connects when a connection timeout is set, and with Nagle's algorithm disabled, so that the
+	 * small handshake messages are not held back waiting for acknowledgements.
+	 */
+	private static void connect(EmailSocketFactory factory, String host, int port) throws IOException {
+		Socket socket = factory.createSocket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			InputStream in = socket.getInputStream();
+			int b;
+			while((b = in.read()) != -1 && b != '\n');
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static EmailTlsContext createContext(KeyStore trustStore, String pin) {
+		EmailTlsContext context = new EmailTlsContext();
+		if(trustStore != null) context.setTrustStore(trustStore);
+		if(pin != null) context.addPinnedKey(pin);
+		return context;
+	}
+
+//> STATIC HELPER METHODS
+	/** @return a new key store holding a self-signed certificate for localhost, generated with keytool */
+	private static File createKeyStore() throws Exception {
+		File file = File.createTempFile("tls-benchmark", ".jks");
+		file.delete();
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "RSA",
+				"-keysize", "2048", "-validity", "2", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+				"-storetype", "JKS", "-keystore", file.getAbsolutePath(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+				.redirectErrorStream(true).start();
+		InputStream output = process.getInputStream();
+		while(output.read() != -1);
+		if(process.waitFor() != 0) throw new IllegalStateException("keytool failed with exit code " + process.exitValue());
+		return file;
+	}
+
+	/** @return the SHA-256 hash of a certificate's public key, in hex, as accepted by {@link EmailTlsContext#addPinnedKey(String)} */
+	private static String getKeyHash(X509Certificate certificate) throws Exception {
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getPublicKey().getEncoded());
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+//> INNER CLASSES
+	/** TLS server on the loopback interface which sends a greeting to every connection and closes it. */
+	private static class LocalServer implements Runnable {
+		private final KeyStore keyStore;
+		private final SSLServerSocket serverSocket;
+		private final ExecutorService executor = Executors.newCachedThreadPool();
+
+		LocalServer(KeyStore keyStore) throws Exception {
+			this.keyStore = keyStore;
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, PASSWORD.toCharArray());
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers.getKeyManagers(), null, null);
+			this.serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+			executor.execute(this);
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		KeyStore getKeyStore() {
+			return keyStore;
+		}
+
+		public void run() {
+			while(!serverSocket.isClosed()) {
+				try {
+					final SSLSocket socket = (SSLSocket) serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					executor.execute(new Runnable() {
+						public void run() {
+							try {
+								OutputStream out = socket.getOutputStream();
+								out.write("* OK benchmark server ready\r\n".getBytes("US-ASCII"));
+								out.flush();
+								InputStream in = socket.getInputStream();
+								while(in.read() != -1);
+							} catch(IOException ex) {
+								// The client rejected the server, or closed the connection
+							} finally {
+								try { socket.close(); } catch(IOException ex) {}
+							}
+						}
+					});
+				} catch(IOException ex) {
+					// The server has been closed
+				}
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.InternetAddress;
+
+import net.frontlinesms.email.net.EmailSocketFactory;
+import net.frontlinesms.email.net.WireStatistics;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.email.receive.EmailReceiveProtocol;
+import net.frontlinesms.email.receive.EmailReceiver;
+import net.frontlinesms.email.receive.listener.SmtpListener;
+import net.frontlinesms.email.smtp.SmtpEmailSender;
+
+/**
+ * Measures the bytes sent over the network by the bandwidth-saving protocol extensions.
+ * <p>
+ * SMTP is measured against an {@link SmtpListener} on the loopback interface, sending a message with
+ * 8-bit text and a binary attachment with DATA, 8BITMIME, CHUNKING and BINARYMIME.  Each received
+ * attachment is checked against the one sent.
+ * <p>
+ * IMAP is measured if an account is given on the command line, by reading every message in its inbox
+ * with and without COMPRESS=DEFLATE.  The server must advertise COMPRESS=DEFLATE for there to be a
+ * difference.  Messages are marked as seen, but are not deleted.
+ * <pre>
+ * java WireBytesBenchmark [imapHost imapPort username password [ssl]]
+ * </pre>
+ */
+public class WireBytesBenchmark {
+//> STATIC CONSTANTS
+	/** Size of the binary attachment sent in the SMTP measurements */
+	private static final int ATTACHMENT_SIZE = 256 * 1024;
+	/** Number of times each SMTP measurement is repeated */
+	private static final int SMTP_MESSAGES = 10;
+	/** Text of the SMTP message, mostly non-ASCII so that its encoding matters */
+	private static final String TEXT = "Habari za asubuhi! Merci d'avoir répondu à l'enquête. "
+			+ "Ψηφίστε για την αγαπημένη σας υπηρεσία. Спасибо за участие в опросе. ";
+
+//> MAIN
+	public static void main(String[] args) throws Exception {
+		// Text must be sent as UTF-8, whatever the platform's default charset, for 8BITMIME to make a difference
+		System.setProperty("mail.mime.charset", "UTF-8");
+		measureSmtp();
+		if(args.length >= 4) {
+			measureImap(args[0], Integer.parseInt(args[1]), args[2], args[3], args.length > 4 && Boolean.parseBoolean(args[4]));
+		}
+	}
+
+//> SMTP
+	private static void measureSmtp() throws Exception {
+		byte[] attachment = new byte[ATTACHMENT_SIZE];
+		new Random(0).nextBytes(attachment);
+		File attachmentFile = File.createTempFile("benchmark", ".bin");
+		attachmentFile.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(attachmentFile);
+		out.write(attachment);
+		out.close();
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<40; ++i) text.append(TEXT).append("\r\n");
+		
+		AttachmentChecker checker = new AttachmentChecker(attachment);
+		SmtpListener listener = new SmtpListener(checker);
+		listener.setBindAddress(new InetSocketAddress("127.0.0.1", 0));
+		listener.start();
+		try {
+			int port = listener.getLocalPort();
+			System.out.println("SMTP: " + SMTP_MESSAGES + " messages, " + text.length() + " characters of text and a " + ATTACHMENT_SIZE + " byte attachment");
+			measureSmtp("DATA", port, false, 0, false, text.toString(), attachmentFile, checker);
+			measureSmtp("8BITMIME", port, true, 0, false, text.toString(), attachmentFile, checker);
+			measureSmtp("8BITMIME+CHUNKING", port, true, 64 * 1024, false, text.toString(), attachmentFile, checker);
+			measureSmtp("8BITMIME+BINARYMIME", port, true, 64 * 1024, true, text.toString(), attachmentFile, checker);
+		} finally {
+			listener.stop();
+		}
+	}
+
+	private static void measureSmtp(String name, int port, boolean use8BitMime, int chunkSize, boolean useBinaryMime,
+			String text, File attachment, AttachmentChecker checker) throws Exception {
+		SmtpEmailSender sender = new SmtpEmailSender("127.0.0.1", port);
+		EmailSocketFactory socketFactory = EmailSocketFactory.create(false);
+		sender.setSocketFactory(socketFactory);
+		sender.setUse8BitMime(use8BitMime);
+		sender.setChunkSize(chunkSize);
+		sender.setUseBinaryMime(useBinaryMime);
+		
+		checker.reset();
+		long start = System.nanoTime();
+		for(int i=0; i<SMTP_MESSAGES; ++i) {
+			sender.sendEmail("recipient@example.com", new InternetAddress("sender@example.com"), "Benchmark", text, attachment);
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		checker.await(SMTP_MESSAGES);
+		
+		WireStatistics statistics = socketFactory.getStatistics();
+		System.out.println("  " + pad(name) + " sent " + statistics.getWireBytesWritten() / SMTP_MESSAGES + " bytes/message in " + elapsed + "ms"
+				+ (checker.getFailures() > 0 ? "; " + checker.getFailures() + " ATTACHMENTS CORRUPTED" : ""));
+	}
+
+//> IMAP
+	private static void measureImap(String host, int port, String username, String password, boolean useSsl) throws Exception {
+		System.out.println("IMAP: " + username + "@" + host + ":" + port);
+		measureImap("uncompressed", host, port, username, password, useSsl, false);
+		measureImap("COMPRESS=DEFLATE", host, port, username, password, useSsl, true);
+	}
+
+	private static void measureImap(String name, String host, int port, String username, String password, boolean useSsl, boolean compress) throws Exception {
+		final int[] count = new int[1];
+		EmailReceiver receiver = new EmailReceiver(new EmailReceiveProcessor() {
+			public void processMessage(Message message, Date date) {
+				try {
+					// Make sure the whole message is downloaded
+					message.writeTo(new ByteArrayOutputStream());
+					++count[0];
+				} catch(Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+		receiver.setProtocol(EmailReceiveProtocol.IMAP);
+		receiver.setHostAddress(host);
+		receiver.setHostPort(port);
+		receiver.setHostUsername(username);
+		receiver.setHostPassword(password);
+		receiver.setUseSsl(useSsl);
+		EmailSocketFactory socketFactory = EmailSocketFactory.create(useSsl);
+		receiver.setSocketFactory(socketFactory);
+		receiver.setCompressionEnabled(compress);
+		
+		long start = System.nanoTime();
+		receiver.receive("INBOX");
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		WireStatistics statistics = socketFactory.getStatistics();
+		System.out.println("  " + pad(name) + " received " + statistics.getWireBytesRead() + " bytes (" + statistics.getDataBytesRead()
+				+ " uncompressed) and sent " + statistics.getWireBytesWritten() + " bytes for " + count[0] + " messages in " + elapsed + "ms");
+	}
+
+//> STATIC HELPER METHODS
+	private static String pad(String name) {
+		StringBuilder padded = new StringBuilder(name);
+		while(padded.length() < 20) padded.append(' ');
+		return padded.toString();
+	}
+
+//> INNER CLASSES
+	/** Processor which checks the attachment of each received message. */
+	private static class AttachmentChecker implements EmailReceiveProcessor {
+		private final byte[] expected;
+		private int received;
+		private int failures;
+
+		AttachmentChecker(byte[] expected) {
+			this.expected = expected;
+		}
+
+		public synchronized void processMessage(Message message, Date date) {
+			try {
+				Part attachment = ((Multipart) message.getContent()).getBodyPart(1);
+				InputStream in = attachment.getInputStream();
+				ByteArrayOutputStream actual = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while((read = in.read(buffer)) != -1) actual.write(buffer, 0, read);
+				if(!Arrays.equals(expected, actual.toByteArray())) ++failures;
+			} catch(Exception ex) {
+				++failures;
+			}
+			++received;
+			notifyAll();
+		}
+
+		synchronized void reset() {
+			received = 0;
+			failures = 0;
+		}
+
+		synchronized int getFailures() {
+			return failures;
+		}
+
+		synchronized void await(int count) throws InterruptedException {
+			while(received < count) wait();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.mime;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailBufferPool}.
+ */
+public class EmailBufferPoolTest extends BaseTestCase {
+	/** Test that requests are given buffers of the smallest size class which fits them. */
+	public void testSizeClasses() {
+		EmailBufferPool pool = new EmailBufferPool(4);
+		assertEquals("Checking smallest class", 512, pool.acquire(1).length);
+		assertEquals("Checking exact class", 1024, pool.acquire(1024).length);
+		assertEquals("Checking next class", 2048, pool.acquire(1025).length);
+		assertEquals("Checking largest class", 65536, pool.acquire(65536).length);
+		assertEquals("Checking unpooled size", 65537, pool.acquire(65537).length);
+		assertEquals("Checking allocations", 5, pool.getAllocations());
+	}
+
+	/** Test that released buffers are reused by the same thread. */
+	public void testReuse() {
+		EmailBufferPool pool = new EmailBufferPool(4);
+		byte[] buffer = pool.acquire(3000);
+		pool.release(buffer);
+		assertSame("Checking buffer reused", buffer, pool.acquire(4000));
+		pool.release(buffer);
+		pool.release(new byte[1000]);
+		assertEquals("Checking buffer not from the pool is dropped", 1024, pool.acquire(1000).length);
+		assertEquals("Checking acquisitions", 3, pool.getAcquisitions());
+		assertEquals("Checking allocations", 2, pool.getAllocations());
+		assertEquals("Checking allocated bytes", 4096 + 1024, pool.getAllocatedBytes());
+	}
+
+	/** Test that buffers a thread does not keep are shared with other threads, up to the pool's depth. */
+	public void testShared() throws Exception {
+		final EmailBufferPool pool = new EmailBufferPool(1);
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				byte[][] buffers = new byte[4][];
+				for(int i=0; i<buffers.length; ++i) buffers[i] = pool.acquire(512);
+				// Two are kept by this thread, one is shared, and one is dropped
+				for(byte[] buffer : buffers) pool.release(buffer);
+			}
+		};
+		releaser.start();
+		releaser.join();
+		assertEquals("Checking allocations by releasing thread", 4, pool.getAllocations());
+		
+		pool.acquire(512);
+		assertEquals("Checking shared buffer reused", 4, pool.getAllocations());
+		pool.acquire(512);
+		assertEquals("Checking new buffer allocated", 5, pool.getAllocations());
+	}
+
+	/** Test that growing a buffer keeps its contents. */
+	public void testGrow() {
+		EmailBufferPool pool = new EmailBufferPool(4);
+		byte[] buffer = pool.acquire(512);
+		for(int i=0; i<buffer.length; ++i) buffer[i] = (byte) i;
+		byte[] larger = pool.grow(buffer, 100, 600);
+		assertEquals("Checking grown size", 1024, larger.length);
+		for(int i=0; i<100; ++i) assertEquals("Checking grown content", (byte) i, larger[i]);
+		assertSame("Checking old buffer released", buffer, pool.acquire(512));
+	}
+}
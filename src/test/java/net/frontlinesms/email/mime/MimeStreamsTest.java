@@ -0,0 +1,180 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.mime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.mail.internet.MimeUtility;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link MimeStreams} and the pooled encoders and decoders it creates.
+ */
+public class MimeStreamsTest extends BaseTestCase {
+//> STATIC CONSTANTS
+	/** Text whose quoted-printable encoding has line breaks, whitespace and characters to escape */
+	private static final String[] TEXTS = {
+		"",
+		"Plain text",
+		"Trailing space \r\nand tab\t\r\nand end ",
+		"Lone LF\nlone CR\rCRLF\r\n",
+		"Equals = sign and café",
+		"A long line which needs a soft line break because it is longer than seventy-six characters, twice over, to be sure.",
+		"Escapes near the end of a line .................................................éééé",
+		"Spaces at a line break                                                              x",
+	};
+
+//> TEST METHODS
+	/** Test that base64 is encoded exactly as JavaMail encodes it, and decodes back. */
+	public void testBase64() throws Exception {
+		Random random = new Random(1);
+		for(int length : new int[] { 0, 1, 2, 3, 56, 57, 58, 114, 1000, 100000 }) {
+			byte[] content = new byte[length];
+			random.nextBytes(content);
+			byte[] encoded = encode(content, "base64");
+			assertTrue("Checking base64 of " + length + " bytes", Arrays.equals(encodeWithJavaMail(content, "base64"), encoded));
+			assertTrue("Checking decoding of " + length + " bytes", Arrays.equals(content, decode(encoded, "base64", false)));
+			assertTrue("Checking byte-by-byte decoding of " + length + " bytes", Arrays.equals(content, decode(encoded, "base64", true)));
+		}
+	}
+
+	/** Test that quoted-printable is encoded exactly as JavaMail encodes it, and decodes back. */
+	public void testQuotedPrintable() throws Exception {
+		for(String text : TEXTS) {
+			byte[] content = text.getBytes("UTF-8");
+			byte[] encoded = encode(content, "quoted-printable");
+			assertEquals("Checking quoted-printable of: " + text,
+					new String(encodeWithJavaMail(content, "quoted-printable"), "US-ASCII"), new String(encoded, "US-ASCII"));
+			byte[] expected = decodeWithJavaMail(encoded, "quoted-printable");
+			assertTrue("Checking decoding of: " + text, Arrays.equals(expected, decode(encoded, "quoted-printable", false)));
+			assertTrue("Checking byte-by-byte decoding of: " + text, Arrays.equals(expected, decode(encoded, "quoted-printable", true)));
+		}
+		
+		byte[] binary = new byte[20000];
+		new Random(2).nextBytes(binary);
+		byte[] encoded = encode(binary, "quoted-printable");
+		assertTrue("Checking quoted-printable of binary", Arrays.equals(encodeWithJavaMail(binary, "quoted-printable"), encoded));
+	}
+
+	/** Test decoding of content which is not quite well formed. */
+	public void testLenientDecoding() throws Exception {
+		assertEquals("Checking base64 without padding", "Alice", decodeText("QWxpY2U", "base64"));
+		assertEquals("Checking base64 with line breaks and junk", "Alice", decodeText("QW\r\nxp*Y2U=\r\n", "base64"));
+		assertEquals("Checking invalid escape", "a=ZZb=", decodeText("a=ZZb=", "quoted-printable"));
+		assertEquals("Checking soft line breaks", "softbreakhere", decodeText("soft=\r\nbreak=\nhere", "quoted-printable"));
+		assertEquals("Checking soft line break with whitespace", "ab", decodeText("a= \t\r\nb", "quoted-printable"));
+		assertEquals("Checking trailing whitespace", "line\r\nend", decodeText("line  \t\r\nend\t ", "quoted-printable"));
+		assertEquals("Checking lower case escape", "é", new String(decode("=c3=a9".getBytes("US-ASCII"), "quoted-printable", false), "UTF-8"));
+	}
+
+	/** Test that content which is not encoded is passed through, and other encodings are left to JavaMail. */
+	public void testOtherEncodings() throws Exception {
+		InputStream in = new ByteArrayInputStream(new byte[0]);
+		OutputStream out = new ByteArrayOutputStream();
+		for(String encoding : new String[] { null, "", "7bit", "8BIT", " binary " }) {
+			assertSame("Checking decoding of " + encoding, in, MimeStreams.decode(in, encoding));
+			assertSame("Checking encoding of " + encoding, out, MimeStreams.encode(out, encoding));
+		}
+		assertTrue("Checking base64 is pooled", MimeStreams.decode(in, "BASE64") instanceof Base64DecodingInputStream);
+		assertEquals("Checking uuencode", "Alice", new String(decode(encodeWithJavaMail("Alice".getBytes("US-ASCII"), "uuencode"), "uuencode", false), "US-ASCII"));
+	}
+
+	/** Test that an encoder can be finished without closing the stream it writes to. */
+	public void testFinish() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream encoder = MimeStreams.encode(out, "base64");
+		encoder.write('A');
+		MimeStreams.finish(encoder);
+		out.write('.');
+		// As JavaMail's encoders are flushed when a part is written, the line is not ended
+		assertEquals("Checking finished encoding", "QQ==.", out.toString("US-ASCII"));
+		try {
+			encoder.write('B');
+			fail("Checking finished encoder cannot be written");
+		} catch(IOException ex) {
+			// Expected
+		}
+	}
+
+//> STATIC HELPER METHODS
+	private static byte[] encode(byte[] content, String encoding) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream encoder = MimeStreams.encode(out, encoding);
+		// Write the first byte alone, and the rest in one go
+		if(content.length > 0) encoder.write(content[0]);
+		if(content.length > 1) encoder.write(content, 1, content.length - 1);
+		encoder.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] encodeWithJavaMail(byte[] content, String encoding) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStream encoder = MimeUtility.encode(out, encoding);
+		encoder.write(content);
+		encoder.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] decode(byte[] encoded, String encoding, boolean trickle) throws Exception {
+		InputStream in = new ByteArrayInputStream(encoded);
+		if(trickle) in = new TrickleInputStream(in);
+		InputStream decoder = MimeStreams.decode(in, encoding);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			MimeStreams.copy(decoder, out);
+			return out.toByteArray();
+		} finally {
+			decoder.close();
+		}
+	}
+
+	private static byte[] decodeWithJavaMail(byte[] encoded, String encoding) throws Exception {
+		InputStream decoder = MimeUtility.decode(new ByteArrayInputStream(encoded), encoding);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while((b = decoder.read()) != -1) out.write(b);
+		return out.toByteArray();
+	}
+
+	private static String decodeText(String encoded, String encoding) throws Exception {
+		return new String(decode(encoded.getBytes("US-ASCII"), encoding, false), "US-ASCII");
+	}
+
+//> INNER CLASSES
+	/** Stream which returns at most one byte from each read, to split encoded content at every point. */
+	private static class TrickleInputStream extends FilterInputStream {
+		TrickleInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1));
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.net;
+
+import java.net.ConnectException;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+
+import net.frontlinesms.email.EmailClock;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailEndpointHealth} class.
+ */
+public class EmailEndpointHealthTest extends BaseTestCase {
+	/** Unit tests for the breaker opening after repeated failures, and closing after a successful probe. */
+	public void testBreaker() throws Exception {
+		TestHealth health = new TestHealth();
+		health.setRetryInterval(50);
+		MessagingException failure = new MessagingException("Connect failed", new ConnectException("Connection refused"));
+		
+		for(int i=0; i<EmailEndpointHealth.DEFAULT_FAILURE_THRESHOLD; ++i) {
+			assertEquals("Checking breaker stays closed below the threshold.", EmailEndpointHealth.State.CLOSED, health.getState());
+			health.acquire();
+			health.recordResult(failure);
+		}
+		assertEquals("Checking breaker opens at the threshold.", EmailEndpointHealth.State.OPEN, health.getState());
+		assertRejected(health);
+		assertEquals(1, health.getRejections());
+		
+		health.now += 49;
+		assertRejected(health);
+		health.now += 1;
+		assertEquals("Checking breaker is half-open after the retry interval.", EmailEndpointHealth.State.HALF_OPEN, health.getState());
+		health.acquire();
+		assertRejected(health);
+		health.recordResult(failure);
+		assertEquals("Checking a failed probe opens the breaker again.", EmailEndpointHealth.State.OPEN, health.getState());
+		
+		// The retry interval doubles after a failed probe
+		health.now += 99;
+		assertRejected(health);
+		health.now += 1;
+		health.acquire();
+		health.recordResult(null);
+		assertEquals("Checking a successful probe closes the breaker.", EmailEndpointHealth.State.CLOSED, health.getState());
+		assertEquals(0, health.getConsecutiveFailures());
+		assertEquals(4, health.getFailures());
+		assertEquals(1, health.getSuccesses());
+	}
+
+	/** Unit tests for {@link EmailEndpointHealth#isConnectionFailure(Throwable)}. */
+	public void testIsConnectionFailure() {
+		assertFalse(EmailEndpointHealth.isConnectionFailure(null));
+		assertTrue(EmailEndpointHealth.isConnectionFailure(new MessagingException("Connect failed", new ConnectException())));
+		assertFalse("Checking a server which rejects a login is healthy.", EmailEndpointHealth.isConnectionFailure(new AuthenticationFailedException("Bad password")));
+	}
+
+//> HELPER METHODS
+	private static void assertRejected(EmailEndpointHealth health) {
+		try {
+			health.acquire();
+			fail("Connection should have been rejected: " + health);
+		} catch(EmailEndpointUnavailableException ex) {
+			assertSame(health, ex.getHealth());
+		}
+	}
+
+//> INNER CLASSES
+	/** Health whose clock only moves when the test moves it. */
+	private static class TestHealth extends EmailEndpointHealth {
+		/** The current time */
+		private long now = 1000000;
+
+		TestHealth() {
+			super("mail.example.com", 993);
+			setClock(new EmailClock() {
+				public long currentTimeMillis() {
+					return now;
+				}
+			});
+		}
+	}
+}
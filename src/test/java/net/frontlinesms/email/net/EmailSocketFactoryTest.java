@@ -0,0 +1,68 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.net;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailSocketFactory} class.
+ */
+public class EmailSocketFactoryTest extends BaseTestCase {
+	/** Unit tests for {@link EmailSocketFactory#getThreadSocket(int)}. */
+	public void testGetThreadSocket() throws Exception {
+		final EmailSocketFactory factory = EmailSocketFactory.create(false);
+		ServerSocket server = new ServerSocket(0);
+		try {
+			int port = server.getLocalPort();
+			assertNull("Checking no socket is found before one is created.", factory.getThreadSocket(port));
+
+			Socket first = factory.createSocket("127.0.0.1", port);
+			assertSame("Checking the thread's only socket is found.", first, factory.getThreadSocket(port));
+			assertSame(first, factory.getThreadSocket(-1));
+			assertNull("Checking a socket to another port is not found.", factory.getThreadSocket(port + 1));
+
+			final Socket[] otherThread = new Socket[1];
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					otherThread[0] = factory.getThreadSocket(-1);
+				}
+			};
+			thread.start();
+			thread.join();
+			assertNull("Checking sockets created by other threads are not found.", otherThread[0]);
+
+			// Sockets connected by JavaMail with a connection timeout are created unconnected
+			Socket second = factory.createSocket();
+			second.connect(new InetSocketAddress("127.0.0.1", port));
+			assertNull("Checking no socket is found when the thread has several open.", factory.getThreadSocket(port));
+			first.close();
+			assertSame("Checking closed sockets are forgotten.", second, factory.getThreadSocket(port));
+			second.close();
+			assertNull(factory.getThreadSocket(port));
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.net;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.X509TrustManager;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailTlsContext} class's checks of server certificates.
+ */
+public class EmailTlsContextTest extends BaseTestCase {
+	/** Self-signed certificate for CN=ignored.example.com, with subject alternative names mail.example.com, *.example.org and 127.0.0.1 */
+	private static final String SAN_CERTIFICATE =
+			"-----BEGIN CERTIFICATE-----\n" +
+			"MIICGjCCAYOgAwIBAgIUCY90WKvdDsoVquG9EfeQR6jYerUwDQYJKoZIhvcNAQEL\n" +
+			"BQAwHjEcMBoGA1UEAwwTaWdub3JlZC5leGFtcGxlLmNvbTAgFw0yNjEwMTkxMDM4\n" +
+			"NDJaGA8yMTI2MDkyNTEwMzg0MlowHjEcMBoGA1UEAwwTaWdub3JlZC5leGFtcGxl\n" +
+			"LmNvbTCBnzANBgkqhkiG9w0BAQEFAAOBjQAwgYkCgYEApbI2XlMenbxK02pEBzFk\n" +
+			"qUMcM3pNVnxz/GW4mGvErs+NfJqi3OTCntzVnIH4RUstDncAzH+T5Dm83FCIPdGz\n" +
+			"Ini9r5TfpW37c2ABIVYCLZKBaQh7/zlQ4dK9DeDEfkLdCxFV3m+eJ6jc6QY+QcB8\n" +
+			"cvLikU/VhezLexhEK26cXk8CAwEAAaNTMFEwMAYDVR0RBCkwJ4IQbWFpbC5leGFt\n" +
+			"cGxlLmNvbYINKi5leGFtcGxlLm9yZ4cEfwAAATAdBgNVHQ4EFgQUrs5rkXgJF+tH\n" +
+			"nHRUE6zDqH02ODUwDQYJKoZIhvcNAQELBQADgYEAiDNjPiVNV/qO4hHYyfjHcLem\n" +
+			"l19kZ6HAnpe2mJJ5ZjL2lIlN3omSJopJIoHytajgwus7QtJn+/3S82tfMXSHAAoM\n" +
+			"RLsAIyqMNHqE9y3CIUogk75hl1Zc7QlTSHgLgfttlHO5YpFrdD+Y7ANRT4JqE5Wq\n" +
+			"qepOKVvs61djLvUXwAY=\n" +
+			"-----END CERTIFICATE-----";
+	/** Self-signed certificate for O=Example, CN=cn.example.com, with no subject alternative names */
+	private static final String CN_CERTIFICATE =
+			"-----BEGIN CERTIFICATE-----\n" +
+			"MIICNDCCAZ2gAwIBAgIUPiBhXp4IesqyEKKBvJG6wdNUQrcwDQYJKoZIhvcNAQEL\n" +
+			"BQAwKzEQMA4GA1UECgwHRXhhbXBsZTEXMBUGA1UEAwwOY24uZXhhbXBsZS5jb20w\n" +
+			"IBcNMjYxMDE5MTAzODQyWhgPMjEyNjA5MjUxMDM4NDJaMCsxEDAOBgNVBAoMB0V4\n" +
+			"YW1wbGUxFzAVBgNVBAMMDmNuLmV4YW1wbGUuY29tMIGfMA0GCSqGSIb3DQEBAQUA\n" +
+			"A4GNADCBiQKBgQDPAM9D1vLHZzlxBXPPvlksr2hYT8bpcc/lQz9efnJe4gzI7Vop\n" +
+			"8muxqDSPmEGCZEdc2+G+MhgESec/GPYT8Dh4UzaSysL/wqNvUybPDmO421XFc6V8\n" +
+			"HSczD8mO3k6cRTU8Ts9LDau1PsFPIcl7SUHb0/RkO9yCadpyt3QRxkrCBwIDAQAB\n" +
+			"o1MwUTAdBgNVHQ4EFgQUeak17DswqPZ1TcD4Mlv8qmFrAvUwHwYDVR0jBBgwFoAU\n" +
+			"eak17DswqPZ1TcD4Mlv8qmFrAvUwDwYDVR0TAQH/BAUwAwEB/zANBgkqhkiG9w0B\n" +
+			"AQsFAAOBgQAnNqXaHS0x+yziXtovxQZgV4hbIFjOik16BBl4MsTbKk3STXAIalyy\n" +
+			"qaKD+opG+EidJSexiINCmQIoCccDDYGXIh1CG3jjgVnqnZOA6PtIZbXERJ4zGIyb\n" +
+			"jF1rNUAwz2Ipose+JMASOo/lHRRee9lSRZMtb35hjMV7BlwVIf1eqA==\n" +
+			"-----END CERTIFICATE-----";
+
+	/** Unit tests for {@link EmailTlsContext#matchesName(String, String)}. */
+	public void testMatchesName() {
+		assertTrue(EmailTlsContext.matchesName("mail.example.com", "mail.example.com"));
+		assertTrue("Checking names are compared ignoring case.", EmailTlsContext.matchesName("Mail.Example.COM", "mail.example.com"));
+		assertFalse(EmailTlsContext.matchesName("mail.example.com", "imap.example.com"));
+		assertTrue("Checking wildcard matches one label.", EmailTlsContext.matchesName("*.example.com", "mail.example.com"));
+		assertFalse("Checking wildcard does not match several labels.", EmailTlsContext.matchesName("*.example.com", "a.mail.example.com"));
+		assertFalse("Checking wildcard does not match the bare domain.", EmailTlsContext.matchesName("*.example.com", "example.com"));
+		assertFalse("Checking wildcard does not match an empty label.", EmailTlsContext.matchesName("*.example.com", ".example.com"));
+		assertFalse("Checking wildcard is only allowed as a whole label.", EmailTlsContext.matchesName("m*.example.com", "mail.example.com"));
+	}
+
+	/** Unit tests for {@link EmailTlsContext#matchesHost(X509Certificate, String)}. */
+	public void testMatchesHost() throws Exception {
+		X509Certificate san = parse(SAN_CERTIFICATE);
+		assertTrue("Checking DNS subject alternative name matches.", EmailTlsContext.matchesHost(san, "mail.example.com"));
+		assertTrue("Checking host name is compared ignoring case.", EmailTlsContext.matchesHost(san, "MAIL.example.com"));
+		assertTrue("Checking wildcard subject alternative name matches.", EmailTlsContext.matchesHost(san, "imap.example.org"));
+		assertTrue("Checking IP address subject alternative name matches.", EmailTlsContext.matchesHost(san, "127.0.0.1"));
+		assertFalse(EmailTlsContext.matchesHost(san, "127.0.0.2"));
+		assertFalse("Checking common name is ignored when there are DNS subject alternative names.", EmailTlsContext.matchesHost(san, "ignored.example.com"));
+
+		X509Certificate cn = parse(CN_CERTIFICATE);
+		assertTrue("Checking common name is used when there are no subject alternative names.", EmailTlsContext.matchesHost(cn, "cn.example.com"));
+		assertFalse(EmailTlsContext.matchesHost(cn, "other.example.com"));
+	}
+
+	/** Unit tests for the trust manager's checks of pinned keys. */
+	public void testPinnedKeys() throws Exception {
+		X509Certificate san = parse(SAN_CERTIFICATE);
+		X509Certificate cn = parse(CN_CERTIFICATE);
+		X509Certificate[] chain = { san, cn };
+		String sanKey = EmailTlsContext.getKeyHash(san);
+		String cnKey = EmailTlsContext.getKeyHash(cn);
+		assertEquals("Checking key hash is hex SHA-256.", 64, sanKey.length());
+		assertFalse(sanKey.equals(cnKey));
+
+		createTrustManager(true).checkServerTrusted(chain, "RSA");
+		createTrustManager(true, sanKey).checkServerTrusted(chain, "RSA");
+		createTrustManager(true, "00", cnKey).checkServerTrusted(chain, "RSA");
+		assertRejected("Checking chain without a pinned key is rejected.", createTrustManager(true, cnKey), new X509Certificate[] { san });
+		assertRejected("Checking the trust store is checked unless all certificates are trusted.", createTrustManager(false, sanKey), chain);
+	}
+
+//> HELPER METHODS
+	private static X509Certificate parse(String pem) throws Exception {
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(pem.getBytes("US-ASCII")));
+	}
+
+	/** @return a trust manager with the given pins, whose trust store rejects every certificate */
+	private static X509TrustManager createTrustManager(boolean trustAll, String... pinnedKeys) {
+		Set<String> pins = new HashSet<String>();
+		Collections.addAll(pins, pinnedKeys);
+		X509TrustManager rejectAll = new X509TrustManager() {
+			public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+				throw new CertificateException("Not in trust store");
+			}
+			public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+				throw new CertificateException("Not in trust store");
+			}
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		};
+		return new EmailTlsContext.PinningTrustManager(rejectAll, trustAll, pins);
+	}
+
+	private static void assertRejected(String message, X509TrustManager manager, X509Certificate[] chain) {
+		try {
+			manager.checkServerTrusted(chain, "RSA");
+			fail(message);
+		} catch(CertificateException ex) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Folder;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailReceiveUtils#moveMessages(Folder, javax.mail.Message[], Folder)}, which
+ * archives messages after they are processed.
+ */
+public class EmailArchiveMoveTest extends BaseTestCase {
+	/** Unit tests for messages being moved with a single MOVE command when the server supports it. */
+	public void testMoveMessages() throws Exception {
+		List<String> commands = moveMessages("IMAP4rev1 MOVE");
+		assertTrue("Checking MOVE is used: " + commands, commands.contains("MOVE 1:2 Archive"));
+		assertFalse("Checking messages are not copied: " + commands, contains(commands, "COPY"));
+		assertFalse("Checking messages are not flagged: " + commands, contains(commands, "STORE"));
+	}
+
+	/** Unit tests for messages being copied and flagged as deleted when the server does not support MOVE. */
+	public void testMoveMessagesFallback() throws Exception {
+		List<String> commands = moveMessages("IMAP4rev1");
+		assertFalse("Checking MOVE is not used: " + commands, contains(commands, "MOVE"));
+		assertTrue("Checking messages are copied: " + commands, commands.contains("COPY 1:2 Archive"));
+		assertTrue("Checking messages are flagged as deleted: " + commands, commands.contains("STORE 1:2 +FLAGS (\\Deleted)"));
+	}
+
+//> HELPER METHODS
+	/**
+	 * Moves both messages in a folder of a scripted IMAP server to another folder.
+	 * @param capabilities capabilities the server advertises
+	 * @return the commands the server received, without their tags
+	 */
+	private static List<String> moveMessages(String capabilities) throws Exception {
+		ScriptedImapServer server = new ScriptedImapServer(capabilities);
+		server.start();
+		try {
+			Store store = Session.getInstance(new Properties()).getStore("imap");
+			store.connect("127.0.0.1", server.getPort(), "user", "password");
+			Folder inbox = store.getFolder("INBOX");
+			inbox.open(Folder.READ_WRITE);
+			EmailReceiveUtils.moveMessages(inbox, inbox.getMessages(), store.getFolder("Archive"));
+			store.close();
+			server.join(5000);
+			return server.getCommands();
+		} finally {
+			server.close();
+		}
+	}
+
+	private static boolean contains(List<String> commands, String verb) {
+		for(String command : commands) {
+			if(command.startsWith(verb + " ")) return true;
+		}
+		return false;
+	}
+
+//> INNER CLASSES
+	/** IMAP server for one connection, which has two messages in its inbox and records the commands it receives. */
+	private static class ScriptedImapServer extends Thread {
+		private final String capabilities;
+		private final ServerSocket serverSocket;
+		private final List<String> commands = new ArrayList<String>();
+
+		ScriptedImapServer(String capabilities) throws IOException {
+			this.capabilities = capabilities;
+			this.serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		synchronized List<String> getCommands() {
+			return new ArrayList<String>(commands);
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+
+		@Override
+		public void run() {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+					OutputStream out = socket.getOutputStream();
+					send(out, "* OK [CAPABILITY " + capabilities + "] Test server ready");
+					String line;
+					while((line = in.readLine()) != null) {
+						int space = line.indexOf(' ');
+						String tag = line.substring(0, space);
+						String command = line.substring(space + 1);
+						synchronized(this) {
+							commands.add(command);
+						}
+						String verb = command.split(" ")[0].toUpperCase();
+						if(verb.equals("CAPABILITY")) {
+							send(out, "* CAPABILITY " + capabilities + "\r\n" + tag + " OK CAPABILITY completed");
+						} else if(verb.equals("SELECT")) {
+							send(out, "* FLAGS (\\Seen \\Deleted)\r\n* 2 EXISTS\r\n* 0 RECENT\r\n* OK [UIDVALIDITY 1] UIDs valid\r\n"
+									+ tag + " OK [READ-WRITE] SELECT completed");
+						} else if(verb.equals("MOVE")) {
+							send(out, "* 2 EXPUNGE\r\n* 1 EXPUNGE\r\n" + tag + " OK MOVE completed");
+						} else if(verb.equals("LOGOUT")) {
+							send(out, "* BYE Logging out\r\n" + tag + " OK LOGOUT completed");
+							break;
+						} else {
+							send(out, tag + " OK " + verb + " completed");
+						}
+					}
+				} finally {
+					socket.close();
+				}
+			} catch(IOException ex) {
+				// The test fails on the missing commands
+			}
+		}
+
+		private static void send(OutputStream out, String text) throws IOException {
+			out.write((text + "\r\n").getBytes("US-ASCII"));
+			out.flush();
+		}
+	}
+}
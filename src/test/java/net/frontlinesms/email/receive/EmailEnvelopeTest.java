@@ -0,0 +1,147 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive;
+
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import net.frontlinesms.email.receive.EmailEnvelope.Mailbox;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailEnvelope}.
+ */
+public class EmailEnvelopeTest extends BaseTestCase {
+//> STATIC CONSTANTS
+	/** From headers whose senders must match those JavaMail gives */
+	private static final String[] FROM_HEADERS = {
+		"alice@example.com",
+		"Alice Smith <alice@example.com>",
+		"\"Smith, Alice\" <alice@example.com>",
+		"\"Alice \\\"Al\\\" Smith\" <alice@example.com>",
+		"alice@example.com (Alice Smith)",
+		"=?UTF-8?B?QWxpY2Ugw4lsaXNl?= <alice@example.com>",
+		"=?ISO-8859-1?Q?Andr=E9?= Smith <andre@example.com>",
+		"<alice@example.com>",
+		"Alice <@relay.example.com:alice@example.com>",
+		"Alice Smith <alice@example.com>, Bob <bob@example.com>",
+	};
+
+//> TEST METHODS
+	/** Test that the sender of a message is the one {@link MimeMessage}'s accessors give. */
+	public void testSenderMatchesJavaMail() throws Exception {
+		for(String from : FROM_HEADERS) {
+			MimeMessage message = createMessage();
+			message.setHeader("From", from);
+			assertEquals("Checking sender of: " + from, message.getFrom()[0].toString(), new EmailEnvelope(message).getSender());
+			assertEquals("Checking address of: " + from, ((InternetAddress) message.getFrom()[0]).getAddress(),
+					new EmailEnvelope(message).getFrom()[0].getAddress());
+			assertEquals("Checking display name of: " + from, ((InternetAddress) message.getFrom()[0]).getPersonal(),
+					new EmailEnvelope(message).getFrom()[0].getPersonal());
+		}
+	}
+
+	/** Test that the sender falls back to the Sender and then Reply-To headers. */
+	public void testSenderFallback() throws Exception {
+		MimeMessage message = createMessage();
+		assertEquals("Checking sender with no addresses", "", new EmailEnvelope(message).getSender());
+		message.setHeader("Reply-To", "reply@example.com");
+		assertEquals("Checking sender from Reply-To", "reply@example.com", new EmailEnvelope(message).getSender());
+		message.setHeader("Sender", "sender@example.com");
+		assertEquals("Checking sender from Sender", "sender@example.com", new EmailEnvelope(message).getSender());
+		assertEquals("Checking sender from utils", "sender@example.com", EmailReceiveUtils.getSender(message));
+	}
+
+	/** Test parsing of address lists spread over several folded headers, with groups and comments. */
+	public void testAddressList() throws Exception {
+		MimeMessage message = createMessage();
+		message.addHeader("To", "Team: alice@example.com,\r\n\t\"Bob (B)\" <bob@example.com>;, carol@example.com (Carol (C))");
+		message.addHeader("To", ", ,dave@example.com");
+		Mailbox[] to = new EmailEnvelope(message).getTo();
+		assertEquals("Checking number of addresses", 4, to.length);
+		assertEquals("Checking first address", "alice@example.com", to[0].getAddress());
+		assertNull("Checking first display name", to[0].getPersonal());
+		assertEquals("Checking second address", "bob@example.com", to[1].getAddress());
+		assertEquals("Checking second display name", "Bob (B)", to[1].getPersonal());
+		assertEquals("Checking third address", "carol@example.com", to[2].getAddress());
+		assertEquals("Checking third display name", "Carol (C)", to[2].getPersonal());
+		assertEquals("Checking fourth address", "dave@example.com", to[3].getAddress());
+		assertEquals("Checking missing header", 0, new EmailEnvelope(message).getCc().length);
+	}
+
+	/** Test that the subject is unfolded and decoded, and that fields are parsed only once. */
+	public void testSubject() throws Exception {
+		MimeMessage message = createMessage();
+		message.setHeader("Subject", "=?UTF-8?Q?Caf=C3=A9?=\r\n =?UTF-8?Q?_ouvert?= today");
+		EmailEnvelope envelope = new EmailEnvelope(message);
+		assertEquals("Checking subject", message.getSubject(), envelope.getSubject());
+		assertEquals("Checking subject", "Café ouvert today", envelope.getSubject());
+		assertSame("Checking subject is cached", envelope.getSubject(), envelope.getSubject());
+		assertSame("Checking addresses are cached", envelope.getFrom(), envelope.getFrom());
+		assertNull("Checking missing header", envelope.getHeader("X-Missing"));
+	}
+
+	/** Test that the envelope of a message is shared. */
+	public void testShared() throws Exception {
+		MimeMessage message = createMessage();
+		message.setHeader("From", "alice@example.com");
+		EmailEnvelope envelope = EmailEnvelope.get(message);
+		assertSame("Checking envelope is shared", envelope, EmailEnvelope.get(message));
+		assertNotSame("Checking other messages have their own envelope", envelope, EmailEnvelope.get(createMessage()));
+	}
+
+	/** Test that threads asking for the envelopes of the same messages at once all get the same envelopes. */
+	public void testSharedBetweenThreads() throws Exception {
+		final MimeMessage[] messages = new MimeMessage[200];
+		for(int i=0; i<messages.length; ++i) messages[i] = createMessage();
+		final EmailEnvelope[][] envelopes = new EmailEnvelope[8][messages.length];
+		final Exception[] failure = new Exception[1];
+		Thread[] threads = new Thread[envelopes.length];
+		for(int t=0; t<threads.length; ++t) {
+			final EmailEnvelope[] found = envelopes[t];
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i=0; i<messages.length; ++i) found[i] = EmailEnvelope.get(messages[i]);
+					} catch(Exception ex) {
+						failure[0] = ex;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads) thread.join();
+		if(failure[0] != null) throw failure[0];
+		for(int i=0; i<messages.length; ++i) {
+			for(int t=0; t<threads.length; ++t) {
+				assertSame("Checking every thread gets the same envelope", envelopes[0][i], envelopes[t][i]);
+			}
+		}
+	}
+
+//> HELPER METHODS
+	private static MimeMessage createMessage() {
+		return new MimeMessage(Session.getInstance(new Properties()));
+	}
+}
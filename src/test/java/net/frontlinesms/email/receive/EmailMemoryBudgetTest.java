@@ -0,0 +1,141 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailMemoryBudget}.
+ */
+public class EmailMemoryBudgetTest extends BaseTestCase {
+	/** Directory spill files are written to */
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("spill", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if(files != null) for(File file : files) file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+//> TEST METHODS
+	/** Test reserving and releasing room, and the metrics which report it. */
+	public void testReserve() throws Exception {
+		EmailMemoryBudget budget = new EmailMemoryBudget(1000, 500, directory);
+		budget.setMaxWait(0);
+		assertTrue("Checking reservation within the budget", budget.reserve(600));
+		assertTrue("Checking reservation using the rest of the budget", budget.reserve(400));
+		assertFalse("Checking reservation beyond the budget", budget.reserve(1));
+		assertEquals("Checking reserved bytes", 1000, budget.getReserved());
+		assertEquals("Checking available bytes", 0, budget.getAvailable());
+		budget.release(600);
+		assertEquals("Checking reserved bytes after release", 400, budget.getReserved());
+		assertFalse("Checking reservation larger than the whole budget", budget.reserve(1001));
+		assertEquals("Checking peak", 1000, budget.getPeakReserved());
+		assertEquals("Checking waits", 1, budget.getWaits());
+	}
+
+	/** Test that a reservation waits for room, and gives up after the maximum wait. */
+	public void testWait() throws Exception {
+		final EmailMemoryBudget budget = new EmailMemoryBudget(1000, 500, directory);
+		budget.setMaxWait(100);
+		assertTrue(budget.reserve(1000));
+		long start = System.currentTimeMillis();
+		assertFalse("Checking reservation gives up when there is no room", budget.reserve(500));
+		assertTrue("Checking reservation waited: " + (System.currentTimeMillis() - start), System.currentTimeMillis() - start >= 90);
+
+		budget.setMaxWait(10000);
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while(budget.getWaiting() == 0) Thread.sleep(10);
+					budget.release(1000);
+				} catch(InterruptedException ex) {
+					// The test fails waiting for the reservation
+				}
+			}
+		};
+		releaser.start();
+		assertTrue("Checking reservation succeeds once room is released", budget.reserve(500));
+		releaser.join();
+		assertEquals("Checking reserved bytes", 500, budget.getReserved());
+		assertEquals("Checking no threads are waiting", 0, budget.getWaiting());
+	}
+
+	/** Test that a spilled message reads the same as the original, and that its file is deleted afterwards. */
+	public void testSpill() throws Exception {
+		MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+		message.setSubject("Spilled");
+		MimeMultipart multipart = new MimeMultipart();
+		MimeBodyPart text = new MimeBodyPart();
+		text.setText("Message text");
+		multipart.addBodyPart(text);
+		MimeBodyPart attachment = new MimeBodyPart();
+		byte[] data = new byte[100000];
+		for(int i=0; i<data.length; ++i) data[i] = (byte) i;
+		attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+		multipart.addBodyPart(attachment);
+		message.setContent(multipart);
+		message.saveChanges();
+		// Parse the message, as a received message would be, so that its body is streamed
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		message.writeTo(bytes);
+		message = new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(bytes.toByteArray()));
+
+		EmailMemoryBudget budget = new EmailMemoryBudget(1000, 500, directory);
+		EmailMemoryBudget.SpilledMessage spilled = budget.spill(message);
+		assertTrue("Checking spill file exists", spilled.getFile().exists());
+		assertEquals("Checking subject", "Spilled", spilled.getSubject());
+		assertEquals("Checking text", "Message text", EmailReceiveUtils.getMessageText(spilled));
+		MimeMultipart content = (MimeMultipart) spilled.getContent();
+		InputStream in = content.getBodyPart(1).getInputStream();
+		for(int i=0; i<data.length; ++i) assertEquals("Checking attachment byte " + i, data[i], (byte) in.read());
+		assertEquals("Checking end of attachment", -1, in.read());
+		in.close();
+		assertEquals("Checking spills", 1, budget.getSpills());
+		assertEquals("Checking spilled bytes", spilled.getFile().length(), budget.getSpilledBytes());
+
+		spilled.dispose();
+		assertFalse("Checking spill file is deleted", spilled.getFile().exists());
+	}
+}
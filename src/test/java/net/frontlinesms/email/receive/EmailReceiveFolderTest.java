@@ -0,0 +1,52 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive;
+
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.protocol.Status;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailReceiveFolder} class.
+ */
+public class EmailReceiveFolderTest extends BaseTestCase {
+	/** Unit tests for {@link EmailReceiveFolder#hasChanged(Status)}. */
+	public void testHasChanged() throws Exception {
+		EmailReceiveFolder folder = new EmailReceiveFolder("INBOX", null);
+		Status status = createStatus(2, 1, 3, 1);
+		assertTrue("Checking a folder which has not been received from has changed.", folder.hasChanged(status));
+
+		folder.setLastStatus(status);
+		assertFalse("Checking identical status is unchanged.", folder.hasChanged(createStatus(2, 1, 3, 1)));
+		assertTrue("Checking new message count is a change.", folder.hasChanged(createStatus(1, 1, 3, 1)));
+		assertTrue("Checking new unseen count is a change.", folder.hasChanged(createStatus(2, 0, 3, 1)));
+		assertTrue("Checking new UIDNEXT is a change.", folder.hasChanged(createStatus(2, 1, 4, 1)));
+		assertTrue("Checking new UIDVALIDITY is a change.", folder.hasChanged(createStatus(2, 1, 3, 2)));
+
+		folder.setLastStatus(null);
+		assertTrue("Checking a cleared status forces the folder to be received from.", folder.hasChanged(status));
+	}
+
+	private static Status createStatus(int messages, int unseen, long uidNext, long uidValidity) throws Exception {
+		return new Status(new Response("* INBOX (MESSAGES " + messages + " UNSEEN " + unseen
+				+ " UIDNEXT " + uidNext + " UIDVALIDITY " + uidValidity + ")"));
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailReceiveJournal} class.
+ */
+public class EmailReceiveJournalTest extends BaseTestCase {
+	private static final String FOLDER = "imap://user@localhost:143/INBOX;UIDVALIDITY=1";
+
+	private File file;
+	private File temp;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("EmailReceiveJournalTest", ".journal");
+		file.delete();
+		temp = new File(file.getPath() + ".tmp");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		temp.delete();
+		super.tearDown();
+	}
+
+	/** Unit tests for a journal being replayed after the process stopped without closing it. */
+	public void testReplayAfterCrash() throws Exception {
+		EmailReceiveJournal journal = new EmailReceiveJournal(file);
+		journal.begin(FOLDER, "1");
+		journal.acknowledged(FOLDER, "1");
+		journal.begin(FOLDER, "2");
+		journal.acknowledged(FOLDER, "2");
+		journal.committed(FOLDER, Collections.singleton("2"));
+		journal.begin(FOLDER, "3");
+		// The journal is abandoned without being closed, as it would be by a crash
+
+		EmailReceiveJournal replayed = new EmailReceiveJournal(file);
+		assertEquals("Checking acknowledged message is not processed again.", Collections.singleton("1"), replayed.getAcknowledged(FOLDER));
+		assertEquals("Checking interrupted message is reported.", Collections.singleton("3"), replayed.getInFlight(FOLDER));
+		assertTrue(replayed.getAcknowledged("imap://user@localhost:143/Other;UIDVALIDITY=1").isEmpty());
+
+		replayed.committed(FOLDER, Arrays.asList("1"));
+		replayed.failed(FOLDER, "3");
+		replayed.close();
+		EmailReceiveJournal reopened = new EmailReceiveJournal(file);
+		assertTrue(reopened.getAcknowledged(FOLDER).isEmpty());
+		assertTrue(reopened.getInFlight(FOLDER).isEmpty());
+		reopened.close();
+		assertEquals("Checking nothing outstanding is left in the journal.", 0, file.length());
+	}
+
+	/** Unit tests for a journal being recovered if the process stopped while the journal file was being replaced. */
+	public void testRecoverFromTempFile() throws Exception {
+		EmailReceiveJournal journal = new EmailReceiveJournal(file);
+		journal.begin(FOLDER, "1");
+		journal.acknowledged(FOLDER, "1");
+		journal.compact();
+		journal.close();
+
+		// The old journal has been removed, but the new one has not been renamed into place
+		assertTrue(file.renameTo(temp));
+		EmailReceiveJournal recovered = new EmailReceiveJournal(file);
+		assertEquals(Collections.singleton("1"), recovered.getAcknowledged(FOLDER));
+		assertTrue(file.exists());
+		assertFalse("Checking temporary file is renamed into place.", temp.exists());
+		recovered.close();
+	}
+
+	/** Unit tests for entries of messages which fail again and again being compacted away. */
+	public void testCompactFailures() throws Exception {
+		EmailReceiveJournal journal = new EmailReceiveJournal(file);
+		for(int i=0; i<100; ++i) {
+			journal.begin(FOLDER, "1");
+			journal.failed(FOLDER, "1");
+		}
+		journal.begin(FOLDER, "2");
+		journal.acknowledged(FOLDER, "2");
+		long before = file.length();
+		journal.compact();
+		assertTrue("Checking journal shrinks when compacted: " + file.length(), file.length() < before / 50);
+		journal.close();
+
+		EmailReceiveJournal reopened = new EmailReceiveJournal(file);
+		assertTrue(reopened.getInFlight(FOLDER).isEmpty());
+		assertEquals(Collections.singleton("2"), reopened.getAcknowledged(FOLDER));
+		reopened.close();
+	}
+}
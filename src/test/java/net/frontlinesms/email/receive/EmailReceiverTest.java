@@ -0,0 +1,362 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Flags.Flag;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.frontlinesms.email.EmailHeaderFilter;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailReceiver} class, against a local IMAP server.
+ */
+public class EmailReceiverTest extends BaseTestCase {
+	private static final String USERNAME = "user";
+	private static final String PASSWORD = "password";
+
+	private GreenMail greenMail;
+	private GreenMailUser user;
+	/** Subjects of the messages processed, in the order they were processed */
+	private final List<String> processed = new ArrayList<String>();
+	/** The messages processed, in the order they were processed */
+	private final List<Message> processedMessages = new ArrayList<Message>();
+	/** Text of the messages processed, read while they were being processed */
+	private final List<String> processedText = new ArrayList<String>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		greenMail = new GreenMail(ServerSetupTest.IMAP);
+		greenMail.start();
+		user = greenMail.setUser(USERNAME + "@localhost", USERNAME, PASSWORD);
+		processed.clear();
+		processedMessages.clear();
+		processedText.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		greenMail.stop();
+		super.tearDown();
+	}
+
+	/** Unit tests for messages accepted, rejected and deleted by an {@link EmailHeaderFilter}. */
+	public void testHeaderTriage() throws Exception {
+		deliver("accept", "Accepted body");
+		deliver("reject", "Rejected body");
+		deliver("delete", "Deleted body");
+		EmailReceiver receiver = createReceiver();
+		receiver.setHeaderFilter(new EmailHeaderFilter() {
+			public Decision filter(Message message) {
+				try {
+					return Decision.valueOf(message.getSubject().toUpperCase());
+				} catch(MessagingException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+		receiver.receive();
+
+		assertEquals("Checking only the accepted message is processed.", "[accept]", processed.toString());
+		Store store = connect();
+		try {
+			Folder inbox = store.getFolder("INBOX");
+			inbox.open(Folder.READ_ONLY);
+			List<String> remaining = new ArrayList<String>();
+			for(Message message : inbox.getMessages()) {
+				remaining.add(message.getSubject());
+				if(message.getSubject().equals("reject")) {
+					assertTrue("Checking rejected message is marked as read.", message.isSet(Flag.SEEN));
+				}
+			}
+			assertFalse("Checking deleted message is removed from the server.", remaining.contains("delete"));
+			assertTrue("Checking rejected message stays on the server.", remaining.contains("reject"));
+			inbox.close(false);
+		} finally {
+			store.close();
+		}
+	}
+
+	/** Unit tests for oversized messages being left on the server with {@link EmailSizePolicy#SKIP}. */
+	public void testSizePolicySkip() throws Exception {
+		deliver("small", "Small body");
+		deliver("large", repeat('x', 5000));
+		EmailReceiver receiver = createReceiver();
+		receiver.setMaxMessageSize(2000);
+		receiver.setOversizePolicy(EmailSizePolicy.SKIP);
+		receiver.receive();
+
+		assertEquals("Checking oversized message is not processed.", "[small]", processed.toString());
+		assertEquals("Checking oversized message is left unread.", "[large]", getUnseenSubjects().toString());
+	}
+
+	/** Unit tests for only the headers of oversized messages being processed with {@link EmailSizePolicy#HEADERS_ONLY}. */
+	public void testSizePolicyHeadersOnly() throws Exception {
+		deliver("large", repeat('x', 5000));
+		EmailReceiver receiver = createReceiver();
+		receiver.setMaxMessageSize(2000);
+		receiver.setOversizePolicy(EmailSizePolicy.HEADERS_ONLY);
+		receiver.receive();
+
+		assertEquals("[large]", processed.toString());
+		Message message = processedMessages.get(0);
+		assertEquals("Checking no body is fetched.", "", processedText.get(0));
+		assertTrue("Checking original size is recorded.", Integer.parseInt(message.getHeader(EmailReceiveUtils.HEADER_ORIGINAL_SIZE)[0]) > 5000);
+	}
+
+	/** Unit tests for the start of the body of oversized messages being processed with {@link EmailSizePolicy#PARTIAL}. */
+	public void testSizePolicyPartial() throws Exception {
+		deliver("small", "Small body");
+		deliver("large", repeat('x', 5000));
+		EmailReceiver receiver = createReceiver();
+		receiver.setMaxMessageSize(2000);
+		receiver.setOversizePolicy(EmailSizePolicy.PARTIAL);
+		receiver.setPartialFetchSize(100);
+		receiver.receive();
+
+		assertEquals("[small, large]", processed.toString());
+		assertEquals("Checking small message is fetched whole.", "Small body", processedText.get(0));
+		// The body is quoted-printable, so 100 bytes of it decode to slightly fewer characters
+		String partial = processedText.get(1);
+		assertTrue("Checking only the start of the oversized body is fetched: " + partial.length(), partial.length() > 90 && partial.length() <= 100);
+		assertEquals(repeat('x', partial.length()), partial);
+	}
+
+	/** Unit tests for a poll stopping once its byte budget is used up, and the remaining messages being received by later polls. */
+	public void testPollByteBudget() throws Exception {
+		for(int i=0; i<5; ++i) deliver("message" + i, repeat('x', 1000));
+		EmailReceiver receiver = createReceiver();
+		receiver.setLastCheck(Long.valueOf(0));
+		// Each message is between 1000 and 1500 bytes, so two fit in the budget
+		receiver.setPollByteBudget(3000);
+
+		receiver.receive();
+		assertEquals("Checking poll stops when the budget is used up.", "[message0, message1]", processed.toString());
+		receiver.receive();
+		assertEquals("[message0, message1, message2, message3]", processed.toString());
+		receiver.setPollByteBudget(1);
+		receiver.receive();
+		assertEquals("Checking one message is received per poll even if it is bigger than the budget.", "[message0, message1, message2, message3, message4]", processed.toString());
+	}
+
+	/** Unit tests for a poll being ended by its {@link EmailPollGuard}, and the remaining messages being received by a later poll. */
+	public void testPollGuard() throws Exception {
+		for(int i=0; i<3; ++i) deliver("message" + i, "Body " + i);
+		EmailReceiver receiver = createReceiver();
+		receiver.setLastCheck(Long.valueOf(0));
+		receiver.setPollGuard(new EmailPollGuard() {
+			public boolean isPollAllowed() {
+				return processed.size() < 2;
+			}
+		});
+
+		receiver.receive();
+		assertEquals("Checking the poll ends when the guard says so.", "[message0, message1]", processed.toString());
+		receiver.setPollGuard(null);
+		receiver.receive();
+		assertEquals("[message0, message1, message2]", processed.toString());
+	}
+
+	/** Unit tests for messages being reserved from a memory budget, or spilled to disk when they do not fit. */
+	public void testMemoryBudget() throws Exception {
+		deliver("small", "Small body");
+		deliver("large", repeat('x', 5000));
+		File directory = File.createTempFile("spill", "");
+		directory.delete();
+		directory.mkdir();
+		try {
+			final EmailMemoryBudget budget = new EmailMemoryBudget(10000, 2000, directory);
+			final List<Long> reserved = new ArrayList<Long>();
+			EmailReceiver receiver = new EmailReceiver(new EmailReceiveProcessor() {
+				public void processMessage(Message message, Date date) {
+					try {
+						processed.add(message.getSubject());
+						processedText.add(EmailReceiveUtils.getMessageText(message).trim());
+						reserved.add(budget.getReserved());
+					} catch(Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			receiver.setProtocol(EmailReceiveProtocol.IMAP);
+			receiver.setHostAddress("localhost");
+			receiver.setHostPort(ServerSetupTest.IMAP.getPort());
+			receiver.setHostUsername(USERNAME);
+			receiver.setHostPassword(PASSWORD);
+			receiver.setMemoryBudget(budget);
+			receiver.receive();
+
+			assertEquals("[small, large]", processed.toString());
+			assertEquals("Checking spilled message is read whole.", repeat('x', 5000), processedText.get(1));
+			assertTrue("Checking small message is reserved while it is processed.", reserved.get(0) > 0);
+			assertEquals("Checking large message is not reserved.", Long.valueOf(0), reserved.get(1));
+			assertEquals("Checking large message is spilled.", 1, budget.getSpills());
+			assertEquals("Checking reservations are released.", 0, budget.getReserved());
+			assertEquals("Checking spill file is deleted.", 0, directory.list().length);
+		} finally {
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Unit tests for processed messages being moved to an archive folder.  The test server does not
+	 * support MOVE, so this covers the COPY and \Deleted fallback; the MOVE command itself is tested
+	 * in {@link EmailReceiveUtilsTest}.
+	 */
+	public void testArchiveFolder() throws Exception {
+		deliver("first", "First body");
+		deliver("second", "Second body");
+		EmailReceiver receiver = createReceiver();
+		receiver.setArchiveFolderName("Archive");
+		receiver.receive();
+		assertEquals("[first, second]", processed.toString());
+
+		Store store = connect();
+		try {
+			Folder inbox = store.getFolder("INBOX");
+			inbox.open(Folder.READ_ONLY);
+			// GreenMail 1.3 skips every other message when expunging, so check the flags rather than the count
+			for(Message message : inbox.getMessages()) {
+				assertTrue("Checking archived message is flagged for removal from the inbox.", message.isSet(Flag.DELETED));
+			}
+			inbox.close(false);
+			Folder archive = store.getFolder("Archive");
+			assertTrue("Checking archive folder is created.", archive.exists());
+			archive.open(Folder.READ_ONLY);
+			assertEquals("Checking processed messages are copied to the archive.", 2, archive.getMessageCount());
+			assertEquals("first", archive.getMessage(1).getSubject());
+			assertEquals("second", archive.getMessage(2).getSubject());
+			archive.close(false);
+		} finally {
+			store.close();
+		}
+	}
+
+	/** Unit tests for watched folders only being read when they have changed, including when a message arrives while they are being read. */
+	public void testWatchedFolderChanges() throws Exception {
+		deliver("first", "First body");
+		final boolean[] delivered = { false };
+		EmailReceiver receiver = createReceiver();
+		receiver.setLastCheck(Long.valueOf(0));
+		receiver.watchFolder("INBOX", new EmailReceiveProcessor() {
+			public void processMessage(Message message, Date date) {
+				try {
+					processed.add(message.getSubject());
+					if(!delivered[0]) {
+						delivered[0] = true;
+						deliver("arrived", "Arrived while the folder was being read");
+					}
+				} catch(Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+
+		receiver.receiveWatchedFolders();
+		assertEquals("[first]", processed.toString());
+		receiver.receiveWatchedFolders();
+		assertEquals("Checking message which arrived during the last poll is received.", "[first, arrived]", processed.toString());
+		processed.clear();
+		// Without a last check time, seen messages are processed again whenever the folder is read
+		receiver.setLastCheck(null);
+		receiver.receiveWatchedFolders();
+		assertEquals("Checking unchanged folder is not read.", "[]", processed.toString());
+		deliver("later", "Later body");
+		receiver.receiveWatchedFolders();
+		assertEquals("Checking changed folder is read.", "[first, arrived, later]", processed.toString());
+	}
+
+//> HELPER METHODS
+	private EmailReceiver createReceiver() {
+		EmailReceiver receiver = new EmailReceiver(new EmailReceiveProcessor() {
+			public void processMessage(Message message, Date date) {
+				try {
+					processed.add(message.getSubject());
+					processedMessages.add(message);
+					processedText.add(EmailReceiveUtils.getMessageText(message).trim());
+				} catch(Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+		receiver.setProtocol(EmailReceiveProtocol.IMAP);
+		receiver.setHostAddress("localhost");
+		receiver.setHostPort(ServerSetupTest.IMAP.getPort());
+		receiver.setHostUsername(USERNAME);
+		receiver.setHostPassword(PASSWORD);
+		return receiver;
+	}
+
+	private void deliver(String subject, String body) throws Exception {
+		MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress(USERNAME + "@localhost"));
+		message.setSubject(subject);
+		message.setText(body);
+		message.setSentDate(new Date());
+		user.deliver(message);
+	}
+
+	/** @return subjects of the messages in the inbox which have not been read */
+	private List<String> getUnseenSubjects() throws MessagingException {
+		Store store = connect();
+		try {
+			Folder inbox = store.getFolder("INBOX");
+			inbox.open(Folder.READ_ONLY);
+			List<String> unseen = new ArrayList<String>();
+			for(Message message : inbox.getMessages()) {
+				if(!message.isSet(Flag.SEEN)) unseen.add(message.getSubject());
+			}
+			inbox.close(false);
+			return unseen;
+		} finally {
+			store.close();
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder text = new StringBuilder(count);
+		for(int i=0; i<count; ++i) text.append(c);
+		return text.toString();
+	}
+
+	private Store connect() throws MessagingException {
+		Store store = Session.getInstance(new Properties()).getStore("imap");
+		store.connect("localhost", ServerSetupTest.IMAP.getPort(), USERNAME, PASSWORD);
+		return store;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailTextDecoder}.
+ */
+public class EmailTextDecoderTest extends BaseTestCase {
+//> STATIC CONSTANTS
+	/** Header values which must decode as {@link MimeUtility#decodeText(String)} decodes them */
+	private static final String[] HEADERS = {
+		"Plain subject",
+		"  leading and trailing  ",
+		"=?UTF-8?B?QWxpY2Ugw4lsaXNl?=",
+		"=?utf-8?b?QWxpY2Ugw4lsaXNl?=",
+		"=?ISO-8859-1?Q?Andr=E9_Smith?=",
+		"=?windows-1252?Q?=93quoted=94?= text",
+		"Re: =?UTF-8?Q?Caf=C3=A9?= =?UTF-8?Q?_ouvert?= today",
+		"=?UTF-8?Q?a?=   =?ISO-8859-1?Q?=E9?=  b",
+		"=?UTF-8?Q?bad=ZZhex?=",
+		"not=?UTF-8?Q?a_word?=",
+		"=?UTF-8*en?Q?language?=",
+	};
+
+//> TEST METHODS
+	/** Test that headers decode as JavaMail decodes them. */
+	public void testMatchesJavaMail() throws Exception {
+		for(String header : HEADERS) {
+			assertEquals("Checking decoding of: " + header, MimeUtility.decodeText(header), EmailTextDecoder.decodeHeader(header));
+		}
+	}
+
+	/** Test that a header with no encoded-words is returned as it is, and that decoded headers are kept. */
+	public void testFastPaths() {
+		String plain = "Weekly report";
+		assertSame("Checking plain header is returned unchanged", plain, EmailTextDecoder.decodeHeader(plain));
+		String encoded = "=?UTF-8?Q?Caf=C3=A9?=";
+		assertSame("Checking decoded header is cached", EmailTextDecoder.decodeHeader(encoded), EmailTextDecoder.decodeHeader(new String(encoded)));
+	}
+
+	/** Test the cases where this is more lenient than JavaMail, and that unsupported charsets are left alone. */
+	public void testLenientAndUnsupported() {
+		assertEquals("Checking base64 without padding", "Alice", EmailTextDecoder.decodeHeader("=?UTF-8?B?QWxpY2U?="));
+		assertEquals("Checking adjacent encoded-words", "Alice Elise", EmailTextDecoder.decodeHeader("=?UTF-8?Q?Alice_?==?UTF-8?Q?Elise?="));
+		// "é" is C3 A9 in UTF-8
+		assertEquals("Checking split character", "Café", EmailTextDecoder.decodeHeader("=?UTF-8?Q?Caf=C3?= =?UTF-8?Q?=A9?="));
+		assertEquals("Checking unknown encoding", "=?UTF-8?X?abc?=", EmailTextDecoder.decodeHeader("=?UTF-8?X?abc?="));
+		assertEquals("Checking unsupported charset", "=?x-no-such-charset?Q?abc?= d",
+				EmailTextDecoder.decodeHeader("=?x-no-such-charset?Q?abc?= d"));
+		assertNull("Checking unsupported charset lookup", EmailTextDecoder.getCharset("x-no-such-charset"));
+	}
+
+	/** Test decoding of the bytes of a text part. */
+	public void testDecodeStream() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<20000; ++i) text.append("é€");
+		byte[] bytes = text.toString().getBytes("UTF-8");
+		assertEquals("Checking long text", text.toString(),
+				EmailTextDecoder.decode(new ByteArrayInputStream(bytes), EmailTextDecoder.getCharset("UTF-8")));
+		assertEquals("Checking short text after long text", "abc",
+				EmailTextDecoder.decode(new ByteArrayInputStream("abc".getBytes("US-ASCII")), EmailTextDecoder.getCharset("us-ascii")));
+	}
+
+	/** Test that {@link EmailReceiveUtils#getMessageText(javax.mail.Message)} reads text parts as their content handlers do. */
+	public void testMessageText() throws Exception {
+		MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+		message.setText("Réponse à l'enquête", "ISO-8859-1");
+		message.saveChanges();
+		assertEquals("Checking text message", message.getContent(), EmailReceiveUtils.getMessageText(message));
+
+		MimeMultipart multipart = new MimeMultipart();
+		MimeBodyPart html = new MimeBodyPart();
+		html.setText("<p>Ψηφίστε</p>", "UTF-8", "html");
+		multipart.addBodyPart(html);
+		MimeBodyPart plain = new MimeBodyPart();
+		plain.setText("Ψηφίστε", "UTF-8");
+		multipart.addBodyPart(plain);
+		message.setContent(multipart);
+		message.saveChanges();
+		assertEquals("Checking plain part is preferred", "Ψηφίστε", EmailReceiveUtils.getMessageText(message));
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive.bounce;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.frontlinesms.email.EmailHeaderFilter;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.email.receive.EmailReceiveProtocol;
+import net.frontlinesms.email.receive.EmailReceiver;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailBounceFilter} and {@link EmailBounceClassifier}.
+ */
+public class EmailBounceFilterTest extends BaseTestCase {
+	private static final String USERNAME = "user";
+	private static final String PASSWORD = "password";
+	private static final Session SESSION = Session.getInstance(new Properties());
+
+	/** Standard delivery status notification, as Postfix sends them */
+	private static final String DSN = "Return-Path: <>\r\n"
+			+ "From: MAILER-DAEMON@mail.example.com (Mail Delivery System)\r\n"
+			+ "To: sender@example.com\r\n"
+			+ "Subject: Undelivered Mail Returned to Sender\r\n"
+			+ "MIME-Version: 1.0\r\n"
+			+ "Content-Type: multipart/report; report-type=delivery-status;\r\n"
+			+ "\tboundary=\"BOUNDARY\"\r\n"
+			+ "\r\n"
+			+ "--BOUNDARY\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "I'm sorry to have to inform you that your message could not be delivered.\r\n"
+			+ "--BOUNDARY\r\n"
+			+ "Content-Type: message/delivery-status\r\n"
+			+ "\r\n"
+			+ "Reporting-MTA: dns; mail.example.com\r\n"
+			+ "Arrival-Date: Mon, 19 Oct 2026 10:00:00 +0000\r\n"
+			+ "\r\n"
+			+ "Final-Recipient: rfc822; gone@example.org\r\n"
+			+ "Original-Recipient: rfc822;gone@example.org\r\n"
+			+ "Action: failed\r\n"
+			+ "Status: 5.1.1\r\n"
+			+ "Diagnostic-Code: smtp; 550 5.1.1 <gone@example.org>: Recipient address\r\n"
+			+ "    rejected: User unknown\r\n"
+			+ "\r\n"
+			+ "Final-Recipient: rfc822; slow@example.net\r\n"
+			+ "Action: delayed\r\n"
+			+ "Status: 4.4.1 (connection timed out)\r\n"
+			+ "\r\n"
+			+ "--BOUNDARY\r\n"
+			+ "Content-Type: text/rfc822-headers\r\n"
+			+ "\r\n"
+			+ "From: sender@example.com\r\n"
+			+ "Message-ID:\r\n"
+			+ " <original.123@example.com>\r\n"
+			+ "Subject: Hello\r\n"
+			+ "--BOUNDARY--\r\n";
+
+	/** Non-standard bounce, as qmail sends them */
+	private static final String QMAIL_BOUNCE = "From: MAILER-DAEMON@mail.example.com\r\n"
+			+ "To: sender@example.com\r\n"
+			+ "Subject: failure notice\r\n"
+			+ "\r\n"
+			+ "Hi. This is the qmail-send program at mail.example.com.\r\n"
+			+ "I'm afraid I wasn't able to deliver your message to the following addresses.\r\n"
+			+ "\r\n"
+			+ "<nobody@example.org>:\r\n"
+			+ "Remote host said: 550 5.1.1 No such user\r\n"
+			+ "\r\n"
+			+ "<other@example.org>:\r\n"
+			+ "Remote host said: 550 5.1.1 No such user\r\n";
+
+	/** Non-standard bounce with an X-Failed-Recipients header, as Exim sends them */
+	private static final String EXIM_BOUNCE = "From: Mail Delivery System <Mailer-Daemon@mail.example.com>\r\n"
+			+ "To: sender@example.com\r\n"
+			+ "Subject: Mail delivery failed: returning message to sender\r\n"
+			+ "X-Failed-Recipients: one@example.org, two@example.org\r\n"
+			+ "\r\n"
+			+ "This message was created automatically by mail delivery software.\r\n";
+
+	/** Ordinary email which mentions delivery failure */
+	private static final String ORDINARY = "From: friend@example.com\r\n"
+			+ "To: sender@example.com\r\n"
+			+ "Subject: Re: Mail delivery failed\r\n"
+			+ "\r\n"
+			+ "<nobody@example.org>: did you get my last email?  550 5.1.1\r\n";
+
+	/** Unit tests for reading a standard delivery status notification. */
+	public void testDeliveryStatusNotification() throws Exception {
+		MimeMessage message = parse(DSN);
+		assertTrue("Checking the notification is recognised", EmailBounceClassifier.isBounce(message));
+		List<EmailDeliveryEvent> events = EmailBounceClassifier.classify(message);
+		assertEquals("Checking the number of recipients", 2, events.size());
+
+		EmailDeliveryEvent failed = events.get(0);
+		assertEquals("Checking the recipient", "gone@example.org", failed.getRecipient());
+		assertEquals("Checking the action", EmailDeliveryEvent.Action.FAILED, failed.getAction());
+		assertEquals("Checking the status", "5.1.1", failed.getStatus());
+		assertEquals("Checking the folded diagnostic", "550 5.1.1 <gone@example.org>: Recipient address rejected: User unknown", failed.getDiagnostic());
+		assertEquals("Checking the original Message-ID", "<original.123@example.com>", failed.getOriginalMessageId());
+		assertTrue("Checking the failure is permanent", failed.isPermanentFailure());
+
+		EmailDeliveryEvent delayed = events.get(1);
+		assertEquals("Checking the recipient", "slow@example.net", delayed.getRecipient());
+		assertEquals("Checking the action", EmailDeliveryEvent.Action.DELAYED, delayed.getAction());
+		assertEquals("Checking the status comment is dropped", "4.4.1", delayed.getStatus());
+		assertNull("Checking there is no diagnostic", delayed.getDiagnostic());
+		assertTrue("Checking a delay is not a permanent failure", !delayed.isPermanentFailure());
+	}
+
+	/** Unit tests for reading non-standard bounces. */
+	public void testNonStandardBounces() throws Exception {
+		MimeMessage qmail = parse(QMAIL_BOUNCE);
+		assertTrue("Checking the qmail bounce is recognised", EmailBounceClassifier.isBounce(qmail));
+		List<EmailDeliveryEvent> events = EmailBounceClassifier.classify(qmail);
+		assertEquals("Checking the number of recipients", 2, events.size());
+		assertEquals("Checking the recipient", "other@example.org", events.get(1).getRecipient());
+		assertEquals("Checking the status", "5.1.1", events.get(1).getStatus());
+		assertEquals("Checking the action", EmailDeliveryEvent.Action.FAILED, events.get(1).getAction());
+
+		MimeMessage exim = parse(EXIM_BOUNCE);
+		assertTrue("Checking the Exim bounce is recognised", EmailBounceClassifier.isBounce(exim));
+		events = EmailBounceClassifier.classify(exim);
+		assertEquals("Checking the number of recipients", 2, events.size());
+		assertEquals("Checking the recipient", "two@example.org", events.get(1).getRecipient());
+		assertEquals("Checking the default status", "5.0.0", events.get(1).getStatus());
+
+		assertTrue("Checking an ordinary email is not a bounce", !EmailBounceClassifier.isBounce(parse(ORDINARY)));
+	}
+
+	/** Unit tests for bounces being taken out of an {@link EmailReceiver}'s processing. */
+	public void testReceive() throws Exception {
+		GreenMail greenMail = new GreenMail(ServerSetupTest.IMAP);
+		greenMail.start();
+		try {
+			GreenMailUser user = greenMail.setUser(USERNAME + "@localhost", USERNAME, PASSWORD);
+			user.deliver(parse(DSN));
+			user.deliver(parse(ORDINARY));
+			user.deliver(parse(EXIM_BOUNCE));
+
+			final List<String> processed = new ArrayList<String>();
+			EmailReceiver receiver = new EmailReceiver(new EmailReceiveProcessor() {
+				public void processMessage(Message message, Date date) {
+					try {
+						processed.add(message.getSubject());
+					} catch(Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			receiver.setProtocol(EmailReceiveProtocol.IMAP);
+			receiver.setHostAddress("localhost");
+			receiver.setHostPort(ServerSetupTest.IMAP.getPort());
+			receiver.setHostUsername(USERNAME);
+			receiver.setHostPassword(PASSWORD);
+			final List<EmailDeliveryEvent> reported = new ArrayList<EmailDeliveryEvent>();
+			EmailBounceFilter filter = new EmailBounceFilter(new EmailDeliveryListener() {
+				public void deliveryReported(List<EmailDeliveryEvent> events) {
+					reported.addAll(events);
+				}
+			}, null);
+			filter.setBounceDecision(EmailHeaderFilter.Decision.REJECT);
+			receiver.setHeaderFilter(filter);
+			receiver.receive();
+
+			assertEquals("Checking only the ordinary email is processed", 1, processed.size());
+			assertEquals("Re: Mail delivery failed", processed.get(0));
+			assertEquals("Checking the reports from both bounces", 4, reported.size());
+			assertEquals("gone@example.org", reported.get(0).getRecipient());
+			assertEquals("two@example.org", reported.get(3).getRecipient());
+		} finally {
+			greenMail.stop();
+		}
+	}
+
+//> HELPER METHODS
+	private static MimeMessage parse(String text) throws Exception {
+		MimeMessage message = new MimeMessage(SESSION, new ByteArrayInputStream(text.getBytes("US-ASCII")));
+		if(message.getRecipients(Message.RecipientType.TO) == null) message.setRecipient(Message.RecipientType.TO, new InternetAddress(USERNAME + "@localhost"));
+		return message;
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Message;
+
+import net.frontlinesms.email.EmailClock;
+import net.frontlinesms.email.receive.EmailReceiveException;
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.email.receive.EmailReceiveProtocol;
+import net.frontlinesms.email.receive.EmailReceiver;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailLeaseCoordinator}, {@link EmailHashRing} and {@link FileEmailLeaseStore}.
+ */
+public class EmailLeaseCoordinatorTest extends BaseTestCase {
+	private static final long LEASE_DURATION = 60000;
+	private static final int ACCOUNTS = 200;
+
+	private File directory;
+	/** Time returned by the stores' and coordinators' clocks */
+	private long now = 1000000;
+	/** Clock returning {@link #now} */
+	private final EmailClock clock = new EmailClock() {
+		public long currentTimeMillis() {
+			return now;
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("EmailLeaseCoordinatorTest", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if(files != null) for(File file : files) file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	/** Unit tests for accounts being spread between nodes, and only moving when their node leaves. */
+	public void testHashRing() {
+		EmailHashRing three = new EmailHashRing(Arrays.asList("a", "b", "c"), EmailHashRing.DEFAULT_POINTS_PER_NODE);
+		EmailHashRing two = new EmailHashRing(Arrays.asList("a", "b"), EmailHashRing.DEFAULT_POINTS_PER_NODE);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(int i=0; i<ACCOUNTS; ++i) {
+			String node = three.getNode(getAccount(i));
+			counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+			if(!node.equals("c")) assertEquals("Checking an account only moves if its node leaves", node, two.getNode(getAccount(i)));
+		}
+		for(String node : Arrays.asList("a", "b", "c")) {
+			assertTrue("Checking node " + node + " has a fair share of accounts: " + counts.get(node), counts.get(node) > ACCOUNTS / 5);
+		}
+		assertNull("Checking there is no node on an empty ring", new EmailHashRing(new ArrayList<String>(), 10).getNode("x"));
+	}
+
+	/** Unit tests for leases and node registrations in a {@link FileEmailLeaseStore}. */
+	public void testFileStore() throws Exception {
+		EmailLeaseStore one = createStore();
+		EmailLeaseStore two = createStore();
+		assertTrue("Checking a free lease is granted", one.acquire("account", "a", LEASE_DURATION));
+		assertTrue("Checking a held lease is not granted to another node", !two.acquire("account", "b", LEASE_DURATION));
+		assertTrue("Checking a held lease is renewed", two.acquire("account", "a", LEASE_DURATION));
+		two.release("account", "b");
+		assertTrue("Checking a lease is only released by its owner", !one.acquire("account", "b", LEASE_DURATION));
+
+		now += LEASE_DURATION;
+		assertTrue("Checking an expired lease is granted to another node", one.acquire("account", "b", LEASE_DURATION));
+		one.release("account", "b");
+		assertTrue("Checking a released lease is granted", two.acquire("account", "a", LEASE_DURATION));
+
+		one.register("a", LEASE_DURATION);
+		two.register("b", LEASE_DURATION / 2);
+		assertEquals("Checking the live nodes", Arrays.asList("a", "b"), sorted(one.getLiveNodes()));
+		now += LEASE_DURATION / 2;
+		assertEquals("Checking an expired node is not live", Arrays.asList("a"), sorted(one.getLiveNodes()));
+		two.unregister("a");
+		assertEquals("Checking an unregistered node is not live", 0, one.getLiveNodes().size());
+		assertTrue("Checking unregistering releases the node's leases", one.acquire("account", "b", LEASE_DURATION));
+	}
+
+	/** Unit tests for accounts moving between nodes as they join and leave, without two nodes holding one account. */
+	public void testRebalance() throws Exception {
+		EmailLeaseCoordinator a = createCoordinator("a");
+		EmailLeaseCoordinator b = createCoordinator("b");
+		a.join();
+		for(int i=0; i<ACCOUNTS; ++i) assertTrue("Checking the only node takes every account", a.acquire(getAccount(i)));
+
+		b.join();
+		List<String> moved = new ArrayList<String>();
+		for(int i=0; i<ACCOUNTS; ++i) {
+			String account = getAccount(i);
+			if(b.getAssignedNode(account).equals("b")) {
+				moved.add(account);
+				assertTrue("Checking a moved account is not taken while its old node holds it", !b.acquire(account));
+				assertTrue("Checking the old node gives up a moved account", !a.acquire(account));
+				assertTrue("Checking the new node takes a moved account", b.acquire(account));
+			} else {
+				assertTrue("Checking the old node keeps its accounts", a.acquire(account));
+				assertTrue("Checking the new node does not take other accounts", !b.acquire(account));
+			}
+		}
+		assertTrue("Checking some accounts moved", moved.size() > 0 && moved.size() < ACCOUNTS);
+		assertEquals("Checking the accounts the new node holds", sorted(moved), sorted(b.getHeldAccounts()));
+
+		a.leave();
+		for(int i=0; i<ACCOUNTS; ++i) assertTrue("Checking the remaining node takes every account", b.acquire(getAccount(i)));
+		assertTrue("Checking a node which has left takes no accounts", !a.acquire(getAccount(0)));
+	}
+
+	/** Unit tests for accounts moving away from a node which stops renewing its registration. */
+	public void testNodeFailure() throws Exception {
+		EmailLeaseCoordinator a = createCoordinator("a");
+		EmailLeaseCoordinator b = createCoordinator("b");
+		a.join();
+		b.join();
+		String account = null;
+		for(int i=0; account == null; ++i) if(a.getAssignedNode(getAccount(i)).equals("b")) account = getAccount(i);
+		assertTrue("Checking the account is taken by its node", b.acquire(account));
+
+		// b stops; a keeps polling its own accounts, which renews its registration
+		now += LEASE_DURATION / 2;
+		a.acquire(getAccount(0));
+		assertTrue("Checking the account is not taken while the lease is held", !a.acquire(account));
+		now += LEASE_DURATION / 2;
+		assertTrue("Checking the account is taken once the failed node's lease expires", a.acquire(account));
+	}
+
+	/** Unit tests for a lease being renewed while its account is polled, and the poll ending once the lease is lost. */
+	public void testLeaseRenewal() throws Exception {
+		EmailLeaseCoordinator a = createCoordinator("a");
+		EmailLeaseCoordinator b = createCoordinator("b");
+		a.join();
+		EmailHashRing ring = new EmailHashRing(Arrays.asList("a", "b"), EmailHashRing.DEFAULT_POINTS_PER_NODE);
+		int user = 0;
+		while(!ring.getNode(getAccount(user)).equals("b")) ++user;
+
+		TestReceiver receiver = new TestReceiver(user, 6, null);
+		assertTrue("Checking the account is polled", a.receive(receiver));
+		assertEquals("Checking a poll lasting three leases reads every message", 6, receiver.received);
+		assertTrue("Checking the lease was renewed during the poll", !createStore().acquire(getAccount(user), "b", LEASE_DURATION));
+		assertNull("Checking the receiver's guard is restored", receiver.getPollGuard());
+
+		receiver = new TestReceiver(user, 6, b);
+		assertTrue("Checking the account is polled", a.receive(receiver));
+		assertEquals("Checking the poll ends once the account moves to a new node", 1, receiver.received);
+		assertTrue("Checking the lease was released for the new node", b.acquire(getAccount(user)));
+	}
+
+//> HELPER METHODS
+	private static String getAccount(int i) {
+		return "IMAP://user" + i + "@mail.example.com:143";
+	}
+
+	private static List<String> sorted(Collection<String> strings) {
+		List<String> list = new ArrayList<String>(strings);
+		Collections.sort(list);
+		return list;
+	}
+
+	private EmailLeaseStore createStore() throws IOException {
+		FileEmailLeaseStore store = new FileEmailLeaseStore(directory);
+		store.setClock(clock);
+		return store;
+	}
+
+	private EmailLeaseCoordinator createCoordinator(String node) throws IOException {
+		EmailLeaseCoordinator coordinator = new EmailLeaseCoordinator(createStore(), node, LEASE_DURATION);
+		coordinator.setClock(clock);
+		return coordinator;
+	}
+
+//> INNER CLASSES
+	/** Receiver which, rather than connecting to a server, reads messages which each take half a lease. */
+	private class TestReceiver extends EmailReceiver {
+		/** Number of messages on the server */
+		private final int messages;
+		/** Node which joins the cluster after the first message, or <code>null</code> if none does */
+		private final EmailLeaseCoordinator joining;
+		/** Number of messages read */
+		private int received;
+
+		TestReceiver(int user, int messages, EmailLeaseCoordinator joining) {
+			super(new EmailReceiveProcessor() {
+				public void processMessage(Message message, Date date) {}
+			});
+			this.messages = messages;
+			this.joining = joining;
+			setProtocol(EmailReceiveProtocol.IMAP);
+			setHostUsername("user" + user);
+			setHostAddress("mail.example.com");
+			setHostPort(143);
+		}
+
+		@Override
+		public void receive() throws EmailReceiveException {
+			for(int i=0; i<messages && getPollGuard().isPollAllowed(); ++i) {
+				++received;
+				now += LEASE_DURATION / 2;
+				if(i == 0 && joining != null) {
+					try {
+						joining.join();
+					} catch(IOException ex) {
+						throw new EmailReceiveException(ex);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive.deadletter;
+
+import java.io.File;
+import java.util.Date;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailDeadLetterStore} class.
+ */
+public class EmailDeadLetterStoreTest extends BaseTestCase {
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("EmailDeadLetterStoreTest", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if(files != null) for(File file : files) file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	/** Unit tests for the retry delay growing after each failure, up to its maximum, and for the entry becoming dead. */
+	public void testBackoffAndDead() throws Exception {
+		EmailDeadLetterStore store = createStore();
+		long before = System.currentTimeMillis();
+		EmailDeadLetter entry = store.add(createMessage("backoff"), new Date(), new Exception("first"));
+		long after = System.currentTimeMillis();
+		assertEquals("Checking status after first failure.", EmailDeadLetter.Status.RETRYING, entry.getStatus());
+		assertEquals(1, entry.getAttempts());
+		assertNextAttempt(entry, before, after, 1000);
+		assertTrue("Checking entry is not due before its retry delay.", store.getDue(after).isEmpty());
+		assertEquals("Checking entry is due after its retry delay.", 1, store.getDue(entry.getNextAttempt()).size());
+
+		long[] delays = { 2000, 4000, 5000 };
+		for(int i=0; i<delays.length; ++i) {
+			before = System.currentTimeMillis();
+			entry = store.failed(entry, new Exception("retry " + i));
+			after = System.currentTimeMillis();
+			assertEquals("Checking status after " + entry.getAttempts() + " failures.", EmailDeadLetter.Status.RETRYING, entry.getStatus());
+			assertNextAttempt(entry, before, after, delays[i]);
+		}
+
+		entry = store.failed(entry, new Exception("last"));
+		assertEquals("Checking entry is dead after the maximum number of attempts.", EmailDeadLetter.Status.DEAD, entry.getStatus());
+		assertEquals(5, entry.getAttempts());
+		assertTrue("Checking dead entry is not retried.", store.getDue(Long.MAX_VALUE).isEmpty());
+		assertEquals(1, store.list(EmailDeadLetter.Status.DEAD).size());
+
+		EmailDeadLetterStore reopened = createStore();
+		EmailDeadLetter loaded = reopened.list().get(0);
+		assertEquals("Checking dead status is kept when the store is reopened.", EmailDeadLetter.Status.DEAD, loaded.getStatus());
+		assertEquals(5, loaded.getAttempts());
+		assertEquals("backoff", reopened.getMessage(loaded).getSubject());
+	}
+
+	/** Unit tests for metadata being recovered if the process stopped while it was being replaced. */
+	public void testRecoverFromTempFile() throws Exception {
+		EmailDeadLetterStore store = createStore();
+		EmailDeadLetter entry = store.add(createMessage("recover"), new Date(), new Exception("first"));
+		entry = store.failed(entry, new Exception("second"));
+
+		// Simulate stopping after the old metadata was deleted but before the update was renamed
+		File metadata = new File(directory, entry.getId() + ".properties");
+		File temp = new File(directory, entry.getId() + ".properties.tmp");
+		assertTrue(metadata.renameTo(temp));
+		EmailDeadLetter recovered = createStore().list().get(0);
+		assertEquals("Checking update is recovered from the temporary file.", 2, recovered.getAttempts());
+		assertTrue(metadata.exists());
+		assertFalse(temp.exists());
+
+		// An update which was only partly written is discarded while the old metadata remains
+		File partial = new File(directory, entry.getId() + ".properties.tmp");
+		assertTrue(partial.createNewFile());
+		assertEquals("Checking old metadata is kept.", 2, createStore().list().get(0).getAttempts());
+		assertFalse(partial.exists());
+	}
+
+	private EmailDeadLetterStore createStore() throws Exception {
+		EmailDeadLetterStore store = new EmailDeadLetterStore(directory);
+		store.setMaxAttempts(5);
+		store.setInitialRetryDelay(1000);
+		store.setBackoffMultiplier(2);
+		store.setMaxRetryDelay(5000);
+		return store;
+	}
+
+	private static MimeMessage createMessage(String subject) throws Exception {
+		MimeMessage message = new MimeMessage(Session.getInstance(System.getProperties()));
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setSubject(subject);
+		message.setText("body");
+		message.saveChanges();
+		return message;
+	}
+
+	private static void assertNextAttempt(EmailDeadLetter entry, long before, long after, long delay) {
+		assertTrue("Checking retry delay after " + entry.getAttempts() + " failures is " + delay + "ms.",
+				entry.getNextAttempt() >= before + delay && entry.getNextAttempt() <= after + delay);
+	}
+}
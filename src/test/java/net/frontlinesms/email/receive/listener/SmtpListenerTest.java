@@ -0,0 +1,286 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive.listener;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.email.receive.EmailReceiveUtils;
+import net.frontlinesms.email.smtp.SmtpEmailSender;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link SmtpListener} class, talking to it over a local socket.
+ */
+public class SmtpListenerTest extends BaseTestCase {
+	/** Time in seconds to wait for a message to be processed */
+	private static final int TIMEOUT = 10;
+
+	/** Text of each message processed, or "ERROR" if the processor failed to read it */
+	private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+	/** Content of the attachment of each multipart message processed */
+	private final BlockingQueue<byte[]> attachments = new LinkedBlockingQueue<byte[]>();
+	private SmtpListener listener;
+	private Socket socket;
+	private BufferedReader in;
+	private OutputStream out;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		listener = new SmtpListener(new EmailReceiveProcessor() {
+			public void processMessage(Message message, Date date) {
+				try {
+					if(message.getSubject().equals("fail")) throw new IllegalStateException("Processor failed");
+					if(message.isMimeType("multipart/*")) {
+						Multipart multipart = (Multipart) message.getContent();
+						attachments.add(readFully(multipart.getBodyPart(1).getInputStream()));
+					}
+					received.add(message.getSubject() + ":" + EmailReceiveUtils.getMessageText(message).trim());
+				} catch(IllegalStateException ex) {
+					throw ex;
+				} catch(Exception ex) {
+					received.add("ERROR");
+				}
+			}
+		});
+		listener.setBindAddress(new InetSocketAddress("127.0.0.1", 0));
+		listener.setServerName("listener.test");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(socket != null) socket.close();
+		listener.stop();
+		super.tearDown();
+	}
+
+	/** Unit tests for a message sent with DATA, including dot-stuffed lines. */
+	public void testData() throws Exception {
+		connect();
+		assertReply("220");
+		ehlo("EHLO");
+		send("MAIL FROM:<sender@example.com>");
+		assertReply("250");
+		send("RCPT TO:<user@example.com>");
+		assertReply("250");
+		send("DATA");
+		assertReply("354");
+		send("Subject: data\r\n\r\nFirst line\r\n..Stuffed line\r\n.");
+		assertReply("250");
+		assertEquals("Checking message is processed with dot-stuffing removed.", "data:First line\r\n.Stuffed line", received.poll(TIMEOUT, TimeUnit.SECONDS));
+
+		send("QUIT");
+		assertReply("221");
+		assertNull("Checking connection is closed after QUIT.", in.readLine());
+	}
+
+	/** Unit tests for pipelined commands, and for a message the processor fails on. */
+	public void testPipeliningAndFailure() throws Exception {
+		connect();
+		assertReply("220");
+		ehlo("EHLO");
+		send("MAIL FROM:<sender@example.com>\r\nRCPT TO:<user@example.com>\r\nDATA");
+		assertReply("250");
+		assertReply("250");
+		assertReply("354");
+		send("Subject: fail\r\n\r\nBody\r\n.\r\nMAIL FROM:<sender@example.com>\r\nRCPT TO:<user@example.com>\r\nDATA");
+		assertReply("451");
+		assertReply("250");
+		assertReply("250");
+		assertReply("354");
+		send("Subject: second\r\n\r\nBody\r\n.");
+		assertReply("250");
+		assertEquals("Checking the session carries on after a failed message.", "second:Body", received.poll(TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	/** Unit tests for LMTP, which replies once for each recipient. */
+	public void testLmtp() throws Exception {
+		listener.setProtocol(ListenerProtocol.LMTP);
+		connect();
+		assertReply("220");
+		send("EHLO client.test");
+		assertReply("500");
+		ehlo("LHLO");
+		send("MAIL FROM:<sender@example.com>");
+		assertReply("250");
+		send("RCPT TO:<a@example.com>");
+		assertReply("250");
+		send("RCPT TO:<b@example.com>");
+		assertReply("250");
+		send("DATA");
+		assertReply("354");
+		send("Subject: lmtp\r\n\r\nBody\r\n.");
+		assertEquals("250 2.0.0 Message accepted for a@example.com", in.readLine());
+		assertEquals("250 2.0.0 Message accepted for b@example.com", in.readLine());
+		assertEquals("lmtp:Body", received.poll(TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	/** Unit tests for commands sent out of order. */
+	public void testCommandOrder() throws Exception {
+		connect();
+		assertReply("220");
+		send("MAIL FROM:<sender@example.com>");
+		assertReply("503");
+		ehlo("HELO");
+		send("DATA");
+		assertReply("503");
+		send("RCPT TO:<user@example.com>");
+		assertReply("503");
+		send("NOOP");
+		assertReply("250");
+	}
+
+	/** Unit tests for a message sent in BDAT chunks, which are not dot-stuffed. */
+	public void testBdat() throws Exception {
+		connect();
+		assertReply("220");
+		ehlo("EHLO");
+		send("MAIL FROM:<sender@example.com> BODY=BINARYMIME\r\nRCPT TO:<user@example.com>");
+		assertReply("250");
+		assertReply("250");
+		byte[] first = "Subject: bdat\r\n\r\n.First".getBytes("ISO-8859-1");
+		byte[] second = " line\r\n".getBytes("ISO-8859-1");
+		send(("BDAT " + first.length + "\r\n").getBytes("ISO-8859-1"));
+		send(first);
+		assertReply("250");
+		// A chunk may end part way through a line, and the next command follows straight after it
+		send(("BDAT " + second.length + " LAST\r\n").getBytes("ISO-8859-1"));
+		send(second);
+		send("NOOP");
+		assertReply("250");
+		assertReply("250");
+		assertEquals("Checking chunks are joined without removing dots.", "bdat:.First line", received.poll(TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	/** Unit tests for BDAT commands with an invalid size, after which the listener cannot find the next command. */
+	public void testBdatInvalidSize() throws Exception {
+		String[] sizes = { "-5", "x" };
+		for(String size : sizes) {
+			connect();
+			assertReply("220");
+			ehlo("EHLO");
+			send("MAIL FROM:<sender@example.com>\r\nRCPT TO:<user@example.com>");
+			assertReply("250");
+			assertReply("250");
+			send("BDAT " + size + " LAST");
+			assertReply("501 5.5.4");
+			assertNull("Checking connection is closed after BDAT " + size + ".", in.readLine());
+			socket.close();
+		}
+	}
+
+	/** Unit tests for a message with a binary attachment sent by {@link SmtpEmailSender} with BINARYMIME and small chunks. */
+	public void testBinaryMimeRoundTrip() throws Exception {
+		listener.start();
+		byte[] attachment = new byte[1000];
+		new Random(1).nextBytes(attachment);
+		SmtpEmailSender sender = new SmtpEmailSender("127.0.0.1", listener.getLocalPort());
+		sender.setChunkSize(100);
+		sender.setUseBinaryMime(true);
+		MimeMessage message = sender.createMessage();
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress("user@example.com"));
+		message.setSubject("binary");
+		MimeMultipart multipart = new MimeMultipart();
+		MimeBodyPart text = new MimeBodyPart();
+		text.setText("Body");
+		multipart.addBodyPart(text);
+		MimeBodyPart file = new MimeBodyPart();
+		file.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment, "application/octet-stream")));
+		file.setFileName("random.bin");
+		multipart.addBodyPart(file);
+		message.setContent(multipart);
+		Transport.send(message);
+
+		assertEquals("binary:Body", received.poll(TIMEOUT, TimeUnit.SECONDS));
+		assertTrue("Checking attachment is received unchanged.", Arrays.equals(attachment, attachments.poll(TIMEOUT, TimeUnit.SECONDS)));
+	}
+
+//> HELPER METHODS
+	/** Starts the listener and connects to it. */
+	void connect() throws IOException {
+		listener.start();
+		socket = new Socket("127.0.0.1", listener.getLocalPort());
+		socket.setSoTimeout(TIMEOUT * 1000);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+		out = socket.getOutputStream();
+	}
+
+	/** Sends a greeting and reads the listener's reply, which may have several lines. */
+	void ehlo(String verb) throws IOException {
+		send(verb + " client.test");
+		String line;
+		do {
+			line = in.readLine();
+			assertTrue("Checking greeting is accepted: " + line, line.startsWith("250"));
+		} while(line.charAt(3) == '-');
+	}
+
+	/** Sends lines to the listener, adding the final line terminator. */
+	void send(String lines) throws IOException {
+		send((lines + "\r\n").getBytes("ISO-8859-1"));
+	}
+
+	/** Sends raw bytes to the listener. */
+	void send(byte[] bytes) throws IOException {
+		out.write(bytes);
+		out.flush();
+	}
+
+	/** @return the rest of the content of a stream */
+	static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while((read = in.read(buffer)) != -1) bytes.write(buffer, 0, read);
+		return bytes.toByteArray();
+	}
+
+	/** Reads a reply line and checks its code. */
+	void assertReply(String code) throws IOException {
+		String line = in.readLine();
+		assertNotNull("Checking listener replied " + code + " rather than closing the connection.", line);
+		assertTrue("Checking reply is " + code + ": " + line, line.startsWith(code));
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive.local;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link MaildirReceiver} class.
+ */
+public class MaildirReceiverTest extends BaseTestCase {
+	/** Time in milliseconds to wait for a watched directory to be read */
+	private static final long TIMEOUT = 10000;
+
+	private File maildir;
+	private File maildirNew;
+	private File maildirCur;
+	/** Subjects of the messages processed */
+	private final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+	private MaildirReceiver receiver;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		maildir = File.createTempFile("MaildirReceiverTest", "");
+		maildir.delete();
+		maildirNew = new File(maildir, "new");
+		maildirCur = new File(maildir, "cur");
+		maildirNew.mkdirs();
+		maildirCur.mkdirs();
+		processed.clear();
+		receiver = new MaildirReceiver(new EmailReceiveProcessor() {
+			public void processMessage(Message message, Date date) {
+				try {
+					if(message.getSubject().equals("fail")) throw new IllegalStateException("Processor failed");
+					processed.add(message.getSubject());
+				} catch(MessagingException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}, maildir);
+		receiver.setPollInterval(50);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		receiver.stop();
+		delete(maildir);
+		super.tearDown();
+	}
+
+	/** Unit tests for messages being processed and moved from new to cur. */
+	public void testReceive() throws Exception {
+		deliver("1000.a.host", "first");
+		deliver("1001.b.host", "second");
+		assertEquals(2, receiver.receive());
+
+		assertEquals("Checking messages are processed in order of delivery.", "[first, second]", processed.toString());
+		assertEquals("Checking new is emptied.", 0, maildirNew.list().length);
+		String[] cur = maildirCur.list();
+		Arrays.sort(cur);
+		assertEquals("Checking messages are moved to cur and marked as seen.", "[1000.a.host:2,S, 1001.b.host:2,S]", Arrays.asList(cur).toString());
+		assertEquals("Checking messages are not read twice.", 0, receiver.receive());
+	}
+
+	/** Unit tests for a spool directory with an archive directory, and without one. */
+	public void testSpoolDirectory() throws Exception {
+		File spool = new File(maildir, "spool");
+		File archive = new File(maildir, "archive");
+		spool.mkdir();
+		archive.mkdir();
+		write(new File(spool, "message"), "spooled");
+		MaildirReceiver spoolReceiver = new MaildirReceiver(new EmailReceiveProcessor() {
+			public void processMessage(Message message, Date date) {}
+		}, spool);
+		try {
+			spoolReceiver.receive();
+			fail("Spool directory should need an archive directory.");
+		} catch(IllegalStateException ex) {
+			// expected
+		}
+		spoolReceiver.setArchiveDirectory(archive);
+		assertEquals(1, spoolReceiver.receive());
+		assertTrue(new File(archive, "message").isFile());
+	}
+
+	/** Unit tests for messages the processor fails on being left in place, or quarantined. */
+	public void testProcessorFailure() throws Exception {
+		deliver("1000.a.host", "fail");
+		deliver("1001.b.host", "second");
+		assertEquals(1, receiver.receive());
+		assertEquals("[second]", processed.toString());
+		assertEquals("Checking failed message is left to be read again.", "[1000.a.host]", Arrays.asList(maildirNew.list()).toString());
+
+		File quarantine = new File(maildir, "quarantine");
+		quarantine.mkdir();
+		receiver.setQuarantineDirectory(quarantine);
+		assertEquals(0, receiver.receive());
+		assertEquals("Checking failed message is quarantined.", "[1000.a.host]", Arrays.asList(quarantine.list()).toString());
+		assertEquals(0, maildirNew.list().length);
+	}
+
+	/** Unit tests for watching the directory, which must carry on after the processor fails. */
+	public void testWatch() throws Exception {
+		receiver.start();
+		deliver("1000.a.host", "fail");
+		deliver("1001.b.host", "first");
+		waitForProcessed(1);
+		deliver("1002.c.host", "second");
+		waitForProcessed(2);
+		assertEquals("Checking watching survives a failed message.", "[first, second]", processed.toString());
+	}
+
+//> HELPER METHODS
+	private void waitForProcessed(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(processed.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		assertEquals(count, processed.size());
+	}
+
+	/** Delivers a message the way a mail server does, writing it to tmp and then renaming it into new. */
+	private void deliver(String name, String subject) throws IOException {
+		File tmp = new File(maildir, name + ".tmp");
+		write(tmp, subject);
+		assertTrue(tmp.renameTo(new File(maildirNew, name)));
+	}
+
+	private static void write(File file, String subject) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(("From: sender@example.com\r\nSubject: " + subject + "\r\n\r\nBody\r\n").getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) for(File child : children) delete(child);
+		file.delete();
+	}
+}
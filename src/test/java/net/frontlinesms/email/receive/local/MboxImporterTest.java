@@ -0,0 +1,132 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive.local;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Message;
+
+import net.frontlinesms.email.receive.EmailReceiveProcessor;
+import net.frontlinesms.email.receive.EmailReceiveUtils;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link MboxImporter} class.
+ */
+public class MboxImporterTest extends BaseTestCase {
+	/** Unit tests for {@link MboxImporter#importMbox(File)}, splitting the file into several chunks and windows. */
+	public void testImport() throws Exception {
+		File mbox = createMbox(20);
+		try {
+			final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+			MboxImporter importer = new MboxImporter(new EmailReceiveProcessor() {
+				public void processMessage(Message message, Date date) {
+					try {
+						received.add(message.getSubject() + ":" + EmailReceiveUtils.getMessageText(message));
+					} catch(Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			importer.setWorkerThreads(3);
+			importer.setMapSize(512);
+			importer.setChunkSize(200);
+			final long[] lastCheckpoint = new long[1];
+			importer.setListener(new MboxImportListener() {
+				public void progress(long checkpoint, long length, int messagesImported) {
+					assertTrue("Checking checkpoint only moves forward.", checkpoint >= lastCheckpoint[0]);
+					lastCheckpoint[0] = checkpoint;
+				}
+			});
+			
+			assertEquals("Checking number of messages imported.", 20, importer.importMbox(mbox));
+			assertEquals("Checking final checkpoint.", mbox.length(), lastCheckpoint[0]);
+			Collections.sort(received);
+			assertEquals("Checking quoted From line is unescaped.", "Message 00:Body 00\nFrom the mbox\n>From quoted\n", received.get(0));
+			assertEquals("Message 19:Body 19\nFrom the mbox\n>From quoted\n", received.get(19));
+		} finally {
+			mbox.delete();
+		}
+	}
+
+	/** Unit tests for {@link MboxImporter#importMbox(File, long)} resuming from a checkpoint. */
+	public void testResume() throws Exception {
+		File mbox = createMbox(4);
+		try {
+			final List<String> received = new ArrayList<String>();
+			MboxImporter importer = new MboxImporter(new EmailReceiveProcessor() {
+				public void processMessage(Message message, Date date) {
+					try {
+						received.add(message.getSubject());
+					} catch(Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			});
+			importer.setWorkerThreads(1);
+			importer.setChunkSize(1);
+			final List<Long> checkpoints = new ArrayList<Long>();
+			importer.setListener(new MboxImportListener() {
+				public void progress(long checkpoint, long length, int messagesImported) {
+					checkpoints.add(checkpoint);
+				}
+			});
+			importer.importMbox(mbox);
+			assertEquals("Checking a checkpoint is reported for each message.", 4, checkpoints.size());
+			
+			received.clear();
+			assertEquals("Checking number of messages imported after resuming.", 2, importer.importMbox(mbox, checkpoints.get(1)));
+			assertEquals("Message 02", received.get(0));
+			assertEquals("Message 03", received.get(1));
+		} finally {
+			mbox.delete();
+		}
+	}
+
+//> STATIC HELPER METHODS
+	/** @return a temporary mbox file containing the given number of messages */
+	private static File createMbox(int messageCount) throws IOException {
+		File mbox = File.createTempFile("mbox", ".test");
+		FileOutputStream out = new FileOutputStream(mbox);
+		try {
+			for(int i=0; i<messageCount; ++i) {
+				String number = (i < 10 ? "0" : "") + i;
+				String message = "From sender@example.com Mon Jan  1 00:00:00 2024\n"
+						+ "From: sender@example.com\n"
+						+ "Subject: Message " + number + "\n"
+						+ "\n"
+						+ "Body " + number + "\n"
+						+ ">From the mbox\n"
+						+ ">>From quoted\n"
+						+ "\n";
+				out.write(message.getBytes("US-ASCII"));
+			}
+		} finally {
+			out.close();
+		}
+		return mbox;
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.receive.stream;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.frontlinesms.email.EmailFilter;
+import net.frontlinesms.email.receive.EmailReceiveProtocol;
+import net.frontlinesms.email.receive.EmailReceiver;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link EmailReceivePublisher} and {@link EmailStreams}.
+ */
+public class EmailReceivePublisherTest extends BaseTestCase {
+	private static final String USERNAME = "user";
+	private static final String PASSWORD = "password";
+
+	private GreenMail greenMail;
+	private GreenMailUser user;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		greenMail = new GreenMail(ServerSetupTest.IMAP);
+		greenMail.start();
+		user = greenMail.setUser(USERNAME + "@localhost", USERNAME, PASSWORD);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		greenMail.stop();
+		super.tearDown();
+	}
+
+	/** Unit tests for messages only being downloaded when the subscriber asks for them. */
+	public void testDemand() throws Exception {
+		deliver("one");
+		deliver("two");
+		deliver("three");
+		EmailReceivePublisher publisher = new EmailReceivePublisher();
+		EmailReceiver receiver = createReceiver(publisher);
+		// Skip messages which have already been read
+		receiver.setLastCheck(0L);
+		RecordingSubscriber<MimeMessage> subscriber = new RecordingSubscriber<MimeMessage>();
+		publisher.subscribe(subscriber);
+
+		receiver.receive();
+		assertEquals("Checking nothing is received without demand", 0, subscriber.items.size());
+
+		subscriber.subscription.request(1);
+		receiver.receive();
+		assertEquals("Checking one message is received", 1, subscriber.items.size());
+		assertEquals("Checking the subject", "one", subscriber.items.get(0).getSubject());
+
+		subscriber.subscription.request(5);
+		receiver.receive();
+		assertEquals("Checking the remaining messages are received", 3, subscriber.items.size());
+		assertEquals("Checking the subject", "three", subscriber.items.get(2).getSubject());
+		assertEquals("Checking the detached copy can still be read", "Body of three", subscriber.items.get(2).getContent().toString().trim());
+
+		subscriber.subscription.cancel();
+		deliver("four");
+		receiver.receive();
+		assertEquals("Checking nothing is received after cancelling", 3, subscriber.items.size());
+
+		publisher.complete();
+		assertTrue("Checking the subscriber was not completed after cancelling", !subscriber.completed);
+	}
+
+	/** Unit tests for the rules on subscribing and requesting. */
+	public void testSubscription() throws Exception {
+		EmailReceivePublisher publisher = new EmailReceivePublisher();
+		RecordingSubscriber<MimeMessage> first = new RecordingSubscriber<MimeMessage>();
+		publisher.subscribe(first);
+		RecordingSubscriber<MimeMessage> second = new RecordingSubscriber<MimeMessage>();
+		publisher.subscribe(second);
+		assertTrue("Checking a second subscriber is rejected", second.error instanceof IllegalStateException);
+
+		first.subscription.request(0);
+		assertTrue("Checking a request for nothing is an error", first.error instanceof IllegalArgumentException);
+		assertTrue("Checking there is no demand after the error", !publisher.awaitDemand());
+
+		RecordingSubscriber<MimeMessage> third = new RecordingSubscriber<MimeMessage>();
+		publisher.subscribe(third);
+		assertNull("Checking a new subscriber is accepted once the first has ended", third.error);
+		third.subscription.request(Long.MAX_VALUE);
+		third.subscription.request(Long.MAX_VALUE);
+		assertTrue("Checking demand does not overflow", publisher.awaitDemand());
+
+		publisher.complete();
+		assertTrue("Checking the subscriber is completed", third.completed);
+		assertTrue("Checking there is no demand after completion", !publisher.awaitDemand());
+	}
+
+	/** Unit tests for {@link EmailStreams#filter(EmailPublisher, EmailFilter)} and {@link EmailStreams#batch(EmailPublisher, int)}. */
+	public void testOperators() throws Exception {
+		EmailReceivePublisher publisher = new EmailReceivePublisher();
+		EmailPublisher<MimeMessage> accepted = EmailStreams.filter(publisher, new EmailFilter() {
+			public boolean accept(Message message) {
+				try {
+					return !message.getSubject().startsWith("spam");
+				} catch(MessagingException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+		RecordingSubscriber<List<MimeMessage>> subscriber = new RecordingSubscriber<List<MimeMessage>>();
+		EmailStreams.batch(accepted, 2).subscribe(subscriber);
+
+		subscriber.subscription.request(1);
+		String[] subjects = { "a", "spam 1", "b", "c" };
+		int offered = 0;
+		while(publisher.awaitDemand()) {
+			publisher.processMessage(createMessage(subjects[offered++]), new Date());
+		}
+		assertEquals("Checking a rejected message is replaced by another request", 3, offered);
+		assertEquals("Checking one batch is sent", 1, subscriber.items.size());
+		assertEquals("Checking the batch size", 2, subscriber.items.get(0).size());
+		assertEquals("Checking the batch contents", "b", subscriber.items.get(0).get(1).getSubject());
+
+		subscriber.subscription.request(1);
+		publisher.processMessage(createMessage(subjects[offered++]), new Date());
+		publisher.complete();
+		assertEquals("Checking an unfinished batch is sent on completion", 2, subscriber.items.size());
+		assertEquals("Checking the unfinished batch size", 1, subscriber.items.get(1).size());
+		assertTrue("Checking the subscriber is completed", subscriber.completed);
+	}
+
+//> HELPER METHODS
+	private EmailReceiver createReceiver(EmailReceivePublisher publisher) {
+		EmailReceiver receiver = new EmailReceiver(publisher);
+		receiver.setProtocol(EmailReceiveProtocol.IMAP);
+		receiver.setHostAddress("localhost");
+		receiver.setHostPort(ServerSetupTest.IMAP.getPort());
+		receiver.setHostUsername(USERNAME);
+		receiver.setHostPassword(PASSWORD);
+		return receiver;
+	}
+
+	private void deliver(String subject) throws Exception {
+		MimeMessage message = createMessage(subject);
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress(USERNAME + "@localhost"));
+		user.deliver(message);
+	}
+
+	private static MimeMessage createMessage(String subject) throws MessagingException {
+		MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setSubject(subject);
+		message.setText("Body of " + subject);
+		message.setSentDate(new Date());
+		message.saveChanges();
+		return message;
+	}
+
+//> INNER CLASSES
+	/** Subscriber which records everything it is sent. */
+	private static class RecordingSubscriber<T> implements EmailSubscriber<T> {
+		private EmailSubscription subscription;
+		private final List<T> items = new ArrayList<T>();
+		private Throwable error;
+		private boolean completed;
+
+		public void onSubscribe(EmailSubscription subscription) {
+			this.subscription = subscription;
+		}
+
+		public void onNext(T item) {
+			items.add(item);
+		}
+
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		public void onComplete() {
+			completed = true;
+		}
+	}
+}
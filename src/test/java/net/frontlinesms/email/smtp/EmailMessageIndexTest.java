@@ -0,0 +1,154 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.frontlinesms.email.EmailClock;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailMessageIndex} class.
+ */
+public class EmailMessageIndexTest extends BaseTestCase {
+	private static final long TTL = 60000;
+
+	private File directory;
+	/** Time returned by the indexes' clocks */
+	private long now = 1000000;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("EmailMessageIndexTest", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if(files != null) for(File file : files) file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	/** Unit tests for adding, replacing, expiring and reopening entries. */
+	public void testEntries() throws Exception {
+		EmailMessageIndex index = createIndex();
+		String messageId = index.createMessageId("sms-1");
+		assertEquals("Checking Message-IDs are deterministic", messageId, index.createMessageId("sms-1"));
+		assertTrue("Checking keys give different Message-IDs", !messageId.equals(index.createMessageId("sms-2")));
+		assertTrue("Checking the Message-ID's domain", messageId.endsWith("@sms.example.com>"));
+
+		index.put(messageId, "conversation-1");
+		index.put("<other@example.com>", "conversation-2");
+		assertEquals("conversation-1", index.get(messageId));
+		assertNull("Checking an unknown Message-ID", index.get("<unknown@example.com>"));
+		index.put(messageId, "conversation-3");
+		assertEquals("Checking an entry is replaced", "conversation-3", index.get(messageId));
+		assertEquals("Checking a replaced entry does not use another slot", 2, index.size());
+
+		index.close();
+		index = createIndex();
+		assertEquals("Checking entries survive reopening", "conversation-3", index.get(messageId));
+
+		now += TTL;
+		assertNull("Checking entries expire", index.get(messageId));
+		index.put("<new@example.com>", "conversation-4");
+		assertEquals("Checking only the new entry is live", 1, index.compact());
+		assertEquals("conversation-4", index.get("<new@example.com>"));
+		index.close();
+	}
+
+	/** Unit tests for the table being rebuilt from the log if the index was not closed. */
+	public void testCrashRecovery() throws Exception {
+		EmailMessageIndex index = createIndex();
+		for(int i=0; i<100; ++i) index.put("<" + i + "@example.com>", "c" + i);
+		index.sync();
+		// Not closed, as if the process had stopped
+
+		EmailMessageIndex reopened = createIndex();
+		for(int i=0; i<100; ++i) assertEquals("c" + i, reopened.get("<" + i + "@example.com>"));
+		reopened.close();
+	}
+
+	/** Unit tests for the table growing and dropping expired entries when it fills up. */
+	public void testCompaction() throws Exception {
+		EmailMessageIndex index = createIndex();
+		for(int i=0; i<500; ++i) index.put("<old" + i + "@example.com>", "old");
+		now += TTL / 2;
+		for(int i=0; i<2000; ++i) index.put("<" + i + "@example.com>", "c" + i);
+		for(int i=0; i<2000; ++i) assertEquals("c" + i, index.get("<" + i + "@example.com>"));
+		assertEquals("old", index.get("<old1@example.com>"));
+
+		now += TTL / 2;
+		assertEquals("Checking expired entries are dropped", 2000, index.compact());
+		assertEquals("Checking the size after compacting", 2000, index.size());
+		assertNull(index.get("<old1@example.com>"));
+		assertEquals("c1999", index.get("<1999@example.com>"));
+		index.close();
+	}
+
+	/** Unit tests for resolving replies, and for the Message-IDs of sent emails being recorded. */
+	public void testResolveReply() throws Exception {
+		GreenMail greenMail = new GreenMail(ServerSetupTest.SMTP);
+		greenMail.start();
+		try {
+			EmailMessageIndex index = createIndex();
+			SmtpEmailSender sender = new SmtpEmailSender("localhost", ServerSetupTest.SMTP.getPort());
+			sender.setMessageIndex(index);
+			String messageId = sender.sendEmail("to@example.com", new InternetAddress("from@example.com"), "Subject", "Text", "sms-42", "conversation-42");
+			assertEquals("Checking the Message-ID comes from the key", index.createMessageId("sms-42"), messageId);
+			assertEquals("Checking the sent email has the Message-ID", messageId, greenMail.getReceivedMessages()[0].getMessageID());
+
+			assertEquals("Checking a reply is resolved by In-Reply-To", "conversation-42",
+					index.resolve(parse("In-Reply-To: " + messageId + "\r\n")));
+			assertEquals("Checking a reply is resolved by References", "conversation-42",
+					index.resolve(parse("In-Reply-To: <unknown@example.com>\r\nReferences: <first@example.com>\r\n " + messageId + " <unknown@example.com>\r\n")));
+			assertNull("Checking an email which is not a reply", index.resolve(parse("Subject: Hello\r\n")));
+			index.close();
+		} finally {
+			greenMail.stop();
+		}
+	}
+
+//> HELPER METHODS
+	private EmailMessageIndex createIndex() throws Exception {
+		return new EmailMessageIndex(directory, "sms.example.com", TTL, new EmailClock() {
+			public long currentTimeMillis() {
+				return now;
+			}
+		});
+	}
+
+	private static MimeMessage parse(String headers) throws Exception {
+		String text = "From: someone@example.com\r\n" + headers + "\r\nReply text\r\n";
+		return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(text.getBytes("US-ASCII")));
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import net.frontlinesms.email.EmailClock;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailSuppressionList} class.
+ */
+public class EmailSuppressionListTest extends BaseTestCase {
+	private File file;
+	/** Time returned by the lists' clocks */
+	private long now = 1000000;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("EmailSuppressionListTest", ".txt");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+		super.tearDown();
+	}
+
+	/** Unit tests for adding, removing and expiring entries, before and after the list is reloaded. */
+	public void testEntries() throws Exception {
+		EmailSuppressionList list = createList();
+		list.add("Bounced@Example.com", EmailSuppressionList.Reason.HARD_BOUNCE, EmailSuppressionList.NEVER);
+		list.add("later@example.com", EmailSuppressionList.Reason.UNSUBSCRIBED, now + 1000);
+		list.add("removed@example.com", EmailSuppressionList.Reason.MANUAL, EmailSuppressionList.NEVER);
+		list.remove("removed@example.com");
+		checkEntries(list, "before reloading");
+
+		list.reload();
+		assertEquals("Checking removed entries are not loaded", 2, list.getLoadedSize());
+		checkEntries(list, "after reloading");
+		checkEntries(createList(), "after reopening");
+
+		now += 1000;
+		assertTrue("Checking an entry stops once it expires", !list.isSuppressed("later@example.com"));
+	}
+
+	/** Unit tests for lookups among many entries giving no false positives. */
+	public void testManyEntries() throws Exception {
+		StringBuilder addresses = new StringBuilder();
+		for(int i=0; i<10000; i+=2) addresses.append("user").append(i).append("@example.com\n");
+		EmailSuppressionList list = createList();
+		assertEquals("Checking the number imported", 5000, list.importFrom(new StringReader(addresses.toString()), EmailSuppressionList.Reason.HARD_BOUNCE, EmailSuppressionList.NEVER));
+		for(int i=0; i<10000; ++i) {
+			assertEquals("Checking user" + i, i % 2 == 0, list.isSuppressed("user" + i + "@example.com"));
+		}
+	}
+
+	/** Unit tests for importing, exporting and compacting. */
+	public void testImportExport() throws Exception {
+		EmailSuppressionList list = createList();
+		String imported = "# Comment\n"
+				+ "one@example.com\n"
+				+ "two@example.com COMPLAINT -1\n"
+				+ "\n"
+				+ "expired@example.com HARD_BOUNCE " + (now - 1) + "\n"
+				+ "invalid@example.com NOT_A_REASON 0\n";
+		assertEquals("Checking the number imported", 3, list.importFrom(new StringReader(imported), EmailSuppressionList.Reason.UNSUBSCRIBED, EmailSuppressionList.NEVER));
+		list.remove("two@example.com");
+
+		StringWriter exported = new StringWriter();
+		assertEquals("Checking the number exported", 1, list.exportTo(exported));
+		assertEquals("Checking the export", "one@example.com UNSUBSCRIBED -1\n", exported.toString());
+
+		long before = file.length();
+		list.compact();
+		assertTrue("Checking compacting shrinks the file", file.length() < before);
+		assertTrue("Checking entries survive compacting", list.isSuppressed("one@example.com"));
+		assertTrue("Checking removed entries stay removed", !list.isSuppressed("two@example.com"));
+	}
+
+	/** Unit tests for filtering keeping the type of the array. */
+	public void testFilter() throws Exception {
+		EmailSuppressionList list = createList();
+		list.add("b@example.com", EmailSuppressionList.Reason.HARD_BOUNCE, EmailSuppressionList.NEVER);
+		InternetAddress[] addresses = InternetAddress.parse("a@example.com, B@example.com, c@example.com");
+		Address[] allowed = list.filter(addresses);
+		assertTrue("Checking the array type is kept", allowed instanceof InternetAddress[]);
+		assertEquals("Checking the allowed addresses", 2, allowed.length);
+		assertEquals("c@example.com", ((InternetAddress) allowed[1]).getAddress());
+		InternetAddress[] none = InternetAddress.parse("a@example.com");
+		assertSame("Checking an array with nothing suppressed is returned unchanged", none, list.filter(none));
+	}
+
+	/** Unit tests for suppressed recipients being dropped by {@link SmtpEmailSender}. */
+	public void testSend() throws Exception {
+		GreenMail greenMail = new GreenMail(ServerSetupTest.SMTP);
+		greenMail.start();
+		try {
+			EmailSuppressionList list = createList();
+			list.add("bounced@example.com", EmailSuppressionList.Reason.HARD_BOUNCE, EmailSuppressionList.NEVER);
+			SmtpEmailSender sender = new SmtpEmailSender("localhost", ServerSetupTest.SMTP.getPort());
+			sender.setSuppressionList(list);
+
+			sender.sendEmail("good@example.com, bounced@example.com", new InternetAddress("from@example.com"), "Subject", "Text");
+			sender.sendEmail("bounced@example.com", new InternetAddress("from@example.com"), "Suppressed", "Text");
+			assertEquals("Checking the suppressed recipient is dropped", 2, sender.sendEmailSeparately("a@example.com, Bounced@example.com, b@example.com", new InternetAddress("from@example.com"), "Fan-out", "Text"));
+
+			MimeMessage[] received = greenMail.getReceivedMessages();
+			assertEquals("Checking only unsuppressed recipients received emails", 3, received.length);
+			for(MimeMessage message : received) {
+				assertTrue("Checking no email was sent only to a suppressed recipient", !message.getSubject().equals("Suppressed"));
+			}
+		} finally {
+			greenMail.stop();
+		}
+	}
+
+//> HELPER METHODS
+	private void checkEntries(EmailSuppressionList list, String when) {
+		assertTrue("Checking an address is suppressed whatever its case " + when, list.isSuppressed(" bounced@example.COM"));
+		assertTrue("Checking an entry which has not expired " + when, list.isSuppressed("later@example.com"));
+		assertTrue("Checking a removed entry " + when, !list.isSuppressed("removed@example.com"));
+		assertTrue("Checking an address which was never added " + when, !list.isSuppressed("other@example.com"));
+	}
+
+	private EmailSuppressionList createList() throws Exception {
+		return new EmailSuppressionList(file, new EmailClock() {
+			public long currentTimeMillis() {
+				return now;
+			}
+		});
+	}
+}
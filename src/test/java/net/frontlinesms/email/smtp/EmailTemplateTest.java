@@ -0,0 +1,63 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EmailTemplate} class.
+ */
+public class EmailTemplateTest extends BaseTestCase {
+	/** Unit tests for {@link EmailTemplate#render(Map)}. */
+	public void testRender() {
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("name", "Alice");
+		values.put("count", "3");
+		
+		assertEquals("Checking template without placeholders.", "Hello", EmailTemplate.compile("Hello").render(values));
+		assertEquals("Checking single placeholder.", "Hello Alice!", EmailTemplate.compile("Hello ${name}!").render(values));
+		assertEquals("Checking adjacent placeholders.", "Alice3", EmailTemplate.compile("${name}${count}").render(values));
+		assertEquals("Checking whitespace in placeholder names.", "Hi Alice", EmailTemplate.compile("Hi ${ name }").render(values));
+		assertEquals("Checking missing value.", "Hello !", EmailTemplate.compile("Hello ${unknown}!").render(values));
+		assertEquals("Checking unterminated placeholder.", "Hello Alice ${name", EmailTemplate.compile("Hello ${name} ${name").render(values));
+	}
+
+	/** Unit tests for {@link EmailTemplate#render(Map, StringBuilder)} re-using a buffer. */
+	public void testRenderIntoBuffer() {
+		EmailTemplate template = EmailTemplate.compile("Dear ${name}, you have ${count} new messages.");
+		assertEquals("Checking placeholder names.", 2, template.getPlaceholderNames().length);
+		
+		StringBuilder buffer = new StringBuilder(template.getEstimatedLength());
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("name", "Bob");
+		values.put("count", "12");
+		template.render(values, buffer);
+		assertEquals("Dear Bob, you have 12 new messages.", buffer.toString());
+		
+		buffer.setLength(0);
+		values.put("name", "Carol");
+		values.put("count", "1");
+		template.render(values, buffer);
+		assertEquals("Dear Carol, you have 1 new messages.", buffer.toString());
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link EncodedPartCache} class.
+ */
+public class EncodedPartCacheTest extends BaseTestCase {
+	/** Size of each test attachment, in bytes */
+	private static final int ATTACHMENT_SIZE = 1000;
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = File.createTempFile("EncodedPartCacheTest", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for(File file : directory.listFiles()) file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	/** Unit tests for cache hits, and for least-recently used parts being spilled to disk and then deleted. */
+	public void testEvictionAndSpill() throws Exception {
+		File spool = new File(directory, "spool");
+		spool.mkdir();
+		File a = createAttachment("a.bin", 1);
+		File b = createAttachment("b.bin", 2);
+		File c = createAttachment("c.bin", 3);
+		File d = createAttachment("d.bin", 4);
+
+		// All four attachments encode to the same length, as only their content differs
+		EncodedPartCache probe = new EncodedPartCache(Long.MAX_VALUE, 0, spool);
+		String encodedA = encode(probe.getAttachment(a));
+		long length = probe.getMemoryUsed();
+
+		// Room for one part on the heap and two on disk
+		EncodedPartCache cache = new EncodedPartCache(2 * length - 1, 2 * length + length / 2, spool);
+		assertEquals(encodedA, encode(cache.getAttachment(a)));
+		assertEquals(encodedA, encode(cache.getAttachment(a)));
+		assertEquals("Checking repeated attachment is served from the cache.", 1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(length, cache.getMemoryUsed());
+		assertEquals(0, cache.getDiskUsed());
+
+		cache.getAttachment(b);
+		assertEquals("Checking least recently used part is spilled to disk.", length, cache.getDiskUsed());
+		assertEquals(length, cache.getMemoryUsed());
+		assertEquals(1, spool.listFiles().length);
+		assertEquals("Checking spilled part is unchanged.", encodedA, encode(cache.getAttachment(a)));
+		assertEquals(2, cache.getHitCount());
+
+		cache.getAttachment(c);
+		cache.getAttachment(d);
+		assertEquals("Checking disk budget is kept to.", 2 * length, cache.getDiskUsed());
+		assertEquals("Checking evicted part's file is deleted.", 2, spool.listFiles().length);
+
+		// a was the least recently used part on disk, so has been evicted; b and c are still there
+		long misses = cache.getMissCount();
+		cache.getAttachment(b);
+		cache.getAttachment(c);
+		assertEquals(misses, cache.getMissCount());
+		assertEquals(encodedA, encode(cache.getAttachment(a)));
+		assertEquals(misses + 1, cache.getMissCount());
+
+		cache.clear();
+		assertEquals(0, cache.getMemoryUsed());
+		assertEquals(0, cache.getDiskUsed());
+		assertEquals("Checking clear() deletes spooled files.", 0, spool.listFiles().length);
+	}
+
+	/** Unit tests for an attachment too large for the memory budget being encoded straight to disk. */
+	public void testLargeAttachment() throws Exception {
+		File spool = new File(directory, "spool");
+		spool.mkdir();
+		File a = createAttachment("a.bin", 1);
+		String expected = encode(PreencodedBodyPart.forFile(a));
+
+		EncodedPartCache cache = new EncodedPartCache(100, 1024 * 1024, spool);
+		assertEquals(expected, encode(cache.getAttachment(a)));
+		assertEquals(0, cache.getMemoryUsed());
+		assertEquals(expected.length(), cache.getDiskUsed());
+		assertEquals(1, spool.listFiles().length);
+		cache.clear();
+		assertEquals(0, spool.listFiles().length);
+	}
+
+	/** Unit tests for a modified file being encoded again. */
+	public void testModifiedFile() throws Exception {
+		File a = createAttachment("a.bin", 1);
+		EncodedPartCache cache = new EncodedPartCache(1024 * 1024, 0, directory);
+		String first = encode(cache.getAttachment(a));
+		a.delete();
+		a = createAttachment("a.bin", 2);
+		a.setLastModified(a.lastModified() + 2000);
+		assertFalse("Checking modified file is encoded again.", first.equals(encode(cache.getAttachment(a))));
+		assertEquals(2, cache.getMissCount());
+	}
+
+	private File createAttachment(String name, long seed) throws IOException {
+		byte[] content = new byte[ATTACHMENT_SIZE];
+		new Random(seed).nextBytes(content);
+		File file = new File(directory, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static String encode(PreencodedBodyPart part) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		part.writeTo(out);
+		return out.toString("US-ASCII");
+	}
+}
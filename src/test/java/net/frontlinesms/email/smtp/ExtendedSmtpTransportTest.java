@@ -0,0 +1,231 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link ExtendedSmtpTransport} class, against a scripted SMTP server.
+ */
+public class ExtendedSmtpTransportTest extends BaseTestCase {
+	/** Size of BDAT chunks */
+	private static final int CHUNK_SIZE = 100;
+
+	/** Unit tests for binary content being cut into chunks of exactly the chunk size when the server supports PIPELINING. */
+	public void testBinaryChunks() throws Exception {
+		ScriptedSmtpServer server = send(true);
+		List<Integer> sizes = server.getChunkSizes();
+		assertTrue("Checking message is sent in several chunks: " + sizes, sizes.size() > 2);
+		for(int i=0; i<sizes.size() - 1; ++i) {
+			assertEquals("Checking chunk " + i + " is the chunk size.", CHUNK_SIZE, sizes.get(i).intValue());
+		}
+		assertTrue("Checking NOOPs are sent after chunks which do not end with CRLF.", server.getNoops() > 0);
+		assertAttachment(server);
+	}
+
+	/** Unit tests for chunks only being cut after CRLF when the server does not support PIPELINING. */
+	public void testLineChunksWithoutPipelining() throws Exception {
+		ScriptedSmtpServer server = send(false);
+		assertEquals("Checking no NOOPs are sent.", 0, server.getNoops());
+		assertAttachment(server);
+	}
+
+//> HELPER METHODS
+	/** Sends a message with a random binary attachment to a new scripted server, with BINARYMIME and small chunks. */
+	private static ScriptedSmtpServer send(boolean pipelining) throws Exception {
+		ScriptedSmtpServer server = new ScriptedSmtpServer(pipelining);
+		server.start();
+		try {
+			SmtpEmailSender sender = new SmtpEmailSender("127.0.0.1", server.getPort());
+			sender.setChunkSize(CHUNK_SIZE);
+			sender.setUseBinaryMime(true);
+			MimeMessage message = sender.createMessage();
+			message.setFrom(new InternetAddress("sender@example.com"));
+			message.setRecipient(Message.RecipientType.TO, new InternetAddress("user@example.com"));
+			message.setSubject("binary");
+			MimeMultipart multipart = new MimeMultipart();
+			MimeBodyPart text = new MimeBodyPart();
+			text.setText("Body");
+			multipart.addBodyPart(text);
+			MimeBodyPart file = new MimeBodyPart();
+			file.setDataHandler(new DataHandler(new ByteArrayDataSource(getAttachment(), "application/octet-stream")));
+			file.setFileName("random.bin");
+			multipart.addBodyPart(file);
+			message.setContent(multipart);
+			Transport.send(message);
+			server.join(5000);
+			return server;
+		} finally {
+			server.close();
+		}
+	}
+
+	/** @return the attachment sent, which has no CRLFs */
+	private static byte[] getAttachment() {
+		byte[] attachment = new byte[1000];
+		new Random(1).nextBytes(attachment);
+		for(int i=0; i<attachment.length; ++i) {
+			if(attachment[i] == '\r' || attachment[i] == '\n') attachment[i] = 0;
+		}
+		return attachment;
+	}
+
+	/** Checks the attachment was received unchanged and unencoded. */
+	private static void assertAttachment(ScriptedSmtpServer server) throws Exception {
+		assertTrue("Checking BINARYMIME is declared.", server.getCommands().contains("MAIL FROM:<sender@example.com> BODY=BINARYMIME"));
+		MimeMessage received = new MimeMessage(Session.getInstance(System.getProperties()), new ByteArrayInputStream(server.getContent()));
+		MimeBodyPart file = (MimeBodyPart) ((Multipart) received.getContent()).getBodyPart(1);
+		assertEquals("Checking attachment is sent unencoded.", "binary", file.getEncoding());
+		InputStream in = file.getInputStream();
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1) content.write(b);
+		assertTrue("Checking attachment is received unchanged.", Arrays.equals(getAttachment(), content.toByteArray()));
+	}
+
+//> INNER CLASSES
+	/** SMTP server for one connection, which supports CHUNKING and BINARYMIME and records the chunks it receives. */
+	private static class ScriptedSmtpServer extends Thread {
+		private final boolean pipelining;
+		private final ServerSocket serverSocket;
+		private final List<String> commands = new ArrayList<String>();
+		private final List<Integer> chunkSizes = new ArrayList<Integer>();
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		private int noops;
+
+		ScriptedSmtpServer(boolean pipelining) throws IOException {
+			this.pipelining = pipelining;
+			this.serverSocket = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		synchronized List<String> getCommands() {
+			return new ArrayList<String>(commands);
+		}
+
+		synchronized List<Integer> getChunkSizes() {
+			return new ArrayList<Integer>(chunkSizes);
+		}
+
+		synchronized byte[] getContent() {
+			return content.toByteArray();
+		}
+
+		synchronized int getNoops() {
+			return noops;
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+		}
+
+		@Override
+		public void run() {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					OutputStream out = socket.getOutputStream();
+					send(out, "220 test.server ready");
+					String line;
+					while((line = readLine(in)) != null) {
+						synchronized(this) {
+							commands.add(line);
+						}
+						String verb = line.split(" ")[0].toUpperCase();
+						if(verb.equals("EHLO")) {
+							send(out, "250-test.server\r\n" + (pipelining ? "250-PIPELINING\r\n" : "") + "250-CHUNKING\r\n250 BINARYMIME");
+						} else if(verb.equals("BDAT")) {
+							byte[] chunk = new byte[Integer.parseInt(line.split(" ")[1])];
+							in.readFully(chunk);
+							synchronized(this) {
+								chunkSizes.add(Integer.valueOf(chunk.length));
+								content.write(chunk);
+							}
+							send(out, "250 2.0.0 Chunk received");
+						} else if(verb.equals("NOOP")) {
+							synchronized(this) {
+								++noops;
+							}
+							send(out, "250 2.0.0 OK");
+						} else if(verb.equals("QUIT")) {
+							send(out, "221 2.0.0 Bye");
+							break;
+						} else {
+							send(out, "250 2.0.0 OK");
+						}
+					}
+				} finally {
+					socket.close();
+				}
+			} catch(IOException ex) {
+				// The test fails on the missing content
+			}
+		}
+
+		/** @return the next line, without its CRLF, or <code>null</code> at the end of the stream */
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b;
+			while((b = in.read()) != -1) {
+				if(b == '\n') {
+					int length = line.length();
+					if(length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+					return line.toString();
+				}
+				line.append((char) b);
+			}
+			return null;
+		}
+
+		private static void send(OutputStream out, String text) throws IOException {
+			out.write((text + "\r\n").getBytes("US-ASCII"));
+			out.flush();
+		}
+	}
+}
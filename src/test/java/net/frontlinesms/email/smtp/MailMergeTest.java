@@ -0,0 +1,207 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.ByteArrayDataSource;
+
+import net.frontlinesms.email.EmailException;
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link MailMerge}, {@link SmtpBatch} and the sharing of {@link PreencodedBodyPart}s.
+ */
+public class MailMergeTest extends BaseTestCase {
+	/** Messages sent by {@link RecordingTransport} */
+	private static final List<MimeMessage> SENT = new ArrayList<MimeMessage>();
+	/** Number of connections made by {@link RecordingTransport} */
+	private static int connections;
+
+	private SmtpEmailSender sender;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		SENT.clear();
+		connections = 0;
+		sender = new SmtpEmailSender("smtp.example.com");
+		sender.getSession().setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", RecordingTransport.class.getName(), "FrontlineSMS", "test"));
+	}
+
+	/** Unit tests for each recipient's values being rendered into their own message, over one connection. */
+	public void testPersonalisedMessages() throws Exception {
+		MailMerge merge = createMerge();
+		int sent = merge.send(Arrays.asList(
+				createRecipient("alice@example.com", "Alice", "a long appointment description"),
+				createRecipient("bob@example.com", "Bob", "short"),
+				new MailMergeRecipient("carol@example.com", null)));
+
+		assertEquals("Checking every message is sent", 3, sent);
+		assertEquals("Checking the merge uses one connection", 1, connections);
+		assertEquals("Hello Alice!", SENT.get(0).getSubject());
+		assertEquals("Your appointment: a long appointment description", SENT.get(0).getContent());
+		assertEquals("Checking values from the previous recipient do not remain", "Hello Bob!", SENT.get(1).getSubject());
+		assertEquals("Your appointment: short", SENT.get(1).getContent());
+		assertEquals("Checking null values render as empty text", "Hello !", SENT.get(2).getSubject());
+		assertEquals("Your appointment: ", SENT.get(2).getContent());
+		assertEquals("[carol@example.com]", Arrays.asList(SENT.get(2).getAllRecipients()).toString());
+	}
+
+	/** Unit tests for a shared part being encoded once, and a duplicate of it added to every message. */
+	public void testSharedParts() throws Exception {
+		CountingDataSource source = new CountingDataSource("Shared attachment content".getBytes("US-ASCII"));
+		MimeBodyPart attachment = new MimeBodyPart();
+		attachment.setDataHandler(new DataHandler(source));
+		attachment.setFileName("shared.txt");
+		MailMerge merge = createMerge();
+		merge.addSharedPart(attachment);
+		int reads = source.reads;
+		merge.send(Arrays.asList(createRecipient("alice@example.com", "Alice", "one"), createRecipient("bob@example.com", "Bob", "two")));
+
+		assertEquals("Checking the shared part is not encoded again for each message", reads, source.reads);
+		BodyPart first = ((Multipart) SENT.get(0).getContent()).getBodyPart(1);
+		BodyPart second = ((Multipart) SENT.get(1).getContent()).getBodyPart(1);
+		assertTrue("Checking the shared part is pre-encoded", first instanceof PreencodedBodyPart);
+		assertNotSame("Checking each message has its own copy of the part", first, second);
+		assertEquals("Checking the copies are written identically", encode(first), encode(second));
+		assertEquals("Your appointment: two", ((Multipart) SENT.get(1).getContent()).getBodyPart(0).getContent());
+	}
+
+	/** Unit tests for a rejected message being skipped, and the rest of the merge carrying on. */
+	public void testRejectedMessage() throws Exception {
+		int sent = createMerge().send(Arrays.asList(
+				createRecipient("alice@example.com", "Alice", "one"),
+				createRecipient("reject@example.com", "Rejected", "two"),
+				createRecipient("bob@example.com", "Bob", "three")));
+
+		assertEquals("Checking the rejected message is not counted", 2, sent);
+		assertEquals("Checking the merge carries on after the rejected message", 3, SENT.size());
+		assertEquals("Hello Bob!", SENT.get(2).getSubject());
+		assertEquals(1, connections);
+	}
+
+	/** Unit tests for a batch counting only the messages which were sent. */
+	public void testBatchSentCount() throws Exception {
+		SmtpBatch batch = sender.openBatch();
+		try {
+			batch.send(createMessage("alice@example.com"));
+			try {
+				batch.send(createMessage("reject@example.com"));
+				fail("Checking a rejected message throws an exception");
+			} catch(EmailException ex) {
+				// expected
+			}
+			assertTrue("Checking the batch stays connected after a rejection", batch.isConnected());
+			batch.sendPrepared(createMessage("bob@example.com"), InternetAddress.parse("bob@example.com"));
+			assertEquals("Checking sent messages are counted", 2, batch.getSentCount());
+		} finally {
+			batch.close();
+		}
+		assertEquals(1, connections);
+	}
+
+//> HELPER METHODS
+	private MailMerge createMerge() throws Exception {
+		MailMerge merge = new MailMerge(sender, EmailTemplate.compile("Hello ${name}!"), EmailTemplate.compile("Your appointment: ${appointment}"));
+		merge.setFromAddress(new InternetAddress("sender@example.com"));
+		return merge;
+	}
+
+	private static MailMergeRecipient createRecipient(String address, String name, String appointment) {
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("name", name);
+		values.put("appointment", appointment);
+		return new MailMergeRecipient(address, values);
+	}
+
+	private MimeMessage createMessage(String recipient) throws MessagingException {
+		MimeMessage message = sender.createMessage();
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setRecipients(Message.RecipientType.TO, recipient);
+		message.setSubject("Batch");
+		message.setText("Batch body");
+		return message;
+	}
+
+	private static String encode(BodyPart part) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		part.writeTo(out);
+		return out.toString("US-ASCII");
+	}
+
+//> INNER CLASSES
+	/** Data source which counts how many times its content is read. */
+	private static class CountingDataSource extends ByteArrayDataSource {
+		/** Number of times the content has been read */
+		private int reads;
+
+		CountingDataSource(byte[] content) {
+			super(content, "text/plain");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			++reads;
+			return super.getInputStream();
+		}
+	}
+
+	/** Transport which records the messages sent over it, and rejects messages to addresses starting with "reject". */
+	public static class RecordingTransport extends Transport {
+		public RecordingTransport(Session session, URLName urlname) {
+			super(session, urlname);
+		}
+
+		@Override
+		protected boolean protocolConnect(String host, int port, String user, String password) {
+			++connections;
+			return true;
+		}
+
+		@Override
+		public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+			SENT.add((MimeMessage) message);
+			for(Address address : addresses) {
+				if(((InternetAddress) address).getAddress().startsWith("reject")) throw new MessagingException("550 Mailbox unavailable");
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for {@link PooledBodyPart}.
+ */
+public class PooledBodyPartTest extends BaseTestCase {
+	/** Test that text parts are written exactly as {@link MimeBodyPart} writes them. */
+	public void testText() throws Exception {
+		for(String text : new String[] { "Plain text\r\nin lines", "Café ouvert = open \r\n", "" }) {
+			MimeBodyPart expected = new MimeBodyPart();
+			expected.setText(text, "UTF-8");
+			MimeBodyPart actual = new PooledBodyPart();
+			actual.setText(text, "UTF-8");
+			assertEquals("Checking text part: " + text, encode(expected), encode(actual));
+		}
+	}
+
+	/** Test that a space at the very end of quoted-printable content is written as =20, where {@link MimeBodyPart} drops it. */
+	public void testTrailingSpace() throws Exception {
+		MimeBodyPart expected = new MimeBodyPart();
+		expected.setText("Café ", "UTF-8");
+		MimeBodyPart actual = new PooledBodyPart();
+		actual.setText("Café ", "UTF-8");
+		assertTrue("Checking JavaMail drops the space", encode(expected).endsWith("Caf=C3=A9"));
+		assertEquals("Checking the space is kept", encode(expected) + "=20", encode(actual));
+	}
+
+	/** Test that file and byte array attachments are written exactly as {@link MimeBodyPart} writes them. */
+	public void testAttachments() throws Exception {
+		byte[] content = new byte[50000];
+		new Random(1).nextBytes(content);
+		File file = File.createTempFile("PooledBodyPartTest", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+			assertEquals("Checking file attachment", encode(createFilePart(file)), encode(PreencodedBodyPart.createAttachmentPart(file)));
+		} finally {
+			file.delete();
+		}
+		
+		MimeBodyPart expected = new MimeBodyPart();
+		expected.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+		MimeBodyPart actual = new PooledBodyPart();
+		actual.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+		assertEquals("Checking byte array attachment", encode(expected), encode(actual));
+	}
+
+	/** @return a file attachment written by JavaMail's {@link MimeBodyPart} */
+	private static MimeBodyPart createFilePart(File file) throws Exception {
+		MimeBodyPart part = new MimeBodyPart();
+		part.attachFile(file);
+		return part;
+	}
+
+	private static String encode(MimeBodyPart part) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PreencodedBodyPart.encodeTo(part, out);
+		return out.toString("US-ASCII");
+	}
+}
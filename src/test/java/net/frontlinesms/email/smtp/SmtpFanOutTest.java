@@ -0,0 +1,170 @@
+/*
+ * FrontlineSMS <http://www.frontlinesms.com>
+ * Copyright 2007, 2008 kiwanja
+ * 
+ * This file is part of FrontlineSMS.
+ * 
+ * FrontlineSMS is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ * 
+ * FrontlineSMS is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with FrontlineSMS. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.frontlinesms.email.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+/**
+ * Unit tests for the {@link SmtpFanOut} class.
+ */
+public class SmtpFanOutTest extends BaseTestCase {
+	/** Transactions sent by {@link RecordingTransport} */
+	private static final List<Transaction> TRANSACTIONS = new ArrayList<Transaction>();
+	/** Number of connections made by {@link RecordingTransport} */
+	private static int connections;
+
+	private SmtpEmailSender sender;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		TRANSACTIONS.clear();
+		connections = 0;
+		sender = new SmtpEmailSender("smtp.example.com");
+		sender.getSession().setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", RecordingTransport.class.getName(), "FrontlineSMS", "test"));
+	}
+
+	/** Unit tests for recipients being grouped by domain, in transactions of limited size, over one connection. */
+	public void testChunkingByDomain() throws Exception {
+		SmtpFanOut fanOut = new SmtpFanOut(sender, createMessage());
+		fanOut.setMaxRecipientsPerTransaction(3);
+		int accepted = fanOut.send("d@b.example, a@a.example, e@c.example, b@b.example, c@a.example, f@B.example, g@a.example");
+
+		assertEquals(7, accepted);
+		assertEquals("Checking all transactions share one connection.", 1, connections);
+		assertEquals(3, TRANSACTIONS.size());
+		assertEquals("Checking recipients are sorted by domain.", "[a@a.example, c@a.example, g@a.example]", TRANSACTIONS.get(0).envelope);
+		assertEquals("[d@b.example, b@b.example, f@B.example]", TRANSACTIONS.get(1).envelope);
+		assertEquals("Checking last transaction holds the remainder.", "[e@c.example]", TRANSACTIONS.get(2).envelope);
+		for(Transaction transaction : TRANSACTIONS) {
+			assertEquals("Checking recipients cannot see each other.", "undisclosed-recipients:;", transaction.to);
+			assertEquals("Fan-out", transaction.subject);
+			assertEquals("Checking every transaction sends the same encoded message.", TRANSACTIONS.get(0).content, transaction.content);
+		}
+	}
+
+	/** Unit tests for recipients rejected by the server not being counted, nor stopping the fan-out. */
+	public void testRejectedRecipients() throws Exception {
+		SmtpFanOut fanOut = new SmtpFanOut(sender, createMessage());
+		fanOut.setMaxRecipientsPerTransaction(2);
+		int accepted = fanOut.send("a@a.example, reject@a.example, b@b.example");
+		assertEquals(2, TRANSACTIONS.size());
+		assertEquals("Checking rejected recipient is not counted.", 2, accepted);
+	}
+
+	/** Unit tests for each recipient getting their own transaction, headers and Message-ID when a personaliser is set. */
+	public void testPersonaliser() throws Exception {
+		SmtpFanOut fanOut = new SmtpFanOut(sender, createMessage());
+		fanOut.setPersonaliser(new FanOutPersonaliser() {
+			public void personalise(MimeMessage message, InternetAddress recipient) throws MessagingException {
+				message.setSubject("Hello " + recipient.getAddress());
+			}
+		});
+		assertEquals(2, fanOut.send("b@b.example, a@a.example"));
+
+		assertEquals(1, connections);
+		assertEquals(2, TRANSACTIONS.size());
+		Set<String> messageIds = new HashSet<String>();
+		for(Transaction transaction : TRANSACTIONS) {
+			assertEquals("Checking each copy is addressed to its recipient.", "[" + transaction.to + "]", transaction.envelope);
+			assertEquals("Hello " + transaction.to, transaction.subject);
+			messageIds.add(transaction.messageId);
+		}
+		assertEquals("a@a.example", TRANSACTIONS.get(0).to);
+		assertEquals("Checking each copy has its own Message-ID.", 2, messageIds.size());
+	}
+
+	private MimeMessage createMessage() throws MessagingException {
+		MimeMessage message = sender.createMessage();
+		message.setFrom(new InternetAddress("sender@example.com"));
+		message.setSubject("Fan-out");
+		message.setText("Shared body");
+		return message;
+	}
+
+//> INNER CLASSES
+	/** A message as it was sent. */
+	private static class Transaction {
+		final String envelope;
+		final String to;
+		final String subject;
+		final String messageId;
+		final String content;
+
+		Transaction(MimeMessage message, Address[] envelope) throws Exception {
+			this.envelope = Arrays.asList(envelope).toString();
+			this.to = message.getHeader("To", ",");
+			this.subject = message.getSubject();
+			this.messageId = message.getHeader("Message-ID", null);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			message.getDataHandler().writeTo(out);
+			this.content = out.toString("US-ASCII");
+		}
+	}
+
+	/** Transport which records the messages sent over it, and rejects recipients whose address starts with "reject". */
+	public static class RecordingTransport extends Transport {
+		public RecordingTransport(Session session, URLName urlname) {
+			super(session, urlname);
+		}
+
+		@Override
+		protected boolean protocolConnect(String host, int port, String user, String password) {
+			++connections;
+			return true;
+		}
+
+		@Override
+		public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+			try {
+				TRANSACTIONS.add(new Transaction((MimeMessage) message, addresses));
+			} catch(Exception ex) {
+				throw new MessagingException("Unable to record message", ex);
+			}
+			List<Address> valid = new ArrayList<Address>();
+			List<Address> invalid = new ArrayList<Address>();
+			for(Address address : addresses) {
+				(((InternetAddress) address).getAddress().startsWith("reject") ? invalid : valid).add(address);
+			}
+			if(!invalid.isEmpty()) {
+				throw new SendFailedException("Recipients rejected", null,
+						valid.toArray(new Address[valid.size()]), new Address[0], invalid.toArray(new Address[invalid.size()]));
+			}
+		}
+	}
+}